@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.cellbots.communication;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how long a command published by the server takes to reach a
+ * CustomHttpCommChannel, in streaming mode and in the default polling mode,
+ * on a desktop JVM.
+ *
+ * <pre>
+ * java com.cellbots.communication.CommChannelBenchmark [seconds [commandsPerSecond [pollMs]]]
+ * </pre>
+ *
+ * starts a stand-in command server on a local port. It publishes "w n n"
+ * commands at random intervals averaging commandsPerSecond (default 5),
+ * serves the latest one as a single line on /command.txt, as the PHP server
+ * does, and all of them as a Server-Sent-Events stream on /stream, where it
+ * holds the request open and honours Last-Event-ID. Each mode runs for
+ * seconds (default 20); the polling channel waits pollMs (default 100, what
+ * CellDroid uses) between requests. For each mode it prints how many commands
+ * arrived, how many were missed because a newer one replaced them between
+ * two polls, and the delivery latency percentiles.
+ *
+ * The channel logs through android.util.Log and the polling thread calls
+ * android.os.Looper.prepare(), so on a desktop JVM no-op versions of those
+ * two classes must be on the classpath ahead of the channel.
+ */
+public class CommChannelBenchmark {
+
+    // Interval of the keep-alive comments on an idle event stream.
+    private static final int KEEP_ALIVE_MS = 15000;
+
+    private final ServerSocket mServerSocket;
+
+    // Publication times in ns, indexed by command number. Guarded by itself.
+    private final ArrayList<Long> mPublished = new ArrayList<Long>();
+
+    private volatile boolean mRunning = true;
+
+    CommChannelBenchmark() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "CommChannelBenchmark-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 5;
+        long pollMs = args.length > 2 ? Long.parseLong(args[2]) : 100;
+
+        CommChannelBenchmark server = new CommChannelBenchmark();
+        String base = "http://127.0.0.1:" + server.mServerSocket.getLocalPort();
+        System.out.println("stand-in server on " + base + ", " + rate
+                + " commands/s for " + seconds + " s per mode");
+        server.run("streaming", base + "/stream", true, -1, seconds, rate);
+        server.run("polling " + pollMs + " ms", base + "/command.txt", false, pollMs, seconds,
+                rate);
+        server.mRunning = false;
+        server.mServerSocket.close();
+        System.exit(0);
+    }
+
+    /**
+     * Publishes commands for the given time to one channel and prints what
+     * arrived.
+     */
+    private void run(String name, String url, boolean streaming, long pollMs, int seconds,
+            double rate) throws InterruptedException {
+        final int first;
+        synchronized (mPublished) {
+            first = mPublished.size();
+        }
+        final long[] latencies = new long[(int) (seconds * rate * 4) + 16];
+        final int[] count = new int[1];
+        CustomHttpCommChannel channel = new CustomHttpCommChannel(url, null,
+                new AbstractCommChannel.CommMessageListener() {
+                    public void onMessage(CommMessage msg) {
+                        long now = System.nanoTime();
+                        int n = parseNumber(msg.getMessage());
+                        Long published;
+                        synchronized (mPublished) {
+                            published = n >= first && n < mPublished.size()
+                                    ? mPublished.get(n) : null;
+                        }
+                        synchronized (latencies) {
+                            if (published != null && count[0] < latencies.length) {
+                                latencies[count[0]++] = now - published;
+                            }
+                        }
+                    }
+
+                    public void onConnected(String channelName, int channel) {
+                    }
+
+                    public void onConnectError(String channelName, int channel) {
+                    }
+
+                    public void onDisconnected(String channelName, int channel) {
+                    }
+                }, name, streaming);
+        channel.listenForMessages(pollMs, false);
+        // Let the channel connect before the first command.
+        Thread.sleep(500);
+
+        Random random = new Random(1);
+        long end = System.nanoTime() + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * 1000 / rate));
+            publish();
+        }
+        // Give the last command time to arrive.
+        Thread.sleep(Math.max(500, 3 * pollMs));
+        channel.disconnect();
+
+        int published;
+        synchronized (mPublished) {
+            published = mPublished.size() - first;
+        }
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = Arrays.copyOf(latencies, count[0]);
+        }
+        Arrays.sort(sorted);
+        System.out.println(name + ": " + sorted.length + " of " + published
+                + " commands delivered, " + (published - sorted.length) + " missed");
+        if (sorted.length > 0) {
+            System.out.println(String.format(
+                    "  latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                    sorted[sorted.length - 1] / 1e6));
+        }
+    }
+
+    private void publish() {
+        synchronized (mPublished) {
+            mPublished.add(System.nanoTime());
+            mPublished.notifyAll();
+        }
+    }
+
+    private static int parseNumber(String cmd) {
+        // "w n n"
+        int start = cmd.indexOf(' ') + 1;
+        int end = cmd.indexOf(' ', start);
+        try {
+            return Integer.parseInt(cmd.substring(start, end < 0 ? cmd.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        } catch (IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static double percentile(long[] sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread handler = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        handle(socket);
+                    } catch (IOException e) {
+                        // The channel went away.
+                    } catch (InterruptedException e) {
+                        // Shutting down.
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }, "CommChannelBenchmark-connection");
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    /**
+     * Answers one request and closes the connection.
+     */
+    private void handle(Socket socket) throws IOException, InterruptedException {
+        socket.setTcpNoDelay(true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                "US-ASCII"));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        int lastEventId = -1;
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            if (line.toLowerCase().startsWith("last-event-id:")) {
+                try {
+                    lastEventId = Integer.parseInt(line.substring(14).trim());
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+        String[] parts = requestLine.split(" ");
+        String path = parts.length > 1 ? parts[1] : "/";
+        OutputStream out = socket.getOutputStream();
+        if (path.startsWith("/stream")) {
+            stream(out, lastEventId);
+        } else if (path.startsWith("/command.txt")) {
+            int latest;
+            synchronized (mPublished) {
+                latest = mPublished.size() - 1;
+            }
+            String body = latest >= 0 ? "w " + latest + " " + latest + "\n" : "\n";
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "
+                    + body.length() + "\r\nConnection: close\r\n\r\n" + body)
+                    .getBytes("US-ASCII"));
+            out.flush();
+        } else {
+            out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes("US-ASCII"));
+            out.flush();
+        }
+    }
+
+    /**
+     * Sends every command after lastEventId as an event, then each new one as
+     * it is published, until the channel disconnects.
+     */
+    private void stream(OutputStream out, int lastEventId) throws IOException,
+            InterruptedException {
+        out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n"
+                + "Cache-Control: no-cache\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+        int next;
+        synchronized (mPublished) {
+            // A new stream starts at the latest command, as a new poll would.
+            next = lastEventId >= 0 ? lastEventId + 1 : mPublished.size();
+        }
+        StringBuilder events = new StringBuilder();
+        while (mRunning) {
+            int published;
+            synchronized (mPublished) {
+                if (mPublished.size() <= next) {
+                    mPublished.wait(KEEP_ALIVE_MS);
+                }
+                published = mPublished.size();
+            }
+            events.setLength(0);
+            if (published <= next) {
+                events.append(": keep-alive\n\n");
+            }
+            for (; next < published; next++) {
+                events.append("id: ").append(next).append('\n');
+                events.append("data: w ").append(next).append(' ').append(next).append("\n\n");
+            }
+            out.write(events.toString().getBytes("US-ASCII"));
+            out.flush();
+        }
+    }
+}
@@ -60,6 +60,21 @@ public class CommunicationManager {
         mChannelMap.put(name, new CustomHttpCommChannel(receivingUrl, sendingUrl, listener, name));
     }
 
+    /**
+     * Add a new HTTP relay channel that receives messages over a long-lived
+     * event stream (Server-Sent-Events or long-poll) instead of polling.
+     * 
+     * @param name Name of the channel.
+     * @param receivingUrl Receive messages by streaming from this URL.
+     * @param sendingUrl Send messages by PUTing to this URL.
+     * @param listener The listener to received callback for this HTTP channel.
+     */
+    public void addHttpStreamingChannel(String name, String receivingUrl, String sendingUrl,
+            CommMessageListener listener) {
+        mChannelMap.put(name,
+                new CustomHttpCommChannel(receivingUrl, sendingUrl, listener, name, true));
+    }
+
     /**
      * Add a new XMPP channel.
      * 
@@ -21,19 +21,31 @@ import android.util.Log;
 import org.apache.commons.httpclient.HttpConnection;
 import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.methods.PutMethod;
-import org.apache.http.client.ClientProtocolException;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class sends and reads text from the specified URLs.
+ * By default the receiving URL is polled for one command line at a time. In
+ * streaming mode a single connection to the receiving URL is held open and
+ * read as a Server-Sent-Events stream ("id: <seq>" and "data: <command>"
+ * lines), so commands are delivered as soon as the server publishes them. A
+ * server that answers with one event per request (long-poll) works the same
+ * way, since the channel reconnects as soon as a response ends.
  *
  * @author chaitanyag@google.com (Chaitanya Gharpure)
  * @author clchen@google.com (Charles L. Chen)
@@ -42,6 +54,29 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
     
     private static final String TAG = "CustomHttp";
 
+    // Delay before the first reconnect attempt of a streaming connection
+    // that failed. It doubles with every failed attempt. It is also the
+    // shortest time between two connections that end without an event.
+    private static final long MIN_RECONNECT_DELAY = 250;
+
+    private static final long MAX_RECONNECT_DELAY = 16000;
+
+    // A streaming connection that stays silent for this long is considered
+    // dead. Servers should send comment lines as keep-alives more often.
+    private static final int STREAM_READ_TIMEOUT = 60000;
+
+    // Maximum number of outbound messages waiting to be sent. When full, the
+    // oldest message that is not a stop is dropped, see OutboundSender.
+    private static final int MAX_QUEUED_MESSAGES = 32;
+
+    // Commands that carry a complete state, so only the latest unsent one
+    // matters. "w" sets both wheel velocities.
+    private static final Set<String> COALESCED_COMMANDS =
+            new HashSet<String>(Arrays.asList("w"));
+
+    // Stops the robot. Never dropped when the outbound queue is full.
+    private static final String STOP_COMMAND = "s";
+
     private String inUrl;
 
     private String outUrl;
@@ -58,25 +93,41 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
 
     private URL commandUrl;
 
-    private SendHttpTask mSendHttpTask;
+    private OutboundSender mSender;
+
+    private final AtomicLong sentCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
     
     private Thread listenThread;
 
+    private final boolean mStreaming;
+
+    // Sequence number of the last command delivered in streaming mode.
+    private long lastSeq = -1;
+
     public CustomHttpCommChannel(String receivingUrl, String sendingUrl,
             CommMessageListener listener, String name) {
+        this(receivingUrl, sendingUrl, listener, name, false);
+    }
+
+    /**
+     * @param streaming If true, commands are received over a long-lived
+     *     event stream instead of polling receivingUrl.
+     */
+    public CustomHttpCommChannel(String receivingUrl, String sendingUrl,
+            CommMessageListener listener, String name, boolean streaming) {
         super(name);
+        mStreaming = streaming;
         mMessageListener = listener;
         inUrl = receivingUrl;
         outUrl = sendingUrl;
         stopReading = false;
         if (sendingUrl != null) {
-            new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            Looper.prepare();
-                            mSendHttpTask = new SendHttpTask(outUrl);
-                        }
-                    }).start();
+            mSender = new OutboundSender(outUrl);
+            mSender.start();
         }
     }
 
@@ -87,7 +138,7 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
                     public void run() {
                         // Wait while connection is not done for sending
                         // messages. No need to wait if no outUrl is specified.
-                        while ((mSendHttpTask == null || !mSendHttpTask.isReady()) && 
+                        while ((mSender == null || !mSender.isReady()) && 
                                !errorConnecting && outUrl != null) {
                             try {
                               Thread.sleep(100);
@@ -110,10 +161,25 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
                 }).start();
     }
     
+    /**
+     * Starts listening for messages. In streaming mode waitTimeBetweenPolling
+     * and returnStream are ignored; every received event is delivered as a
+     * text message.
+     */
     @Override
     public void listenForMessages(final long waitTimeBetweenPolling, final boolean returnStream) {
         if (inUrl == null || doDisconnect) return;
         stopReading = false;
+        if (mStreaming) {
+            listenThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readEventStream();
+                }
+            });
+            listenThread.start();
+            return;
+        }
         listenThread = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -175,12 +241,132 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
         listenThread.start();
     }
 
+    /**
+     * Reads commands from the event stream until the channel is
+     * disconnected. After a response that ends normally, such as a long-poll
+     * that timed out, it reconnects at once; after an error or a non-2xx
+     * status it reconnects with exponential backoff.
+     */
+    private void readEventStream() {
+        long reconnectDelay = MIN_RECONNECT_DELAY;
+        while (!stopReading) {
+            HttpURLConnection cn = null;
+            boolean gotEvent = false;
+            boolean ended = false;
+            long started = System.currentTimeMillis();
+            try {
+                if (commandUrl == null) {
+                    commandUrl = new URL(inUrl);
+                }
+                cn = (HttpURLConnection) commandUrl.openConnection();
+                cn.setReadTimeout(STREAM_READ_TIMEOUT);
+                cn.setRequestProperty("Accept", "text/event-stream");
+                cn.setRequestProperty("Cache-Control", "no-cache");
+                if (lastSeq >= 0) {
+                    cn.setRequestProperty("Last-Event-ID", Long.toString(lastSeq));
+                }
+                int status = cn.getResponseCode();
+                if (status / 100 != 2) {
+                    throw new IOException("HTTP status " + status);
+                }
+                BufferedReader rd = new BufferedReader(
+                        new InputStreamReader(cn.getInputStream()), 1024);
+                boolean fresh = true;
+                String id = null;
+                StringBuilder data = new StringBuilder();
+                String line;
+                while (!stopReading && (line = rd.readLine()) != null) {
+                    if (line.length() == 0) {
+                        // A blank line ends the event.
+                        if (data.length() > 0 && deliverEvent(id, data.toString(), fresh)) {
+                            gotEvent = true;
+                        }
+                        if (data.length() > 0 && id != null) fresh = false;
+                        id = null;
+                        data.setLength(0);
+                    } else if (line.startsWith(":")) {
+                        // Comment line, used by servers as a keep-alive.
+                    } else if (line.startsWith("id:")) {
+                        id = line.substring(3).trim();
+                    } else if (line.startsWith("data:")) {
+                        if (data.length() > 0) data.append('\n');
+                        String value = line.substring(5);
+                        data.append(value.startsWith(" ") ? value.substring(1) : value);
+                    }
+                }
+                // A long-poll response may end without a trailing blank line.
+                if (!stopReading && data.length() > 0 && deliverEvent(id, data.toString(), fresh)) {
+                    gotEvent = true;
+                }
+                ended = true;
+            } catch (MalformedURLException e) {
+                Log.e(TAG, "Error processing URL: " + e.getMessage());
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading command stream from URL: " + commandUrl + " : "
+                        + e.getMessage());
+            } finally {
+                if (cn != null) cn.disconnect();
+            }
+            if (stopReading) break;
+            long delay = reconnectDelay;
+            if (ended) {
+                // The server is alive, reconnect right away, even if nothing
+                // new came. Only a response that ends at once without an
+                // event waits, so a server that does not hold the request
+                // is not polled in a tight loop.
+                reconnectDelay = MIN_RECONNECT_DELAY;
+                if (gotEvent || System.currentTimeMillis() - started >= MIN_RECONNECT_DELAY) {
+                    continue;
+                }
+                delay = MIN_RECONNECT_DELAY;
+            } else {
+                reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Delivers one event to the listener unless its sequence number shows it
+     * was already delivered. Returns true if the event was delivered.
+     *
+     * @param fresh True for the first numbered event of a connection. If its
+     *     sequence number is below the last one delivered, the server has
+     *     restarted and numbers from scratch, so it is delivered and the
+     *     numbering starts over from it.
+     */
+    private boolean deliverEvent(String id, String cmd, boolean fresh) {
+        if (id != null) {
+            try {
+                long seq = Long.parseLong(id);
+                if (seq == lastSeq || (seq < lastSeq && !fresh)) return false;
+                if (seq < lastSeq) {
+                    Log.i(TAG, "Event ids restarted at " + seq + " after " + lastSeq);
+                }
+                lastSeq = seq;
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Ignoring malformed event id: " + id);
+            }
+        }
+        if (mMessageListener != null) {
+            mMessageListener.onMessage(new CommMessage(cmd, null, null, null, null,
+                    mChannelName, CommunicationManager.CHANNEL_HTTP));
+        }
+        return true;
+    }
+
     @Override
     public void disconnect() {
         doDisconnect = true;
         stopReading = true;
         if (listenThread != null)
             listenThread.interrupt();
+        if (mSender != null)
+            mSender.stopSending();
         if (mMessageListener != null)
             mMessageListener.onDisconnected(mChannelName, CommunicationManager.CHANNEL_HTTP);
     }
@@ -192,9 +378,8 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
                 mMessageListener.onConnectError(mChannelName, CommunicationManager.CHANNEL_HTTP);
             return;
         }
-        if (outUrl != null && mSendHttpTask.isReady()) {
-            mSendHttpTask = new SendHttpTask(outUrl);
-            mSendHttpTask.execute(System.currentTimeMillis() + " " + message);
+        if (outUrl != null && mSender != null) {
+            mSender.enqueue(message);
         }
     }
 
@@ -203,66 +388,158 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
         sendMessage(new String(message), type);
     }
 
-    private class SendHttpTask extends UserTask<String, Void, Void> {
+    /**
+     * Sends queued messages over one persistent keep-alive connection. If a
+     * drive command is still waiting to be sent when a newer one arrives, the
+     * older one is discarded so that the latest drive vector wins.
+     */
+    private class OutboundSender extends Thread {
 
         private HttpConnection mConnection;
 
-        private HttpState mHttpState;
+        private final HttpState mHttpState = new HttpState();
 
         private final int mPort = 80;
 
-        private boolean isReady = false;
+        private volatile boolean isReady = false;
 
-        private String mPutUrl = "";
+        private volatile boolean stopSending = false;
 
-        public SendHttpTask(String putUrl) {
-            super();
+        private String mPutUrl;
+
+        private final LinkedList<String> mQueue = new LinkedList<String>();
+
+        public OutboundSender(String putUrl) {
+            super("CustomHttpSender");
             mPutUrl = putUrl;
-            mHttpState = new HttpState();
-            errorConnecting = !resetConnection();
+            setDaemon(true);
         }
 
         @Override
-        @SuppressWarnings("unchecked")
-        public Void doInBackground(String... params) {
-            if (mConnection == null) {
-                errorConnecting = true;
-                return null;
+        public void run() {
+            errorConnecting = !resetConnection();
+            while (!stopSending) {
+                String message;
+                synchronized (mQueue) {
+                    while (mQueue.isEmpty() && !stopSending) {
+                        try {
+                            mQueue.wait();
+                        } catch (InterruptedException e) {
+                            stopSending = true;
+                        }
+                    }
+                    if (stopSending) break;
+                    message = mQueue.removeFirst();
+                }
+                send(message);
             }
-            if (params == null || params.length == 0 || mPutUrl == null || mPutUrl.equals(""))
-                return null;
-            isReady = false;
-            try {
-                PutMethod put = new PutMethod(mPutUrl);
-                put.setRequestBody(new ByteArrayInputStream(params[0].getBytes()));
-                put.execute(mHttpState, mConnection);
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            } catch (ClientProtocolException e) {
-                e.printStackTrace();
-                resetConnection();
-            } catch (IOException e) {
-                e.printStackTrace();
-                resetConnection();
-            } finally {
-                isReady = true;
-                if (mConnection != null)
-                    mConnection.close();
+            closeConnection();
+        }
+
+        /**
+         * Queues a message for sending. Returns immediately. When the queue
+         * is full, the oldest drive command is dropped to make room, then the
+         * oldest other message. A stop is never dropped for a newer message;
+         * if only stops are queued, the new message is dropped instead.
+         */
+        public void enqueue(String message) {
+            synchronized (mQueue) {
+                if (isCoalescable(message)) {
+                    String verb = getVerb(message);
+                    for (Iterator<String> it = mQueue.iterator(); it.hasNext();) {
+                        if (verb.equals(getVerb(it.next()))) {
+                            it.remove();
+                            coalescedCount.incrementAndGet();
+                        }
+                    }
+                }
+                if (mQueue.size() >= MAX_QUEUED_MESSAGES && !makeRoom()) {
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+                mQueue.addLast(message);
+                mQueue.notify();
+            }
+        }
+
+        /**
+         * Removes the oldest coalescable message, or failing that the oldest
+         * message that is not a stop. Returns false if only stops are queued.
+         */
+        private boolean makeRoom() {
+            String victim = null;
+            for (String queued : mQueue) {
+                if (isCoalescable(queued)) {
+                    victim = queued;
+                    break;
+                }
+                if (victim == null && !isStop(queued)) {
+                    victim = queued;
+                }
+            }
+            if (victim == null) {
+                return false;
+            }
+            mQueue.remove(victim);
+            droppedCount.incrementAndGet();
+            return true;
+        }
+
+        public void stopSending() {
+            stopSending = true;
+            synchronized (mQueue) {
+                mQueue.notify();
             }
-            return null;
         }
 
         public boolean isReady() {
             return isReady;
         }
 
+        public int getQueueSize() {
+            synchronized (mQueue) {
+                return mQueue.size();
+            }
+        }
+
+        private void send(String message) {
+            String putUrl = outUrl;
+            if (putUrl == null || putUrl.equals("")) return;
+            if (!putUrl.equals(mPutUrl)) {
+                // The target changed, the old connection may point to
+                // another host.
+                mPutUrl = putUrl;
+                closeConnection();
+            }
+            if ((mConnection == null || !mConnection.isOpen()) && !resetConnection()) {
+                errorConnecting = true;
+                droppedCount.incrementAndGet();
+                return;
+            }
+            PutMethod put = new PutMethod(mPutUrl);
+            try {
+                put.setRequestBody(new ByteArrayInputStream(
+                        (System.currentTimeMillis() + " " + message).getBytes()));
+                put.execute(mHttpState, mConnection);
+                // Consume the response so the connection can be reused.
+                put.getResponseBody();
+                errorConnecting = false;
+                sentCount.incrementAndGet();
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending message: " + e.getMessage());
+                droppedCount.incrementAndGet();
+                closeConnection();
+            }
+        }
+
         private boolean resetConnection() {
+            closeConnection();
             if (mPutUrl == null || mPutUrl.equals(""))
                 return true;
             try {
-                int port = new URL(mPutUrl).getPort();
-                mConnection = new HttpConnection(new URL(mPutUrl).getHost(),
-                        port == -1 ? mPort : port);
+                URL url = new URL(mPutUrl);
+                int port = url.getPort();
+                mConnection = new HttpConnection(url.getHost(), port == -1 ? mPort : port);
                 mConnection.open();
                 isReady = true;
                 return true;
@@ -277,6 +554,59 @@ public class CustomHttpCommChannel extends AbstractCommChannel {
             }
             return false;
         }
+
+        private void closeConnection() {
+            if (mConnection != null) {
+                mConnection.close();
+                mConnection = null;
+            }
+        }
+    }
+
+    /**
+     * Returns true if a newer copy of this message makes an older, unsent
+     * copy obsolete.
+     */
+    private static boolean isCoalescable(String message) {
+        return COALESCED_COMMANDS.contains(getVerb(message));
+    }
+
+    private static boolean isStop(String message) {
+        return STOP_COMMAND.equals(getVerb(message));
+    }
+
+    private static String getVerb(String message) {
+        int index = message.indexOf(' ');
+        return index >= 0 ? message.substring(0, index) : message;
+    }
+
+    /**
+     * Returns the number of messages sent successfully.
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Returns the number of messages dropped because the queue overflowed or
+     * sending failed.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of unsent messages replaced by a newer message.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent.
+     */
+    public int getQueueSize() {
+        return mSender != null ? mSender.getQueueSize() : 0;
     }
     
     @Override
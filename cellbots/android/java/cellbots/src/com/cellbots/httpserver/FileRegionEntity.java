@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.cellbots.httpserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * An HTTP entity that serves a byte range of a file without reading the whole
+ * range into memory. The content is moved with FileChannel.transferTo(), but
+ * since the target is a channel wrapped around the connection's output
+ * stream, the data still passes through a small heap buffer in chunks; the
+ * gain over an InputStream copy is only that no per-request buffer is
+ * allocated here. writeTo() blocks until the client has taken the range, so
+ * in non-blocking mode the server runs it on a pool separate from commands.
+ */
+public class FileRegionEntity extends AbstractHttpEntity {
+
+    private final File file;
+
+    private final long offset;
+
+    private final long length;
+
+    public FileRegionEntity(File file, long offset, long length, String contentType) {
+        if (file == null) {
+            throw new IllegalArgumentException("File may not be null");
+        }
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        setContentType(contentType);
+    }
+
+    public FileRegionEntity(File file, String contentType) {
+        this(file, 0, file.length(), contentType);
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return length;
+    }
+
+    public InputStream getContent() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        in.skip(offset);
+        return in;
+    }
+
+    public void writeTo(final OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(outstream);
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, target);
+                if (sent <= 0) {
+                    // The file was truncated while it was being served.
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            outstream.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -21,6 +21,7 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -28,12 +29,23 @@ import java.net.SocketException;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.ConnectionClosedException;
 import org.apache.http.HttpEntity;
+import org.apache.http.Header;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
@@ -45,18 +57,27 @@ import org.apache.http.ProtocolVersion;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentProducer;
 import org.apache.http.entity.EntityTemplate;
-import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.DefaultHttpResponseFactory;
 import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.impl.nio.DefaultServerIOEventDispatch;
+import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
 import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.NHttpServerConnection;
+import org.apache.http.nio.protocol.ThrottlingHttpServiceHandler;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.ListeningIOReactor;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
 import org.apache.http.protocol.HttpService;
 import org.apache.http.protocol.BasicHttpProcessor;
 import org.apache.http.protocol.ResponseConnControl;
@@ -88,22 +109,60 @@ import android.util.Log;
  * resource is not found in the memory, it searched for a file by name "myres"
  * in the default root directory, and returns the contents of the file in the
  * HTTP response.
+ * The server runs in one of two modes. In the default blocking mode every
+ * accepted connection gets its own worker thread. In the non-blocking mode all
+ * connections are multiplexed on a couple of selector threads and requests are
+ * handed to a small, bounded worker pool, so idle keep-alive clients do not
+ * hold on to threads.
  * 
  * @author chaitanyag@google.com (Chaitanya Gharpure)
  *
  */
 public class HttpCommandServer {
 
+    /**
+     * An immutable named resource. Updates replace the whole object in the
+     * map, so a reader always sees a content type, body and version that
+     * belong together.
+     */
     private class ResponseResource<T> {
-        public T resource;
-        public String contentType;
+        public final T resource;
+        public final String contentType;
+        public final long version;
 
         public ResponseResource(T res, String ct) {
             resource = res;
             contentType = ct;
+            version = resourceVersion.incrementAndGet();
+        }
+
+        public String getETag() {
+            return "\"" + Long.toHexString(startTime) + "-" + version + "\"";
         }
     }
     
+    /**
+     * A rendered directory listing, valid as long as the directory's
+     * modification time does not change.
+     */
+    private class DirListing {
+        public final long lastModified;
+        public final ArrayList<String> files;
+        public final String json;
+
+        public DirListing(long lastModified, ArrayList<String> files) {
+            this.lastModified = lastModified;
+            this.files = files;
+            StringBuilder sb = new StringBuilder("{ \"list\": [");
+            for (int i = 0; i < files.size(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append('"').append(files.get(i)).append('"');
+            }
+            sb.append("]}");
+            json = sb.toString();
+        }
+    }
+
     private class UrlParams {
         public String[] keys;
         
@@ -133,6 +192,26 @@ public class HttpCommandServer {
     }
 
     private static final String TAG = "HttpCommandServer";
+
+    // Number of selector threads used in non-blocking mode.
+    private static final int NIO_IO_THREADS = 2;
+
+    // Number of threads that run request handlers in non-blocking mode.
+    private static final int NIO_WORKER_THREADS = 4;
+
+    // Maximum number of requests waiting for a worker in non-blocking mode.
+    private static final int NIO_WORKER_QUEUE_SIZE = 64;
+
+    // Number of threads that serve files and directory listings in
+    // non-blocking mode. A download holds its thread until the client has
+    // read the whole file, so these are kept apart from the workers above.
+    private static final int NIO_FILE_THREADS = 2;
+
+    // Maximum number of file requests waiting for a thread.
+    private static final int NIO_FILE_QUEUE_SIZE = 16;
+
+    // Number of directory listings kept; the least recently used is evicted.
+    private static final int DIR_LISTING_CACHE_SIZE = 32;
     
     private static final String EXTERNAL_STORAGE_PATH =
     	Environment.getExternalStorageDirectory() + "/";
@@ -142,25 +221,60 @@ public class HttpCommandServer {
     private String rootDir;
     
     private RequestListenerThread listenerThread;
+
+    private NioRequestListenerThread nioListenerThread;
     
     private boolean running = true;
     
-    HashMap<String, ResponseResource<byte[]>> dataMap =
-            new HashMap<String, ResponseResource<byte[]>>();
+    // Source of the monotonically increasing resource versions. ETags also
+    // include the server start time so that versions from a previous run
+    // never match.
+    private final AtomicLong resourceVersion = new AtomicLong();
+
+    private final long startTime = System.currentTimeMillis();
+
+    ConcurrentHashMap<String, ResponseResource<byte[]>> dataMap =
+            new ConcurrentHashMap<String, ResponseResource<byte[]>>();
     
-    HashMap<String, ResponseResource<String>> resourceMap =
-            new HashMap<String, ResponseResource<String>>();
+    ConcurrentHashMap<String, ResponseResource<String>> resourceMap =
+            new ConcurrentHashMap<String, ResponseResource<String>>();
     
+    // Guarded by itself.
+    private final LinkedHashMap<String, DirListing> dirListingCache =
+            new LinkedHashMap<String, DirListing>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DirListing> eldest) {
+                    return size() > DIR_LISTING_CACHE_SIZE;
+                }
+            };
+
     private HttpCommandServerListener serverListener;
 
     public HttpCommandServer(String root, int port, HttpCommandServerListener listener) {
+        this(root, port, listener, false);
+    }
+
+    /**
+     * Creates and starts the server.
+     * @param nonBlocking if true, connections are served by a selector based
+     *        event loop and a bounded worker pool instead of a thread per
+     *        connection.
+     */
+    public HttpCommandServer(String root, int port, HttpCommandServerListener listener,
+            boolean nonBlocking) {
         serverListener = listener;
         mPort = port;
         setRoot(root);
         try {
-            listenerThread = new RequestListenerThread(port);
-            listenerThread.setDaemon(false);
-            listenerThread.start();
+            if (nonBlocking) {
+                nioListenerThread = new NioRequestListenerThread(port);
+                nioListenerThread.setDaemon(false);
+                nioListenerThread.start();
+            } else {
+                listenerThread = new RequestListenerThread(port);
+                listenerThread.setDaemon(false);
+                listenerThread.start();
+            }
         } catch (IOException e) {
             Log.e(TAG, "Error starting HTTP server: " + e.getMessage());
         }
@@ -186,26 +300,66 @@ public class HttpCommandServer {
     }
 
     public byte[] getResponseByName(String name) {
-        return dataMap.containsKey(name) ? dataMap.get(name).resource : null;
+        ResponseResource<byte[]> res = dataMap.get(name);
+        return res != null ? res.resource : null;
     }
     
     public void stopServer() {
         running = false;
-        if (listenerThread == null) return;
-        listenerThread.stopServer();
+        Thread thread = null;
+        if (listenerThread != null) {
+            listenerThread.stopServer();
+            thread = listenerThread;
+        } else if (nioListenerThread != null) {
+            nioListenerThread.stopServer();
+            thread = nioListenerThread;
+        }
+        if (thread == null) return;
         try {
-            listenerThread.join();
+            thread.join();
         } catch (InterruptedException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
     }
     
+    /**
+     * Returns true if handleRequest() will answer the request from the file
+     * system: a GET or HEAD that is not for a byte array resource.
+     */
+    private boolean isFileRequest(HttpRequest request) {
+        String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+        if (!method.equals("GET") && !method.equals("HEAD")) return false;
+        String resName = getResourceNameFromTarget(request.getRequestLine().getUri());
+        return !dataMap.containsKey(resName);
+    }
+
     private String getResourceNameFromTarget(String target) {
         int lastPos = target.indexOf('?');
         return target.substring(1, lastPos >= 0 ? lastPos : target.length());
     }
     
+    /**
+     * Returns the listing for a directory, rebuilding it only when the
+     * directory has been modified since it was last cached.
+     */
+    private DirListing getCachedDirListing(File file) {
+        if (file == null || !file.isDirectory()) return null;
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        DirListing listing;
+        synchronized (dirListingCache) {
+            listing = dirListingCache.get(key);
+        }
+        if (listing == null || listing.lastModified != lastModified) {
+            listing = new DirListing(lastModified, getDirListing(file));
+            synchronized (dirListingCache) {
+                dirListingCache.put(key, listing);
+            }
+        }
+        return listing;
+    }
+
     private ArrayList<String> getDirListing(File file) {
         if (file == null || !file.isDirectory()) return null;
         File[] files = file.listFiles();
@@ -222,14 +376,111 @@ public class HttpCommandServer {
     }
     
     private String getDirListingHTML(File file) {
-        ArrayList<String> fileList = getDirListing(file);
-        String html = "<html><body>";
-        for (String fileName : fileList) {
-            html += "<a href='http://" + getLocalIpAddress() + ":" + mPort + "/" + fileName +
-                    "'>" + fileName + "</a><br>";
-        }
-        html += "</body></html>";
-        return html;
+        DirListing listing = getCachedDirListing(file);
+        String host = getLocalIpAddress();
+        StringBuilder html = new StringBuilder("<html><body>");
+        for (String fileName : listing.files) {
+            html.append("<a href='http://").append(host).append(':').append(mPort)
+                    .append('/').append(fileName).append("'>").append(fileName)
+                    .append("</a><br>");
+        }
+        html.append("</body></html>");
+        return html.toString();
+    }
+
+    private static String getETag(File file) {
+        return "\"" + Long.toHexString(file.lastModified()) + "-" +
+                Long.toHexString(file.length()) + "\"";
+    }
+
+    /**
+     * Returns true if the conditional headers of the request show that the
+     * client already has the current version of the file.
+     */
+    private static boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+        Header ifNoneMatch = request.getFirstHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            String value = ifNoneMatch.getValue();
+            return value.equals("*") || value.contains(etag);
+        }
+        Header ifModifiedSince = request.getFirstHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                Date since = DateUtils.parseDate(ifModifiedSince.getValue());
+                // HTTP dates have a resolution of one second.
+                return lastModified / 1000 <= since.getTime() / 1000;
+            } catch (DateParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a single "bytes=first-last" range against a file of the given
+     * length. Returns null if there is no usable range, which means the whole
+     * file should be sent, or a zero-length array if the range cannot be
+     * satisfied.
+     */
+    private static long[] parseRange(HttpRequest request, String etag, long length) {
+        Header range = request.getFirstHeader("Range");
+        if (range == null) return null;
+        Header ifRange = request.getFirstHeader("If-Range");
+        if (ifRange != null && !ifRange.getValue().equals(etag)) return null;
+        String value = range.getValue().trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) return null;
+        value = value.substring("bytes=".length()).trim();
+        int dash = value.indexOf('-');
+        if (dash < 0) return null;
+        long first;
+        long last;
+        try {
+            if (dash == 0) {
+                // Suffix range: the last N bytes of the file.
+                long suffix = Long.parseLong(value.substring(1));
+                if (suffix <= 0) return new long[0];
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(value.substring(0, dash));
+                last = dash == value.length() - 1 ?
+                        length - 1 : Long.parseLong(value.substring(dash + 1));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (first >= length || last < first) return new long[0];
+        return new long[] { first, Math.min(last, length - 1) };
+    }
+
+    private static void setFileResponse(HttpRequest request, HttpResponse response, File file,
+            String contentType) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = getETag(file);
+        response.setHeader("ETag", etag);
+        response.setHeader("Last-Modified", DateUtils.formatDate(new Date(lastModified)));
+        response.setHeader("Accept-Ranges", "bytes");
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+            return;
+        }
+        long[] range = parseRange(request, etag, length);
+        if (range == null) {
+            response.setStatusCode(HttpStatus.SC_OK);
+            response.setHeader("Content-Type", contentType);
+            response.setEntity(new FileRegionEntity(file, contentType));
+        } else if (range.length == 0) {
+            response.setStatusCode(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + length);
+        } else {
+            response.setStatusCode(HttpStatus.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Type", contentType);
+            response.setHeader("Content-Range",
+                    "bytes " + range[0] + "-" + range[1] + "/" + length);
+            response.setEntity(new FileRegionEntity(file, range[0], range[1] - range[0] + 1,
+                    contentType));
+        }
     }
     
     public String getLocalIpAddress() {
@@ -256,7 +507,26 @@ public class HttpCommandServer {
         HttpRequest request = conn.receiveRequestHeader();
         HttpResponse response = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
                 HttpStatus.SC_OK, "OK");
-        
+        String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+        if ((method.equals("POST") || method.equals("PUT")) &&
+                request instanceof HttpEntityEnclosingRequest) {
+            conn.receiveRequestEntity((HttpEntityEnclosingRequest) request);
+        }
+        handleRequest(request, response);
+        conn.sendResponseHeader(response);
+        if (!method.equals("HEAD")) {
+            conn.sendResponseEntity(response);
+        }
+        conn.flush();
+        conn.shutdown();
+    }
+
+    /**
+     * Fills in the response for a request whose entity, if any, has already
+     * been received. This is shared by the blocking and non-blocking modes.
+     */
+    void handleRequest(final HttpRequest request, final HttpResponse response)
+            throws HttpException, IOException {
         String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
         if (!method.equals("GET") &&
             !method.equals("HEAD") &&
@@ -282,7 +552,6 @@ public class HttpCommandServer {
             byte[] entityContent = null;
             // Gets the content if the request has an entity.
             if (request instanceof HttpEntityEnclosingRequest) {
-                conn.receiveRequestEntity((HttpEntityEnclosingRequest) request);
                 HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
                 if (entity != null) {
                     entityContent = EntityUtils.toByteArray(entity);
@@ -292,51 +561,44 @@ public class HttpCommandServer {
             if (serverListener != null) {
                 serverListener.onRequest(resName, params.keys, params.values, entityContent);
             }
-        } else if (dataMap.containsKey(resName)) { // The requested resource is
-                                                   // a byte array
+            return;
+        }
+        // Each map is read once so that the whole response comes from a
+        // single snapshot of the resource.
+        ResponseResource<byte[]> data = dataMap.get(resName);
+        if (data != null) { // The requested resource is a byte array
+            String etag = data.getETag();
+            response.setHeader("ETag", etag);
+            Header ifNoneMatch = request.getFirstHeader("If-None-Match");
+            if (ifNoneMatch != null && ifNoneMatch.getValue().contains(etag)) {
+                response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+                return;
+            }
             response.setStatusCode(HttpStatus.SC_OK);
-            response.setHeader("Content-Type", dataMap.get(resName).contentType);
-            response.setEntity(new ByteArrayEntity(dataMap.get(resName).resource));
+            response.setHeader("Content-Type", data.contentType);
+            response.setEntity(new ByteArrayEntity(data.resource));
         } else {  // Resource is a file recognized by the app
-            String fileName = resourceMap.containsKey(resName) ?
-                    resourceMap.get(resName).resource : resName;
-            String contentType = resourceMap.containsKey(resName) ?
-                    resourceMap.get(resName).contentType : "text/html";
+            final ResponseResource<String> mapped = resourceMap.get(resName);
+            String fileName = mapped != null ? mapped.resource : resName;
+            String contentType = mapped != null ? mapped.contentType : "text/html";
             Log.d(TAG, "*** mapped resource: " + fileName);
             Log.d(TAG, "*** checking for file: " + rootDir +
                     (rootDir.endsWith("/") ? "" : "/") + fileName);
             response.setStatusCode(HttpStatus.SC_OK);
             final File file = new File(rootDir + (rootDir.endsWith("/") ? "" : "/") + fileName);
             if (file.exists() && !file.isDirectory()) {
-                response.setStatusCode(HttpStatus.SC_OK);
-                FileEntity body = new FileEntity(file,
-                        URLConnection.guessContentTypeFromName(fileName));
-                response.setHeader("Content-Type",
+                setFileResponse(request, response, file,
                         URLConnection.guessContentTypeFromName(fileName));
-                response.setEntity(body);
             } else if (file.isDirectory()) {
                 response.setStatusCode(HttpStatus.SC_OK);
-                EntityTemplate body = new EntityTemplate(new ContentProducer() {
-                    public void writeTo(final OutputStream outstream) throws IOException {
-                        OutputStreamWriter writer = new OutputStreamWriter(outstream, "UTF-8");
-                        ArrayList<String> fileList = getDirListing(file);
-                        String resp = "{ \"list\": [";
-                        for (String fl : fileList) {
-                            resp += "\"" + fl + "\",";
-                        }
-                        resp = resp.substring(0, resp.length() - 1);
-                        resp += "]}";
-                        writer.write(resp);
-                        writer.flush();
-                    }
-                });
+                StringEntity body = new StringEntity(getCachedDirListing(file).json, "UTF-8");
                 body.setContentType(contentType);
                 response.setEntity(body);
-            } else if (resourceMap.containsKey(resName)) {
+            } else if (mapped != null) {
                 EntityTemplate body = new EntityTemplate(new ContentProducer() {
                     public void writeTo(final OutputStream outstream) throws IOException {
                         OutputStreamWriter writer = new OutputStreamWriter(outstream, "UTF-8");
-                        writer.write(resourceMap.get(resName).resource);
+                        writer.write(mapped.resource);
                         writer.flush();
                     }
                 });
@@ -347,10 +609,6 @@ public class HttpCommandServer {
                 response.setEntity(new StringEntity("Not Found"));                
             }
         }
-        conn.sendResponseHeader(response);
-        conn.sendResponseEntity(response);
-        conn.flush();
-        conn.shutdown();
     }
 
     /**
@@ -419,6 +677,159 @@ public class HttpCommandServer {
         }
     }
     
+    /**
+     * This thread runs the non-blocking I/O reactor. All connections are
+     * multiplexed on NIO_IO_THREADS selector threads, and each request is
+     * handed to a bounded pool which calls handleRequest(). File requests go
+     * to their own pool, so downloads cannot starve commands and byte array
+     * resources of workers.
+     */
+    class NioRequestListenerThread extends Thread {
+
+        private final ListeningIOReactor ioReactor;
+        private final IOEventDispatch ioEventDispatch;
+        private final ThreadPoolExecutor workerPool;
+        private final ThreadPoolExecutor filePool;
+
+        // The connection whose request the calling I/O thread is handing to
+        // the worker pool, so that a rejected request can be answered.
+        private final ThreadLocal<NHttpServerConnection> dispatching =
+                new ThreadLocal<NHttpServerConnection>();
+
+        public NioRequestListenerThread(int port) throws IOException {
+            HttpParams params = new BasicHttpParams();
+            params
+                .setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 5000)
+                .setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
+                .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false)
+                .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
+                .setParameter(CoreProtocolPNames.ORIGIN_SERVER, "HttpComponents/1.1");
+
+            BasicHttpProcessor httpproc = new BasicHttpProcessor();
+            httpproc.addInterceptor(new ResponseDate());
+            httpproc.addInterceptor(new ResponseServer());
+            httpproc.addInterceptor(new ResponseContent());
+            httpproc.addInterceptor(new ResponseConnControl());
+
+            workerPool = newPool("worker", NIO_WORKER_THREADS, NIO_WORKER_QUEUE_SIZE);
+            filePool = newPool("file", NIO_FILE_THREADS, NIO_FILE_QUEUE_SIZE);
+            Executor dispatcher = new Executor() {
+                public void execute(Runnable r) {
+                    NHttpServerConnection conn = dispatching.get();
+                    HttpRequest request = conn != null ? conn.getHttpRequest() : null;
+                    if (request != null && isFileRequest(request)) {
+                        filePool.execute(r);
+                    } else {
+                        workerPool.execute(r);
+                    }
+                }
+            };
+
+            ThrottlingHttpServiceHandler handler = new ThrottlingHttpServiceHandler(httpproc,
+                    new DefaultHttpResponseFactory(), new DefaultConnectionReuseStrategy(),
+                    dispatcher, params) {
+                @Override
+                public void requestReceived(NHttpServerConnection conn) {
+                    // The pool rejects on the thread that calls execute(),
+                    // which is this one.
+                    dispatching.set(conn);
+                    try {
+                        super.requestReceived(conn);
+                    } finally {
+                        dispatching.remove();
+                    }
+                }
+            };
+            HttpRequestHandlerRegistry registry = new HttpRequestHandlerRegistry();
+            registry.register("*", new HttpRequestHandler() {
+                public void handle(HttpRequest request, HttpResponse response,
+                        HttpContext context) throws HttpException, IOException {
+                    handleRequest(request, response);
+                }
+            });
+            handler.setHandlerResolver(registry);
+
+            ioEventDispatch = new DefaultServerIOEventDispatch(handler, params);
+            ioReactor = new DefaultListeningIOReactor(NIO_IO_THREADS, params);
+            ioReactor.listen(new InetSocketAddress(port));
+        }
+
+        private ThreadPoolExecutor newPool(final String name, int threads, int queueSize) {
+            return new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    new ThreadFactory() {
+                        private int count = 0;
+
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "HttpCommandServer-" + name + "-" + count++);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    new RejectedExecutionHandler() {
+                        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                            // The pool is saturated. Refuse the request now
+                            // rather than leave its connection open until
+                            // the socket times out.
+                            Log.e(TAG, "HTTP " + name + " pool saturated, rejecting request");
+                            NHttpServerConnection conn = dispatching.get();
+                            if (conn != null) {
+                                rejectRequest(conn);
+                            }
+                        }
+                    });
+        }
+
+        /**
+         * Answers a request a pool had no room for with 503 and
+         * closes the connection once the response is written.
+         */
+        private void rejectRequest(NHttpServerConnection conn) {
+            try {
+                if (!conn.isResponseSubmitted()) {
+                    HttpResponse response = new BasicHttpResponse(
+                            new ProtocolVersion("HTTP", 1, 1),
+                            HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+                    response.setHeader("Content-Length", "0");
+                    response.setHeader("Connection", "close");
+                    conn.submitResponse(response);
+                }
+                conn.close();
+            } catch (HttpException e) {
+                Log.e(TAG, "Error rejecting request: " + e.getMessage());
+            } catch (IOException e) {
+                Log.e(TAG, "Error rejecting request: " + e.getMessage());
+                try {
+                    conn.shutdown();
+                } catch (IOException ignore) {}
+            }
+        }
+
+        public void stopServer() {
+            try {
+                ioReactor.shutdown();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            workerPool.shutdownNow();
+            filePool.shutdownNow();
+        }
+
+        @Override
+        public void run() {
+            Log.d(TAG, "*** Listening (non-blocking) on port " + mPort);
+            try {
+                ioReactor.execute(ioEventDispatch);
+            } catch (InterruptedIOException ex) {
+                Log.e(TAG, "I/O reactor interrupted");
+            } catch (IOException e) {
+                Log.e(TAG, "I/O reactor error: " + e.getMessage());
+            }
+            workerPool.shutdownNow();
+            filePool.shutdownNow();
+        }
+    }
+
     /**
      * This thread handles the HTTP requests.
      */
@@ -0,0 +1,344 @@
+/**
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.cellbots.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A load test for HttpCommandServer on a desktop JVM: many keep-alive
+ * clients poll a resource while a controller sends commands, and the latency
+ * of both is measured.
+ *
+ * <pre>
+ * java com.cellbots.httpserver.HttpCommandServerBenchmark [clients [seconds [pollMs]]]
+ * </pre>
+ *
+ * starts the server in blocking and then in non-blocking mode. In each mode
+ * clients (default 200) keep-alive connections each GET a 2 KB byte array
+ * resource every pollMs (default 100) ms, like browser tabs showing the
+ * robot's state, and one more connection POSTs a drive command every 50 ms.
+ * After seconds (default 20) it prints the p50, p99 and maximum latency of
+ * the polls and of the commands, the request rate, and the number of 503s,
+ * errors and reconnects.
+ *
+ * The server logs through android.util.Log and finds its root through
+ * android.os.Environment, so on a desktop JVM no-op versions of those two
+ * classes must be on the classpath ahead of the server.
+ */
+public class HttpCommandServerBenchmark {
+
+    private static final int PORT = 8765;
+
+    private static final int COMMAND_INTERVAL_MS = 50;
+
+    private static final int RESOURCE_BYTES = 2048;
+
+    // Longest latency recorded per request; longer requests count as this.
+    private static final int MAX_LATENCY_MS = 10000;
+
+    /**
+     * Latencies recorded in a histogram with 0.1 ms buckets, so that clients
+     * can record without allocating or locking.
+     */
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(MAX_LATENCY_MS * 10 + 1);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            int bucket = (int) Math.min(buckets.length() - 1, nanos / 100000);
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+            }
+        }
+
+        double percentileMs(double p) {
+            long target = (long) Math.ceil(p / 100 * count.get());
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return (i + 1) / 10.0;
+                }
+            }
+            return 0;
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        double maxMs() {
+            return max.get() / 1e6;
+        }
+    }
+
+    private final Histogram polls = new Histogram();
+
+    private final Histogram commands = new Histogram();
+
+    private final AtomicLong unavailable = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private final AtomicLong commandsReceived = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int pollMs = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        System.out.println(clients + " keep-alive clients polling every " + pollMs
+                + " ms, one command every " + COMMAND_INTERVAL_MS + " ms, " + seconds
+                + " s per mode");
+        new HttpCommandServerBenchmark().run(false, clients, seconds, pollMs);
+        new HttpCommandServerBenchmark().run(true, clients, seconds, pollMs);
+        System.exit(0);
+    }
+
+    private void run(boolean nonBlocking, int clients, int seconds, final int pollMs)
+            throws Exception {
+        HttpCommandServer server = new HttpCommandServer("httpbenchmark", PORT,
+                new HttpCommandServer.HttpCommandServerListener() {
+                    public void onRequest(String req, String[] keys, String[] values,
+                            byte[] data) {
+                        commandsReceived.incrementAndGet();
+                    }
+                }, nonBlocking);
+        server.addResponseByName("state", new byte[RESOURCE_BYTES], "application/octet-stream");
+        Thread.sleep(500);
+
+        final CountDownLatch done = new CountDownLatch(clients + 1);
+        final Random random = new Random(1);
+        for (int i = 0; i < clients; i++) {
+            final long offset = random.nextInt(pollMs);
+            startClient(done, new Runnable() {
+                private Connection connection;
+
+                private long next = System.nanoTime() + offset * 1000000L;
+
+                public void run() {
+                    next = request(connection = reconnect(connection), "GET /state HTTP/1.1\r\n"
+                            + "Host: localhost\r\n\r\n", polls, next, pollMs);
+                }
+            });
+        }
+        startClient(done, new Runnable() {
+            private Connection connection;
+
+            private long next = System.nanoTime();
+
+            private final String body = "w 50 50";
+
+            public void run() {
+                next = request(connection = reconnect(connection), "POST /command HTTP/1.1\r\n"
+                        + "Host: localhost\r\nContent-Length: " + body.length() + "\r\n\r\n"
+                        + body, commands, next, COMMAND_INTERVAL_MS);
+            }
+        });
+
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        done.await();
+        server.stopServer();
+
+        System.out.println((nonBlocking ? "non-blocking" : "blocking") + ": "
+                + (polls.count() + commands.count()) / seconds + " requests/s, "
+                + unavailable.get() + " 503s, " + errors.get() + " errors, "
+                + reconnects.get() + " reconnects, " + commandsReceived.get()
+                + " commands received");
+        print("polls:   ", polls);
+        print("commands:", commands);
+        Thread.sleep(500);
+    }
+
+    private static void print(String name, Histogram histogram) {
+        System.out.println(String.format("  %s p50 %6.1f ms, p99 %6.1f ms, max %7.1f ms (%d)",
+                name, histogram.percentileMs(50), histogram.percentileMs(99),
+                histogram.maxMs(), histogram.count()));
+    }
+
+    private void startClient(final CountDownLatch done, final Runnable step) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    step.run();
+                }
+                done.countDown();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * A keep-alive client connection.
+     */
+    static class Connection {
+        final Socket socket;
+
+        final InputStream in;
+
+        final OutputStream out;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(MAX_LATENCY_MS);
+            socket.connect(new InetSocketAddress("127.0.0.1", PORT));
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private Connection reconnect(Connection connection) {
+        if (connection != null && !connection.socket.isClosed()) {
+            return connection;
+        }
+        try {
+            if (connection != null) {
+                reconnects.incrementAndGet();
+            }
+            return new Connection();
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Waits until next, sends the request and reads the response. Returns
+     * when the following request is due.
+     */
+    private long request(Connection connection, String request, Histogram histogram, long next,
+            int intervalMs) {
+        long now;
+        while ((now = System.nanoTime()) < next && running) {
+            sleep((next - now) / 1000000 + 1);
+        }
+        if (!running) {
+            return next;
+        }
+        next = Math.max(next + intervalMs * 1000000L, now);
+        if (connection == null) {
+            sleep(intervalMs);
+            return next;
+        }
+        long start = System.nanoTime();
+        try {
+            connection.out.write(request.getBytes("US-ASCII"));
+            connection.out.flush();
+            int status = readResponse(connection);
+            histogram.record(System.nanoTime() - start);
+            if (status == 503) {
+                unavailable.incrementAndGet();
+                connection.close();
+            } else if (status != 200) {
+                errors.incrementAndGet();
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            connection.close();
+        }
+        return next;
+    }
+
+    /**
+     * Reads one response and returns its status. A body without a
+     * Content-Length runs to the end of the connection, as in blocking mode,
+     * which closes every connection after one response.
+     */
+    private static int readResponse(Connection connection) throws IOException {
+        String statusLine = readLine(connection.in);
+        String[] parts = statusLine.split(" ");
+        int status = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+        int length = -1;
+        boolean close = false;
+        String line;
+        while ((line = readLine(connection.in)).length() > 0) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                close = true;
+            }
+        }
+        if (length < 0) {
+            while (connection.in.read() >= 0) {
+            }
+            close = true;
+        }
+        while (length > 0) {
+            long skipped = connection.in.skip(length);
+            if (skipped <= 0) {
+                if (connection.in.read() < 0) {
+                    throw new IOException("Connection closed in the body");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+        if (close) {
+            connection.close();
+        }
+        return status;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
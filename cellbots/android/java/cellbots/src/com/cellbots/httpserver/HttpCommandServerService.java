@@ -48,7 +48,8 @@ public class HttpCommandServerService extends Service implements HttpCommandServ
     @Override
     public void onCreate() {
         super.onCreate();
-        httpServer = new HttpCommandServer(ROOT, HttpCommandServerServiceManager.PORT, this);
+        httpServer = new HttpCommandServer(ROOT, HttpCommandServerServiceManager.PORT, this,
+                true);
     }
 
     @Override
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Moves bytes between the phone and the robot on two threads of its own, so
+ * neither a slow link nor a blocked read holds up the caller.
+ *
+ * Outgoing messages are copied into a bounded ring buffer. The writer thread
+ * takes everything that has queued up in one go and sends it with a single
+ * write, so a burst of commands goes out as one RFCOMM packet. A message sent
+ * with a coalescing key replaces the previous message if that one has the
+ * same key and has not been picked up by the writer yet. This way only the
+ * latest velocity command is sent when the link falls behind.
+ *
+ * The reader thread reads into one reusable buffer and hands every chunk to
+ * the receiver, if one is set.
+ *
+ * The transport only needs an InputStream and an OutputStream, so it can be
+ * run against any stream pair, e.g. piped streams standing in for a socket.
+ */
+public class BtTransport {
+
+    /** Messages sent with this key are never coalesced. */
+    public static final int KEY_NONE = 0;
+
+    /** Key for commands that set the wheel velocities. */
+    public static final int KEY_VELOCITY = 1;
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    /**
+     * Receives the bytes read from the robot on the reader thread. The array
+     * is reused for the next read.
+     */
+    public interface Receiver {
+        void onReceive(byte[] data, int offset, int length);
+    }
+
+    /**
+     * A snapshot of the transport counters.
+     */
+    public static class Stats {
+        public final long messagesQueued;
+
+        public final long messagesCoalesced;
+
+        public final long messagesDropped;
+
+        public final long bytesWritten;
+
+        public final long writes;
+
+        public final long bytesRead;
+
+        public final long reads;
+
+        /** Bytes waiting to be written. */
+        public final int queueDepth;
+
+        /** Time from queueing to written of the last batch, in ms. */
+        public final double lastLatencyMs;
+
+        public final double maxLatencyMs;
+
+        Stats(BtTransport t) {
+            messagesQueued = t.mMessagesQueued;
+            messagesCoalesced = t.mMessagesCoalesced;
+            messagesDropped = t.mMessagesDropped;
+            bytesWritten = t.mBytesWritten;
+            writes = t.mWrites;
+            bytesRead = t.mBytesRead;
+            reads = t.mReads;
+            queueDepth = t.mTail - t.mHead;
+            lastLatencyMs = t.mLastLatencyNanos / 1e6;
+            maxLatencyMs = t.mMaxLatencyNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + messagesQueued + " coalesced=" + messagesCoalesced + " dropped="
+                    + messagesDropped + " written=" + bytesWritten + "B/" + writes + " read="
+                    + bytesRead + "B/" + reads + " depth=" + queueDepth + "B latency="
+                    + lastLatencyMs + "ms max=" + maxLatencyMs + "ms";
+        }
+    }
+
+    private final InputStream mIn;
+
+    private final OutputStream mOut;
+
+    private final Object mLock = new Object();
+
+    private final byte[] mRing;
+
+    private final int mMask;
+
+    // Positions in the ring; they only grow and are masked on access.
+    private int mHead = 0;
+
+    private int mTail = 0;
+
+    // Start and key of the last queued message, while the writer has not
+    // taken it yet.
+    private int mLastStart = 0;
+
+    private int mLastKey = KEY_NONE;
+
+    private long mOldestQueuedNanos;
+
+    // True while the writer is sending a batch it has taken from the ring.
+    private boolean mWriting = false;
+
+    private volatile boolean mRunning = false;
+
+    private volatile Receiver mReceiver;
+
+    private Thread mReaderThread;
+
+    private Thread mWriterThread;
+
+    private long mMessagesQueued = 0;
+
+    private long mMessagesCoalesced = 0;
+
+    private long mMessagesDropped = 0;
+
+    private long mBytesWritten = 0;
+
+    private long mWrites = 0;
+
+    private long mLastLatencyNanos = 0;
+
+    private long mMaxLatencyNanos = 0;
+
+    private volatile long mBytesRead = 0;
+
+    private volatile long mReads = 0;
+
+    /**
+     * @param capacity size of the outgoing buffer, rounded up to a power of
+     *            two
+     */
+    public BtTransport(InputStream in, OutputStream out, int capacity) {
+        int size = 64;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mIn = in;
+        mOut = out;
+        mRing = new byte[size];
+        mMask = size - 1;
+    }
+
+    public void start() {
+        mRunning = true;
+        mWriterThread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "BtTransport writer");
+        mReaderThread = new Thread(new Runnable() {
+            public void run() {
+                readLoop();
+            }
+        }, "BtTransport reader");
+        mWriterThread.setDaemon(true);
+        mReaderThread.setDaemon(true);
+        mWriterThread.start();
+        mReaderThread.start();
+    }
+
+    /**
+     * Stops both threads. Bytes still queued are discarded. The reader thread
+     * ends once the underlying stream is closed.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public void setReceiver(Receiver receiver) {
+        mReceiver = receiver;
+    }
+
+    /**
+     * Queues a message for the robot. Never blocks on the link.
+     *
+     * @param key KEY_NONE, or a key under which consecutive messages are
+     *            coalesced
+     * @return false if the transport is closed or the buffer is full
+     */
+    public boolean send(byte[] data, int offset, int length, int key) {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return false;
+            }
+            boolean replace = key != KEY_NONE && key == mLastKey;
+            int free = mRing.length - (mTail - mHead) + (replace ? mTail - mLastStart : 0);
+            if (length > free) {
+                mMessagesDropped++;
+                return false;
+            }
+            if (replace) {
+                mTail = mLastStart;
+                mMessagesCoalesced++;
+            } else {
+                mMessagesQueued++;
+            }
+            if (mTail == mHead) {
+                mOldestQueuedNanos = System.nanoTime();
+            }
+            mLastStart = mTail;
+            mLastKey = key;
+            for (int i = 0; i < length; i++) {
+                mRing[(mTail + i) & mMask] = data[offset + i];
+            }
+            mTail += length;
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Waits until everything queued so far has been written or the timeout
+     * expires. Returns true if the queue was drained.
+     */
+    public boolean drain(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mLock) {
+            while (mRunning && (mTail != mHead || mWriting)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mLock.wait(remaining);
+            }
+            return mTail == mHead && !mWriting;
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (mLock) {
+            return new Stats(this);
+        }
+    }
+
+    private void writeLoop() {
+        byte[] batch = new byte[mRing.length];
+        while (true) {
+            int length;
+            long oldest;
+            synchronized (mLock) {
+                while (mRunning && mTail == mHead) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                length = mTail - mHead;
+                for (int i = 0; i < length; i++) {
+                    batch[i] = mRing[(mHead + i) & mMask];
+                }
+                mHead = mTail;
+                mLastKey = KEY_NONE;
+                oldest = mOldestQueuedNanos;
+                mWriting = true;
+            }
+            boolean ok = true;
+            try {
+                mOut.write(batch, 0, length);
+                mOut.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                ok = false;
+            }
+            synchronized (mLock) {
+                mWriting = false;
+                if (ok) {
+                    long latency = System.nanoTime() - oldest;
+                    mBytesWritten += length;
+                    mWrites++;
+                    mLastLatencyNanos = latency;
+                    mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+                } else {
+                    mRunning = false;
+                }
+                mLock.notifyAll();
+                if (!ok) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try {
+            while (mRunning) {
+                int numRead = mIn.read(buffer, 0, buffer.length);
+                if (numRead < 0) {
+                    break;
+                }
+                mBytesRead += numRead;
+                mReads++;
+                Receiver receiver = mReceiver;
+                if (receiver != null && numRead > 0) {
+                    receiver.onReceive(buffer, 0, numRead);
+                }
+            }
+        } catch (IOException e) {
+            if (mRunning) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
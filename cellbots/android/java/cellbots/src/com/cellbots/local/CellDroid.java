@@ -22,6 +22,10 @@ import com.cellbots.communication.CommunicationManager;
 import com.cellbots.local.AndroidCommandProcessor.ResponseListener;
 import com.cellbots.local.CellDroidManager.CellDroidListener;
 import com.cellbots.local.robotcontrollerservice.AbstractRobotControllerService;
+import com.cellbots.local.robotcontrollerservice.CommandQueue;
+import com.cellbots.local.robotcontrollerservice.ControllerDescriptor;
+import com.cellbots.local.robotcontrollerservice.ControllerRegistry;
+import com.cellbots.local.robotcontrollerservice.RobotCommand;
 
 import java.util.List;
 
@@ -48,6 +52,9 @@ public class CellDroid {
             "com.cellbots.controller.ROBOT_CONTROLLER_SERVICE";
 
     private static final String TAG = "CellDroid";
+
+    // Commands kept while a controller service is being bound.
+    private static final int PENDING_COMMANDS_SIZE = 32;
     
     private Context mContext;
     
@@ -61,10 +68,19 @@ public class CellDroid {
 
     private PackageManager mPackageManager;
 
-    private IRobotControllerService mControllerService = null;
+    private volatile IRobotControllerService mControllerService = null;
 
     private ServiceConnection mServiceConnection = null;
 
+    // Commands that arrive while a controller is being bound, e.g. when
+    // switching controllers. They are passed on once the new one is
+    // connected. Guards mControllerService and mControllerStarting too.
+    private final CommandQueue mPendingCommands = new CommandQueue(PENDING_COMMANDS_SIZE);
+
+    private final RobotCommand mPendingCommand = new RobotCommand();
+
+    private boolean mControllerStarting = false;
+
     public static String stripTimestampIfAny(String message) {
         // TODO (chaitanyag): Change this after we come up with a better
         // protocol. The first (space separated) token in the command
@@ -112,13 +128,22 @@ public class CellDroid {
     };
     
     private void sendCommandToController(String cmd) {
-        if (mControllerService != null) {
-            try {
-                mControllerService.sendCommand(cmd);
-            } catch (RemoteException e) {
-                Log.e(TAG, "Error sending command to robot controller service: " + e.getMessage());
+        IRobotControllerService controller;
+        synchronized (mPendingCommands) {
+            controller = mControllerService;
+            if (controller == null) {
+                if (mControllerStarting) {
+                    mPendingCommands.offer(cmd,
+                            mPendingCommand.parse(cmd) && mPendingCommand.isVelocityCommand());
+                }
+                return;
             }
         }
+        try {
+            controller.sendCommand(cmd);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error sending command to robot controller service: " + e.getMessage());
+        }
     }
 
     public CellDroid(Context ct, CellDroidListener listener) {
@@ -139,29 +164,45 @@ public class CellDroid {
     }
 
     private void startController(
-            ServiceInfo serviceInfo, final String robotName,
+            ComponentName component, final String robotName,
             final String robotBtName, final String robotBtAddr) {
-        if (mControllerService == null) {
-            mServiceConnection = new ServiceConnection() {
-                public void onServiceConnected(ComponentName name, IBinder service) {
-                    mControllerService = IRobotControllerService.Stub.asInterface(service);
+        synchronized (mPendingCommands) {
+            mControllerStarting = true;
+        }
+        mServiceConnection = new ServiceConnection() {
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                IRobotControllerService controller =
+                        IRobotControllerService.Stub.asInterface(service);
+                try {
+                    controller.connect(robotName, robotBtName, robotBtAddr);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+                // The service queues commands until its robot is connected.
+                synchronized (mPendingCommands) {
                     try {
-                        mControllerService.connect(robotName, robotBtName, robotBtAddr);
+                        while (!mPendingCommands.isEmpty()) {
+                            controller.sendCommand(mPendingCommands.poll());
+                        }
                     } catch (RemoteException e) {
-                        e.printStackTrace();
+                        Log.e(TAG, "Error sending queued commands: " + e.getMessage());
+                        mPendingCommands.clear();
                     }
+                    mControllerService = controller;
+                    mControllerStarting = false;
                 }
+            }
 
-                public void onServiceDisconnected(ComponentName name) {
+            public void onServiceDisconnected(ComponentName name) {
+                synchronized (mPendingCommands) {
                     mControllerService = null;
-                    Log.d(TAG, "Robot controller service disconnected.");
                 }
-            };
-            Intent serviceIntent = new Intent();
-            serviceIntent.setComponent(
-                    new ComponentName(serviceInfo.packageName, serviceInfo.name));
-            mContext.bindService(serviceIntent, mServiceConnection, Service.BIND_AUTO_CREATE);
-        }
+                Log.d(TAG, "Robot controller service disconnected.");
+            }
+        };
+        Intent serviceIntent = new Intent();
+        serviceIntent.setComponent(component);
+        mContext.bindService(serviceIntent, mServiceConnection, Service.BIND_AUTO_CREATE);
     }
 
     public void connect(String agentId, String username, String password, String baseUrl,
@@ -187,35 +228,73 @@ public class CellDroid {
             commandProcessor.shutdown();
     }
 
+    /**
+     * Switches to the controller with the given ID or label. Commands that
+     * arrive during the switch are passed on to the new controller.
+     */
     public void setController(String name, String robotBtName, String robotBtAddr) {
         if (name == null || robotBtName == null) {
             return;
         }
+        ComponentName component = findController(name);
+        if (component == null) {
+            Log.e(TAG, "No robot controller named " + name);
+            return;
+        }
+        releaseController();
+        startController(component, name, robotBtName, robotBtAddr);
+    }
+
+    /**
+     * Looks the controller up among the built-in controllers first, then
+     * among the services of other packages that handle
+     * ACTION_ROBOT_CONTROLLER.
+     */
+    private ComponentName findController(String name) {
+        ControllerDescriptor descriptor = ControllerRegistry.find(name);
+        if (descriptor != null) {
+            return new ComponentName(mContext, descriptor.getServiceClassName());
+        }
         List<ResolveInfo> resolveInfos = mPackageManager.queryIntentServices(
                 new Intent(ACTION_ROBOT_CONTROLLER), PackageManager.GET_META_DATA);
         for (ResolveInfo resolveInfo : resolveInfos) {
             ServiceInfo info = resolveInfo.serviceInfo;
             String label = info.loadLabel(mPackageManager).toString();
             if (name.equals(label)) {
-                disconnectController();
-                startController(info, name, robotBtName, robotBtAddr);
-                return;
+                return new ComponentName(info.packageName, info.name);
             }
         }
+        return null;
     }
 
     public void disconnectController() {
-        if (mControllerService != null) {
+        releaseController();
+        synchronized (mPendingCommands) {
+            mControllerStarting = false;
+            mPendingCommands.clear();
+        }
+    }
+
+    /**
+     * Disconnects from the current controller, but keeps the commands
+     * waiting for the next one.
+     */
+    private void releaseController() {
+        IRobotControllerService controller;
+        synchronized (mPendingCommands) {
+            controller = mControllerService;
+            mControllerService = null;
+        }
+        if (controller != null) {
             try {
-                mControllerService.disconnect();
+                controller.disconnect();
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
-            if (mServiceConnection != null)
-                mContext.unbindService(mServiceConnection);
-            mServiceConnection = null;
-            mControllerService = null;
         }
+        if (mServiceConnection != null)
+            mContext.unbindService(mServiceConnection);
+        mServiceConnection = null;
     }
 
     public int getControllerState() {
@@ -17,11 +17,13 @@
 package com.cellbots.local;
 
 import android.content.Context;
-import android.hardware.SensorListener;
 import android.hardware.SensorManager;
 
+import com.cellbots.sensors.SensorFusion;
+
 /**
- * Compass uses the magnetic compass to track the current heading.
+ * Compass tracks the current heading using the shared {@link SensorFusion},
+ * so the heading is tilt compensated and steadied by the gyroscope.
  *
  * @author clchen@google.com (Charles L. Chen)
  */
@@ -31,10 +33,11 @@ public class Compass {
 
     public Compass(Context context) {
         ctx = context;
-        sensorOk = true;
-        sensorManager = (SensorManager) ctx.getSystemService(Context.SENSOR_SERVICE);
-        sensorManager.registerListener(
-                mListener, SensorManager.SENSOR_ORIENTATION, SensorManager.SENSOR_DELAY_GAME);
+        SensorManager sensorManager =
+                (SensorManager) ctx.getSystemService(Context.SENSOR_SERVICE);
+        if (SensorFusion.isSupported(sensorManager)) {
+            fusion = SensorFusion.acquire(sensorManager);
+        }
     }
 
     private static final String[] DIRECTION_NAMES = { "north", "north north east", "north east",
@@ -42,49 +45,43 @@ public class Compass {
             "south south west", "south west", "west south west", "west", "west north west",
             "north west", "north north west", "north" };
 
-    private SensorManager sensorManager;
-
-    private float currentHeading = -1;
+    private volatile SensorFusion fusion;
 
-    private boolean sensorOk;
-
-    /**
-     * Handles the sensor events for changes to readings and accuracy
-     */
-    private final SensorListener mListener = new SensorListener() {
-        public void onSensorChanged(int sensor, float[] values) {
-            currentHeading = values[0]; // Values are yaw (heading), pitch, and
-                                        // roll.
-        }
-
-        public void onAccuracyChanged(int arg0, int arg1) {
-            sensorOk = (arg1 == SensorManager.SENSOR_STATUS_ACCURACY_HIGH);
-        }
-    };
+    private static boolean isSensorOk(SensorFusion fusion) {
+        return fusion.hasMagnetometer()
+                && fusion.getMagneticAccuracy() == SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+    }
 
     public String getCurrentHeading() {
-        if (currentHeading == -1) {
+        SensorFusion fusion = this.fusion;
+        if (fusion == null || !fusion.getEstimator().hasAttitude()) {
             return "";
         }
-        if (!sensorOk) {
+        if (!isSensorOk(fusion)) {
             return "Please calibrate the compass by shaking your handset.";
         }
+        float currentHeading = fusion.getEstimator().getAzimuth();
         int index = (int) ((currentHeading * 100 + 1125) / 2250);
         return DIRECTION_NAMES[index];
     }
 
     public double getCurrentHeadingValue() {
-        if (currentHeading == -1) {
+        SensorFusion fusion = this.fusion;
+        if (fusion == null || !fusion.getEstimator().hasAttitude()) {
             return -1;
         }
-        if (!sensorOk) {
+        if (!isSensorOk(fusion)) {
             return -1;
         }
-        return currentHeading;
+        return fusion.getEstimator().getAzimuth();
     }
 
     public void shutdown() {
-        sensorManager.unregisterListener(mListener);
+        SensorFusion fusion = this.fusion;
+        this.fusion = null;
+        if (fusion != null) {
+            fusion.release();
+        }
     }
 
 }
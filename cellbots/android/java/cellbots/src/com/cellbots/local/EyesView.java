@@ -17,6 +17,7 @@
 package com.cellbots.local;
 
 import com.cellbots.R;
+import com.cellbots.eyes.VideoRateController;
 
 import org.apache.commons.httpclient.HttpConnection;
 import org.apache.commons.httpclient.HttpState;
@@ -132,6 +133,26 @@ public class EyesView implements Callback {
 
     private WakeLock mWakeLock;
 
+    // Bounds for the adaptive video uplink.
+    private static final int MIN_JPEG_QUALITY = 10;
+
+    private static final int MAX_JPEG_QUALITY = 40;
+
+    private static final int MIN_CROP_PERCENT = 60;
+
+    private static final int MIN_VIDEO_FPS = 2;
+
+    private static final int MAX_VIDEO_FPS = 15;
+
+    private final VideoRateController mVideoRate = new VideoRateController(MIN_JPEG_QUALITY,
+            MAX_JPEG_QUALITY, MIN_CROP_PERCENT, MIN_VIDEO_FPS, MAX_VIDEO_FPS);
+
+    private Rect mCrop;
+
+    private Rect mCropBase;
+
+    private int mCropScale;
+
     public EyesView(CellDroidActivity ct, String url, boolean torch) {
         Log.e("remote eyes", "started " + url);
         mParent = ct;
@@ -281,6 +302,9 @@ public class EyesView implements Callback {
                 if (!isUploading) {
                     if (needToTakePicture) {
                         takePicture(imageData, false);
+                    } else if (!mVideoRate.shouldSendFrame(System.currentTimeMillis())) {
+                        // Above the frame rate the link can take right now.
+                        mCamera.addCallbackBuffer(mCallbackBuffer);
                     } else {
                         isUploading = true;
                         new Thread(new Runnable() {
@@ -299,12 +323,36 @@ public class EyesView implements Callback {
         setTorchMode(mTorchMode);
     }
 
+    /**
+     * Returns the current settings and per-frame statistics of the video
+     * uplink.
+     */
+    public VideoRateController.Stats getVideoStats() {
+        return mVideoRate.getStats();
+    }
+
+    /**
+     * Returns the preview crop, narrowed further by the rate controller.
+     */
+    private Rect getCropRect() {
+        int scale = mVideoRate.getScalePercent();
+        if (mCrop == null || scale != mCropScale || mCropBase != r) {
+            int insetX = mVideoRate.getCropInset(r.width());
+            int insetY = mVideoRate.getCropInset(r.height());
+            mCrop = new Rect(r.left + insetX, r.top + insetY, r.right - insetX, r.bottom - insetY);
+            mCropBase = r;
+            mCropScale = scale;
+        }
+        return mCrop;
+    }
+
     private void uploadImage(byte[] imageData) {
+        long start = 0;
         try {
             YuvImage yuvImage = new YuvImage(
                     imageData, previewFormat, previewWidth, previewHeight, null);
-            yuvImage.compressToJpeg(r, 20, out); // Tweak the quality here - 20
-            // seems pretty decent for quality + size.
+            yuvImage.compressToJpeg(getCropRect(), mVideoRate.getQuality(), out);
+            start = System.currentTimeMillis();
             if (isLocalUrl) {
                 try {
                     Thread.sleep(50);
@@ -317,22 +365,27 @@ public class EyesView implements Callback {
                 put.setRequestBody(new ByteArrayInputStream(out.toByteArray()));
                 int result = put.execute(mHttpState, mConnection);
             }
+            mVideoRate.onFrameSent(out.size(), System.currentTimeMillis() - start);
             //Log.e("result", result + "");
         } catch (UnsupportedEncodingException e) {
             Log.e(TAG, "UnsupportedEncodingException: Error uploading image: " + e.getMessage());
         } catch (IllegalStateException e) {
             Log.e(TAG, "IllegalStateException: Error uploading image: " + e.getMessage());
+            mVideoRate.onFrameFailed();
             resetConnection();
         } catch (ClientProtocolException e) {
             Log.e(TAG, "ClientProtocolException: Error uploading image: " + e.getMessage());
+            mVideoRate.onFrameFailed();
             resetConnection();
         } catch (UnknownHostException e) {
             Log.e(TAG, "UnknownHostException: Error uploading image: " + e.getMessage());
+            mVideoRate.onFrameFailed();
             resetConnection();
         } catch (NoHttpResponseException e) {
             // Silently ignore this.
         } catch (IOException e) {
             Log.e(TAG, "IOException: Error uploading image: " + e.getMessage());
+            mVideoRate.onFrameFailed();
             resetConnection();
         }
         finally {
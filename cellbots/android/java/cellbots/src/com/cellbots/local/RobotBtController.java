@@ -17,7 +17,6 @@
 package com.cellbots.local;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Set;
 import java.util.UUID;
 
@@ -28,13 +27,20 @@ import android.util.Log;
 
 /**
  * This class connects to the robot via Bluetooth and sends allows sending
- * commands to it.
+ * commands to it. Commands are queued and sent by a BtTransport, so writes
+ * never block on the link.
  *
  * @author chaitanyag@google.com (Chaitanya Gharpure)
  */
 public class RobotBtController {
 
     private static final String TAG = "BluetoothClient";
+
+    // Bytes of commands that may wait for the link.
+    private static final int SEND_QUEUE_SIZE = 4096;
+
+    // How long disconnect() waits for queued commands to reach the robot.
+    private static final long DISCONNECT_DRAIN_MS = 250;
     
     private String mDeviceName = "";
 
@@ -45,8 +51,10 @@ public class RobotBtController {
     private BluetoothDevice mBtDevice = null;
 
     private BluetoothSocket mBtSocket = null;
-    
-    private InputStream mInputStream = null;
+
+    private volatile BtTransport mTransport = null;
+
+    private volatile BtTransport.Receiver mReceiver = null;
 
     /**
      * Creates an instance of RobotBtController which can be used to send
@@ -64,14 +72,42 @@ public class RobotBtController {
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
     }
 
-    public synchronized void write(byte[] cmd) {
+    /**
+     * Queues the command for the robot.
+     */
+    public void write(byte[] cmd) {
         if (cmd == null)
             return;
-        try {
-            mBtSocket.getOutputStream().write(cmd);
-        } catch (IOException e) {
-            Log.e(TAG, "Error sending data to BT device: " + e.getMessage());
+        write(cmd, 0, cmd.length, BtTransport.KEY_NONE);
+    }
+
+    /**
+     * Sends length bytes of the buffer starting at offset. The buffer is not
+     * kept, so callers can reuse it for the next command.
+     */
+    public void write(byte[] buffer, int offset, int length) {
+        write(buffer, offset, length, BtTransport.KEY_NONE);
+    }
+
+    /**
+     * Like write(byte[], int, int), but a queued command with the same
+     * coalescing key that has not gone out yet is replaced by this one.
+     *
+     * @param key BtTransport.KEY_NONE or a BtTransport coalescing key
+     * @return false if the command could not be queued
+     */
+    public boolean write(byte[] buffer, int offset, int length, int key) {
+        BtTransport transport = mTransport;
+        if (transport == null) {
+            Log.e(TAG, "Cannot write. Not connected to the robot.");
+            return false;
         }
+        if (!transport.send(buffer, offset, length, key)) {
+            Log.e(TAG, "Error sending data to BT device: "
+                    + (transport.isRunning() ? "send queue full" : "connection closed"));
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -80,7 +116,7 @@ public class RobotBtController {
      *
      * @param cmd
      */
-    public synchronized void write(String cmd) {
+    public void write(String cmd) {
         if (mBtDevice == null) {
             Log.e(TAG, "Cannot write. Not connected to the robot.");
             return;
@@ -88,25 +124,43 @@ public class RobotBtController {
         write((cmd + "\n").getBytes());
     }
 
-    public synchronized byte read() {
-        try {
-            return (byte) mBtSocket.getInputStream().read();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Sets the receiver for the data the robot sends. It is called on the
+     * transport's reader thread.
+     */
+    public void setReceiver(BtTransport.Receiver receiver) {
+        mReceiver = receiver;
+        BtTransport transport = mTransport;
+        if (transport != null) {
+            transport.setReceiver(receiver);
         }
-        return -1;
     }
-    
-    public synchronized int read(byte[] data, int offset, int size) {
-        try {
-            return mInputStream.read(data, offset, size);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return -1;
+
+    /**
+     * Returns the transport counters, or null if not connected.
+     */
+    public BtTransport.Stats getStats() {
+        BtTransport transport = mTransport;
+        return transport == null ? null : transport.getStats();
     }
 
+    /**
+     * Closes the connection. Commands still queued are given up to
+     * DISCONNECT_DRAIN_MS to go out first, so a final stop is not lost.
+     */
     public void disconnect() {
+        BtTransport transport = mTransport;
+        if (transport != null) {
+            mTransport = null;
+            try {
+                if (!transport.drain(DISCONNECT_DRAIN_MS)) {
+                    Log.w(TAG, "Commands still queued at disconnect were dropped.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            transport.close();
+        }
         try {
             if (mBtSocket != null) {
                 mBtSocket.close();
@@ -159,6 +213,11 @@ public class RobotBtController {
             mBtSocket = mBtDevice.createRfcommSocketToServiceRecord(
                     UUID.fromString("00001101-0000-1000-8000-00805F9B34FB"));
             mBtSocket.connect();
+            BtTransport transport = new BtTransport(mBtSocket.getInputStream(),
+                    mBtSocket.getOutputStream(), SEND_QUEUE_SIZE);
+            transport.setReceiver(mReceiver);
+            transport.start();
+            mTransport = transport;
             return true;
         } catch (IOException e) {
             Log.e(TAG, "Unable to connect to robot's Bluetooth." + e.getMessage());
@@ -18,11 +18,20 @@ package com.cellbots.local.robotcontrollerservice;
 
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 
+import com.cellbots.local.BtTransport;
 import com.cellbots.local.IRobotControllerService;
+import com.cellbots.local.RobotBtController;
 
 /**
+ * Base class of the robot controller services. It connects to the robot over
+ * Bluetooth and sends every command through a CommandPipeline, so a robot
+ * only has to provide its CommandEncoder by overriding createEncoder().
+ * Robots with more to offer, such as odometry, also override createBinder().
+ *
  * @author chaitanyag@google.com (Chaitanya Gharpure)
  *
  */
@@ -40,11 +49,125 @@ public class AbstractRobotControllerService extends Service {
     
     protected int mCurrentState = STATE_NONE;
 
+    /**
+     * Preference holding the watchdog window in ms as a string. The robot is
+     * stopped when no command arrives for this long. Empty or 0 disables it.
+     */
+    public static final String PREF_WATCHDOG_MS = "ROBOT_WATCHDOG_MS";
+
+    /**
+     * Preference holding the maximum number of velocity commands sent per
+     * second as a string. Empty uses DEFAULT_MAX_VELOCITY_RATE, 0 disables
+     * the limit.
+     */
+    public static final String PREF_MAX_VELOCITY_RATE = "ROBOT_MAX_VELOCITY_RATE";
+
+    public static final int DEFAULT_MAX_VELOCITY_RATE = 20;
+
+    private static final int COMMAND_QUEUE_SIZE = 32;
+
+    /** Held while a command is sent to the robot. */
+    protected final Object mCommandLock = new Object();
+
+    protected final MotionTimer mMotionTimer = new MotionTimer(mCommandLock, new Runnable() {
+        @Override
+        public void run() {
+            sendStopCommand();
+        }
+    });
+
+    /** Takes every command from the binder to the robot. */
+    protected final CommandPipeline mPipeline = new CommandPipeline(mCommandLock,
+            MotionTimer.getExecutor(), COMMAND_QUEUE_SIZE);
+
+    protected volatile RobotBtController robotController;
+
+    private Stub mBinder;
+
+    private final CommandPipeline.Sink mSink = new CommandPipeline.Sink() {
+        @Override
+        public boolean write(byte[] buffer, int offset, int length, int key) {
+            RobotBtController controller = robotController;
+            return controller != null && controller.write(buffer, offset, length, key);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mMotionTimer.setWatchdog(getIntPreference(prefs, PREF_WATCHDOG_MS, 0));
+        mPipeline.setMaxVelocityRate(getIntPreference(prefs, PREF_MAX_VELOCITY_RATE,
+                DEFAULT_MAX_VELOCITY_RATE));
+        mPipeline.setEncoder(createEncoder());
+    }
+
+    @Override
+    public void onDestroy() {
+        mMotionTimer.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
+        if (intent.getComponent().getClassName().equals(getClass().getName())) {
+            synchronized (this) {
+                if (mBinder == null) {
+                    mBinder = createBinder();
+                }
+                return mBinder;
+            }
+        }
         return null;
     }
 
+    private static int getIntPreference(SharedPreferences prefs, String key, int defaultValue) {
+        String value = prefs.getString(key, "");
+        try {
+            return value.length() > 0 ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the encoder for the robot's command format. The default
+     * forwards the text commands unchanged.
+     */
+    protected CommandEncoder createEncoder() {
+        return new TextCommandEncoder();
+    }
+
+    /**
+     * Returns the binder exposed to CellDroid.
+     */
+    protected Stub createBinder() {
+        return new Stub();
+    }
+
+    /**
+     * Returns the registry entry of this controller, or null if it is not
+     * registered.
+     */
+    protected ControllerDescriptor getDescriptor() {
+        return ControllerRegistry.findByService(getClass().getName());
+    }
+
+    /**
+     * Called once the Bluetooth connection is up, before queued commands are
+     * sent, e.g. to put the robot into the right mode.
+     */
+    protected void onRobotConnected() {
+    }
+
+    /**
+     * Sends a stop to the robot. Called by the motion timer with
+     * mCommandLock held, when a timed move ends or the watchdog fires.
+     */
+    protected void sendStopCommand() {
+        mPipeline.submit("s");
+    }
+
     public class Stub extends IRobotControllerService.Stub {
 
         /* (non-Javadoc)
@@ -53,6 +176,26 @@ public class AbstractRobotControllerService extends Service {
         @Override
         public void connect(String username, String robotBtName, String robotBtAddr) {
             mCurrentState = STATE_STARTING;
+            final RobotBtController controller =
+                    new RobotBtController(username, robotBtName, robotBtAddr);
+            robotController = controller;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if (controller.startConnection()) {
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                        onRobotConnected();
+                        mCurrentState = STATE_SUCCESS;
+                        mPipeline.setSink(mSink);
+                    } else {
+                        mCurrentState = STATE_BLUETOOTH_FAIL;
+                    }
+                }
+            }).start();
         }
 
         /* (non-Javadoc)
@@ -60,6 +203,19 @@ public class AbstractRobotControllerService extends Service {
          */
         @Override
         public void disconnect() {
+            mMotionTimer.reset();
+            // Commands still held back by the rate limit are handed to the
+            // transport, which drains them before the link closes. Whatever
+            // cannot be sent is dropped rather than carried over: it was meant
+            // for this robot, and CellDroid holds the commands that arrive
+            // during a switch for the next controller.
+            mPipeline.flush();
+            mPipeline.setSink(null);
+            mPipeline.clear();
+            RobotBtController controller = robotController;
+            robotController = null;
+            if (controller != null)
+                controller.disconnect();
         }
 
         /* (non-Javadoc)
@@ -99,7 +255,32 @@ public class AbstractRobotControllerService extends Service {
          */
         @Override
         public String getStateJson() {
-            return null;
+            ControllerDescriptor descriptor = getDescriptor();
+            CommandPipeline.Stats pipeline = mPipeline.getStats();
+            StringBuilder json = new StringBuilder("{");
+            if (descriptor != null) {
+                json.append("\"controller\":\"").append(descriptor.getId()).append("\",");
+                json.append("\"capabilities\":").append(descriptor.getCapabilitiesJson())
+                        .append(',');
+            }
+            json.append("\"state\":").append(mCurrentState);
+            json.append(",\"commands\":{\"submitted\":").append(pipeline.submitted)
+                    .append(",\"sent\":").append(pipeline.sent)
+                    .append(",\"rejected\":").append(pipeline.rejected)
+                    .append(",\"unsupported\":").append(pipeline.unsupported)
+                    .append(",\"deferred\":").append(pipeline.deferred)
+                    .append(",\"coalesced\":").append(pipeline.coalesced)
+                    .append(",\"dropped\":").append(pipeline.dropped)
+                    .append(",\"queued\":").append(pipeline.queued).append('}');
+            RobotBtController controller = robotController;
+            BtTransport.Stats link = controller != null ? controller.getStats() : null;
+            if (link != null) {
+                json.append(",\"link\":{\"bytesWritten\":").append(link.bytesWritten)
+                        .append(",\"bytesRead\":").append(link.bytesRead)
+                        .append(",\"queueDepth\":").append(link.queueDepth)
+                        .append(",\"latencyMs\":").append(link.lastLatencyMs).append('}');
+            }
+            return json.append('}').toString();
         }
 
         /* (non-Javadoc)
@@ -114,6 +295,10 @@ public class AbstractRobotControllerService extends Service {
          */
         @Override
         public void sendCommand(String cmd) {
+            synchronized (mCommandLock) {
+                mMotionTimer.onCommand();
+                mPipeline.submit(cmd);
+            }
         }
         
     }
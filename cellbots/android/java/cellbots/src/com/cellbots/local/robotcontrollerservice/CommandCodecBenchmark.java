@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Compares the command codec with the String.split() encoding the Create
+ * controller used before, on a desktop JVM.
+ *
+ * <pre>
+ * java com.cellbots.local.robotcontrollerservice.CommandCodecBenchmark [commands]
+ * </pre>
+ *
+ * encodes a mix of drive commands and stops, as joystick traffic produces
+ * them, commands times (default 5000000) with each path: the old split and
+ * parse into a new array, RobotCommand and CreateCommandEncoder into a
+ * reused buffer, and the whole CommandPipeline down to a sink. It prints the
+ * commands per second and the bytes allocated per command, which needs a
+ * JVM that reports per-thread allocation.
+ */
+public class CommandCodecBenchmark {
+
+    private static final String[] COMMANDS = {
+            "w 10 -20", "w 15 15", "w -3 7", "s"
+    };
+
+    private static final int ROUNDS = 3;
+
+    // Keeps the results alive so the JIT cannot drop the work.
+    private static volatile int sSink;
+
+    private interface Path {
+        int run(String cmd);
+    }
+
+    public static void main(String[] args) {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+        final CreateCommandEncoder encoder = new CreateCommandEncoder();
+        final RobotCommand command = new RobotCommand();
+        final byte[] buffer = new byte[64];
+        for (String cmd : COMMANDS) {
+            command.parse(cmd);
+            byte[] old = encodeOld(cmd);
+            if (!Arrays.equals(old, Arrays.copyOf(buffer, encoder.encode(command, buffer)))) {
+                throw new AssertionError("Encodings differ for " + cmd);
+            }
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final CommandPipeline pipeline = new CommandPipeline(new Object(), scheduler, 32);
+        final int[] written = new int[1];
+        pipeline.setMaxVelocityRate(0);
+        pipeline.setEncoder(encoder);
+        pipeline.setSink(new CommandPipeline.Sink() {
+            public boolean write(byte[] data, int offset, int length, int key) {
+                written[0] += length;
+                return true;
+            }
+        });
+
+        Path[] paths = {
+                new Path() {
+                    public int run(String cmd) {
+                        return encodeOld(cmd).length;
+                    }
+                },
+                new Path() {
+                    public int run(String cmd) {
+                        command.parse(cmd);
+                        return encoder.encode(command, buffer);
+                    }
+                },
+                new Path() {
+                    public int run(String cmd) {
+                        return pipeline.submit(cmd) ? 1 : 0;
+                    }
+                },
+        };
+        String[] names = {
+                "split (old)", "codec", "pipeline"
+        };
+        for (int round = 1; round <= ROUNDS; round++) {
+            for (int p = 0; p < paths.length; p++) {
+                long bytesBefore = allocatedBytes();
+                long start = System.nanoTime();
+                int sink = 0;
+                for (int i = 0; i < commands; i++) {
+                    sink += paths[p].run(COMMANDS[i & 3]);
+                }
+                long nanos = System.nanoTime() - start;
+                long bytes = allocatedBytes() - bytesBefore;
+                sSink = sink;
+                if (round == ROUNDS) {
+                    System.out.println(String.format("%-12s %6.2f M commands/s, %s bytes/command",
+                            names[p], commands * 1e3 / nanos, bytesBefore < 0 ? "?"
+                                    : String.format("%.1f", (double) bytes / commands)));
+                }
+            }
+        }
+        System.out.println("pipeline stats: " + pipeline.getStats());
+        scheduler.shutdown();
+    }
+
+    /**
+     * The drive command encoding of the Create controller before the codec,
+     * kept for comparison.
+     */
+    private static byte[] encodeOld(String cmd) {
+        String[] tokens = cmd.split(" ");
+        if (tokens[0].equals("s")) {
+            tokens = "w 0 0".split(" ");
+        }
+        int left = 0, right = 0;
+        if (tokens[0].equals("w")) {
+            if (tokens.length != 3) return null;
+            try {
+                left = Math.max(-500, Math.min(500, Integer.parseInt(tokens[1]) * 5));
+                right = Math.max(-500, Math.min(500, Integer.parseInt(tokens[2]) * 5));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        byte[] cmdBytes = new byte[5];
+        cmdBytes[0] = (byte) 0x91;
+        short rightVel = (short) right;
+        short leftVel = (short) left;
+        cmdBytes[1] = (byte) ((rightVel & 0xFF00) >> 8);
+        cmdBytes[2] = (byte) (rightVel & 0x00FF);
+        cmdBytes[3] = (byte) ((leftVel & 0xFF00) >> 8);
+        cmdBytes[4] = (byte) (leftVel & 0x00FF);
+        return cmdBytes;
+    }
+
+    /**
+     * Returns the bytes allocated by this thread so far, or -1 if the JVM
+     * does not report it. Looked up by reflection, since the management
+     * classes are not part of Android.
+     */
+    private static long allocatedBytes() {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+/**
+ * Turns a parsed command into the bytes a particular robot understands.
+ */
+public interface CommandEncoder {
+
+    /**
+     * Writes the robot's encoding of the command to the start of the buffer.
+     *
+     * @return the number of bytes written, or -1 if the robot has no
+     *         equivalent for the command
+     */
+    int encode(RobotCommand command, byte[] buffer);
+}
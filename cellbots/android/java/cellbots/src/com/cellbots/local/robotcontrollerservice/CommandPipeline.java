@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+import com.cellbots.local.BtTransport;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The path every command takes from the remote controller to the robot:
+ * decode, rate-limit, coalesce, encode and hand to the transport.
+ *
+ * Velocity commands are sent at most at the configured rate. One that comes
+ * too early waits in the queue, where a newer velocity command replaces it.
+ * Stops are never delayed and discard the queued velocity commands. Other
+ * commands keep their order.
+ *
+ * While there is no sink or no encoder, e.g. while the robot is connecting or
+ * the controller is being switched, commands wait in the queue and are sent
+ * once both are set. The encoder and the sink can be replaced at any time
+ * without losing queued commands.
+ *
+ * All state is guarded by the lock passed in, which is the lock the service
+ * holds while sending commands, so deferred commands and timed stops are
+ * ordered with everything else. The pipeline has no Android dependencies.
+ */
+public class CommandPipeline {
+
+    // Large enough for the longest encoding of any robot.
+    private static final int BUFFER_SIZE = 256;
+
+    /**
+     * Receives the encoded commands, normally a RobotBtController.
+     */
+    public interface Sink {
+        /**
+         * Sends the bytes. The buffer is reused after the call returns.
+         *
+         * @param key BtTransport.KEY_VELOCITY for velocity commands, otherwise
+         *            BtTransport.KEY_NONE
+         * @return false if the bytes could not be sent
+         */
+        boolean write(byte[] buffer, int offset, int length, int key);
+    }
+
+    /**
+     * A snapshot of the pipeline counters.
+     */
+    public static class Stats {
+        public final long submitted;
+
+        /** Empty commands. */
+        public final long rejected;
+
+        /**
+         * Commands the robot has no encoding for, including known commands
+         * with arguments that are not numbers.
+         */
+        public final long unsupported;
+
+        public final long sent;
+
+        /** Velocity commands held back by the rate limit. */
+        public final long deferred;
+
+        public final long coalesced;
+
+        public final long dropped;
+
+        public final long writeFailures;
+
+        public final int queued;
+
+        Stats(CommandPipeline p) {
+            submitted = p.mSubmitted;
+            rejected = p.mRejected;
+            unsupported = p.mUnsupported;
+            sent = p.mSent;
+            deferred = p.mDeferred;
+            coalesced = p.mQueue.getCoalescedCount();
+            dropped = p.mQueue.getDroppedCount();
+            writeFailures = p.mWriteFailures;
+            queued = p.mQueue.size();
+        }
+
+        @Override
+        public String toString() {
+            return "submitted=" + submitted + " rejected=" + rejected + " unsupported="
+                    + unsupported + " sent=" + sent + " deferred=" + deferred + " coalesced="
+                    + coalesced + " dropped=" + dropped + " writeFailures=" + writeFailures
+                    + " queued=" + queued;
+        }
+    }
+
+    private final Object mLock;
+
+    private final ScheduledExecutorService mScheduler;
+
+    private final CommandQueue mQueue;
+
+    private final RobotCommand mCommand = new RobotCommand();
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    private CommandEncoder mEncoder;
+
+    private Sink mSink;
+
+    private long mMinVelocityIntervalNanos = 0;
+
+    private long mLastVelocitySent;
+
+    private boolean mFlushScheduled = false;
+
+    private long mSubmitted = 0;
+
+    private long mRejected = 0;
+
+    private long mUnsupported = 0;
+
+    private long mSent = 0;
+
+    private long mDeferred = 0;
+
+    private long mWriteFailures = 0;
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            synchronized (mLock) {
+                mFlushScheduled = false;
+                drain(false);
+            }
+        }
+    };
+
+    /**
+     * @param lock guards the pipeline; deferred commands are sent under it
+     * @param scheduler runs the sends deferred by the rate limit
+     * @param queueCapacity number of commands that may wait
+     */
+    public CommandPipeline(Object lock, ScheduledExecutorService scheduler, int queueCapacity) {
+        mLock = lock;
+        mScheduler = scheduler;
+        mQueue = new CommandQueue(queueCapacity);
+    }
+
+    /**
+     * Sets the encoder for the robot. Queued commands are encoded with the new
+     * encoder.
+     */
+    public void setEncoder(CommandEncoder encoder) {
+        synchronized (mLock) {
+            mEncoder = encoder;
+            drain(false);
+        }
+    }
+
+    /**
+     * Sets where encoded commands go. Null holds commands in the queue.
+     */
+    public void setSink(Sink sink) {
+        synchronized (mLock) {
+            mSink = sink;
+            drain(false);
+        }
+    }
+
+    /**
+     * Limits how many velocity commands are sent per second. Zero removes
+     * the limit.
+     */
+    public void setMaxVelocityRate(int perSecond) {
+        synchronized (mLock) {
+            mMinVelocityIntervalNanos = perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond
+                    : 0;
+            drain(false);
+        }
+    }
+
+    /**
+     * Decodes the command and sends it, or queues it if it cannot be sent
+     * yet. A queued command is kept as the string passed in, so queueing
+     * does not copy it.
+     *
+     * @return false if the command was empty or had to be dropped
+     */
+    public boolean submit(String cmd) {
+        synchronized (mLock) {
+            if (!mCommand.parse(cmd)) {
+                mRejected++;
+                return false;
+            }
+            mSubmitted++;
+            boolean velocity = mCommand.isVelocityCommand();
+            boolean stop = mCommand.getType() == RobotCommand.TYPE_STOP;
+            if (stop) {
+                mQueue.removeVelocityCommands();
+            }
+            if (mQueue.isEmpty() && canSend(velocity && !stop)) {
+                send(velocity);
+                return true;
+            }
+            if (velocity && !stop && mSink != null && mEncoder != null) {
+                mDeferred++;
+            }
+            boolean queued = mQueue.offer(cmd, velocity);
+            drain(false);
+            return queued;
+        }
+    }
+
+    /**
+     * Sends everything queued right away, ignoring the rate limit, e.g.
+     * before the sink goes away.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            drain(true);
+        }
+    }
+
+    /**
+     * Discards all queued commands.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mQueue.clear();
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (mLock) {
+            return new Stats(this);
+        }
+    }
+
+    private boolean canSend(boolean rateLimited) {
+        if (mSink == null || mEncoder == null) {
+            return false;
+        }
+        return !rateLimited || mMinVelocityIntervalNanos == 0
+                || System.nanoTime() - mLastVelocitySent >= mMinVelocityIntervalNanos;
+    }
+
+    private void drain(boolean ignoreRate) {
+        while (!mQueue.isEmpty()) {
+            boolean velocity = mQueue.isHeadVelocity();
+            if (!mCommand.parse(mQueue.peek())) {
+                mQueue.poll();
+                continue;
+            }
+            boolean rateLimited = velocity && !ignoreRate
+                    && mCommand.getType() != RobotCommand.TYPE_STOP;
+            if (!canSend(rateLimited)) {
+                if (mSink != null && mEncoder != null) {
+                    scheduleFlush();
+                }
+                return;
+            }
+            mQueue.poll();
+            send(velocity);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+        long delay = mMinVelocityIntervalNanos - (System.nanoTime() - mLastVelocitySent);
+        mScheduler.schedule(mFlush, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Encodes mCommand and writes it to the sink.
+     */
+    private void send(boolean velocity) {
+        int length = mEncoder.encode(mCommand, mBuffer);
+        if (length < 0) {
+            mUnsupported++;
+            return;
+        }
+        if (velocity) {
+            mLastVelocitySent = System.nanoTime();
+        }
+        if (mSink.write(mBuffer, 0, length, velocity ? BtTransport.KEY_VELOCITY
+                : BtTransport.KEY_NONE)) {
+            mSent++;
+        } else {
+            mWriteFailures++;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+/**
+ * A bounded FIFO of text commands waiting to be sent. A velocity command
+ * replaces a velocity command at the tail of the queue, since only the latest
+ * one matters; other commands keep their order. Not thread-safe; callers
+ * synchronize.
+ */
+public class CommandQueue {
+
+    private final String[] mCommands;
+
+    private final boolean[] mVelocity;
+
+    private int mHead = 0;
+
+    private int mSize = 0;
+
+    private long mCoalesced = 0;
+
+    private long mDropped = 0;
+
+    public CommandQueue(int capacity) {
+        mCommands = new String[capacity];
+        mVelocity = new boolean[capacity];
+    }
+
+    /**
+     * Appends a command.
+     *
+     * @param velocity true if the command only sets the wheel velocities
+     * @return false if the queue is full and the command was dropped
+     */
+    public boolean offer(String cmd, boolean velocity) {
+        if (velocity && mSize > 0 && mVelocity[index(mSize - 1)]) {
+            mCommands[index(mSize - 1)] = cmd;
+            mCoalesced++;
+            return true;
+        }
+        if (mSize == mCommands.length) {
+            mDropped++;
+            return false;
+        }
+        mCommands[index(mSize)] = cmd;
+        mVelocity[index(mSize)] = velocity;
+        mSize++;
+        return true;
+    }
+
+    public String peek() {
+        return mSize == 0 ? null : mCommands[mHead];
+    }
+
+    public boolean isHeadVelocity() {
+        return mSize > 0 && mVelocity[mHead];
+    }
+
+    public String poll() {
+        if (mSize == 0) {
+            return null;
+        }
+        String cmd = mCommands[mHead];
+        mCommands[mHead] = null;
+        mHead = index(1);
+        mSize--;
+        return cmd;
+    }
+
+    /**
+     * Removes all velocity commands, e.g. because a stop made them obsolete.
+     */
+    public void removeVelocityCommands() {
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            int from = index(i);
+            if (!mVelocity[from]) {
+                int to = index(kept++);
+                mCommands[to] = mCommands[from];
+                mVelocity[to] = false;
+            }
+        }
+        for (int i = kept; i < mSize; i++) {
+            mCommands[index(i)] = null;
+        }
+        mCoalesced += mSize - kept;
+        mSize = kept;
+    }
+
+    public void clear() {
+        while (mSize > 0) {
+            poll();
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Returns the number of commands replaced by a newer one. */
+    public long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /** Returns the number of commands dropped because the queue was full. */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    private int index(int offset) {
+        return (mHead + offset) % mCommands.length;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+/**
+ * Describes a robot controller: the service that implements it, the label
+ * shown to the user and what the controller can do beyond driving.
+ */
+public class ControllerDescriptor {
+
+    /** getPose returns the robot's position. */
+    public static final int CAP_POSE = 1;
+
+    /** getOdometer returns the distance travelled and the heading. */
+    public static final int CAP_ODOMETRY = 1 << 1;
+
+    /** getSensorData returns raw sensor readings. */
+    public static final int CAP_SENSOR_DATA = 1 << 2;
+
+    /** The head commands move a head or camera mount. */
+    public static final int CAP_HEAD = 1 << 3;
+
+    /** Timed moves ("fd", "bd", "ld", "rd") are supported. */
+    public static final int CAP_TIMED_MOVES = 1 << 4;
+
+    /** Moves over a fixed distance or angle are supported. */
+    public static final int CAP_FIXED_MOVES = 1 << 5;
+
+    private static final String[] CAPABILITY_NAMES = {
+            "pose", "odometry", "sensorData", "head", "timedMoves", "fixedMoves"
+    };
+
+    private final String mId;
+
+    private final String mLabel;
+
+    private final String mServiceClassName;
+
+    private final int mCapabilities;
+
+    /**
+     * @param id short name used in preferences and state reports
+     * @param label the android:label of the service in the manifest
+     * @param serviceClassName fully qualified name of the service class
+     * @param capabilities a combination of the CAP_* flags
+     */
+    public ControllerDescriptor(String id, String label, String serviceClassName,
+            int capabilities) {
+        mId = id;
+        mLabel = label;
+        mServiceClassName = serviceClassName;
+        mCapabilities = capabilities;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getLabel() {
+        return mLabel;
+    }
+
+    public String getServiceClassName() {
+        return mServiceClassName;
+    }
+
+    public int getCapabilities() {
+        return mCapabilities;
+    }
+
+    public boolean hasCapability(int capability) {
+        return (mCapabilities & capability) == capability;
+    }
+
+    /**
+     * Returns the capabilities as a JSON array of names.
+     */
+    public String getCapabilitiesJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < CAPABILITY_NAMES.length; i++) {
+            if ((mCapabilities & (1 << i)) != 0) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                json.append('"').append(CAPABILITY_NAMES[i]).append('"');
+            }
+        }
+        return json.append(']').toString();
+    }
+
+    @Override
+    public String toString() {
+        return mId + " (" + mLabel + ")";
+    }
+}
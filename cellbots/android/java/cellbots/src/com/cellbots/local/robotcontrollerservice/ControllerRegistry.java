@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The robot controllers built into this package. A new robot needs a
+ * subclass of AbstractRobotControllerService that returns its
+ * CommandEncoder, an entry in the manifest and an entry here.
+ */
+public class ControllerRegistry {
+
+    private static final List<ControllerDescriptor> sControllers =
+            new ArrayList<ControllerDescriptor>();
+
+    static {
+        register(new ControllerDescriptor("default", "Default Controller",
+                DefaultRobotControllerService.class.getName(),
+                ControllerDescriptor.CAP_HEAD | ControllerDescriptor.CAP_TIMED_MOVES
+                        | ControllerDescriptor.CAP_FIXED_MOVES));
+        register(new ControllerDescriptor("create", "iRobot Create\u00AE/Roomba\u00AE",
+                CreateRobotControllerService.class.getName(),
+                ControllerDescriptor.CAP_POSE | ControllerDescriptor.CAP_ODOMETRY
+                        | ControllerDescriptor.CAP_TIMED_MOVES
+                        | ControllerDescriptor.CAP_FIXED_MOVES));
+        register(new ControllerDescriptor("nxt", "LEGO\u00AE MINDSTORMS\u00AE",
+                NXTRobotControllerService.class.getName(), ControllerDescriptor.CAP_HEAD));
+        register(new ControllerDescriptor("vexpro", "VEX\u00AE PRO",
+                VexProRobotControllerService.class.getName(),
+                ControllerDescriptor.CAP_HEAD | ControllerDescriptor.CAP_TIMED_MOVES
+                        | ControllerDescriptor.CAP_FIXED_MOVES));
+    }
+
+    private ControllerRegistry() {
+    }
+
+    /**
+     * Adds a controller, replacing one with the same ID.
+     */
+    public static synchronized void register(ControllerDescriptor descriptor) {
+        for (int i = 0; i < sControllers.size(); i++) {
+            if (sControllers.get(i).getId().equals(descriptor.getId())) {
+                sControllers.set(i, descriptor);
+                return;
+            }
+        }
+        sControllers.add(descriptor);
+    }
+
+    /**
+     * Finds a controller by its ID or its label.
+     *
+     * @return the controller, or null if there is none
+     */
+    public static synchronized ControllerDescriptor find(String idOrLabel) {
+        for (ControllerDescriptor descriptor : sControllers) {
+            if (descriptor.getId().equals(idOrLabel) || descriptor.getLabel().equals(idOrLabel)) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the controller implemented by the given service class.
+     *
+     * @return the controller, or null if there is none
+     */
+    public static synchronized ControllerDescriptor findByService(String serviceClassName) {
+        for (ControllerDescriptor descriptor : sControllers) {
+            if (descriptor.getServiceClassName().equals(serviceClassName)) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    public static synchronized List<ControllerDescriptor> getAll() {
+        return new ArrayList<ControllerDescriptor>(sControllers);
+    }
+}
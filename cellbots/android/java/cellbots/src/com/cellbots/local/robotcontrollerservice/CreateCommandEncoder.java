@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+/**
+ * Encodes commands for the iRobot Create Open Interface. Plain moves become a
+ * Drive Direct command; moves with a distance or angle become a script that
+ * drives, waits for the distance or angle and stops.
+ */
+public class CreateCommandEncoder implements CommandEncoder {
+
+    private static final int MAX_VELOCITY = 500;
+
+    private static final int DEFAULT_MOVE_SPEED = 300;
+
+    private static final int DEFAULT_TURN_SPEED = 100;
+
+    private volatile boolean mSensorStreamActive = false;
+
+    /**
+     * Sets whether the sensor stream is running; scripts then pause and resume
+     * it around their commands.
+     */
+    public void setSensorStreamActive(boolean active) {
+        mSensorStreamActive = active;
+    }
+
+    /**
+     * Called when a timed move ("fd", "bd", "ld" or "rd") is encoded. The
+     * caller is expected to send a stop once the duration has passed.
+     */
+    protected void onTimedMove(int durationMs) {
+    }
+
+    public int encode(RobotCommand command, byte[] buffer) {
+        if (!command.hasValidArgs()) {
+            return -1;
+        }
+        int type = command.getType();
+        int moveSpeed = DEFAULT_MOVE_SPEED;
+        int turnSpeed = DEFAULT_TURN_SPEED;
+        boolean isMove = type == RobotCommand.TYPE_FORWARD || type == RobotCommand.TYPE_BACKWARD
+                || type == RobotCommand.TYPE_LEFT || type == RobotCommand.TYPE_RIGHT;
+        if (isMove && command.getArgCount() == 2) {
+            if (!command.isTimed()) {
+                return encodeFixedMotion(type, clamp(command.getArg(0) * 5), command.getArg(1),
+                        buffer);
+            }
+            moveSpeed = turnSpeed = clamp(command.getArg(0) * 5);
+            onTimedMove(command.getArg(1));
+        } else if (isMove && command.isTimed()) {
+            // Malformed timed moves stop the robot.
+            return putDriveDirect(buffer, 0, 0, 0);
+        }
+
+        switch (type) {
+            case RobotCommand.TYPE_WHEELS:
+                if (command.getArgCount() != 2) {
+                    return -1;
+                }
+                return putDriveDirect(buffer, 0, clamp(command.getArg(0) * 5),
+                        clamp(command.getArg(1) * 5));
+            case RobotCommand.TYPE_FORWARD:
+                return putDriveDirect(buffer, 0, moveSpeed, moveSpeed);
+            case RobotCommand.TYPE_BACKWARD:
+                return putDriveDirect(buffer, 0, -moveSpeed, -moveSpeed);
+            case RobotCommand.TYPE_LEFT:
+                return putDriveDirect(buffer, 0, -turnSpeed, turnSpeed);
+            case RobotCommand.TYPE_RIGHT:
+                return putDriveDirect(buffer, 0, turnSpeed, -turnSpeed);
+            default:
+                // Stop, and anything the Create cannot do.
+                return putDriveDirect(buffer, 0, 0, 0);
+        }
+    }
+
+    private int encodeFixedMotion(int type, int speed, int value, byte[] buffer) {
+        boolean pauseStream = mSensorStreamActive;
+        int pos = 0;
+        buffer[pos++] = (byte) 0x98; // 152: Opcode for script command
+        buffer[pos++] = (byte) 0x11; // 15: Script length
+
+        if (pauseStream) {
+            // Sensor stream should be paused to execute script commands
+            buffer[pos++] = (byte) 0x96; // 150: Pause/resume stream opcode
+            buffer[pos++] = (byte) 0x00; // 0: Pause
+        }
+
+        int ls = 0, rs = 0;
+        if (type == RobotCommand.TYPE_FORWARD) {
+            ls = rs = speed;
+        } else if (type == RobotCommand.TYPE_BACKWARD) {
+            ls = rs = -speed;
+            value = -value;
+        } else if (type == RobotCommand.TYPE_LEFT) {
+            ls = -speed;
+            rs = speed;
+        } else if (type == RobotCommand.TYPE_RIGHT) {
+            ls = speed;
+            rs = -speed;
+            value = -value;
+        }
+        // The speeds are scaled like the arguments of a "w" command.
+        pos = putDriveDirect(buffer, pos, clamp(ls * 5), clamp(rs * 5));
+
+        if (type == RobotCommand.TYPE_FORWARD || type == RobotCommand.TYPE_BACKWARD)
+            buffer[pos++] = (byte) 0x9C; // 156: opcode for Wait distance
+        else
+            buffer[pos++] = (byte) 0x9D; // 157: opcode for Wait angle
+        buffer[pos++] = (byte) ((value & 0xFF00) >> 8);
+        buffer[pos++] = (byte) (value & 0x00FF);
+        pos = putDriveDirect(buffer, pos, 0, 0);
+
+        if (pauseStream) {
+            // Resume sensor stream after
+            buffer[pos++] = (byte) 0x96; // 150: Pause/resume stream opcode
+            buffer[pos++] = (byte) 0x01; // 0: Resume
+        }
+
+        buffer[pos++] = (byte) 0x99;    // Loop forever? We somehow need this.
+        return pos;
+    }
+
+    /**
+     * Writes a Drive Direct command at pos and returns the position after it.
+     */
+    private static int putDriveDirect(byte[] buffer, int pos, int left, int right) {
+        short rightVel = (short) right;
+        short leftVel = (short) left;
+        buffer[pos++] = (byte) 0x91; // 145: Drive Direct opcode
+        buffer[pos++] = (byte) ((rightVel & 0xFF00) >> 8);
+        buffer[pos++] = (byte) (rightVel & 0x00FF);
+        buffer[pos++] = (byte) ((leftVel & 0xFF00) >> 8);
+        buffer[pos++] = (byte) (leftVel & 0x00FF);
+        return pos;
+    }
+
+    private static int clamp(int velocity) {
+        return Math.max(-MAX_VELOCITY, Math.min(MAX_VELOCITY, velocity));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Integrates the distance and angle packets of the Create sensor stream into
+ * a pose. Each frame produces a new immutable Pose that is published with a
+ * compare-and-set, so readers on binder threads get a consistent snapshot
+ * without blocking the sensor reader, and a reset never gets lost.
+ *
+ * A heading of 0 points along +y and positive angles turn counter-clockwise,
+ * as reported by the Create. Each step moves along the heading halfway
+ * through its turn.
+ */
+public class CreateOdometry implements CreateSensorParser.Listener {
+
+    /**
+     * An immutable pose snapshot.
+     */
+    public static class Pose {
+        public final long timestamp;
+
+        /** Total distance travelled in mm. */
+        public final int distance;
+
+        /** Heading in degrees, 0-359. */
+        public final int angle;
+
+        /** Position in mm. */
+        public final double x;
+
+        public final double y;
+
+        Pose(long timestamp, int distance, int angle, double x, double y) {
+            this.timestamp = timestamp;
+            this.distance = distance;
+            this.angle = angle;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * Returns the pose after moving the given distance while turning by
+         * the given angle.
+         */
+        Pose advance(long now, int stepDistance, int stepAngle) {
+            double heading = Math.toRadians(angle + stepAngle / 2.0);
+            int newAngle = (angle + stepAngle) % 360;
+            if (newAngle < 0) {
+                newAngle += 360;
+            }
+            return new Pose(now, distance + stepDistance, newAngle,
+                    x + stepDistance * Math.sin(heading), y + stepDistance * Math.cos(heading));
+        }
+    }
+
+    private final AtomicReference<Pose> mPose = new AtomicReference<Pose>(
+            new Pose(System.currentTimeMillis(), 0, 0, 0, 0));
+
+    // Accumulated by the reader thread while a frame is decoded.
+    private int mFrameDistance = 0;
+
+    private int mFrameAngle = 0;
+
+    private boolean mFrameHasMotion = false;
+
+    public void onPacket(int packetId, int value) {
+        if (packetId == CreateSensorParser.PACKET_DISTANCE) {
+            mFrameDistance += value;
+            mFrameHasMotion = true;
+        } else if (packetId == CreateSensorParser.PACKET_ANGLE) {
+            mFrameAngle += value;
+            mFrameHasMotion = true;
+        }
+    }
+
+    public void onFrameEnd() {
+        if (mFrameHasMotion) {
+            long now = System.currentTimeMillis();
+            Pose current;
+            do {
+                current = mPose.get();
+            } while (!mPose.compareAndSet(current, current.advance(now, mFrameDistance,
+                    mFrameAngle)));
+        }
+        mFrameDistance = 0;
+        mFrameAngle = 0;
+        mFrameHasMotion = false;
+    }
+
+    /**
+     * Returns the latest pose. Never blocks.
+     */
+    public Pose getPose() {
+        return mPose.get();
+    }
+
+    /**
+     * Moves the pose back to the origin.
+     */
+    public void reset() {
+        mPose.set(new Pose(System.currentTimeMillis(), 0, 0, 0, 0));
+    }
+}
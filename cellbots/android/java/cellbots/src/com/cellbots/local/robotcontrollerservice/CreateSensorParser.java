@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+/**
+ * Parses the sensor stream the iRobot Create sends after a Stream (148)
+ * command. Every frame looks like
+ *
+ * [19][n][packetId1][data...][packetId2][data...]...[checksum]
+ *
+ * where n counts the bytes between itself and the checksum, and all bytes of
+ * the frame add up to 0 modulo 256. Any packet list is supported, including
+ * the group packets 0-6.
+ *
+ * Bytes are appended to a ring buffer and complete frames are decoded in
+ * place. A frame with a bad checksum or packet list is skipped one byte at a
+ * time until the next valid header, so the parser resynchronizes by itself
+ * after dropped or corrupted bytes. The parser is meant to be fed by a single
+ * reader thread and takes no locks.
+ */
+public class CreateSensorParser {
+
+    /** First byte of every stream frame. */
+    public static final int STREAM_HEADER = 19;
+
+    public static final int PACKET_DISTANCE = 19;
+
+    public static final int PACKET_ANGLE = 20;
+
+    /**
+     * Receives the decoded packets of each valid frame.
+     */
+    public interface Listener {
+        /**
+         * Called for every packet in a frame, with group packets expanded into
+         * their members.
+         */
+        void onPacket(int packetId, int value);
+
+        /** Called after the last packet of a valid frame. */
+        void onFrameEnd();
+    }
+
+    // Data bytes of packets 7-42; 0 for unknown IDs.
+    private static final int[] PACKET_SIZES = new int[43];
+
+    // First and last member of the group packets 0-6.
+    private static final int[][] GROUPS = {
+            {7, 26}, {7, 16}, {17, 20}, {21, 26}, {27, 34}, {35, 42}, {7, 42}
+    };
+
+    static {
+        for (int id = 7; id <= 42; id++) {
+            PACKET_SIZES[id] = 1;
+        }
+        int[] twoByte = {19, 20, 22, 23, 25, 26, 27, 28, 29, 30, 31, 33, 39, 40, 41, 42};
+        for (int id : twoByte) {
+            PACKET_SIZES[id] = 2;
+        }
+    }
+
+    // Frames are at most 1 + 1 + 255 + 1 bytes long.
+    private static final int MIN_CAPACITY = 512;
+
+    private final Listener mListener;
+
+    private final byte[] mRing;
+
+    private final int mMask;
+
+    // Read and write positions; they only grow and are masked on access.
+    private int mHead = 0;
+
+    private int mTail = 0;
+
+    private long mFrames = 0;
+
+    private long mBadFrames = 0;
+
+    private long mSkippedBytes = 0;
+
+    /**
+     * @param capacity ring buffer size, rounded up to a power of two of at
+     *            least 512 bytes
+     */
+    public CreateSensorParser(int capacity, Listener listener) {
+        int size = MIN_CAPACITY;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mRing = new byte[size];
+        mMask = size - 1;
+        mListener = listener;
+    }
+
+    /**
+     * Returns the number of data bytes of a packet, including group packets,
+     * or 0 if the packet ID is unknown.
+     */
+    public static int getPacketSize(int packetId) {
+        if (packetId >= 0 && packetId < GROUPS.length) {
+            int size = 0;
+            for (int id = GROUPS[packetId][0]; id <= GROUPS[packetId][1]; id++) {
+                size += PACKET_SIZES[id];
+            }
+            return size;
+        }
+        if (packetId < PACKET_SIZES.length) {
+            return PACKET_SIZES[packetId];
+        }
+        return 0;
+    }
+
+    /**
+     * Appends bytes read from the robot and decodes all complete frames.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int free = mRing.length - (mTail - mHead);
+            if (free == 0) {
+                // Only happens if the buffer holds garbage without a frame.
+                skip(1);
+                continue;
+            }
+            int n = Math.min(length, free);
+            for (int i = 0; i < n; i++) {
+                mRing[(mTail + i) & mMask] = data[offset + i];
+            }
+            mTail += n;
+            offset += n;
+            length -= n;
+            parse();
+        }
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /** Returns the number of frames rejected for a bad checksum or layout. */
+    public long getBadFrameCount() {
+        return mBadFrames;
+    }
+
+    /** Returns the number of bytes skipped while looking for a frame. */
+    public long getSkippedByteCount() {
+        return mSkippedBytes;
+    }
+
+    private void parse() {
+        while (available() >= 3) {
+            if (byteAt(0) != STREAM_HEADER) {
+                skip(1);
+                continue;
+            }
+            int n = byteAt(1);
+            if (available() < n + 3) {
+                return;
+            }
+            int sum = 0;
+            for (int i = 0; i < n + 3; i++) {
+                sum += byteAt(i);
+            }
+            if ((sum & 0xFF) != 0 || !isValidPacketList(n)) {
+                mBadFrames++;
+                skip(1);
+                continue;
+            }
+            emit(n);
+            mHead += n + 3;
+            mFrames++;
+        }
+    }
+
+    private boolean isValidPacketList(int n) {
+        int pos = 2;
+        int end = n + 2;
+        while (pos < end) {
+            int size = getPacketSize(byteAt(pos));
+            if (size == 0) {
+                return false;
+            }
+            pos += 1 + size;
+        }
+        return pos == end;
+    }
+
+    private void emit(int n) {
+        int pos = 2;
+        int end = n + 2;
+        while (pos < end) {
+            int packetId = byteAt(pos++);
+            if (packetId < GROUPS.length) {
+                for (int id = GROUPS[packetId][0]; id <= GROUPS[packetId][1]; id++) {
+                    pos = emitPacket(id, pos);
+                }
+            } else {
+                pos = emitPacket(packetId, pos);
+            }
+        }
+        mListener.onFrameEnd();
+    }
+
+    private int emitPacket(int packetId, int pos) {
+        int value;
+        if (PACKET_SIZES[packetId] == 2) {
+            value = (byteAt(pos) << 8) | byteAt(pos + 1);
+            if (isSigned(packetId)) {
+                value = (short) value;
+            }
+        } else {
+            value = byteAt(pos);
+            if (isSigned(packetId)) {
+                value = (byte) value;
+            }
+        }
+        mListener.onPacket(packetId, value);
+        return pos + PACKET_SIZES[packetId];
+    }
+
+    private static boolean isSigned(int packetId) {
+        switch (packetId) {
+            case 19: // Distance
+            case 20: // Angle
+            case 23: // Current
+            case 24: // Battery temperature
+            case 39: // Requested velocity
+            case 40: // Requested radius
+            case 41: // Requested right velocity
+            case 42: // Requested left velocity
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int available() {
+        return mTail - mHead;
+    }
+
+    private int byteAt(int index) {
+        return mRing[(mHead + index) & mMask] & 0xFF;
+    }
+
+    private void skip(int count) {
+        mHead += count;
+        mSkippedBytes += count;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Replays a recorded Create sensor stream through CreateSensorParser and
+ * CreateOdometry on a desktop JVM and compares the resulting pose with a
+ * reference.
+ *
+ * <pre>
+ * java com.cellbots.local.robotcontrollerservice.CreateStreamReplay [recording] [--check]
+ * </pre>
+ *
+ * The recording holds the raw bytes read from the robot. Without one, a
+ * stream of 5000 frames is generated: most carry the distance and angle
+ * packets, every seventh the group packet 2 and the voltage instead. The
+ * reference decodes the whole recording in one pass, frame by frame, and
+ * integrates the same way the odometry does. The recording is replayed
+ * three times: in one piece, in random chunks of 1 to 40 bytes as the
+ * Bluetooth socket delivers them, and in chunks with garbage in front and a
+ * corrupted frame at the start and in the middle. Each run prints the frames
+ * decoded and rejected, the bytes skipped and the pose next to the
+ * reference. With --check it exits with status 1 if a run does not end at
+ * the reference pose.
+ */
+public class CreateStreamReplay {
+
+    private static final int GENERATED_FRAMES = 5000;
+
+    // Largest difference in mm between the replayed and reference positions.
+    private static final double TOLERANCE_MM = 1e-6;
+
+    /**
+     * The result of decoding a recording with the reference decoder.
+     */
+    static class Reference {
+        // Offset of every valid frame in the recording.
+        final ArrayList<Integer> frameOffsets = new ArrayList<Integer>();
+
+        int distance;
+
+        int angle;
+
+        double x;
+
+        double y;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String path = null;
+        boolean check = false;
+        for (String arg : args) {
+            if (arg.equals("--check")) {
+                check = true;
+            } else {
+                path = arg;
+            }
+        }
+        Random random = new Random(7);
+        byte[] recording = path != null ? readFile(path) : generate(random, GENERATED_FRAMES);
+        Reference reference = decodeReference(recording);
+        System.out.println((path != null ? path : "generated stream") + ": " + recording.length
+                + " bytes, " + reference.frameOffsets.size() + " frames");
+
+        boolean ok = true;
+        ok &= replay("whole", recording, reference, recording.length, random);
+        ok &= replay("chunks", recording, reference, 40, random);
+        ok &= replay("corrupted", corrupt(recording, reference), reference, 40, random);
+        if (check && !ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Feeds the stream to a new parser in chunks of at most maxChunk bytes
+     * and compares the pose with the reference.
+     */
+    private static boolean replay(String name, byte[] stream, Reference reference, int maxChunk,
+            Random random) {
+        CreateOdometry odometry = new CreateOdometry();
+        CreateSensorParser parser = new CreateSensorParser(1024, odometry);
+        int pos = 0;
+        while (pos < stream.length) {
+            int n = Math.min(stream.length - pos,
+                    maxChunk == stream.length ? maxChunk : 1 + random.nextInt(maxChunk));
+            parser.feed(stream, pos, n);
+            pos += n;
+        }
+        CreateOdometry.Pose pose = odometry.getPose();
+        boolean ok = parser.getFrameCount() == reference.frameOffsets.size()
+                && pose.distance == reference.distance && pose.angle == reference.angle
+                && Math.abs(pose.x - reference.x) <= TOLERANCE_MM
+                && Math.abs(pose.y - reference.y) <= TOLERANCE_MM;
+        System.out.println(String.format("%-10s %d frames, %d bad, %d bytes skipped: "
+                + "distance %d, angle %d, x %.3f, y %.3f (reference %d, %d, %.3f, %.3f) %s",
+                name, parser.getFrameCount(), parser.getBadFrameCount(),
+                parser.getSkippedByteCount(), pose.distance, pose.angle, pose.x, pose.y,
+                reference.distance, reference.angle, reference.x, reference.y,
+                ok ? "ok" : "MISMATCH"));
+        return ok;
+    }
+
+    /**
+     * Decodes the recording in one pass. At each offset a frame is accepted
+     * if its checksum and packet list are valid; otherwise one byte is
+     * skipped.
+     */
+    static Reference decodeReference(byte[] data) {
+        Reference reference = new Reference();
+        int pos = 0;
+        while (pos + 3 <= data.length) {
+            int n = data[pos + 1] & 0xFF;
+            if ((data[pos] & 0xFF) != CreateSensorParser.STREAM_HEADER
+                    || pos + n + 3 > data.length || !isValidFrame(data, pos, n)) {
+                pos++;
+                continue;
+            }
+            reference.frameOffsets.add(pos);
+            int distance = 0;
+            int angle = 0;
+            boolean motion = false;
+            int p = pos + 2;
+            while (p < pos + n + 2) {
+                int packetId = data[p++] & 0xFF;
+                int first = packetId;
+                int last = packetId;
+                if (packetId == 0 || packetId == 6) {
+                    first = 7;
+                    last = packetId == 0 ? 26 : 42;
+                } else if (packetId == 2) {
+                    first = 17;
+                    last = 20;
+                } else if (packetId < 7) {
+                    // Other groups hold neither distance nor angle.
+                    p += CreateSensorParser.getPacketSize(packetId);
+                    continue;
+                }
+                for (int id = first; id <= last; id++) {
+                    if (id == CreateSensorParser.PACKET_DISTANCE) {
+                        distance += (short) (((data[p] & 0xFF) << 8) | (data[p + 1] & 0xFF));
+                        motion = true;
+                    } else if (id == CreateSensorParser.PACKET_ANGLE) {
+                        angle += (short) (((data[p] & 0xFF) << 8) | (data[p + 1] & 0xFF));
+                        motion = true;
+                    }
+                    p += CreateSensorParser.getPacketSize(id);
+                }
+            }
+            if (motion) {
+                double heading = Math.toRadians(reference.angle + angle / 2.0);
+                reference.x += distance * Math.sin(heading);
+                reference.y += distance * Math.cos(heading);
+                reference.distance += distance;
+                reference.angle = ((reference.angle + angle) % 360 + 360) % 360;
+            }
+            pos += n + 3;
+        }
+        return reference;
+    }
+
+    private static boolean isValidFrame(byte[] data, int pos, int n) {
+        int sum = 0;
+        for (int i = 0; i < n + 3; i++) {
+            sum += data[pos + i] & 0xFF;
+        }
+        if ((sum & 0xFF) != 0) {
+            return false;
+        }
+        int p = pos + 2;
+        while (p < pos + n + 2) {
+            int size = CreateSensorParser.getPacketSize(data[p] & 0xFF);
+            if (size == 0) {
+                return false;
+            }
+            p += 1 + size;
+        }
+        return p == pos + n + 2;
+    }
+
+    /**
+     * Returns a copy of the recording with a partial header in front and a
+     * frame with a flipped bit before the first and the middle frame.
+     */
+    private static byte[] corrupt(byte[] recording, Reference reference) {
+        byte[] bad = frame(new int[] {
+                19, 0, 100, 20, 0, 10
+        });
+        bad[3] ^= 0x40;
+        int middle = reference.frameOffsets.isEmpty() ? recording.length
+                : reference.frameOffsets.get(reference.frameOffsets.size() / 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {
+                5, 19, 6, 1, 2, 3
+        }, 0, 6);
+        out.write(bad, 0, bad.length);
+        out.write(recording, 0, middle);
+        out.write(bad, 0, bad.length);
+        out.write(recording, middle, recording.length - middle);
+        return out.toByteArray();
+    }
+
+    /**
+     * Generates a stream of frames with random movements.
+     */
+    private static byte[] generate(Random random, int frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < frames; i++) {
+            int d = random.nextInt(41) - 20;
+            int a = random.nextInt(11) - 5;
+            byte[] f;
+            if (i % 7 == 0) {
+                // Group 2 is IR, buttons, distance and angle; 22 is the voltage.
+                f = frame(new int[] {
+                        2, 0, 0, d >> 8, d, a >> 8, a, 22, 0x3A, 0x98
+                });
+            } else {
+                f = frame(new int[] {
+                        19, d >> 8, d, 20, a >> 8, a
+                });
+            }
+            out.write(f, 0, f.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] frame(int[] packets) {
+        byte[] f = new byte[packets.length + 3];
+        f[0] = (byte) CreateSensorParser.STREAM_HEADER;
+        f[1] = (byte) packets.length;
+        int sum = CreateSensorParser.STREAM_HEADER + packets.length;
+        for (int i = 0; i < packets.length; i++) {
+            f[2 + i] = (byte) packets[i];
+            sum += packets[i] & 0xFF;
+        }
+        f[f.length - 1] = (byte) -sum;
+        return f;
+    }
+
+    private static byte[] readFile(String path) throws IOException {
+        InputStream in = new FileInputStream(path);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops the robot when a timed move ends or when commands stop arriving.
+ * All controller services share one timer thread, which also sends the
+ * commands a CommandPipeline holds back.
+ *
+ * The timer state is guarded by the lock the service holds while sending
+ * commands, and the stop action runs under that lock too. A stop whose move
+ * has been replaced by a newer command can therefore never reach the robot
+ * after that command. Each timer keeps at most one wake-up queued for its
+ * pending stop. A later deadline reuses the queued wake-up, which then
+ * re-arms itself, so bursts of timed commands do not fill the queue.
+ */
+public class MotionTimer {
+
+    // Shortest interval between two watchdog checks.
+    private static final long MIN_WATCHDOG_CHECK_MS = 10;
+
+    private static ScheduledThreadPoolExecutor sExecutor;
+
+    private final Object mLock;
+
+    private final Runnable mStopAction;
+
+    // Deadline of the pending stop in System.nanoTime() terms, 0 if none.
+    private long mStopDeadline = 0;
+
+    // Time the queued wake-up is due, 0 if none is queued.
+    private long mWakeUpAt = 0;
+
+    private long mWatchdogNanos = 0;
+
+    private ScheduledFuture<?> mWatchdog;
+
+    private long mLastCommand;
+
+    private boolean mWatchdogArmed = false;
+
+    private boolean mShutdown = false;
+
+    private long mStopCount = 0;
+
+    /**
+     * @param lock the lock the caller holds while sending commands
+     * @param stopAction sends a stop command to the robot; runs under lock
+     */
+    public MotionTimer(Object lock, Runnable stopAction) {
+        mLock = lock;
+        mStopAction = stopAction;
+    }
+
+    static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MotionTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Records that a command is about to be sent. This cancels the pending
+     * stop, since the new command replaces the move, and feeds the watchdog.
+     * Must be called with the lock held.
+     */
+    public void onCommand() {
+        mStopDeadline = 0;
+        mLastCommand = System.nanoTime();
+        mWatchdogArmed = true;
+    }
+
+    /**
+     * Schedules a stop delayMs from now, replacing any pending stop. Must be
+     * called with the lock held.
+     */
+    public void scheduleStop(long delayMs) {
+        if (mShutdown) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        mStopDeadline = deadline == 0 ? 1 : deadline;
+        if (mWakeUpAt == 0 || mWakeUpAt - mStopDeadline > 0) {
+            queueWakeUp(mStopDeadline);
+        }
+    }
+
+    /**
+     * Cancels the pending stop and disarms the watchdog until the next
+     * command.
+     */
+    public void reset() {
+        synchronized (mLock) {
+            mStopDeadline = 0;
+            mWatchdogArmed = false;
+        }
+    }
+
+    /**
+     * Sets how long the robot may go without a command before it is stopped.
+     * Zero disables the watchdog.
+     */
+    public void setWatchdog(long windowMs) {
+        synchronized (mLock) {
+            if (mWatchdog != null) {
+                mWatchdog.cancel(false);
+                mWatchdog = null;
+            }
+            mWatchdogNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMs));
+            if (mWatchdogNanos == 0 || mShutdown) {
+                return;
+            }
+            long period = Math.max(MIN_WATCHDOG_CHECK_MS, windowMs / 4);
+            mWatchdog = getExecutor().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    checkWatchdog();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the number of stops sent by this timer.
+     */
+    public long getStopCount() {
+        synchronized (mLock) {
+            return mStopCount;
+        }
+    }
+
+    /**
+     * Cancels everything. The timer sends no more stops afterwards.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mStopDeadline = 0;
+            mWatchdogArmed = false;
+            if (mWatchdog != null) {
+                mWatchdog.cancel(false);
+                mWatchdog = null;
+            }
+        }
+    }
+
+    private void queueWakeUp(final long at) {
+        mWakeUpAt = at;
+        getExecutor().schedule(new Runnable() {
+            public void run() {
+                onWakeUp(at);
+            }
+        }, at - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private void onWakeUp(long at) {
+        synchronized (mLock) {
+            if (mWakeUpAt == at) {
+                mWakeUpAt = 0;
+            }
+            if (mStopDeadline == 0 || mShutdown) {
+                return;
+            }
+            if (System.nanoTime() - mStopDeadline >= 0) {
+                mStopDeadline = 0;
+                mWatchdogArmed = false;
+                stop();
+            } else if (mWakeUpAt == 0) {
+                // The stop was pushed back while this wake-up was queued.
+                queueWakeUp(mStopDeadline);
+            }
+        }
+    }
+
+    private void checkWatchdog() {
+        synchronized (mLock) {
+            if (!mWatchdogArmed || mShutdown || mStopDeadline != 0) {
+                // A timed move ends with its own stop.
+                return;
+            }
+            if (System.nanoTime() - mLastCommand >= mWatchdogNanos) {
+                mWatchdogArmed = false;
+                stop();
+            }
+        }
+    }
+
+    private void stop() {
+        mStopCount++;
+        try {
+            mStopAction.run();
+        } catch (RuntimeException e) {
+            // Keep the shared timer thread and the watchdog alive.
+            e.printStackTrace();
+        }
+    }
+}
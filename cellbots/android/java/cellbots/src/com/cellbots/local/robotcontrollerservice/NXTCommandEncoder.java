@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+/**
+ * Encodes commands as Lego Mindstorms NXT SETOUTPUTSTATE direct commands. The
+ * wheels are on ports B and C and the head on port A.
+ */
+public class NXTCommandEncoder implements CommandEncoder {
+
+    // Constants for setOutputState parameters.
+    private static final int COMMAND_TYPE_DIRECT_WITH_RESPONSE = 0x00;
+    private static final int COMMAND_TYPE_SYSTEM_WITH_RESPONSE = 0x01;
+    private static final int COMMAND_TYPE_RESPONSE = 0x02;
+    private static final int COMMAND_TYPE_DIRECT_NO_RESPONSE = 0x80;
+    private static final int COMMAND_TYPE_SYSTEM_NO_RESPONSE = 0x81;
+    private static final int SET_OUTPUT_STATE = 0x04;
+    private static final int OUTPUT_PORT_A = 0x00;
+    private static final int OUTPUT_PORT_B = 0x01;
+    private static final int OUTPUT_PORT_C = 0x02;
+    private static final int MODE_MOTORON = 0x01;
+    private static final int MODE_BRAKE = 0x02;
+    private static final int MODE_REGULATED = 0x04;
+    private static final int REGULATION_MODE_IDLE = 0x00;
+    private static final int REGULATION_MODE_MOTOR_SPEED = 0x01;
+    private static final int REGULATION_MODE_MOTOR_SYNC = 0x02;
+    private static final int MOTOR_RUN_STATE_IDLE = 0x00;
+    private static final int MOTOR_RUN_STATE_RAMPUP = 0x10;
+    private static final int MOTOR_RUN_STATE_RUNNING = 0x20;
+    private static final int MOTOR_RUN_STATE_RAMPDOWN = 0x40;
+
+    private static final int DEFAULT_HEAD_POWER = 50;
+
+    public int encode(RobotCommand command, byte[] buffer) {
+        if (command.isTimed() || !command.hasValidArgs()) {
+            return -1;
+        }
+        int pos;
+        switch (command.getType()) {
+            case RobotCommand.TYPE_STOP:
+                pos = putBrake(buffer, 0, OUTPUT_PORT_B);
+                return putBrake(buffer, pos, OUTPUT_PORT_C);
+            case RobotCommand.TYPE_FORWARD:
+                return putWheels(buffer, 100, 100);
+            case RobotCommand.TYPE_BACKWARD:
+                return putWheels(buffer, -100, -100);
+            case RobotCommand.TYPE_LEFT:
+                return putWheels(buffer, 40, 100);
+            case RobotCommand.TYPE_RIGHT:
+                return putWheels(buffer, 100, 40);
+            case RobotCommand.TYPE_WHEELS:
+                if (command.getArgCount() != 2) {
+                    return -1;
+                }
+                return putWheels(buffer, clampPower(command.getArg(0) * 5),
+                        clampPower(command.getArg(1) * 5));
+            case RobotCommand.TYPE_HEAD_UP:
+            case RobotCommand.TYPE_HEAD_LEFT:
+                return putRun(buffer, 0, OUTPUT_PORT_A, getHeadPower(command));
+            case RobotCommand.TYPE_HEAD_DOWN:
+            case RobotCommand.TYPE_HEAD_RIGHT:
+                return putRun(buffer, 0, OUTPUT_PORT_A, -getHeadPower(command));
+            case RobotCommand.TYPE_HEAD_STOP:
+                return putBrake(buffer, 0, OUTPUT_PORT_A);
+            default:
+                return -1;
+        }
+    }
+
+    private static int getHeadPower(RobotCommand command) {
+        if (command.getArgCount() == 1) {
+            return Math.max(0, Math.min(100, command.getArg(0)));
+        }
+        return DEFAULT_HEAD_POWER;
+    }
+
+    private static int clampPower(int power) {
+        return Math.max(-100, Math.min(100, power));
+    }
+
+    private static int putWheels(byte[] buffer, int left, int right) {
+        int pos = putRun(buffer, 0, OUTPUT_PORT_B, left);
+        return putRun(buffer, pos, OUTPUT_PORT_C, right);
+    }
+
+    private static int putRun(byte[] buffer, int pos, int port, int power) {
+        return putOutputState(buffer, pos, port, power, MODE_MOTORON,
+                REGULATION_MODE_MOTOR_SPEED, MOTOR_RUN_STATE_RUNNING);
+    }
+
+    private static int putBrake(byte[] buffer, int pos, int port) {
+        return putOutputState(buffer, pos, port, 0, MODE_BRAKE, REGULATION_MODE_IDLE,
+                MOTOR_RUN_STATE_IDLE);
+    }
+
+    /**
+     * Writes a SETOUTPUTSTATE command at pos and returns the position after
+     * it.
+     */
+    private static int putOutputState(byte[] buffer, int pos, int port, int power, int mode,
+            int regulation, int runState) {
+        buffer[pos++] = (byte) 0x0c; // Command Length LSB
+        buffer[pos++] = (byte) 0x00; // Command Length MSB
+        buffer[pos++] = (byte) COMMAND_TYPE_DIRECT_NO_RESPONSE;
+        buffer[pos++] = (byte) SET_OUTPUT_STATE;
+        buffer[pos++] = (byte) port;
+        buffer[pos++] = (byte) power; // Power setting between 100 and -100
+        buffer[pos++] = (byte) mode;
+        buffer[pos++] = (byte) regulation;
+        buffer[pos++] = (byte) 0x00; // Turn ratio between 100 and -100
+        buffer[pos++] = (byte) runState;
+        buffer[pos++] = (byte) 0x00; // TachoLimit
+        buffer[pos++] = (byte) 0x00; // TachoLimit
+        buffer[pos++] = (byte) 0x00; // TachoLimit
+        buffer[pos++] = (byte) 0x00; // TachoLimit
+        return pos;
+    }
+}
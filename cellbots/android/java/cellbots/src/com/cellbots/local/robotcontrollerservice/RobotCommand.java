@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+/**
+ * A parsed motor command of the text protocol sent by the remote controller,
+ * e.g. "w 20 -20", "f 40 500", "fd 40 1000" or "s". One instance is reused
+ * for every command, so parsing does not allocate: the command name is
+ * matched in place and the numeric arguments are decoded straight into int
+ * fields.
+ */
+public class RobotCommand {
+
+    /** A command name that is not part of the motor protocol. */
+    public static final int TYPE_UNKNOWN = 0;
+
+    /** "w left right": set both wheel speeds. */
+    public static final int TYPE_WHEELS = 1;
+
+    /** "f", "f speed distance" or "fd speed ms". */
+    public static final int TYPE_FORWARD = 2;
+
+    /** "b", "b speed distance" or "bd speed ms". */
+    public static final int TYPE_BACKWARD = 3;
+
+    /** "l", "l speed angle" or "ld speed ms". */
+    public static final int TYPE_LEFT = 4;
+
+    /** "r", "r speed angle" or "rd speed ms". */
+    public static final int TYPE_RIGHT = 5;
+
+    /** "s": stop. */
+    public static final int TYPE_STOP = 6;
+
+    /** "hu [power]": head up. */
+    public static final int TYPE_HEAD_UP = 7;
+
+    /** "hd [power]": head down. */
+    public static final int TYPE_HEAD_DOWN = 8;
+
+    /** "hl [power]": head left. */
+    public static final int TYPE_HEAD_LEFT = 9;
+
+    /** "hr [power]": head right. */
+    public static final int TYPE_HEAD_RIGHT = 10;
+
+    /** "hs": stop the head. */
+    public static final int TYPE_HEAD_STOP = 11;
+
+    /** Maximum number of arguments that are decoded. */
+    public static final int MAX_ARGS = 4;
+
+    private CharSequence text;
+
+    private int type;
+
+    private boolean timed;
+
+    private boolean argsValid;
+
+    private int argCount;
+
+    private final int[] args = new int[MAX_ARGS];
+
+    /**
+     * Parses a command line into this instance. Returns false if the line is
+     * empty; the contents of this instance are undefined in that case. A
+     * known command with an argument that is not a number is still parsed,
+     * but hasValidArgs() returns false for it.
+     */
+    public boolean parse(CharSequence line) {
+        type = TYPE_UNKNOWN;
+        timed = false;
+        argsValid = true;
+        argCount = 0;
+        text = line;
+        if (line == null) {
+            return false;
+        }
+        int length = line.length();
+        int pos = skipSpaces(line, 0, length);
+        if (pos == length) {
+            return false;
+        }
+        int end = tokenEnd(line, pos, length);
+        matchName(line, pos, end);
+        pos = skipSpaces(line, end, length);
+        while (pos < length) {
+            end = tokenEnd(line, pos, length);
+            if (argCount < MAX_ARGS && takesArgs() && !parseInt(line, pos, end, argCount)) {
+                argsValid = false;
+            }
+            argCount++;
+            pos = skipSpaces(line, end, length);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the line this command was parsed from.
+     */
+    public CharSequence getText() {
+        return text;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Returns false if an argument is not a number. Robots that take the
+     * text commands as they are can still forward such a command; the
+     * others cannot encode it.
+     */
+    public boolean hasValidArgs() {
+        return argsValid;
+    }
+
+    /**
+     * Returns true for the "fd", "bd", "ld" and "rd" variants, which move for
+     * a given number of milliseconds.
+     */
+    public boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * Returns true if the command only sets the wheel velocities, so a newer
+     * one makes it obsolete. Moves over a fixed distance or angle are not
+     * velocity commands.
+     */
+    public boolean isVelocityCommand() {
+        if (!argsValid) {
+            return false;
+        }
+        switch (type) {
+            case TYPE_WHEELS:
+            case TYPE_STOP:
+                return true;
+            case TYPE_FORWARD:
+            case TYPE_BACKWARD:
+            case TYPE_LEFT:
+            case TYPE_RIGHT:
+                return timed || argCount != 2;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the number of arguments after the command name.
+     */
+    public int getArgCount() {
+        return argCount;
+    }
+
+    public int getArg(int index) {
+        if (index >= argCount || index >= MAX_ARGS) {
+            throw new IndexOutOfBoundsException("No argument " + index);
+        }
+        return args[index];
+    }
+
+    /**
+     * Returns true if the arguments of this command are decoded. Unknown
+     * commands and the stops take none, so anything after them is ignored.
+     */
+    private boolean takesArgs() {
+        return type != TYPE_UNKNOWN && type != TYPE_STOP && type != TYPE_HEAD_STOP;
+    }
+
+    private void matchName(CharSequence line, int start, int end) {
+        int length = end - start;
+        char c0 = line.charAt(start);
+        if (length == 1) {
+            switch (c0) {
+                case 'w':
+                    type = TYPE_WHEELS;
+                    break;
+                case 'f':
+                    type = TYPE_FORWARD;
+                    break;
+                case 'b':
+                    type = TYPE_BACKWARD;
+                    break;
+                case 'l':
+                    type = TYPE_LEFT;
+                    break;
+                case 'r':
+                    type = TYPE_RIGHT;
+                    break;
+                case 's':
+                    type = TYPE_STOP;
+                    break;
+            }
+        } else if (length == 2) {
+            char c1 = line.charAt(start + 1);
+            if (c1 == 'd' && (c0 == 'f' || c0 == 'b' || c0 == 'l' || c0 == 'r')) {
+                matchName(line, start, start + 1);
+                timed = true;
+            } else if (c0 == 'h') {
+                switch (c1) {
+                    case 'u':
+                        type = TYPE_HEAD_UP;
+                        break;
+                    case 'd':
+                        type = TYPE_HEAD_DOWN;
+                        break;
+                    case 'l':
+                        type = TYPE_HEAD_LEFT;
+                        break;
+                    case 'r':
+                        type = TYPE_HEAD_RIGHT;
+                        break;
+                    case 's':
+                        type = TYPE_HEAD_STOP;
+                        break;
+                }
+            }
+        }
+    }
+
+    private boolean parseInt(CharSequence line, int start, int end, int index) {
+        boolean negative = false;
+        int pos = start;
+        char c = line.charAt(pos);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            pos++;
+        }
+        if (pos == end) {
+            return false;
+        }
+        long value = 0;
+        for (; pos < end; pos++) {
+            c = line.charAt(pos);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            value = value * 10 + (c - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return false;
+            }
+        }
+        if (negative) {
+            value = -value;
+        } else if (value > Integer.MAX_VALUE) {
+            return false;
+        }
+        args[index] = (int) value;
+        return true;
+    }
+
+    private static int skipSpaces(CharSequence line, int pos, int length) {
+        while (pos < length && line.charAt(pos) <= ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int tokenEnd(CharSequence line, int pos, int length) {
+        while (pos < length && line.charAt(pos) > ' ') {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.local.robotcontrollerservice;
+
+/**
+ * Encodes commands for robots that understand the text commands CellDroid
+ * receives, by forwarding the command line followed by a newline.
+ */
+public class TextCommandEncoder implements CommandEncoder {
+
+    public int encode(RobotCommand command, byte[] buffer) {
+        CharSequence text = command.getText();
+        int length = text.length();
+        if (length + 1 > buffer.length) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            buffer[i] = (byte) (c < 0x80 ? c : '?');
+        }
+        buffer[length] = (byte) '\n';
+        return length + 1;
+    }
+}
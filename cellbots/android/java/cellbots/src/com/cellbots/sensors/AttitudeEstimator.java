@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.sensors;
+
+/**
+ * Fuses accelerometer, gyroscope and magnetometer readings into an attitude
+ * with a complementary filter (Mahony's filter on the rotation group). The
+ * gyroscope is integrated for fast, smooth response, and the filter pulls the
+ * estimate towards gravity and magnetic north to cancel gyro drift. Without a
+ * gyroscope it behaves as a low-pass filter on the accelerometer and compass.
+ *
+ * Readings are set from one thread, which then calls {@link #update} at a
+ * fixed rate. The resulting attitude can be read from any thread without
+ * locking; nothing is allocated after construction.
+ *
+ * Angles follow the old orientation sensor, in degrees:
+ * <ul>
+ * <li>azimuth, 0 to 360, clockwise from magnetic north;</li>
+ * <li>pitch, -180 to 180, 0 when lying flat, -90 when standing upright;</li>
+ * <li>roll, -90 to 90, positive when the right edge is raised.</li>
+ * </ul>
+ *
+ * This class has no Android dependencies so it can be run on recorded traces
+ * on a desktop JVM. It is kept identical in every app that uses it.
+ */
+public class AttitudeEstimator {
+
+    /** Standard gravity in m/s^2. */
+    public static final float GRAVITY = 9.80665f;
+
+    /** Proportional gain when a gyroscope is present. */
+    public static final float DEFAULT_KP = 1.0f;
+
+    /** Proportional gain when only the accelerometer and compass are used. */
+    public static final float NO_GYRO_KP = 20.0f;
+
+    /** Integral gain, which learns the gyro bias. */
+    public static final float DEFAULT_KI = 0.05f;
+
+    /**
+     * Accelerometer readings further than this fraction from 1 g are not used
+     * to correct the tilt, since the phone is accelerating.
+     */
+    private static final float ACCEL_REJECT = 0.25f;
+
+    private static final float RAD_TO_DEG = (float) (180 / Math.PI);
+
+    private final float mTwoKp;
+
+    private final float mTwoKi;
+
+    // Filter state, owned by the updating thread. The quaternion rotates the
+    // phone's frame into the earth frame (x north, y west, z up).
+    private float q0 = 1, q1 = 0, q2 = 0, q3 = 0;
+
+    private float mIntegralX, mIntegralY, mIntegralZ;
+
+    private boolean mInitialized = false;
+
+    // Latest readings, owned by the updating thread.
+    private float ax, ay, az;
+
+    private float mx, my, mz;
+
+    private float gx, gy, gz;
+
+    private boolean mHasAccel = false;
+
+    private boolean mHasMag = false;
+
+    // Published attitude. mVersion is odd while a new attitude is written.
+    private volatile int mVersion = 0;
+
+    private volatile float mAzimuth;
+
+    private volatile float mPitch;
+
+    private volatile float mRoll;
+
+    private volatile float mPitchRate;
+
+    private volatile long mTimestamp;
+
+    private volatile boolean mHasAttitude = false;
+
+    public AttitudeEstimator() {
+        this(DEFAULT_KP, DEFAULT_KI);
+    }
+
+    /**
+     * @param kp how quickly the estimate is pulled towards the accelerometer
+     *            and compass, in 1/s
+     * @param ki how quickly the gyro bias is learned
+     */
+    public AttitudeEstimator(float kp, float ki) {
+        mTwoKp = 2 * kp;
+        mTwoKi = 2 * ki;
+    }
+
+    /** Sets the latest accelerometer reading, in m/s^2. */
+    public void setAccelerometer(float x, float y, float z) {
+        ax = x;
+        ay = y;
+        az = z;
+        mHasAccel = true;
+    }
+
+    /** Sets the latest magnetic field reading, in any unit. */
+    public void setMagneticField(float x, float y, float z) {
+        mx = x;
+        my = y;
+        mz = z;
+        mHasMag = true;
+    }
+
+    /** Sets the angular rate to integrate over the next step, in rad/s. */
+    public void setGyroscope(float x, float y, float z) {
+        gx = x;
+        gy = y;
+        gz = z;
+    }
+
+    /**
+     * Advances the filter by one step and publishes the new attitude.
+     *
+     * @param dt seconds since the previous step
+     * @param timestamp time of this step, published with the attitude
+     */
+    public void update(float dt, long timestamp) {
+        if (!mHasAccel) {
+            return;
+        }
+        if (!mInitialized) {
+            initialize();
+            if (mInitialized) {
+                publish(0, 0, 0, timestamp);
+            }
+            return;
+        }
+
+        float wx = gx;
+        float wy = gy;
+        float wz = gz;
+        float ex = 0, ey = 0, ez = 0;
+
+        float accelNorm = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        if (Math.abs(accelNorm - GRAVITY) < ACCEL_REJECT * GRAVITY) {
+            float nx = ax / accelNorm;
+            float ny = ay / accelNorm;
+            float nz = az / accelNorm;
+            // Half of the estimated up direction in the phone's frame.
+            float vx = q1 * q3 - q0 * q2;
+            float vy = q0 * q1 + q2 * q3;
+            float vz = q0 * q0 - 0.5f + q3 * q3;
+            ex = ny * vz - nz * vy;
+            ey = nz * vx - nx * vz;
+            ez = nx * vy - ny * vx;
+        }
+
+        float magNorm = (float) Math.sqrt(mx * mx + my * my + mz * mz);
+        if (mHasMag && magNorm > 0) {
+            float nx = mx / magNorm;
+            float ny = my / magNorm;
+            float nz = mz / magNorm;
+            // The field in the earth frame, rotated about the vertical so it
+            // points north.
+            float hx = 2 * (nx * (0.5f - q2 * q2 - q3 * q3) + ny * (q1 * q2 - q0 * q3)
+                    + nz * (q1 * q3 + q0 * q2));
+            float hy = 2 * (nx * (q1 * q2 + q0 * q3) + ny * (0.5f - q1 * q1 - q3 * q3)
+                    + nz * (q2 * q3 - q0 * q1));
+            float bx = (float) Math.sqrt(hx * hx + hy * hy);
+            float bz = 2 * (nx * (q1 * q3 - q0 * q2) + ny * (q2 * q3 + q0 * q1)
+                    + nz * (0.5f - q1 * q1 - q2 * q2));
+            // Half of the estimated field direction in the phone's frame.
+            float wxm = bx * (0.5f - q2 * q2 - q3 * q3) + bz * (q1 * q3 - q0 * q2);
+            float wym = bx * (q1 * q2 - q0 * q3) + bz * (q0 * q1 + q2 * q3);
+            float wzm = bx * (q0 * q2 + q1 * q3) + bz * (0.5f - q1 * q1 - q2 * q2);
+            ex += ny * wzm - nz * wym;
+            ey += nz * wxm - nx * wzm;
+            ez += nx * wym - ny * wxm;
+        }
+
+        if (mTwoKi > 0) {
+            mIntegralX += mTwoKi * ex * dt;
+            mIntegralY += mTwoKi * ey * dt;
+            mIntegralZ += mTwoKi * ez * dt;
+            wx += mIntegralX;
+            wy += mIntegralY;
+            wz += mIntegralZ;
+        }
+        wx += mTwoKp * ex;
+        wy += mTwoKp * ey;
+        wz += mTwoKp * ez;
+
+        float hdt = 0.5f * dt;
+        float a = q0, b = q1, c = q2, d = q3;
+        q0 += (-b * wx - c * wy - d * wz) * hdt;
+        q1 += (a * wx + c * wz - d * wy) * hdt;
+        q2 += (a * wy - b * wz + d * wx) * hdt;
+        q3 += (a * wz + b * wy - c * wx) * hdt;
+        float norm = (float) (1 / Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3));
+        q0 *= norm;
+        q1 *= norm;
+        q2 *= norm;
+        q3 *= norm;
+
+        publish(wx, wy, wz, timestamp);
+    }
+
+    /**
+     * Sets the attitude straight from the accelerometer and compass, so the
+     * filter does not have to converge from an arbitrary start.
+     */
+    private void initialize() {
+        float norm = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        if (norm == 0) {
+            return;
+        }
+        // Earth axes in the phone's frame: the rows of the rotation matrix.
+        float ux = ax / norm, uy = ay / norm, uz = az / norm;
+        float wx, wy, wz;
+        if (mHasMag) {
+            wx = uy * mz - uz * my;
+            wy = uz * mx - ux * mz;
+            wz = ux * my - uy * mx;
+        } else {
+            // No compass yet: call the direction the top of the phone points
+            // north.
+            wx = uy * 0 - uz * 1;
+            wy = uz * 0 - ux * 0;
+            wz = ux * 1 - uy * 0;
+        }
+        norm = (float) Math.sqrt(wx * wx + wy * wy + wz * wz);
+        if (norm == 0) {
+            return;
+        }
+        wx /= norm;
+        wy /= norm;
+        wz /= norm;
+        float nx = wy * uz - wz * uy;
+        float ny = wz * ux - wx * uz;
+        float nz = wx * uy - wy * ux;
+        setFromMatrix(nx, ny, nz, wx, wy, wz, ux, uy, uz);
+        mIntegralX = mIntegralY = mIntegralZ = 0;
+        mInitialized = true;
+    }
+
+    private void setFromMatrix(float r00, float r01, float r02, float r10, float r11,
+            float r12, float r20, float r21, float r22) {
+        float trace = r00 + r11 + r22;
+        if (trace > 0) {
+            float s = (float) Math.sqrt(trace + 1) * 2;
+            q0 = 0.25f * s;
+            q1 = (r21 - r12) / s;
+            q2 = (r02 - r20) / s;
+            q3 = (r10 - r01) / s;
+        } else if (r00 > r11 && r00 > r22) {
+            float s = (float) Math.sqrt(1 + r00 - r11 - r22) * 2;
+            q0 = (r21 - r12) / s;
+            q1 = 0.25f * s;
+            q2 = (r01 + r10) / s;
+            q3 = (r02 + r20) / s;
+        } else if (r11 > r22) {
+            float s = (float) Math.sqrt(1 + r11 - r00 - r22) * 2;
+            q0 = (r02 - r20) / s;
+            q1 = (r01 + r10) / s;
+            q2 = 0.25f * s;
+            q3 = (r12 + r21) / s;
+        } else {
+            float s = (float) Math.sqrt(1 + r22 - r00 - r11) * 2;
+            q0 = (r10 - r01) / s;
+            q1 = (r02 + r20) / s;
+            q2 = (r12 + r21) / s;
+            q3 = 0.25f * s;
+        }
+    }
+
+    private void publish(float wx, float wy, float wz, long timestamp) {
+        // Up in the phone's frame: the last row of the rotation matrix.
+        float ux = 2 * (q1 * q3 - q0 * q2);
+        float uy = 2 * (q0 * q1 + q2 * q3);
+        float uz = 1 - 2 * (q1 * q1 + q2 * q2);
+        // North and west components of the phone's y axis.
+        float yNorth = 2 * (q1 * q2 - q0 * q3);
+        float yWest = 1 - 2 * (q1 * q1 + q3 * q3);
+
+        float azimuth = (float) Math.atan2(-yWest, yNorth) * RAD_TO_DEG;
+        if (azimuth < 0) {
+            azimuth += 360;
+        }
+        float pitch = (float) Math.atan2(-uy, uz) * RAD_TO_DEG;
+        float roll = (float) Math.asin(Math.max(-1, Math.min(1, ux))) * RAD_TO_DEG;
+        // Rate of change of the pitch: up turns as u' = u x w.
+        float yz = uy * uy + uz * uz;
+        float pitchRate = -wx;
+        if (yz > 1e-6f) {
+            pitchRate += ux * (uy * wy + uz * wz) / yz;
+        }
+
+        mVersion++;
+        mAzimuth = azimuth;
+        mPitch = pitch;
+        mRoll = roll;
+        mPitchRate = pitchRate * RAD_TO_DEG;
+        mTimestamp = timestamp;
+        mHasAttitude = true;
+        mVersion++;
+    }
+
+    /**
+     * Copies the latest attitude into out: azimuth, pitch, roll and the rate
+     * of change of the pitch in degrees per second. Never blocks.
+     *
+     * @return the timestamp of the attitude
+     */
+    public long getAttitude(float[] out) {
+        while (true) {
+            int version = mVersion;
+            if ((version & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            out[0] = mAzimuth;
+            out[1] = mPitch;
+            out[2] = mRoll;
+            out[3] = mPitchRate;
+            long timestamp = mTimestamp;
+            if (version == mVersion) {
+                return timestamp;
+            }
+        }
+    }
+
+    public float getAzimuth() {
+        return mAzimuth;
+    }
+
+    public float getPitch() {
+        return mPitch;
+    }
+
+    public float getRoll() {
+        return mRoll;
+    }
+
+    public float getPitchRate() {
+        return mPitchRate;
+    }
+
+    /** Returns true once the first attitude has been published. */
+    public boolean hasAttitude() {
+        return mHasAttitude;
+    }
+
+    /**
+     * Forgets the attitude, the learned gyro bias and the readings. Call from
+     * the updating thread.
+     */
+    public void reset() {
+        mInitialized = false;
+        mHasAccel = false;
+        mHasMag = false;
+        gx = gy = gz = 0;
+        q0 = 1;
+        q1 = q2 = q3 = 0;
+        mIntegralX = mIntegralY = mIntegralZ = 0;
+        mHasAttitude = false;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.sensors;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.List;
+
+/**
+ * Feeds the accelerometer, gyroscope and magnetometer into one shared
+ * {@link AttitudeEstimator} and steps it at a fixed rate on its own thread.
+ * Everything in the app that needs the phone's orientation shares the same
+ * instance, so the sensors are registered once however many parts of the app
+ * are listening.
+ *
+ * The attitude can be read at any time from {@link #getEstimator()} without
+ * locking, or pushed to listeners after each step.
+ */
+public class SensorFusion {
+
+    /**
+     * Receives the attitude on the fusion thread. See
+     * {@link AttitudeEstimator} for the units.
+     */
+    public interface Listener {
+        void onAttitudeChanged(float azimuth, float pitch, float roll, float pitchRate);
+    }
+
+    /** Filter steps per second. */
+    public static final int UPDATE_RATE_HZ = 100;
+
+    private static final long UPDATE_PERIOD_MS = 1000 / UPDATE_RATE_HZ;
+
+    // Longest step integrated at once, e.g. after the thread was held up.
+    private static final float MAX_STEP_SECONDS = 0.1f;
+
+    private static SensorFusion sInstance;
+
+    private static int sUsers = 0;
+
+    private final SensorManager mSensorManager;
+
+    private final Sensor mAccelerometer;
+
+    private final Sensor mGyroscope;
+
+    private final Sensor mMagnetometer;
+
+    private final AttitudeEstimator mEstimator;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    private volatile ListenerEntry[] mListeners = new ListenerEntry[0];
+
+    private final float[] mAttitude = new float[4];
+
+    private volatile int mMagneticAccuracy = SensorManager.SENSOR_STATUS_UNRELIABLE;
+
+    // Owned by the fusion thread.
+    private float mGyroSumX, mGyroSumY, mGyroSumZ;
+
+    private int mGyroCount = 0;
+
+    private float mMagX, mMagY, mMagZ;
+
+    private long mLastStepNanos = 0;
+
+    private long mNextStepMillis;
+
+    private boolean mRunning = false;
+
+    private static class ListenerEntry {
+        final Listener listener;
+
+        final long intervalNanos;
+
+        // Owned by the fusion thread.
+        long lastDispatchNanos = 0;
+
+        ListenerEntry(Listener listener, long intervalNanos) {
+            this.listener = listener;
+            this.intervalNanos = intervalNanos;
+        }
+    }
+
+    /**
+     * Returns true if the phone has the accelerometer the fusion needs.
+     */
+    public static boolean isSupported(SensorManager sensorManager) {
+        return sensorManager != null
+                && getDefaultSensor(sensorManager, Sensor.TYPE_ACCELEROMETER) != null;
+    }
+
+    /**
+     * Returns the shared instance, starting it if this is the first user.
+     * Every call must be matched by a call to {@link #release()}.
+     */
+    public static synchronized SensorFusion acquire(SensorManager sensorManager) {
+        if (sInstance == null) {
+            sInstance = new SensorFusion(sensorManager);
+            sInstance.start();
+        }
+        sUsers++;
+        return sInstance;
+    }
+
+    /**
+     * Gives up a reference taken with {@link #acquire}, stopping the sensors
+     * once nothing uses them.
+     */
+    public void release() {
+        synchronized (SensorFusion.class) {
+            if (sInstance != this || sUsers == 0) {
+                return;
+            }
+            if (--sUsers == 0) {
+                sInstance = null;
+                stop();
+            }
+        }
+    }
+
+    private SensorFusion(SensorManager sensorManager) {
+        mSensorManager = sensorManager;
+        mAccelerometer = getDefaultSensor(sensorManager, Sensor.TYPE_ACCELEROMETER);
+        mGyroscope = getDefaultSensor(sensorManager, Sensor.TYPE_GYROSCOPE);
+        mMagnetometer = getDefaultSensor(sensorManager, Sensor.TYPE_MAGNETIC_FIELD);
+        if (mGyroscope != null) {
+            mEstimator = new AttitudeEstimator(
+                    AttitudeEstimator.DEFAULT_KP, AttitudeEstimator.DEFAULT_KI);
+        } else {
+            mEstimator = new AttitudeEstimator(AttitudeEstimator.NO_GYRO_KP, 0);
+        }
+        mThread = new HandlerThread("SensorFusion", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    private static Sensor getDefaultSensor(SensorManager sensorManager, int type) {
+        List<Sensor> sensors = sensorManager.getSensorList(type);
+        return sensors.isEmpty() ? null : sensors.get(0);
+    }
+
+    private void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = true;
+                register(mAccelerometer, SensorManager.SENSOR_DELAY_FASTEST);
+                register(mGyroscope, SensorManager.SENSOR_DELAY_FASTEST);
+                register(mMagnetometer, SensorManager.SENSOR_DELAY_GAME);
+                mNextStepMillis = SystemClock.uptimeMillis() + UPDATE_PERIOD_MS;
+                mHandler.postAtTime(mStep, mNextStepMillis);
+            }
+        });
+    }
+
+    private void register(Sensor sensor, int rate) {
+        if (sensor != null) {
+            mSensorManager.registerListener(mSensorListener, sensor, rate, mHandler);
+        }
+    }
+
+    private void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                mHandler.removeCallbacks(mStep);
+                mSensorManager.unregisterListener(mSensorListener);
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Calls the listener after each step, at most once every intervalMs.
+     */
+    public void addListener(Listener listener, int intervalMs) {
+        synchronized (this) {
+            ListenerEntry[] listeners = new ListenerEntry[mListeners.length + 1];
+            System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+            listeners[mListeners.length] = new ListenerEntry(listener, intervalMs * 1000000L);
+            mListeners = listeners;
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (this) {
+            for (int i = 0; i < mListeners.length; i++) {
+                if (mListeners[i].listener == listener) {
+                    ListenerEntry[] listeners = new ListenerEntry[mListeners.length - 1];
+                    System.arraycopy(mListeners, 0, listeners, 0, i);
+                    System.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i);
+                    mListeners = listeners;
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Returns the estimator, whose attitude can be read from any thread. */
+    public AttitudeEstimator getEstimator() {
+        return mEstimator;
+    }
+
+    public boolean hasGyroscope() {
+        return mGyroscope != null;
+    }
+
+    public boolean hasMagnetometer() {
+        return mMagnetometer != null;
+    }
+
+    /** Returns one of the SensorManager.SENSOR_STATUS_* values. */
+    public int getMagneticAccuracy() {
+        return mMagneticAccuracy;
+    }
+
+    /**
+     * Copies the latest magnetic field reading, in micro-Tesla. Only call
+     * from a listener.
+     */
+    public void getMagneticField(float[] out) {
+        out[0] = mMagX;
+        out[1] = mMagY;
+        out[2] = mMagZ;
+    }
+
+    private final SensorEventListener mSensorListener = new SensorEventListener() {
+        public void onSensorChanged(SensorEvent event) {
+            float[] values = event.values;
+            switch (event.sensor.getType()) {
+                case Sensor.TYPE_ACCELEROMETER:
+                    mEstimator.setAccelerometer(values[0], values[1], values[2]);
+                    break;
+                case Sensor.TYPE_GYROSCOPE:
+                    mGyroSumX += values[0];
+                    mGyroSumY += values[1];
+                    mGyroSumZ += values[2];
+                    mGyroCount++;
+                    break;
+                case Sensor.TYPE_MAGNETIC_FIELD:
+                    mMagX = values[0];
+                    mMagY = values[1];
+                    mMagZ = values[2];
+                    mEstimator.setMagneticField(values[0], values[1], values[2]);
+                    mMagneticAccuracy = event.accuracy;
+                    break;
+            }
+        }
+
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            if (sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
+                mMagneticAccuracy = accuracy;
+            }
+        }
+    };
+
+    private final Runnable mStep = new Runnable() {
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            long now = System.nanoTime();
+            float dt = mLastStepNanos == 0 ? 1f / UPDATE_RATE_HZ
+                    : Math.min(MAX_STEP_SECONDS, (now - mLastStepNanos) * 1e-9f);
+            mLastStepNanos = now;
+            if (mGyroCount > 0) {
+                // The mean rate since the last step.
+                mEstimator.setGyroscope(mGyroSumX / mGyroCount, mGyroSumY / mGyroCount,
+                        mGyroSumZ / mGyroCount);
+                mGyroSumX = mGyroSumY = mGyroSumZ = 0;
+                mGyroCount = 0;
+            }
+            mEstimator.update(dt, now);
+
+            if (mEstimator.hasAttitude()) {
+                ListenerEntry[] listeners = mListeners;
+                for (int i = 0; i < listeners.length; i++) {
+                    ListenerEntry entry = listeners[i];
+                    if (now - entry.lastDispatchNanos >= entry.intervalNanos) {
+                        entry.lastDispatchNanos = now;
+                        mEstimator.getAttitude(mAttitude);
+                        entry.listener.onAttitudeChanged(
+                                mAttitude[0], mAttitude[1], mAttitude[2], mAttitude[3]);
+                    }
+                }
+            }
+
+            // Keep to the schedule, skipping steps that were missed.
+            long uptime = SystemClock.uptimeMillis();
+            mNextStepMillis += UPDATE_PERIOD_MS;
+            if (mNextStepMillis <= uptime) {
+                mNextStepMillis = uptime + UPDATE_PERIOD_MS;
+            }
+            mHandler.postAtTime(this, mNextStepMillis);
+        }
+    };
+}
@@ -52,7 +52,6 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -92,6 +91,9 @@ public class LoggerActivity extends Activity {
 
     private static final int PROGRESS_ID = 123122312;
 
+    // Sensor events the log can hold while its writer thread is busy.
+    private static final int SENSOR_LOG_CAPACITY = 8192;
+
     /*
      * App state
      */
@@ -157,7 +159,9 @@ public class LoggerActivity extends Activity {
 
     private BufferedWriter mBatteryTempWriter;
 
-    private HashMap<String, BufferedWriter> sensorLogFileWriters;
+    private SensorLogWriter mSensorLog;
+
+    private HashMap<String, Integer> sensorLogIds;
 
     private StatFs mStatFs;
 
@@ -187,16 +191,9 @@ public class LoggerActivity extends Activity {
             }
             updateSensorUi(sensor.getType(), event.accuracy, event.values);
             if (mIsRecording) {
-                String valuesStr = "";
-                for (int i = 0; i < event.values.length; i++) {
-                    valuesStr = valuesStr + event.values[i] + ",";
-                }
-                BufferedWriter writer = sensorLogFileWriters.get(sensor.getName());
-                try {
-                    writer.write(event.timestamp + "," + event.accuracy + "," + valuesStr + "\n");
-                    writer.flush();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                Integer id = sensorLogIds.get(sensor.getName());
+                if (id != null) {
+                    mSensorLog.append(id, event.timestamp, event.accuracy, event.values);
                 }
             }
         }
@@ -417,6 +414,10 @@ public class LoggerActivity extends Activity {
                 request.setOutputFile(directoryName + "/logged-data.zip");
                 request.setMaxOutputFileSize(MAX_OUTPUT_ZIP_CHUNK_SIZE);
                 request.setDeleteInputfiles(true);
+                // The inputs are deleted afterwards, so make sure the parts
+                // are on storage first.
+                request.setSyncOutput(true);
+                request.setWriteManifest(true);
 
                 try {
                     new ZipItUpProcessor(request).zipIt(handler);
@@ -439,7 +440,8 @@ public class LoggerActivity extends Activity {
         sensors = mSensorManager.getSensorList(Sensor.TYPE_ALL);
 
         // Setup the files
-        sensorLogFileWriters = new HashMap<String, BufferedWriter>();
+        mSensorLog = new SensorLogWriter(SENSOR_LOG_CAPACITY);
+        sensorLogIds = new HashMap<String, Integer>();
         String directoryName = getDataLoggerPath();
         File directory = new File(directoryName);
         if (!directory.exists() && !directory.mkdirs()) {
@@ -454,17 +456,17 @@ public class LoggerActivity extends Activity {
         for (int i = 0; i < sensors.size(); i++) {
             Sensor s = sensors.get(i);
             String sensorFilename = directoryName + s.getName().replaceAll(" ", "_") + "_"
-                    + timeString + ".txt";
+                    + timeString + ".sclog";
             file = new File(sensorFilename);
             try {
-                BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-                sensorLogFileWriters.put(s.getName(), writer);
+                sensorLogIds.put(s.getName(), mSensorLog.addSensor(s.getName(), file));
             } catch (IOException e) {
                 e.printStackTrace();
             }
             mSensorManager.registerListener(
                     mSensorEventListener, s, SensorManager.SENSOR_DELAY_GAME);
         }
+        mSensorLog.start();
 
         // The battery is a special case since it is not a real sensor
         String batteryTempFilename = directoryName + "/BatteryTemp_" + timeString + ".txt";
@@ -669,12 +671,14 @@ public class LoggerActivity extends Activity {
 
     private void closeFiles() {
         try {
-            Collection<BufferedWriter> writers = sensorLogFileWriters.values();
-            BufferedWriter[] w = new BufferedWriter[0];
-            w = writers.toArray(w);
-            for (int i = 0; i < w.length; i++) {
-                w.clone();
+            mSensorLog.close();
+            if (mSensorLog.getDroppedCount() > 0) {
+                Log.w(TAG, "Sensor log dropped " + mSensorLog.getDroppedCount() + " events");
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
             mBatteryTempWriter.close();
             mGpsLocationWriter.close();
             mGpsStatusWriter.close();
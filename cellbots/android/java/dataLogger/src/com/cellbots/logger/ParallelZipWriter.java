@@ -0,0 +1,567 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive whose entries are compressed concurrently on a worker
+ * pool and written out in the order they were added.
+ *
+ * Each added file becomes a job on the pool. A deflated entry is compressed
+ * by its worker into a bounded queue of blocks; the entry at the head of the
+ * archive is streamed to the output while later entries fill their queues,
+ * so memory use stays bounded however large the files are. Deflated entries
+ * use a data descriptor, so their header can be written before they are
+ * compressed. Stored entries get their CRC computed by a worker and are then
+ * copied to the output unchanged.
+ *
+ * Archives and entries over 4 GB use the ZIP64 extensions.
+ *
+ * The platform Deflater cannot flush in the middle of a stream, so one entry
+ * is always compressed by one worker; the parallelism comes from compressing
+ * several files at once.
+ */
+public class ParallelZipWriter {
+
+    /** Size of the blocks files are read and compressed in. */
+    public static final int BLOCK_SIZE = 256 * 1024;
+
+    /** Blocks an entry may hold before its worker waits for the writer. */
+    private static final int MAX_QUEUED_BLOCKS = 16;
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final int METHOD_STORED = 0;
+
+    private static final int METHOD_DEFLATED = 8;
+
+    private final OutputStream mOut;
+
+    private final ExecutorService mPool;
+
+    private final int mLevel;
+
+    private final LinkedList<Entry> mPending = new LinkedList<Entry>();
+
+    private final List<Entry> mWritten = new ArrayList<Entry>();
+
+    private final byte[] mHeader = new byte[1024];
+
+    private long mOffset = 0;
+
+    private long mBytesIn = 0;
+
+    /**
+     * @param out receives the archive; it is not closed by this class
+     * @param pool runs the compression jobs
+     * @param level the deflate level
+     */
+    public ParallelZipWriter(OutputStream out, ExecutorService pool, int level) {
+        mOut = out;
+        mPool = pool;
+        mLevel = level;
+    }
+
+    /**
+     * Starts compressing a file in the background. Entries are written in the
+     * order they are added, by {@link #writeNext} and {@link #finish}.
+     *
+     * @param store true to store the file without compressing it
+     */
+    public void add(String name, File file, boolean store) {
+        final Entry entry = new Entry(name, file, store);
+        mPending.add(entry);
+        mPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                entry.process();
+            }
+        });
+    }
+
+    /** Returns the number of entries added but not written yet. */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Writes the oldest pending entry, waiting for its worker as needed.
+     *
+     * @return the name of the entry written
+     */
+    public String writeNext() throws IOException {
+        Entry entry = mPending.removeFirst();
+        boolean written = false;
+        try {
+            entry.write();
+            written = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + entry.name);
+        } finally {
+            if (!written) {
+                entry.cancel();
+            }
+        }
+        mWritten.add(entry);
+        return entry.name;
+    }
+
+    /**
+     * Writes all pending entries and the central directory.
+     */
+    public void finish() throws IOException {
+        while (!mPending.isEmpty()) {
+            writeNext();
+        }
+        writeCentralDirectory();
+        mOut.flush();
+    }
+
+    /**
+     * Stops the workers of entries that have not been written.
+     */
+    public void abort() {
+        for (Entry entry : mPending) {
+            entry.cancel();
+        }
+        mPending.clear();
+    }
+
+    /** Returns the number of uncompressed bytes written so far. */
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+
+    /** Returns the size of the archive written so far. */
+    public long getBytesOut() {
+        return mOffset;
+    }
+
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        mOut.write(b, off, len);
+        mOffset += len;
+    }
+
+    /**
+     * One file of the archive, and the hand-off between its worker and the
+     * writer.
+     */
+    private class Entry {
+        final String name;
+
+        final byte[] nameBytes;
+
+        final File file;
+
+        final boolean store;
+
+        final long length;
+
+        final long dosTime;
+
+        // Set by the worker.
+        long crc;
+
+        long compressedSize;
+
+        long size;
+
+        IOException error;
+
+        boolean done = false;
+
+        boolean cancelled = false;
+
+        // Compressed blocks waiting to be written; guarded by this.
+        private final LinkedList<byte[]> blocks = new LinkedList<byte[]>();
+
+        private final LinkedList<Integer> blockLengths = new LinkedList<Integer>();
+
+        long localHeaderOffset;
+
+        Entry(String name, File file, boolean store) {
+            this.name = name;
+            this.nameBytes = encodeUtf8(name);
+            this.file = file;
+            this.store = store;
+            this.length = file.length();
+            this.dosTime = toDosTime(file.lastModified());
+        }
+
+        boolean isZip64() {
+            // Deflate may grow incompressible data slightly.
+            return length >= ZIP64_LIMIT - (length >> 8) - 1024;
+        }
+
+        void process() {
+            try {
+                if (store) {
+                    computeCrc();
+                } else {
+                    compress();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    error = e;
+                }
+            } catch (InterruptedException e) {
+                // Cancelled.
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void computeCrc() throws IOException {
+            CRC32 crc32 = new CRC32();
+            byte[] buffer = new byte[BLOCK_SIZE];
+            InputStream in = new FileInputStream(file);
+            long total = 0;
+            try {
+                int n;
+                while ((n = in.read(buffer)) >= 0 && !isCancelled()) {
+                    crc32.update(buffer, 0, n);
+                    total += n;
+                }
+            } finally {
+                in.close();
+            }
+            crc = crc32.getValue();
+            size = total;
+            compressedSize = total;
+        }
+
+        private void compress() throws IOException, InterruptedException {
+            CRC32 crc32 = new CRC32();
+            Deflater deflater = new Deflater(mLevel, true);
+            byte[] input = new byte[BLOCK_SIZE];
+            byte[] output = new byte[BLOCK_SIZE];
+            int outputLength = 0;
+            long total = 0;
+            long totalOut = 0;
+            InputStream in = new FileInputStream(file);
+            try {
+                boolean eof = false;
+                while (!deflater.finished()) {
+                    if (deflater.needsInput() && !eof) {
+                        int n = in.read(input);
+                        if (n < 0) {
+                            eof = true;
+                            deflater.finish();
+                        } else {
+                            crc32.update(input, 0, n);
+                            total += n;
+                            deflater.setInput(input, 0, n);
+                        }
+                        continue;
+                    }
+                    outputLength += deflater.deflate(output, outputLength,
+                            output.length - outputLength);
+                    if (outputLength == output.length || deflater.finished()) {
+                        if (outputLength > 0) {
+                            offer(output, outputLength);
+                            totalOut += outputLength;
+                            output = new byte[BLOCK_SIZE];
+                            outputLength = 0;
+                        }
+                    }
+                }
+            } finally {
+                deflater.end();
+                in.close();
+            }
+            crc = crc32.getValue();
+            size = total;
+            compressedSize = totalOut;
+        }
+
+        private synchronized void offer(byte[] block, int blockLength)
+                throws InterruptedException {
+            while (blocks.size() >= MAX_QUEUED_BLOCKS && !cancelled) {
+                wait();
+            }
+            if (cancelled) {
+                throw new InterruptedException();
+            }
+            blocks.add(block);
+            blockLengths.add(blockLength);
+            notifyAll();
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        /**
+         * Writes the entry, taking the compressed blocks as they come.
+         */
+        void write() throws IOException, InterruptedException {
+            if (store) {
+                synchronized (this) {
+                    while (!done) {
+                        wait();
+                    }
+                }
+                checkError();
+                localHeaderOffset = mOffset;
+                writeLocalHeader();
+                copyFile();
+                return;
+            }
+            localHeaderOffset = mOffset;
+            writeLocalHeader();
+            while (true) {
+                byte[] block;
+                int blockLength;
+                synchronized (this) {
+                    while (blocks.isEmpty() && !done) {
+                        wait();
+                    }
+                    if (blocks.isEmpty()) {
+                        break;
+                    }
+                    block = blocks.removeFirst();
+                    blockLength = blockLengths.removeFirst();
+                    notifyAll();
+                }
+                writeOut(block, 0, blockLength);
+            }
+            checkError();
+            mBytesIn += size;
+            writeDataDescriptor();
+        }
+
+        private void checkError() throws IOException {
+            synchronized (this) {
+                if (error != null) {
+                    throw error;
+                }
+            }
+        }
+
+        private void copyFile() throws IOException {
+            byte[] buffer = new byte[BLOCK_SIZE];
+            InputStream in = new FileInputStream(file);
+            long copied = 0;
+            try {
+                int n;
+                while (copied < size && (n = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, size - copied))) >= 0) {
+                    writeOut(buffer, 0, n);
+                    copied += n;
+                }
+            } finally {
+                in.close();
+            }
+            if (copied != size) {
+                throw new IOException(name + " changed while it was being zipped");
+            }
+            mBytesIn += size;
+        }
+
+        private void writeLocalHeader() throws IOException {
+            boolean zip64 = isZip64();
+            int pos = 0;
+            pos = putInt(mHeader, pos, LOCAL_HEADER_SIGNATURE);
+            pos = putShort(mHeader, pos, zip64 ? 45 : 20); // version needed
+            pos = putShort(mHeader, pos, FLAG_UTF8 | (store ? 0 : FLAG_DATA_DESCRIPTOR));
+            pos = putShort(mHeader, pos, store ? METHOD_STORED : METHOD_DEFLATED);
+            pos = putInt(mHeader, pos, (int) dosTime);
+            if (store) {
+                pos = putInt(mHeader, pos, (int) crc);
+                pos = putInt(mHeader, pos, (int) (zip64 ? ZIP64_LIMIT : compressedSize));
+                pos = putInt(mHeader, pos, (int) (zip64 ? ZIP64_LIMIT : size));
+            } else {
+                pos = putInt(mHeader, pos, 0);
+                pos = putInt(mHeader, pos, (int) (zip64 ? ZIP64_LIMIT : 0));
+                pos = putInt(mHeader, pos, (int) (zip64 ? ZIP64_LIMIT : 0));
+            }
+            pos = putShort(mHeader, pos, nameBytes.length);
+            pos = putShort(mHeader, pos, zip64 ? 20 : 0);
+            writeOut(mHeader, 0, pos);
+            writeOut(nameBytes, 0, nameBytes.length);
+            if (zip64) {
+                pos = 0;
+                pos = putShort(mHeader, pos, 0x0001);
+                pos = putShort(mHeader, pos, 16);
+                pos = putLong(mHeader, pos, store ? size : 0);
+                pos = putLong(mHeader, pos, store ? compressedSize : 0);
+                writeOut(mHeader, 0, pos);
+            }
+        }
+
+        private void writeDataDescriptor() throws IOException {
+            int pos = 0;
+            pos = putInt(mHeader, pos, DATA_DESCRIPTOR_SIGNATURE);
+            pos = putInt(mHeader, pos, (int) crc);
+            if (isZip64()) {
+                pos = putLong(mHeader, pos, compressedSize);
+                pos = putLong(mHeader, pos, size);
+            } else {
+                pos = putInt(mHeader, pos, (int) compressedSize);
+                pos = putInt(mHeader, pos, (int) size);
+            }
+            writeOut(mHeader, 0, pos);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = mOffset;
+        for (Entry entry : mWritten) {
+            boolean sizesZip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+            boolean offsetZip64 = entry.localHeaderOffset >= ZIP64_LIMIT;
+            int extraLength = (sizesZip64 ? 16 : 0) + (offsetZip64 ? 8 : 0);
+            int pos = 0;
+            pos = putInt(mHeader, pos, CENTRAL_HEADER_SIGNATURE);
+            pos = putShort(mHeader, pos, 45); // version made by
+            pos = putShort(mHeader, pos, entry.isZip64() || extraLength > 0 ? 45 : 20);
+            pos = putShort(mHeader, pos, FLAG_UTF8 | (entry.store ? 0 : FLAG_DATA_DESCRIPTOR));
+            pos = putShort(mHeader, pos, entry.store ? METHOD_STORED : METHOD_DEFLATED);
+            pos = putInt(mHeader, pos, (int) entry.dosTime);
+            pos = putInt(mHeader, pos, (int) entry.crc);
+            pos = putInt(mHeader, pos, (int) (sizesZip64 ? ZIP64_LIMIT : entry.compressedSize));
+            pos = putInt(mHeader, pos, (int) (sizesZip64 ? ZIP64_LIMIT : entry.size));
+            pos = putShort(mHeader, pos, entry.nameBytes.length);
+            pos = putShort(mHeader, pos, extraLength > 0 ? extraLength + 4 : 0);
+            pos = putShort(mHeader, pos, 0); // comment length
+            pos = putShort(mHeader, pos, 0); // disk number
+            pos = putShort(mHeader, pos, 0); // internal attributes
+            pos = putInt(mHeader, pos, 0); // external attributes
+            pos = putInt(mHeader, pos,
+                    (int) (offsetZip64 ? ZIP64_LIMIT : entry.localHeaderOffset));
+            writeOut(mHeader, 0, pos);
+            writeOut(entry.nameBytes, 0, entry.nameBytes.length);
+            if (extraLength > 0) {
+                pos = 0;
+                pos = putShort(mHeader, pos, 0x0001);
+                pos = putShort(mHeader, pos, extraLength);
+                if (sizesZip64) {
+                    pos = putLong(mHeader, pos, entry.size);
+                    pos = putLong(mHeader, pos, entry.compressedSize);
+                }
+                if (offsetZip64) {
+                    pos = putLong(mHeader, pos, entry.localHeaderOffset);
+                }
+                writeOut(mHeader, 0, pos);
+            }
+        }
+        long end = mOffset;
+        long size = end - start;
+        int count = mWritten.size();
+        boolean zip64 = count >= 0xFFFF || start >= ZIP64_LIMIT || size >= ZIP64_LIMIT;
+        if (zip64) {
+            int pos = 0;
+            pos = putInt(mHeader, pos, ZIP64_END_SIGNATURE);
+            pos = putLong(mHeader, pos, 44); // size of the rest of the record
+            pos = putShort(mHeader, pos, 45);
+            pos = putShort(mHeader, pos, 45);
+            pos = putInt(mHeader, pos, 0);
+            pos = putInt(mHeader, pos, 0);
+            pos = putLong(mHeader, pos, count);
+            pos = putLong(mHeader, pos, count);
+            pos = putLong(mHeader, pos, size);
+            pos = putLong(mHeader, pos, start);
+            pos = putInt(mHeader, pos, ZIP64_LOCATOR_SIGNATURE);
+            pos = putInt(mHeader, pos, 0);
+            pos = putLong(mHeader, pos, end);
+            pos = putInt(mHeader, pos, 1);
+            writeOut(mHeader, 0, pos);
+        }
+        int pos = 0;
+        pos = putInt(mHeader, pos, END_SIGNATURE);
+        pos = putShort(mHeader, pos, 0);
+        pos = putShort(mHeader, pos, 0);
+        pos = putShort(mHeader, pos, zip64 ? 0xFFFF : count);
+        pos = putShort(mHeader, pos, zip64 ? 0xFFFF : count);
+        pos = putInt(mHeader, pos, (int) (zip64 ? ZIP64_LIMIT : size));
+        pos = putInt(mHeader, pos, (int) (zip64 ? ZIP64_LIMIT : start));
+        pos = putShort(mHeader, pos, 0);
+        writeOut(mHeader, 0, pos);
+    }
+
+    private static int putShort(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >>> 8);
+        return pos + 2;
+    }
+
+    private static int putInt(byte[] b, int pos, int v) {
+        pos = putShort(b, pos, v);
+        return putShort(b, pos, v >>> 16);
+    }
+
+    private static int putLong(byte[] b, int pos, long v) {
+        pos = putInt(b, pos, (int) v);
+        return putInt(b, pos, (int) (v >>> 32));
+    }
+
+    private static byte[] encodeUtf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21)
+                | (c.get(Calendar.DAY_OF_MONTH) << 16) | (c.get(Calendar.HOUR_OF_DAY) << 11)
+                | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the files written by {@link SensorLogWriter} one block at a time.
+ * Also converts them to the CSV format the logger used to write, one line
+ * per event: "timestamp,accuracy,value0,value1,...,".
+ *
+ * From the command line:
+ *
+ * <pre>
+ * java com.cellbots.logger.SensorLogReader log.sclog [out.csv]
+ * </pre>
+ *
+ * writes the CSV to out.csv, or to standard output if no output is given.
+ */
+public class SensorLogReader {
+
+    private final DataInputStream mIn;
+
+    private final String mSensorName;
+
+    private final Inflater mInflater = new Inflater();
+
+    private byte[] mCompressed = new byte[0];
+
+    private byte[] mRaw = new byte[0];
+
+    // Read position in mRaw.
+    private int mPos;
+
+    private int mCount;
+
+    private int mValuesPerEvent;
+
+    private final long[] mTimestamps = new long[SensorLogWriter.BLOCK_SIZE];
+
+    private final int[] mAccuracies = new int[SensorLogWriter.BLOCK_SIZE];
+
+    private final float[] mValues =
+            new float[SensorLogWriter.BLOCK_SIZE * SensorLogWriter.MAX_VALUES];
+
+    public SensorLogReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        if (mIn.readInt() != SensorLogWriter.MAGIC) {
+            throw new IOException("Not a sensor log");
+        }
+        int version = mIn.readShort();
+        if (version != SensorLogWriter.VERSION) {
+            throw new IOException("Unsupported sensor log version " + version);
+        }
+        mSensorName = mIn.readUTF();
+    }
+
+    public String getSensorName() {
+        return mSensorName;
+    }
+
+    /**
+     * Reads the next block.
+     *
+     * @return false at the end of the file
+     */
+    public boolean nextBlock() throws IOException {
+        int count;
+        try {
+            count = mIn.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (count <= 0 || count > SensorLogWriter.BLOCK_SIZE) {
+            throw new IOException("Corrupt block header");
+        }
+        mCount = count;
+        mValuesPerEvent = mIn.readByte();
+        long timestamp = mIn.readLong();
+        int rawLength = mIn.readInt();
+        int compressedLength = mIn.readInt();
+        if (mCompressed.length < compressedLength) {
+            mCompressed = new byte[compressedLength];
+        }
+        if (mRaw.length < rawLength) {
+            mRaw = new byte[rawLength];
+        }
+        mIn.readFully(mCompressed, 0, compressedLength);
+        mInflater.reset();
+        mInflater.setInput(mCompressed, 0, compressedLength);
+        try {
+            if (mInflater.inflate(mRaw, 0, rawLength) != rawLength) {
+                throw new IOException("Truncated block");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block: " + e.getMessage());
+        }
+
+        mPos = 0;
+        mTimestamps[0] = timestamp;
+        long delta = 0;
+        for (int i = 1; i < count; i++) {
+            long zigzag = readVarLong();
+            delta += (zigzag >>> 1) ^ -(zigzag & 1);
+            timestamp += delta;
+            mTimestamps[i] = timestamp;
+        }
+        for (int i = 0; i < count; i++) {
+            mAccuracies[i] = mRaw[mPos++];
+        }
+        for (int axis = 0; axis < mValuesPerEvent; axis++) {
+            int bits = 0;
+            for (int i = 0; i < count; i++) {
+                int zigzag = (int) readVarLong();
+                bits += (zigzag >>> 1) ^ -(zigzag & 1);
+                mValues[i * SensorLogWriter.MAX_VALUES + axis] = Float.intBitsToFloat(bits);
+            }
+        }
+        return true;
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = mRaw[mPos++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /** Returns the number of events in the current block. */
+    public int getEventCount() {
+        return mCount;
+    }
+
+    public int getValuesPerEvent() {
+        return mValuesPerEvent;
+    }
+
+    public long getTimestamp(int event) {
+        return mTimestamps[event];
+    }
+
+    public int getAccuracy(int event) {
+        return mAccuracies[event];
+    }
+
+    public float getValue(int event, int axis) {
+        return mValues[event * SensorLogWriter.MAX_VALUES + axis];
+    }
+
+    public void close() throws IOException {
+        mInflater.end();
+        mIn.close();
+    }
+
+    /**
+     * Writes the whole log as CSV.
+     */
+    public void exportCsv(Writer out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (nextBlock()) {
+            for (int i = 0; i < mCount; i++) {
+                line.setLength(0);
+                line.append(mTimestamps[i]).append(',').append(mAccuracies[i]).append(',');
+                for (int axis = 0; axis < mValuesPerEvent; axis++) {
+                    line.append(getValue(i, axis)).append(',');
+                }
+                line.append('\n');
+                out.write(line.toString());
+            }
+        }
+        out.flush();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SensorLogReader <log file> [csv file]");
+            System.exit(1);
+        }
+        SensorLogReader reader = new SensorLogReader(new FileInputStream(new File(args[0])));
+        Writer out = args.length > 1 ? new BufferedWriter(new FileWriter(args[1]))
+                : new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            reader.exportCsv(out);
+        } finally {
+            reader.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Logs sensor events to compact binary files without doing any I/O on the
+ * sensor callback thread.
+ *
+ * {@link #append} copies an event into a preallocated ring of primitive
+ * arrays and returns. A background thread drains the ring, collects the
+ * events of each sensor into a block and writes every block to the sensor's
+ * file with a single write. A block is written when it is full, when it is
+ * older than {@link #FLUSH_INTERVAL_MS} and on {@link #close}. If the ring
+ * is full the event is dropped and counted.
+ *
+ * File layout (all numbers big-endian):
+ *
+ * <pre>
+ * file:   magic "CBSL" (int), version (short), sensor name (UTF), block*
+ * block:  event count (int), values per event (byte), first timestamp (long),
+ *         raw payload length (int), deflated payload length (int),
+ *         deflated payload
+ * payload columns:
+ *         timestamps - from the second event on, how much the interval to
+ *                      the previous event changed, as a zigzag varint
+ *         accuracy   - one byte per event
+ *         values     - one column per axis; each value is the difference
+ *                      between the float's bits and those of the previous
+ *                      value of the same axis, as a zigzag varint
+ * </pre>
+ *
+ * Use {@link SensorLogReader} to read the files or convert them to CSV.
+ * {@link #append} must be called from one thread only.
+ */
+public class SensorLogWriter {
+
+    public static final int MAGIC = 0x4342534C; // "CBSL"
+
+    public static final int VERSION = 1;
+
+    /** Values per event that are kept; further values are dropped. */
+    public static final int MAX_VALUES = 6;
+
+    /** Events per block. */
+    public static final int BLOCK_SIZE = 512;
+
+    /** Longest time events wait in a block before it is written. */
+    public static final long FLUSH_INTERVAL_MS = 2000;
+
+    private static final long POLL_INTERVAL_MS = 50;
+
+    // The ring, one slot per event. Only the producer advances mWritePos
+    // and only the writer thread advances mReadPos.
+    private final int mCapacity;
+
+    private final long[] mTimestamps;
+
+    private final int[] mSensorIds;
+
+    private final byte[] mAccuracies;
+
+    private final byte[] mValueCounts;
+
+    private final float[] mValues;
+
+    private volatile long mWritePos = 0;
+
+    private volatile long mReadPos = 0;
+
+    private final List<Channel> mChannels = new ArrayList<Channel>();
+
+    private volatile boolean mRunning = false;
+
+    private Thread mWriterThread;
+
+    private IOException mError;
+
+    private volatile long mDropped = 0;
+
+    private long mBlocksWritten = 0;
+
+    private long mBytesWritten = 0;
+
+    /**
+     * @param capacity number of events the ring can hold
+     */
+    public SensorLogWriter(int capacity) {
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mSensorIds = new int[capacity];
+        mAccuracies = new byte[capacity];
+        mValueCounts = new byte[capacity];
+        mValues = new float[capacity * MAX_VALUES];
+    }
+
+    /**
+     * Creates the log file of a sensor. Must be called before {@link #start}.
+     *
+     * @return the ID to pass to {@link #append}
+     */
+    public int addSensor(String name, File file) throws IOException {
+        if (mRunning) {
+            throw new IllegalStateException("Sensors must be added before start()");
+        }
+        mChannels.add(new Channel(name, file));
+        return mChannels.size() - 1;
+    }
+
+    public void start() {
+        mRunning = true;
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "SensorLogWriter");
+        mWriterThread.start();
+    }
+
+    /**
+     * Queues an event. Never blocks and never allocates.
+     *
+     * @return false if the ring was full and the event was dropped
+     */
+    public boolean append(int sensorId, long timestamp, int accuracy, float[] values) {
+        long pos = mWritePos;
+        if (pos - mReadPos >= mCapacity) {
+            mDropped++;
+            return false;
+        }
+        int slot = (int) (pos % mCapacity);
+        int count = Math.min(values.length, MAX_VALUES);
+        mTimestamps[slot] = timestamp;
+        mSensorIds[slot] = sensorId;
+        mAccuracies[slot] = (byte) accuracy;
+        mValueCounts[slot] = (byte) count;
+        System.arraycopy(values, 0, mValues, slot * MAX_VALUES, count);
+        mWritePos = pos + 1;
+        return true;
+    }
+
+    /**
+     * Writes all queued events, closes the files and stops the writer thread.
+     *
+     * @throws IOException the first error the writer thread ran into
+     */
+    public void close() throws IOException {
+        mRunning = false;
+        if (mWriterThread != null) {
+            try {
+                mWriterThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /** Returns the number of events dropped because the ring was full. */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized long getBlocksWritten() {
+        return mBlocksWritten;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void writeLoop() {
+        Deflater deflater = new Deflater();
+        long lastFlush = System.currentTimeMillis();
+        try {
+            while (true) {
+                boolean stopping = !mRunning;
+                int drained = drain(deflater);
+                long now = System.currentTimeMillis();
+                if (stopping || now - lastFlush >= FLUSH_INTERVAL_MS) {
+                    for (Channel channel : mChannels) {
+                        channel.writeBlock(deflater);
+                    }
+                    lastFlush = now;
+                }
+                if (stopping) {
+                    break;
+                }
+                if (drained == 0) {
+                    Thread.sleep(POLL_INTERVAL_MS);
+                }
+            }
+        } catch (IOException e) {
+            mError = e;
+        } catch (InterruptedException e) {
+            // Stop writing; close the files below.
+        } finally {
+            deflater.end();
+            for (Channel channel : mChannels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (mError == null) {
+                        mError = e;
+                    }
+                }
+            }
+        }
+    }
+
+    private int drain(Deflater deflater) throws IOException {
+        long end = mWritePos;
+        long pos = mReadPos;
+        int drained = (int) (end - pos);
+        for (; pos < end; pos++) {
+            int slot = (int) (pos % mCapacity);
+            mChannels.get(mSensorIds[slot]).add(slot, deflater);
+        }
+        mReadPos = end;
+        return drained;
+    }
+
+    private synchronized void onBlockWritten(int bytes) {
+        mBlocksWritten++;
+        mBytesWritten += bytes;
+    }
+
+    /**
+     * The block being collected for one sensor, and its file.
+     */
+    private class Channel {
+        private final FileOutputStream mOut;
+
+        private final long[] mBlockTimestamps = new long[BLOCK_SIZE];
+
+        private final byte[] mBlockAccuracies = new byte[BLOCK_SIZE];
+
+        private final float[] mBlockValues = new float[BLOCK_SIZE * MAX_VALUES];
+
+        private int mCount = 0;
+
+        private int mValuesPerEvent = 0;
+
+        private final BlockBuffer mRaw = new BlockBuffer(BLOCK_SIZE * (10 + 1 + 5 * MAX_VALUES));
+
+        private final BlockBuffer mBlock = new BlockBuffer(256);
+
+        Channel(String name, File file) throws IOException {
+            mOut = new FileOutputStream(file);
+            mBlock.writeInt(MAGIC);
+            mBlock.writeShort(VERSION);
+            mBlock.writeUtf(name);
+            mOut.write(mBlock.buffer, 0, mBlock.length);
+        }
+
+        void add(int slot, Deflater deflater) throws IOException {
+            int valueCount = mValueCounts[slot];
+            if (mCount > 0 && valueCount != mValuesPerEvent) {
+                writeBlock(deflater);
+            }
+            mValuesPerEvent = valueCount;
+            mBlockTimestamps[mCount] = mTimestamps[slot];
+            mBlockAccuracies[mCount] = mAccuracies[slot];
+            System.arraycopy(mValues, slot * MAX_VALUES, mBlockValues, mCount * MAX_VALUES,
+                    valueCount);
+            mCount++;
+            if (mCount == BLOCK_SIZE) {
+                writeBlock(deflater);
+            }
+        }
+
+        void writeBlock(Deflater deflater) throws IOException {
+            if (mCount == 0) {
+                return;
+            }
+            // Columns
+            BlockBuffer raw = mRaw;
+            raw.length = 0;
+            long previousDelta = 0;
+            for (int i = 1; i < mCount; i++) {
+                long delta = mBlockTimestamps[i] - mBlockTimestamps[i - 1];
+                long change = delta - previousDelta;
+                raw.writeVarLong((change << 1) ^ (change >> 63));
+                previousDelta = delta;
+            }
+            raw.write(mBlockAccuracies, 0, mCount);
+            for (int axis = 0; axis < mValuesPerEvent; axis++) {
+                int previousBits = 0;
+                for (int i = 0; i < mCount; i++) {
+                    int bits = Float.floatToRawIntBits(mBlockValues[i * MAX_VALUES + axis]);
+                    int delta = bits - previousBits;
+                    raw.writeVarLong(((delta << 1) ^ (delta >> 31)) & 0xFFFFFFFFL);
+                    previousBits = bits;
+                }
+            }
+
+            // Header and deflated payload, sent with one write
+            BlockBuffer block = mBlock;
+            block.length = 0;
+            block.writeInt(mCount);
+            block.writeByte(mValuesPerEvent);
+            block.writeLong(mBlockTimestamps[0]);
+            block.writeInt(raw.length);
+            int lengthPos = block.length;
+            block.writeInt(0);
+            deflater.reset();
+            deflater.setInput(raw.buffer, 0, raw.length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                block.ensureCapacity(block.length + 1024);
+                block.length += deflater.deflate(block.buffer, block.length,
+                        block.buffer.length - block.length);
+            }
+            block.putInt(lengthPos, block.length - lengthPos - 4);
+            mOut.write(block.buffer, 0, block.length);
+            onBlockWritten(block.length);
+            mCount = 0;
+        }
+
+        void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /**
+     * A growable byte array with big-endian writers, reused for every block.
+     */
+    static class BlockBuffer {
+        byte[] buffer;
+
+        int length = 0;
+
+        BlockBuffer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > buffer.length) {
+                byte[] larger = new byte[Math.max(capacity, buffer.length * 2)];
+                System.arraycopy(buffer, 0, larger, 0, length);
+                buffer = larger;
+            }
+        }
+
+        void writeByte(int v) {
+            ensureCapacity(length + 1);
+            buffer[length++] = (byte) v;
+        }
+
+        void write(byte[] b, int offset, int count) {
+            ensureCapacity(length + count);
+            System.arraycopy(b, offset, buffer, length, count);
+            length += count;
+        }
+
+        void writeShort(int v) {
+            writeByte(v >>> 8);
+            writeByte(v);
+        }
+
+        void writeInt(int v) {
+            ensureCapacity(length + 4);
+            putInt(length, v);
+            length += 4;
+        }
+
+        void putInt(int pos, int v) {
+            buffer[pos] = (byte) (v >>> 24);
+            buffer[pos + 1] = (byte) (v >>> 16);
+            buffer[pos + 2] = (byte) (v >>> 8);
+            buffer[pos + 3] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            writeByte((int) v);
+        }
+
+        /** Writes a string the way DataOutputStream.writeUTF does. */
+        void writeUtf(String s) {
+            int start = length;
+            writeShort(0);
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x0001 && c <= 0x007F) {
+                    writeByte(c);
+                } else if (c <= 0x07FF) {
+                    writeByte(0xC0 | (c >> 6));
+                    writeByte(0x80 | (c & 0x3F));
+                } else {
+                    writeByte(0xE0 | (c >> 12));
+                    writeByte(0x80 | ((c >> 6) & 0x3F));
+                    writeByte(0x80 | (c & 0x3F));
+                }
+            }
+            int utfLength = length - start - 2;
+            buffer[start] = (byte) (utfLength >>> 8);
+            buffer[start + 1] = (byte) utfLength;
+        }
+    }
+}
@@ -21,9 +21,31 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 /**
- * An {@link OutputStream} that splits the files while writing.
+ * An {@link OutputStream} that splits the files while writing. Every part
+ * but the last is exactly maxFileSize bytes long.
+ *
+ * The next part is opened, and the finished one closed, on a background
+ * thread so a rollover does not stall the writer. Parts can optionally be
+ * synced to storage as they are finished, and a manifest listing the size and
+ * CRC-32 of each part can be written next to them, one line per part:
+ *
+ * <pre>
+ * logged-data.zip.part-0000 52428800 3f1a09c2
+ * </pre>
+ *
+ * so an upload can check and resume part by part.
  *
  * @author birmiwal@google.com (Shishir Birmiwal)
  */
@@ -31,82 +53,251 @@ public class SplittingOutputStream extends OutputStream {
 
     private static final String OUTPUT_FILENAME_FORMAT = "%s.part-%04d";
 
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
     int fileCounter;
 
     private FileOutputStream fileOutputStream;
 
+    private FileChannel channel;
+
+    private String filename;
+
     private final String filenamePrefix;
 
     private final int maxFileSize;
 
+    private final boolean syncParts;
+
+    private final boolean writeManifest;
+
     private int numBytesWrittenToPresentFile;
 
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] oneByte = new byte[1];
+
+    private final StringBuilder manifest = new StringBuilder();
+
+    // Opens and closes parts in the background.
+    private final ExecutorService partExecutor = Executors.newSingleThreadExecutor();
+
+    private String nextFilename;
+
+    private Future<FileOutputStream> nextFileOutputStream;
+
+    private Future<Void> previousClose;
+
+    private boolean closed = false;
+
     public static OutputStream getOutputStream(String filename, int maxSize)
-            throws FileNotFoundException {
+            throws IOException {
+        return getOutputStream(filename, maxSize, false, false);
+    }
+
+    /**
+     * @param filename the output file, or the prefix of the parts
+     * @param maxSize the size of each part; if 0, a single file is written
+     * @param syncParts sync each part to storage when it is finished
+     * @param writeManifest write filename.manifest with the size and CRC of
+     *            each part; only used when splitting
+     */
+    public static OutputStream getOutputStream(
+            String filename, int maxSize, boolean syncParts, boolean writeManifest)
+            throws IOException {
         if (maxSize <= 0) {
             return new FileOutputStream(new File(filename));
         }
-        return new SplittingOutputStream(filename, maxSize);
+        return new SplittingOutputStream(filename, maxSize, syncParts, writeManifest);
     }
 
     @Override
-    public void write(int oneByte) throws IOException {
-        swapUnderlyingFileIfRequiredToWrite(1);
-        fileOutputStream.write(oneByte);
-        numBytesWrittenToPresentFile += 1;
+    public void write(int b) throws IOException {
+        oneByte[0] = (byte) b;
+        write(oneByte, 0, 1);
     }
 
     @Override
     public void write(byte[] buffer) throws IOException {
-        swapUnderlyingFileIfRequiredToWrite(buffer.length);
-        fileOutputStream.write(buffer);
-        numBytesWrittenToPresentFile += buffer.length;
+        write(buffer, 0, buffer.length);
     }
 
     @Override
     public void write(byte[] buffer, int offset, int count) throws IOException {
-        swapUnderlyingFileIfRequiredToWrite(count);
-        fileOutputStream.write(buffer, offset, count);
-        numBytesWrittenToPresentFile += count;
+        while (count > 0) {
+            // Roll over only when there is more to write, so the last part is
+            // never empty.
+            if (numBytesWrittenToPresentFile == maxFileSize) {
+                swapUnderlyingFile();
+            }
+            int n = Math.min(count, maxFileSize - numBytesWrittenToPresentFile);
+            crc.update(buffer, offset, n);
+            writeToChannel(buffer, offset, n);
+            numBytesWrittenToPresentFile += n;
+            offset += n;
+            count -= n;
+        }
     }
 
     @Override
     public void close() throws IOException {
-        fileOutputStream.close();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flushBuffer();
+            addToManifest();
+            if (previousClose != null) {
+                getFuture(previousClose);
+            }
+            Future<Void> lastClose = closeInBackground(fileOutputStream, null);
+            // The pre-opened part is not needed.
+            Future<Void> discard = closeInBackground(
+                    getFuture(nextFileOutputStream), new File(nextFilename));
+            getFuture(lastClose);
+            getFuture(discard);
+            if (writeManifest) {
+                writeManifestFile();
+            }
+        } finally {
+            partExecutor.shutdown();
+        }
     }
 
     @Override
     public void flush() throws IOException {
-        fileOutputStream.flush();
+        flushBuffer();
     }
 
-    private SplittingOutputStream(String filenamePrefix, int maxFileSize)
-            throws FileNotFoundException {
+    private SplittingOutputStream(String filenamePrefix, int maxFileSize, boolean syncParts,
+            boolean writeManifest) throws IOException {
         this.filenamePrefix = filenamePrefix;
         this.maxFileSize = maxFileSize;
-        openNextFileForOutput();
-    }
-
-    private void openNextFileForOutput() throws FileNotFoundException {
-        fileOutputStream = new FileOutputStream(getNextFilename());
-        numBytesWrittenToPresentFile = 0;
+        this.syncParts = syncParts;
+        this.writeManifest = writeManifest;
+        filename = getNextFilename();
+        fileOutputStream = new FileOutputStream(filename);
+        channel = fileOutputStream.getChannel();
+        openNextFileInBackground();
     }
 
     private String getNextFilename() {
         return String.format(OUTPUT_FILENAME_FORMAT, filenamePrefix, fileCounter++);
     }
 
-    private void swapUnderlyingFileIfRequiredToWrite(int numBytes) throws IOException {
-        // TODO(birmiwal): To get exact maxFileSize bytes, write
-        // (maxFileSize-(numBytesWrittenToPresentFile + numBytes)) bytes.
-        // then write remaining bytes to the next file.
-        if (numBytesWrittenToPresentFile + numBytes <= maxFileSize) {
+    private void openNextFileInBackground() {
+        nextFilename = getNextFilename();
+        final String name = nextFilename;
+        nextFileOutputStream = partExecutor.submit(new Callable<FileOutputStream>() {
+            @Override
+            public FileOutputStream call() throws FileNotFoundException {
+                return new FileOutputStream(name);
+            }
+        });
+    }
+
+    private Future<Void> closeInBackground(final FileOutputStream out, final File delete) {
+        return partExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    if (syncParts && delete == null) {
+                        out.getFD().sync();
+                    }
+                } finally {
+                    out.close();
+                }
+                if (delete != null) {
+                    delete.delete();
+                }
+                return null;
+            }
+        });
+    }
+
+    private void swapUnderlyingFile() throws IOException {
+        flushBuffer();
+        addToManifest();
+        // Wait for the part before the one being closed, so a slow sync holds
+        // the writer back by at most one part.
+        if (previousClose != null) {
+            getFuture(previousClose);
+        }
+        previousClose = closeInBackground(fileOutputStream, null);
+
+        filename = nextFilename;
+        fileOutputStream = getFuture(nextFileOutputStream);
+        channel = fileOutputStream.getChannel();
+        numBytesWrittenToPresentFile = 0;
+        crc.reset();
+        openNextFileInBackground();
+    }
+
+    private void writeToChannel(byte[] data, int offset, int count) throws IOException {
+        if (count > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (count >= buffer.capacity()) {
+            ByteBuffer wrapped = ByteBuffer.wrap(data, offset, count);
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
             return;
         }
+        buffer.put(data, offset, count);
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void addToManifest() {
+        manifest.append(new File(filename).getName()).append(' ')
+                .append(numBytesWrittenToPresentFile).append(' ')
+                .append(String.format("%08x", crc.getValue())).append('\n');
+    }
+
+    private void writeManifestFile() throws IOException {
+        // Written under a temporary name and renamed, so a manifest that
+        // exists is always complete.
+        File manifestFile = new File(filenamePrefix + MANIFEST_SUFFIX);
+        File tmpFile = new File(filenamePrefix + MANIFEST_SUFFIX + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(manifest.toString());
+            writer.flush();
+            if (syncParts) {
+                out.getFD().sync();
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(manifestFile)) {
+            throw new IOException("Could not write " + manifestFile);
+        }
+    }
 
-        // swap file
-        fileOutputStream.flush();
-        fileOutputStream.close();
-        openNextFileForOutput();
+    private static <T> T getFuture(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
     }
 }
@@ -21,24 +21,33 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 
 /**
- * Zips up files in a {@link ZipItUpRequest}.
+ * Zips up files in a {@link ZipItUpRequest}. Files are compressed on a pool
+ * of threads by a {@link ParallelZipWriter} and written to the archive in the
+ * order they were requested. Files that are already compressed, like videos
+ * and pictures, are stored as they are.
  *
  * @author birmiwal@google.com (Shishir Birmiwal)
  */
 public class ZipItUpProcessor {
-    private static final int BUFFER_SIZE = 2048;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
-    private final ZipItUpRequest request;
+    /** Extensions of files that do not get smaller when deflated. */
+    private static final String[] STORED_EXTENSIONS = {
+            ".mp4", ".3gp", ".webm", ".jpg", ".jpeg", ".png", ".mp3", ".aac", ".zip", ".gz",
+            ".sclog"
+    };
 
-    private byte[] buffer = new byte[BUFFER_SIZE];
+    private final ZipItUpRequest request;
 
     public static interface LoggingCallback {
         void logStatus(String msg, int percentageDone);
@@ -50,31 +59,39 @@ public class ZipItUpProcessor {
 
     public void zipIt(Handler handler) throws IOException {
         Log.e("zipIt", "processing file zip request - writing to " + request.getOutputFile());
-        ZipOutputStream outStream = new ZipOutputStream(SplittingOutputStream.getOutputStream(
-                request.getOutputFile(), request.getMaxOutputFileSize()));
-
-        int numFilesProcessed = 0;
-        for (String inputFile : request.getInputFiles()) {
-            Log.e("zipIt", "reading file " + inputFile);
-            updateStatus(handler, numFilesProcessed, inputFile, false);
-            BufferedInputStream in = new BufferedInputStream(
-                    new FileInputStream(new File(inputFile)));
-            ZipEntry entry = new ZipEntry(inputFile.substring(inputFile.lastIndexOf('/') + 1));
-            outStream.putNextEntry(entry);
-            int numBytesRead = 0;
-            while ((numBytesRead = in.read(buffer)) >= 0) {
-                outStream.write(buffer, 0, numBytesRead);
+        int numThreads = request.getNumThreads();
+        if (numThreads <= 0) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        OutputStream outStream = new BufferedOutputStream(SplittingOutputStream.getOutputStream(
+                request.getOutputFile(), request.getMaxOutputFileSize(), request.isSyncOutput(),
+                request.isWriteManifest()), BUFFER_SIZE);
+        ParallelZipWriter writer = new ParallelZipWriter(
+                outStream, pool, Deflater.DEFAULT_COMPRESSION);
+        try {
+            for (String inputFile : request.getInputFiles()) {
+                writer.add(inputFile.substring(inputFile.lastIndexOf('/') + 1),
+                        new File(inputFile), isStored(inputFile));
+            }
+            int numFilesProcessed = 0;
+            for (String inputFile : request.getInputFiles()) {
+                Log.e("zipIt", "reading file " + inputFile);
+                updateStatus(handler, numFilesProcessed, inputFile, false);
+                writer.writeNext();
+                numFilesProcessed++;
+                Log.e("zipIt", "done " + inputFile);
             }
-            in.close();
-            outStream.closeEntry();
-            numFilesProcessed++;
-            Log.e("zipIt", "done " + inputFile);
+            writer.finish();
+        } finally {
+            writer.abort();
+            pool.shutdown();
+            outStream.close();
         }
-        outStream.close();
         Log.e("zipIt", "closing");
 
         if (request.isDeleteInputfiles()) {
-            numFilesProcessed = 0;
+            int numFilesProcessed = 0;
             for (String inputFile : request.getInputFiles()) {
                 updateStatus(handler, numFilesProcessed, inputFile, true);
                 File file = new File(inputFile);
@@ -85,6 +102,16 @@ public class ZipItUpProcessor {
         sendUpdate(handler, 100, "all done");
     }
 
+    private static boolean isStored(String inputFile) {
+        String name = inputFile.toLowerCase(Locale.US);
+        for (String extension : STORED_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void updateStatus(
             Handler handler, int numFilesProcessed, String inputFile, boolean deleteStage) {
         int percentageDone = (100 * numFilesProcessed) / request.getInputFiles().size();
@@ -38,6 +38,15 @@ public class ZipItUpRequest implements Serializable {
 
     private boolean deleteInputfiles;
 
+    // sync each part to storage as it is finished
+    private boolean syncOutput;
+
+    // write outputFile.manifest with the size and CRC of each part
+    private boolean writeManifest;
+
+    // number of files compressed at the same time; if 0, one per processor
+    private int numThreads;
+
     public List<String> getInputFiles() {
         return inputFiles;
     }
@@ -69,4 +78,28 @@ public class ZipItUpRequest implements Serializable {
     public boolean isDeleteInputfiles() {
         return deleteInputfiles;
     }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public boolean isSyncOutput() {
+        return syncOutput;
+    }
+
+    public void setSyncOutput(boolean syncOutput) {
+        this.syncOutput = syncOutput;
+    }
+
+    public boolean isWriteManifest() {
+        return writeManifest;
+    }
+
+    public void setWriteManifest(boolean writeManifest) {
+        this.writeManifest = writeManifest;
+    }
 }
@@ -0,0 +1,158 @@
+package com.cellbots;
+
+/**
+ * Computes the wheel speed that keeps the robot upright from its pitch and
+ * pitch rate. It is a PID controller on the pitch, with the derivative taken
+ * straight from the gyro's pitch rate rather than by differencing. The servos
+ * set the wheels' speed rather than their torque, so the integral term is
+ * what carries the robot under its centre of mass. To stop, the robot has to
+ * lean back first, so the target pitch leans against the commanded speed by
+ * ks; without it the robot balances but keeps speeding up. Together that is
+ * state feedback on the angle, its rate, its integral and the wheel speed,
+ * and gains from an LQR design on those states can be set directly.
+ *
+ * All gains can be changed while the loop runs; update() allocates nothing.
+ */
+public class BalanceController
+{
+  /** Proportional gain, in full speed per degree. */
+  private volatile float kp             = 0.06f;
+
+  /** Integral gain, in full speed per degree second. */
+  private volatile float ki             = 0.5f;
+
+  /** Derivative gain, in full speed per degree per second. */
+  private volatile float kd             = 0.002f;
+
+  /** Speed gain, in degrees of lean against the motion at full speed. */
+  private volatile float ks             = 5;
+
+  /** The pitch at which the robot balances, in degrees. */
+  private volatile float targetPitch    = 90;
+
+  /** Past this far from the target the robot has fallen and is let go. */
+  private volatile float maxLean        = 30;
+
+  /** The most the integral term may contribute, in full speed. */
+  private volatile float integralLimit  = 1;
+
+  /** Flips the output for robots whose wheels face the other way. */
+  private volatile boolean reversed     = false;
+
+  // Owned by the control loop: the integral term, in full speed, and the
+  // last output.
+  private float          integral       = 0;
+
+  private float          output         = 0;
+
+  private boolean        fallen         = false;
+
+  public void setGains(float kp, float ki, float kd)
+  {
+    this.kp = kp;
+    this.ki = ki;
+    this.kd = kd;
+  }
+
+  public void setSpeedGain(float ks)
+  {
+    this.ks = ks;
+  }
+
+  public float getKs()
+  {
+    return ks;
+  }
+
+  public float getKp()
+  {
+    return kp;
+  }
+
+  public float getKi()
+  {
+    return ki;
+  }
+
+  public float getKd()
+  {
+    return kd;
+  }
+
+  public void setTargetPitch(float targetPitch)
+  {
+    this.targetPitch = targetPitch;
+  }
+
+  public float getTargetPitch()
+  {
+    return targetPitch;
+  }
+
+  public void setMaxLean(float maxLean)
+  {
+    this.maxLean = maxLean;
+  }
+
+  public void setIntegralLimit(float integralLimit)
+  {
+    this.integralLimit = integralLimit;
+  }
+
+  public void setReversed(boolean reversed)
+  {
+    this.reversed = reversed;
+  }
+
+  /** Returns true if the last update found the robot past maxLean. */
+  public boolean hasFallen()
+  {
+    return fallen;
+  }
+
+  /** Forgets the integral, e.g. after the robot was picked up. */
+  public void reset()
+  {
+    integral = 0;
+    output = 0;
+    fallen = false;
+  }
+
+  /**
+   * Returns the wheel speed, from -1 to 1, that drives the wheels under the
+   * robot's centre of mass.
+   *
+   * @param pitch the pitch in degrees
+   * @param pitchRate the rate of change of the pitch in degrees per second
+   * @param dt seconds since the last update
+   */
+  public float update(float pitch, float pitchRate, float dt)
+  {
+    float error = pitch - targetPitch + ks * output;
+    if (error > 180)
+    {
+      error -= 360;
+    }
+    else if (error < -180)
+    {
+      error += 360;
+    }
+    if (Math.abs(error) > maxLean)
+    {
+      integral = 0;
+      output = 0;
+      fallen = true;
+      return 0;
+    }
+    fallen = false;
+
+    // Clamp the integral so it cannot wind up while the wheels saturate.
+    float limit = integralLimit;
+    integral += ki * error * dt;
+    integral = Math.max(-limit, Math.min(limit, integral));
+
+    output = kp * error + integral + kd * pitchRate;
+    output = Math.max(-1, Math.min(1, output));
+    return reversed ? -output : output;
+  }
+}
@@ -0,0 +1,171 @@
+package com.cellbots;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.cellbots.sensors.AttitudeEstimator;
+
+/**
+ * Runs the balance controller at a fixed rate: each iteration reads the
+ * latest fused attitude, computes the wheel speed and sets it. Iterations
+ * are scheduled against absolute deadlines so timing errors do not add up,
+ * and a loop that falls more than a period behind skips ahead instead of
+ * running back to back.
+ *
+ * The loop runs on its own thread from start(), or step() can be called
+ * directly with a simulated clock; nothing in an iteration allocates.
+ */
+public class BalanceLoop implements Runnable
+{
+  /** Iterations per second. */
+  public static final int      RATE_HZ          = 100;
+
+  /** An attitude older than this many periods stops the wheels. */
+  private static final int     STALE_PERIODS    = 5;
+
+  private final AttitudeEstimator attitude;
+
+  private final BalanceController controller;
+
+  private final WheelDrive     drive;
+
+  private final long           periodNanos;
+
+  private final LoopTimingStats stats;
+
+  private final float[]        reading          = new float[4];
+
+  private volatile boolean     running          = false;
+
+  private Thread               thread;
+
+  // Owned by the loop.
+  private long                 lastStepNanos    = 0;
+
+  private long                 lastComputeNanos = 0;
+
+  private float                lastOutput       = 0;
+
+  public BalanceLoop(AttitudeEstimator attitude, BalanceController controller, WheelDrive drive)
+  {
+    this(attitude, controller, drive, RATE_HZ);
+  }
+
+  public BalanceLoop(AttitudeEstimator attitude, BalanceController controller, WheelDrive drive,
+      int rateHz)
+  {
+    this.attitude = attitude;
+    this.controller = controller;
+    this.drive = drive;
+    this.periodNanos = 1000000000L / rateHz;
+    this.stats = new LoopTimingStats(periodNanos);
+  }
+
+  public LoopTimingStats getStats()
+  {
+    return stats;
+  }
+
+  /** Returns the last wheel speed set, from -1 to 1. */
+  public float getLastOutput()
+  {
+    return lastOutput;
+  }
+
+  public synchronized void start()
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    controller.reset();
+    lastStepNanos = 0;
+    thread = new Thread(this, "BalanceLoop");
+    thread.setPriority(Thread.MAX_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Stops the loop, waits for it to finish and stops the wheels.
+   */
+  public void stop()
+  {
+    Thread t;
+    synchronized (this)
+    {
+      running = false;
+      t = thread;
+      thread = null;
+    }
+    if (t != null)
+    {
+      LockSupport.unpark(t);
+      try
+      {
+        t.join();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    drive.setWheels(0, 0);
+  }
+
+  public boolean isRunning()
+  {
+    return running;
+  }
+
+  public void run()
+  {
+    long deadline = System.nanoTime();
+    while (running)
+    {
+      deadline += periodNanos;
+      long now;
+      while ((now = System.nanoTime()) < deadline && running)
+      {
+        LockSupport.parkNanos(deadline - now);
+      }
+      if (!running)
+      {
+        break;
+      }
+      if (now - deadline > periodNanos)
+      {
+        // Too far behind to catch up: start a fresh schedule.
+        deadline = now;
+      }
+      step(now);
+      lastComputeNanos = System.nanoTime() - now;
+    }
+  }
+
+  /**
+   * Runs one iteration at the given time.
+   */
+  public void step(long now)
+  {
+    float dt = periodNanos * 1e-9f;
+    if (lastStepNanos != 0)
+    {
+      long period = now - lastStepNanos;
+      stats.record(period, lastComputeNanos);
+      dt = period * 1e-9f;
+    }
+    lastStepNanos = now;
+
+    float output = 0;
+    if (attitude.hasAttitude())
+    {
+      long timestamp = attitude.getAttitude(reading);
+      if (now - timestamp < STALE_PERIODS * periodNanos)
+      {
+        output = controller.update(reading[1], reading[3], dt);
+      }
+    }
+    lastOutput = output;
+    drive.setWheels(output, output);
+  }
+}
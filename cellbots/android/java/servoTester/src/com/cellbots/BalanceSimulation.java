@@ -0,0 +1,261 @@
+package com.cellbots;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import com.cellbots.sensors.AttitudeEstimator;
+
+/**
+ * Runs the balance loop against a simulated two-wheeled robot on a desktop
+ * JVM, for tuning the gains and checking changes off the phone.
+ *
+ * The robot is an inverted pendulum on wheels driven by continuous rotation
+ * servos, which reach the commanded speed with a first-order lag after the
+ * delay of the audio buffer. The phone is mounted upside down on the
+ * pendulum, as the balancer expects. Its accelerometer and gyroscope readings
+ * are synthesized, with noise, bias and vibration, and fused by the same
+ * AttitudeEstimator the phone uses, stepped at the same rate; the control
+ * loop runs with random scheduling jitter.
+ *
+ * <pre>
+ * java com.cellbots.BalanceSimulation [kp ki kd ks [delayMs [seconds]]] [--check]
+ * </pre>
+ *
+ * prints the tilt and loop timing. With --check it exits with status 1 if the
+ * robot falls or wobbles by more than MAX_RMS_TILT.
+ */
+public class BalanceSimulation implements WheelDrive
+{
+  /** Physics steps per second. */
+  private static final int    PHYSICS_HZ     = 4000;
+
+  private static final int    SENSOR_HZ      = 200;
+
+  /**
+   * Estimator steps per second, as SensorFusion.UPDATE_RATE_HZ on the phone.
+   * Not read from there, since SensorFusion needs the Android classes.
+   */
+  private static final int    FUSION_HZ      = 100;
+
+  private static final double GRAVITY        = 9.80665;
+
+  /** The worst RMS tilt --check accepts, in degrees. */
+  private static final double MAX_RMS_TILT   = 3;
+
+  /** Height of the centre of mass above the axle, in m. */
+  double                      length         = 0.12;
+
+  /** Wheel speed at full command, in m/s. */
+  double                      maxWheelSpeed  = 0.6;
+
+  /** Time constant of the servos' response, in s. */
+  double                      servoLag       = 0.03;
+
+  /** Commands within this of 0 do not move the servos. */
+  double                      servoDeadBand  = 0.02;
+
+  /** Delay from a command to the servos seeing it, in s. */
+  double                      commandDelay   = 0.03;
+
+  /** The robot is held still until this time, in s, while the attitude settles. */
+  double                      releaseTime    = 3;
+
+  /** Standard deviation of the control loop's start time, in s. */
+  double                      schedulingJitter = 0.001;
+
+  private final Random        random         = new Random(1);
+
+  // Robot state: tilt from upright in rad (positive towards +x), its rate,
+  // and the wheel speed in m/s.
+  double                      tilt           = Math.toRadians(2);
+
+  double                      tiltRate       = 0;
+
+  double                      wheelSpeed     = 0;
+
+  double                      position       = 0;
+
+  double                      acceleration   = 0;
+
+  // Commands waiting out the delay, as {time, speed} pairs.
+  private final ArrayDeque<double[]> commands = new ArrayDeque<double[]>();
+
+  private double              appliedCommand = 0;
+
+  private double              now            = 0;
+
+  public void setWheels(float left, float right)
+  {
+    commands.add(new double[] { now + commandDelay, (left + right) / 2 });
+  }
+
+  private void physicsStep(double dt)
+  {
+    while (!commands.isEmpty() && commands.peek()[0] <= now)
+    {
+      appliedCommand = commands.poll()[1];
+    }
+    double command = Math.abs(appliedCommand) < servoDeadBand ? 0 : appliedCommand;
+    // Forward on the wheels is the way the screen faces, which is -x.
+    double targetSpeed = -command * maxWheelSpeed;
+    acceleration = (targetSpeed - wheelSpeed) / servoLag;
+    wheelSpeed += acceleration * dt;
+    position += wheelSpeed * dt;
+    if (now >= releaseTime)
+    {
+      double tiltAcceleration = (GRAVITY * Math.sin(tilt) - acceleration * Math.cos(tilt)) / length;
+      tiltRate += tiltAcceleration * dt;
+      tilt += tiltRate * dt;
+    }
+    now += dt;
+  }
+
+  /**
+   * Feeds the estimator what the phone would read. Upside down, the phone's
+   * y axis points down the pendulum and its pitch reads 90 when upright.
+   */
+  private void sense(AttitudeEstimator estimator, double[] gyroBias)
+  {
+    double s = Math.sin(tilt);
+    double c = Math.cos(tilt);
+    // Up and the direction of travel, in the phone's frame.
+    double upY = -c, upZ = s;
+    double forwardY = -s, forwardZ = -c;
+    double vibration = 0.5 * random.nextGaussian();
+    estimator.setAccelerometer((float) (0.05 * random.nextGaussian()),
+        (float) (GRAVITY * upY + (acceleration + vibration) * forwardY + 0.1 * random.nextGaussian()),
+        (float) (GRAVITY * upZ + (acceleration + vibration) * forwardZ + 0.1 * random.nextGaussian()));
+    // Tilting towards +x turns the phone about its x axis and lowers the
+    // pitch.
+    estimator.setGyroscope((float) (tiltRate + gyroBias[0] + 0.01 * random.nextGaussian()),
+        (float) (gyroBias[1] + 0.01 * random.nextGaussian()),
+        (float) (gyroBias[2] + 0.01 * random.nextGaussian()));
+  }
+
+  private static final String USAGE = "usage: java com.cellbots.BalanceSimulation"
+      + " [kp ki kd ks [delayMs [seconds]]] [--check]";
+
+  public static void main(String[] args)
+  {
+    BalanceController controller = new BalanceController();
+    float[] gains = { controller.getKp(), controller.getKi(), controller.getKd(),
+        controller.getKs() };
+    boolean check = false;
+    double delayMs = -1;
+    double seconds = 20;
+    int n = 0;
+    for (String arg : args)
+    {
+      if (arg.equals("--check"))
+      {
+        check = true;
+      }
+      else if (arg.equals("--help") || arg.equals("-h"))
+      {
+        System.out.println(USAGE);
+        return;
+      }
+      else
+      {
+        n++;
+        try
+        {
+          if (n <= 4)
+          {
+            gains[n - 1] = Float.parseFloat(arg);
+          }
+          else if (n == 5)
+          {
+            delayMs = Double.parseDouble(arg);
+          }
+          else if (n == 6)
+          {
+            seconds = Double.parseDouble(arg);
+          }
+        }
+        catch (NumberFormatException e)
+        {
+          System.err.println("not a number: " + arg);
+          System.err.println(USAGE);
+          System.exit(2);
+        }
+      }
+    }
+
+    BalanceSimulation robot = new BalanceSimulation();
+    if (delayMs >= 0)
+    {
+      robot.commandDelay = delayMs / 1000;
+    }
+    controller.setGains(gains[0], gains[1], gains[2]);
+    controller.setSpeedGain(gains[3]);
+    AttitudeEstimator estimator = new AttitudeEstimator();
+    BalanceLoop loop = new BalanceLoop(estimator, controller, robot);
+    double[] gyroBias = { 0.02, -0.01, 0.015 };
+
+    double physicsDt = 1.0 / PHYSICS_HZ;
+    double sensorPeriod = 1.0 / SENSOR_HZ;
+    double fusionPeriod = 1.0 / FUSION_HZ;
+    double loopPeriod = 1.0 / BalanceLoop.RATE_HZ;
+    double nextSensor = 0;
+    double nextFusion = 0.003;
+    double nextLoop = robot.releaseTime;
+    double nextLoopScheduled = nextLoop;
+    double sumSquaredTilt = 0;
+    double maxTilt = 0;
+    int samples = 0;
+    boolean fell = false;
+    while (robot.now < seconds)
+    {
+      robot.physicsStep(physicsDt);
+      if (robot.now >= nextSensor)
+      {
+        robot.sense(estimator, gyroBias);
+        nextSensor += sensorPeriod;
+      }
+      if (robot.now >= nextFusion)
+      {
+        estimator.update((float) fusionPeriod, (long) (robot.now * 1e9));
+        nextFusion += fusionPeriod;
+      }
+      if (robot.now >= nextLoop)
+      {
+        loop.step((long) (robot.now * 1e9));
+        nextLoopScheduled += loopPeriod;
+        nextLoop = nextLoopScheduled
+            + Math.abs(robot.random.nextGaussian()) * robot.schedulingJitter;
+      }
+      // Settle for a second before scoring.
+      if (robot.now > robot.releaseTime + 1)
+      {
+        double degrees = Math.toDegrees(robot.tilt);
+        sumSquaredTilt += degrees * degrees;
+        maxTilt = Math.max(maxTilt, Math.abs(degrees));
+        samples++;
+      }
+      if (Math.abs(robot.tilt) > Math.PI / 3)
+      {
+        fell = true;
+        break;
+      }
+    }
+
+    double rmsTilt = samples == 0 ? 0 : Math.sqrt(sumSquaredTilt / samples);
+    System.out.printf("gains kp=%.4f ki=%.4f kd=%.4f ks=%.2f, delay %.0f ms%n", controller.getKp(),
+        controller.getKi(), controller.getKd(), controller.getKs(), robot.commandDelay * 1000);
+    if (fell)
+    {
+      System.out.printf("FELL after %.2f s%n", robot.now);
+    }
+    else
+    {
+      System.out.printf("tilt rms %.2f deg, max %.2f deg after settling; drifted %.2f m%n",
+          rmsTilt, maxTilt, robot.position);
+    }
+    System.out.println("loop: " + loop.getStats());
+    if (check && (fell || rmsTilt > MAX_RMS_TILT))
+    {
+      System.exit(1);
+    }
+  }
+}
@@ -1,81 +1,98 @@
 package com.cellbots;
 
-public class Balancer implements OrientationListener
+import android.os.Process;
+
+import com.cellbots.sensors.SensorFusion;
+
+/**
+ * Balances a two-wheeled robot driven by continuous rotation servos on
+ * servo outputs 0 (left) and 2 (right). The pulse widths those outputs are
+ * set to when balancing starts are taken as the wheels' stop positions, so
+ * trim them with the sliders first. The right servo is mounted mirrored and
+ * turns the opposite way for the same command.
+ */
+public class Balancer implements WheelDrive
 {
+  static final int  LEFT_SERVO  = 0;
+
+  static final int  RIGHT_SERVO = 2;
 
-  PulseGenerator pulseGenerator;
+  PulseGenerator    pulseGenerator;
 
-  ServoTester    servoTester;
-  
-  int maxLean = 30;
-  
-  int deadBand = 0;
+  ServoTester       servoTester;
 
-  // OrientationManager orientationManager;
+  int               leftCenter, rightCenter, maxSpeed;
 
-  int            leftCenter, rightCenter, maxSpeed;
+  private final BalanceController controller = new BalanceController();
 
-  float          requestedPitch = (float) 90.0;
+  private SensorFusion fusion;
+
+  private BalanceLoop loop;
 
-  long lastTimestamp;
-  
-  float degPerSecond;
-  
-  
-  
   public Balancer()
   {
-    // this.orientationManager = new OrientationManager();
   }
 
   public void startBalancing(PulseGenerator pulseGenerator, ServoTester servoTester)
   {
-    this.pulseGenerator = pulseGenerator;
-    this.servoTester = servoTester;
-    this.leftCenter = 0;//pulseGenerator.getLeftPulsePercent();
-    this.rightCenter = 0;//pulseGenerator.getRightPulsePercent();
-
-    if (Math.abs(leftCenter - 50) > Math.abs(leftCenter - 50))
-    {
-      maxSpeed = Math.abs(leftCenter - 50) - deadBand;
-    }
-    else
+    if (loop != null || !SensorFusion.isSupported(ServoTester.sensorManager))
     {
-      maxSpeed = Math.abs(rightCenter - 50) - deadBand;
+      return;
     }
+    this.pulseGenerator = pulseGenerator;
+    this.servoTester = servoTester;
+    this.leftCenter = pulseGenerator.getPulsePercent(LEFT_SERVO);
+    this.rightCenter = pulseGenerator.getPulsePercent(RIGHT_SERVO);
+    // The largest swing both servos can make either way from center.
+    maxSpeed = Math.min(Math.min(leftCenter, 100 - leftCenter),
+        Math.min(rightCenter, 100 - rightCenter));
 
-    if (OrientationManager.isSupported())
+    fusion = SensorFusion.acquire(ServoTester.sensorManager);
+    loop = new BalanceLoop(fusion.getEstimator(), controller, this)
     {
-      OrientationManager.startListening(this);
-    }
-
+      @Override
+      public void run()
+      {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        super.run();
+      }
+    };
+    loop.start();
   }
 
   public void stopBalancing(PulseGenerator pulseGenerator, ServoTester servoTester)
   {
-    if (OrientationManager.isListening())
+    if (loop == null)
     {
-      OrientationManager.stopListening();
+      return;
     }
+    loop.stop();
+    loop = null;
+    fusion.release();
+    fusion = null;
+  }
 
+  public boolean isBalancing()
+  {
+    return loop != null;
   }
 
-  public void onOrientationChanged(float azimuth, float pitch, float roll, float timestamp)
+  /** Returns the controller, whose gains can be tuned while balancing. */
+  public BalanceController getController()
   {
-    // TODO Auto-generated method stub
-    
-    Float pitchError = requestedPitch - pitch;
-    
-    if(pitchError > maxLean)
-    {
-         //pulseGenerator.setLeftPulsePercent(leftCenter);
-         //pulseGenerator.setRightPulsePercent(rightCenter);
-         return;
-    }
-    
-    
-    
-    
+    return controller;
+  }
 
+  /** Returns the loop timing, or null when not balancing. */
+  public LoopTimingStats getStats()
+  {
+    BalanceLoop l = loop;
+    return l == null ? null : l.getStats();
+  }
+
+  public void setWheels(float left, float right)
+  {
+    pulseGenerator.setPulsePercent(leftCenter + Math.round(left * maxSpeed), LEFT_SERVO);
+    pulseGenerator.setPulsePercent(rightCenter - Math.round(right * maxSpeed), RIGHT_SERVO);
   }
 }
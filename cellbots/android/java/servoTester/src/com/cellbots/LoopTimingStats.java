@@ -0,0 +1,145 @@
+package com.cellbots;
+
+/**
+ * Records how well a fixed-rate loop keeps time: a histogram of the periods
+ * between iterations, the jitter from the target period and the number of
+ * overruns. record() allocates nothing; it is called from the loop, and the
+ * getters may be called from any thread, which may see a count or two out of
+ * step with the others.
+ */
+public class LoopTimingStats
+{
+  /** Width of each histogram bucket in nanoseconds. */
+  public static final long BUCKET_NANOS = 500000;
+
+  private final long       targetNanos;
+
+  /** Periods from 0 to twice the target; the last bucket holds the rest. */
+  private final int[]      histogram;
+
+  private volatile int     count;
+
+  private volatile int     overruns;
+
+  private volatile long    maxJitterNanos;
+
+  private volatile long    maxComputeNanos;
+
+  private double           sumSquaredJitter;
+
+  public LoopTimingStats(long targetNanos)
+  {
+    this.targetNanos = targetNanos;
+    histogram = new int[(int) (2 * targetNanos / BUCKET_NANOS) + 1];
+  }
+
+  /**
+   * Records one iteration.
+   *
+   * @param periodNanos time since the previous iteration started
+   * @param computeNanos time the previous iteration took to run
+   */
+  public void record(long periodNanos, long computeNanos)
+  {
+    int bucket = (int) Math.min(histogram.length - 1, periodNanos / BUCKET_NANOS);
+    histogram[bucket]++;
+    long jitter = Math.abs(periodNanos - targetNanos);
+    if (jitter > maxJitterNanos)
+    {
+      maxJitterNanos = jitter;
+    }
+    if (computeNanos > maxComputeNanos)
+    {
+      maxComputeNanos = computeNanos;
+    }
+    sumSquaredJitter += (double) jitter * jitter;
+    // Late by half a period or more, or the work no longer fits.
+    if (periodNanos > targetNanos + targetNanos / 2 || computeNanos > targetNanos)
+    {
+      overruns++;
+    }
+    count++;
+  }
+
+  public void reset()
+  {
+    for (int i = 0; i < histogram.length; i++)
+    {
+      histogram[i] = 0;
+    }
+    count = 0;
+    overruns = 0;
+    maxJitterNanos = 0;
+    maxComputeNanos = 0;
+    sumSquaredJitter = 0;
+  }
+
+  public long getTargetNanos()
+  {
+    return targetNanos;
+  }
+
+  public int getCount()
+  {
+    return count;
+  }
+
+  public int getOverruns()
+  {
+    return overruns;
+  }
+
+  public long getMaxJitterNanos()
+  {
+    return maxJitterNanos;
+  }
+
+  public long getMaxComputeNanos()
+  {
+    return maxComputeNanos;
+  }
+
+  public double getRmsJitterNanos()
+  {
+    int n = count;
+    return n == 0 ? 0 : Math.sqrt(sumSquaredJitter / n);
+  }
+
+  /** Copies the histogram into a new array, bucket i covering i * BUCKET_NANOS. */
+  public int[] getHistogram()
+  {
+    return histogram.clone();
+  }
+
+  /**
+   * Returns the period below which the given fraction of iterations fell, to
+   * the bucket width.
+   */
+  public long getPercentileNanos(double fraction)
+  {
+    int[] buckets = getHistogram();
+    long total = 0;
+    for (int b : buckets)
+    {
+      total += b;
+    }
+    long seen = 0;
+    for (int i = 0; i < buckets.length; i++)
+    {
+      seen += buckets[i];
+      if (seen >= fraction * total)
+      {
+        return (i + 1) * BUCKET_NANOS;
+      }
+    }
+    return buckets.length * BUCKET_NANOS;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("%d loops, rms jitter %.2f ms, max jitter %.2f ms, p99 period %.1f ms, "
+        + "max compute %.2f ms, %d overruns", count, getRmsJitterNanos() / 1e6,
+        maxJitterNanos / 1e6, getPercentileNanos(0.99) / 1e6, maxComputeNanos / 1e6, overruns);
+  }
+}
@@ -2,6 +2,10 @@ package com.cellbots;
 
   public interface OrientationListener {
     
+    /**
+     * Angles are in degrees and pitchRate in degrees per second, as
+     * published by com.cellbots.sensors.AttitudeEstimator.
+     */
     public void onOrientationChanged(float azimuth, 
             float pitch, float roll, float pitchRate);
  
@@ -172,10 +172,14 @@ public class PulseGenerator implements Runnable
       int bufferlength = pulseInterval * bufferPulses * 2;
       if (playing)
       {
-        for (int i = 0; i < bufferlength && bufferChanged; i += 2)
+        // Not while setPulsePercent() is regenerating a channel.
+        synchronized (this)
         {
-          audioBuffer[i] = leftChannelBuffer[i / 2];
-          audioBuffer[i + 1] = rightChannelBuffer[i / 2];
+          for (int i = 0; i < bufferlength && bufferChanged; i += 2)
+          {
+            audioBuffer[i] = leftChannelBuffer[i / 2];
+            audioBuffer[i + 1] = rightChannelBuffer[i / 2];
+          }
         }
 
       }
@@ -220,21 +224,30 @@ public class PulseGenerator implements Runnable
   }
 
   /**
-   * Sets the left pulse percent.
+   * Sets the left pulse percent. Called from the UI thread by the sliders
+   * and from the balance loop, so the channel buffers are regenerated under
+   * the generator's lock.
    * 
    * @param percent
    *          the new left pulse percent
    */
-  public void setPulsePercent(int percent, int i)
+  public synchronized void setPulsePercent(int percent, int i)
   {
 
-    if (i< 0 || i > 4)
+    if (i< 0 || i > 3)
     {
       Log.e(TAG,"Servo index out of bounds, should be between 0 and 3");
       return; 
     }
     
-    this.pulseWidthArray[i] = MIN_PULSE_WIDTH + ( ( percent * ( MAX_PULSE_WIDTH - MIN_PULSE_WIDTH ) ) / 100 );
+    percent = Math.max(0, Math.min(100, percent));
+    int pulseWidth = MIN_PULSE_WIDTH + ( ( percent * ( MAX_PULSE_WIDTH - MIN_PULSE_WIDTH ) ) / 100 );
+    if (pulseWidth == pulseWidthArray[i])
+    {
+      // The balancer sets the pulses every control loop, usually unchanged.
+      return;
+    }
+    this.pulseWidthArray[i] = pulseWidth;
 
     if (i < 2)
     {
@@ -254,7 +267,7 @@ public class PulseGenerator implements Runnable
    */
   public int getPulsePercent(int i)
   {
-    return ( ( pulseWidthArray[i] - MIN_PULSE_WIDTH ) / ( MAX_PULSE_WIDTH - MIN_PULSE_WIDTH ) ) * 100;
+    return ( ( pulseWidthArray[i] - MIN_PULSE_WIDTH ) * 100 ) / ( MAX_PULSE_WIDTH - MIN_PULSE_WIDTH );
   }
 
   /**
@@ -62,6 +62,12 @@ public class ServoTester extends Activity implements OnSeekBarChangeListener
 
   ToggleButton                soundToggleButton;
 
+  ToggleButton                balanceToggleButton;
+
+  TextView                    balanceText;
+
+  Balancer                    balancer;
+
   @Override
   public void onCreate(Bundle savedInstanceState)
   {
@@ -99,6 +105,9 @@ public class ServoTester extends Activity implements OnSeekBarChangeListener
     rPulseText2 = (TextView) findViewById(R.id.RightServoValue2);
     rPulseText2.setText("3 Right Neg Pulse width =" + noise.getPulsePercent(3));
 
+    balancer = new Balancer();
+    balanceToggleButton = (ToggleButton) findViewById(R.id.ToggleBalance);
+    balanceText = (TextView) findViewById(R.id.BalanceStatus);
   }
 
   @Override
@@ -112,6 +121,7 @@ public class ServoTester extends Activity implements OnSeekBarChangeListener
   @Override
   protected void onDestroy()
   {
+    balancer.stopBalancing(noise, this);
     noise.stop();
     // soundToggleButton.setChecked(false);
     // TODO Auto-generated method stub
@@ -123,6 +133,22 @@ public class ServoTester extends Activity implements OnSeekBarChangeListener
     noise.togglePlayback();
   }
 
+  public void onToggleBalance(View v)
+  {
+    if (balancer.isBalancing())
+    {
+      LoopTimingStats stats = balancer.getStats();
+      balancer.stopBalancing(noise, this);
+      balanceText.setText("Loop: " + stats);
+    }
+    else
+    {
+      balancer.startBalancing(noise, this);
+      balanceText.setText(balancer.isBalancing() ? "" : "Balancing needs an accelerometer");
+    }
+    balanceToggleButton.setChecked(balancer.isBalancing());
+  }
+
   public void onProgressChanged(SeekBar seekBar, int progress, boolean fromTouch)
   {
     if (seekBar.getId() == lPulseBar.getId())
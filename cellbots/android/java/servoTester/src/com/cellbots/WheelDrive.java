@@ -0,0 +1,14 @@
+package com.cellbots;
+
+/**
+ * Something that turns the wheels: the servo pulse generator on the phone,
+ * or a simulated robot.
+ */
+public interface WheelDrive
+{
+  /**
+   * Sets the wheel speeds, each from -1 (full reverse) to 1 (full forward).
+   * Called from the control loop, so it must not block or allocate.
+   */
+  public void setWheels(float left, float right);
+}
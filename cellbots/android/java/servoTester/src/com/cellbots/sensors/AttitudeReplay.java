@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.sensors;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Replays recorded sensor traces through an {@link AttitudeEstimator} on a
+ * desktop JVM, stepping it at {@link SensorFusion#UPDATE_RATE_HZ} in trace
+ * time as the phone would. The traces are the CSV files the data logger
+ * exports, one line per event: "timestamp,accuracy,x,y,z," with timestamps in
+ * nanoseconds.
+ *
+ * <pre>
+ * java com.cellbots.sensors.AttitudeReplay accel.csv gyro.csv [mag.csv]
+ * </pre>
+ *
+ * prints "timestamp,azimuth,pitch,roll,pitchRate,accelPitch" for each step.
+ * accelPitch is the pitch read straight off the accelerometer, for comparing
+ * the noise and lag of the fused pitch. Pass "-" for the gyro trace to replay
+ * without one.
+ */
+public class AttitudeReplay {
+
+    private static final long STEP_NANOS = 1000000000L / SensorFusion.UPDATE_RATE_HZ;
+
+    /**
+     * Reads one trace a line at a time.
+     */
+    private static class Trace {
+        private final BufferedReader mReader;
+
+        long timestamp = Long.MAX_VALUE;
+
+        final float[] values = new float[3];
+
+        Trace(String filename) throws IOException {
+            mReader = filename.equals("-") ? null : new BufferedReader(new FileReader(filename));
+            next();
+        }
+
+        /** Moves to the next event, or sets the timestamp to MAX_VALUE. */
+        void next() throws IOException {
+            timestamp = Long.MAX_VALUE;
+            if (mReader == null) {
+                return;
+            }
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length < 5) {
+                    continue;
+                }
+                timestamp = Long.parseLong(fields[0].trim());
+                for (int i = 0; i < 3; i++) {
+                    values[i] = Float.parseFloat(fields[2 + i].trim());
+                }
+                return;
+            }
+            mReader.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: AttitudeReplay <accel csv> <gyro csv or -> [mag csv]");
+            System.exit(1);
+        }
+        Trace accel = new Trace(args[0]);
+        Trace gyro = new Trace(args[1]);
+        Trace mag = new Trace(args.length > 2 ? args[2] : "-");
+        boolean hasGyro = !args[1].equals("-");
+        AttitudeEstimator estimator = hasGyro ? new AttitudeEstimator()
+                : new AttitudeEstimator(AttitudeEstimator.NO_GYRO_KP, 0);
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        float[] attitude = new float[4];
+        float[] gyroSum = new float[3];
+        float[] lastAccel = new float[3];
+        int gyroCount = 0;
+        long nextStep = accel.timestamp + STEP_NANOS;
+        while (accel.timestamp != Long.MAX_VALUE) {
+            // Feed every event up to the next step, like the fusion thread.
+            while (true) {
+                long t = Math.min(accel.timestamp, Math.min(gyro.timestamp, mag.timestamp));
+                if (t > nextStep) {
+                    break;
+                }
+                if (t == accel.timestamp) {
+                    estimator.setAccelerometer(accel.values[0], accel.values[1], accel.values[2]);
+                    System.arraycopy(accel.values, 0, lastAccel, 0, 3);
+                    accel.next();
+                } else if (t == gyro.timestamp) {
+                    for (int i = 0; i < 3; i++) {
+                        gyroSum[i] += gyro.values[i];
+                    }
+                    gyroCount++;
+                    gyro.next();
+                } else {
+                    estimator.setMagneticField(mag.values[0], mag.values[1], mag.values[2]);
+                    mag.next();
+                }
+            }
+            if (gyroCount > 0) {
+                estimator.setGyroscope(gyroSum[0] / gyroCount, gyroSum[1] / gyroCount,
+                        gyroSum[2] / gyroCount);
+                gyroSum[0] = gyroSum[1] = gyroSum[2] = 0;
+                gyroCount = 0;
+            }
+            estimator.update(STEP_NANOS * 1e-9f, nextStep);
+            if (estimator.hasAttitude()) {
+                estimator.getAttitude(attitude);
+                double accelPitch = Math.toDegrees(Math.atan2(-lastAccel[1], lastAccel[2]));
+                out.write(nextStep + "," + attitude[0] + "," + attitude[1] + ","
+                        + attitude[2] + "," + attitude[3] + "," + (float) accelPitch + "\n");
+            }
+            nextStep += STEP_NANOS;
+        }
+        out.close();
+    }
+}
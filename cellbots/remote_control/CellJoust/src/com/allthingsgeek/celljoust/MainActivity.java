@@ -32,22 +32,20 @@
 
 package com.allthingsgeek.celljoust;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import com.allthingsgeek.celljoust.R;
-import com.cellbots.CellbotProtos.AudioVideoFrame;
 import com.cellbots.CellbotProtos.PhoneState;
+import com.cellbots.eyes.VideoRateController;
 import com.cellbots.sensors.CompassManager;
 import com.cellbots.sensors.LightSensorManager;
 import com.cellbots.sensors.OrientationManager;
 import com.cellbots.sensors.SensorListenerImpl;
-import com.google.protobuf.ByteString;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
@@ -55,6 +53,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.hardware.Camera;
@@ -110,13 +109,23 @@ public class MainActivity extends Activity implements Callback
   private int                   previewShrink        = 0;
   
 
-  private int                   jpegCompressionLevel = 20;
+  // Bounds for the adaptive video uplink.
+  private static final int      MIN_JPEG_QUALITY     = 10;
 
-  private byte[]                mCallbackBuffer;
+  private static final int      MAX_JPEG_QUALITY     = 40;
 
-  byte[]                        buff;
+  private static final int      MIN_CROP_PERCENT     = 60;
 
-  private ByteArrayOutputStream out;
+  private static final int      MIN_VIDEO_FPS        = 2;
+
+  private static final int      MAX_VIDEO_FPS        = 15;
+
+  private final VideoRateController videoRate        = new VideoRateController(MIN_JPEG_QUALITY, MAX_JPEG_QUALITY,
+                                                         MIN_CROP_PERCENT, MIN_VIDEO_FPS, MAX_VIDEO_FPS);
+
+  // Number of preview buffers cycled between the camera and the conversion
+  // worker, so the camera can fill one while the other is being uploaded.
+  private static final int      NUM_CALLBACK_BUFFERS = 2;
 
   private ConversionWorker      convWorker;
 
@@ -152,8 +161,6 @@ public class MainActivity extends Activity implements Callback
 
     mTorchMode = false;
 
-    out = new ByteArrayOutputStream();
-
     setContentView(R.layout.main);
 
     if (sensorManager == null)
@@ -269,6 +276,7 @@ public class MainActivity extends Activity implements Callback
       CompassManager.startListening(sensorListener);
     }
 
+    sensorListener.start();
   }
 
   private synchronized void stopListening()
@@ -297,6 +305,7 @@ public class MainActivity extends Activity implements Callback
     OrientationManager.stopListening();
     LightSensorManager.stopListening();
     CompassManager.stopListening();
+    sensorListener.stop();
 
     // if (state.isAlive())
     // {
@@ -383,17 +392,23 @@ public class MainActivity extends Activity implements Callback
     // Crop the edges of the picture to reduce the image size
     r = new Rect(previewShrink, previewShrink, previewWidth - previewShrink, previewHeight - previewShrink);
 
-    mCallbackBuffer = new byte[497664];
-
     mCamera.setParameters(params);
     mCamera.setPreviewCallbackWithBuffer(new PreviewCallback()
     {
-      public void onPreviewFrame(byte[] imageData, Camera arg1)
+      public void onPreviewFrame(byte[] imageData, Camera camera)
       {
-        convWorker.nextFrame(imageData);
+        if (!convWorker.nextFrame(imageData))
+        {
+          // The worker did not take the frame, recycle the buffer right away.
+          camera.addCallbackBuffer(imageData);
+        }
       }
     });
-    mCamera.addCallbackBuffer(mCallbackBuffer);
+    int bufferSize = previewWidth * previewHeight * ImageFormat.getBitsPerPixel(previewFormat) / 8;
+    for (int i = 0; i < NUM_CALLBACK_BUFFERS; i++)
+    {
+      mCamera.addCallbackBuffer(new byte[bufferSize]);
+    }
     mCamera.startPreview();
     setTorchMode(mTorchMode);
   }
@@ -416,88 +431,152 @@ public class MainActivity extends Activity implements Callback
     }
   }
 
+  /**
+   * Returns the current settings and per-frame statistics of the video
+   * uplink.
+   */
+  public VideoRateController.Stats getVideoStats()
+  {
+    return videoRate.getStats();
+  }
+
+  /**
+   * Compresses preview frames to JPEG and uploads them. All buffers are
+   * allocated once: preview buffers go back to the camera as soon as they are
+   * compressed, the JPEG is written into a reused buffer, and the protobuf
+   * message is serialized from that buffer straight into the request.
+   */
   class ConversionWorker extends Thread
   {
 
-    // private HttpConnection mConnection;
+    HttpClient                   httpclient;
+
+    volatile boolean             alive;
+
+    HttpPost                     post;
+
+    volatile boolean             sending = false;
+
+    // The newest frame handed over by the camera and not yet compressed.
+    private byte[]               pendingFrame;
+
+    private long                 frameNumber = 0;
 
-    HttpClient httpclient;
+    private Rect                 crop;
 
-    boolean    alive;
+    private Rect                 cropBase;
 
-    volatile HttpPost   post;
+    private int                  cropScale;
 
-    volatile boolean    sending = false;
+    private final VideoFrameEntity.FrameBuffer jpeg = new VideoFrameEntity.FrameBuffer(64 * 1024);
+
+    private final VideoFrameEntity entity = new VideoFrameEntity();
 
     public ConversionWorker()
     {
       // setDaemon(true);
 
-      // this client should automatically reuse its connection
-      
+      // this client reuses its connection between frames
       httpclient = new DefaultHttpClient();
       alive = true;
 
       start();
     }
 
-    public void kill()
+    public synchronized void kill()
     {
       alive = false;
       this.notify();
     }
 
+    /**
+     * Waits for the next frame from the camera. Returns null when the worker
+     * is killed.
+     */
+    private synchronized byte[] takeFrame()
+    {
+      while (alive && pendingFrame == null)
+      {
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException e)
+        {
+        }
+      }
+      byte[] frame = pendingFrame;
+      pendingFrame = null;
+      return frame;
+    }
+
     /*
      * (non-Javadoc)
      * 
      * @see java.lang.Thread#run()
      */
     @Override
-    public synchronized void run()
+    public void run()
     {
-      try
-      {
-        wait();// wait for initial frame
-      }
-      catch (InterruptedException e)
-      {
-      }
       while (alive && sendVideoFrames)
       {
+        byte[] frame = takeFrame();
+        if (frame == null)
+        {
+          break;
+        }
+        if (!videoRate.shouldSendFrame(System.currentTimeMillis()))
+        {
+          // Above the frame rate the link can take right now.
+          if (mCamera != null)
+          {
+            mCamera.addCallbackBuffer(frame);
+          }
+          continue;
+        }
+        int quality = videoRate.getQuality();
+        try
+        {
+          jpeg.reset();
+          YuvImage yuvImage = new YuvImage(frame, previewFormat, previewWidth, previewHeight, null);
+          yuvImage.compressToJpeg(getCropRect(), quality, jpeg);
+        }
+        finally
+        {
+          // The preview buffer is no longer needed; let the camera refill it
+          // while this frame is uploaded.
+          if (mCamera != null)
+          {
+            mCamera.addCallbackBuffer(frame);
+          }
+        }
 
         try
         {
-          httpclient = new DefaultHttpClient();
           sending = true;
-          YuvImage yuvImage = new YuvImage(mCallbackBuffer, previewFormat, previewWidth, previewHeight, null);
-          yuvImage.compressToJpeg(r, jpegCompressionLevel, out); // Tweak the
-                                                                 // quality here
-
-          // state.setVideoFrame(ByteString.copyFrom(out.toByteArray()));
-
-          AudioVideoFrame.Builder avFrame = AudioVideoFrame.newBuilder();
+          entity.setFrame(jpeg.getBuffer(), jpeg.size(), System.currentTimeMillis(), frameNumber++, quality,
+              RobotStateHandler.ROBOT_ID);
 
-          avFrame.setData(ByteString.copyFrom(out.toByteArray()));
-          avFrame.setBotID(RobotStateHandler.ROBOT_ID);
-          avFrame.setCompressionLevel(jpegCompressionLevel);
-          
           //FIXME:  need to be able to change url
-          post = new HttpPost("http://"+putUrl + "/video");
-
-          post.setEntity(new ByteArrayEntity(avFrame.build().toByteArray()));
+          String url = "http://" + putUrl + "/video";
+          if (post == null || !url.equals(post.getURI().toString()))
+          {
+            post = new HttpPost(url);
+            post.setEntity(entity);
+          }
 
           // Log.i(TAG, "sending video");
-          
-          httpclient.execute(post);
-          
-          sending = false;
-          // Log.i(TAG, "sent video");
 
-          // InputStream resStream = resp.getEntity().getContent();
-
-          // ControllerState cs = ControllerState.parseFrom(resStream);
-
-          // mover.processControllerStateEvent(cs);
+          long start = System.currentTimeMillis();
+          HttpResponse resp = httpclient.execute(post);
+          HttpEntity ent = resp.getEntity();
+          if (ent != null)
+          {
+            // Release the connection so the next frame can reuse it.
+            ent.consumeContent();
+          }
+          videoRate.onFrameSent(jpeg.size(), System.currentTimeMillis() - start);
+          // Log.i(TAG, "sent video");
         }
         catch (UnsupportedEncodingException e)
         {
@@ -509,53 +588,54 @@ public class MainActivity extends Activity implements Callback
         {
           e.printStackTrace();
         }
-        catch (com.google.protobuf.InvalidProtocolBufferException e)
-        {
-          // e.printStackTrace();
-          // resetConnection();
-        }
         catch (IOException e)
         {
+          videoRate.onFrameFailed();
           e.printStackTrace();
         }
         finally
         {
-          out.reset();
-          if (mCamera != null)
-          {
-            mCamera.addCallbackBuffer(mCallbackBuffer);
-          }
           sending = false;
-          // isUploading = false;
         }
+      }
+    }
 
-        try
-        {
-          wait();// wait for next frame
-        }
-        catch (InterruptedException e)
-        {
-        }
+    /**
+     * Returns the preview crop, narrowed further by the rate controller.
+     */
+    private Rect getCropRect()
+    {
+      int scale = videoRate.getScalePercent();
+      if (crop == null || scale != cropScale || cropBase != r)
+      {
+        cropBase = r;
+        int insetX = videoRate.getCropInset(r.width());
+        int insetY = videoRate.getCropInset(r.height());
+        crop = new Rect(r.left + insetX, r.top + insetY, r.right - insetX, r.bottom - insetY);
+        cropScale = scale;
       }
+      return crop;
     }
 
+    /**
+     * Hands a preview buffer to the worker. Returns false if the worker did
+     * not take it, in which case the caller must give it back to the camera.
+     * If an older frame is still waiting, it is replaced by this one and its
+     * buffer is returned to the camera.
+     */
     synchronized boolean nextFrame(byte[] frame)
     {
-      if (this.getState() == Thread.State.WAITING && !sending)
+      if (!alive)
       {
-        // ok, we are ready for a new frame:
-        // curFrame = frame;
-        // do the work:
-        this.notify();
-        return true;
+        return false;
       }
-      else
+      if (pendingFrame != null && mCamera != null)
       {
-        // ignore it
-        return false;
-
+        mCamera.addCallbackBuffer(pendingFrame);
       }
-
+      pendingFrame = frame;
+      this.notify();
+      return true;
     }
   }
 
@@ -29,9 +29,11 @@ public class Movement {
 	private static Movement instance;
 	private int speed = 20;
 	private int offset = 0;
+	private StickDrive stickDrive;
 
 	private Movement() {
 		noise = PulseGenerator.getInstance();
+		stickDrive = new StickDrive(noise, this);
 	}
 
 	public static Movement getInstance() {
@@ -86,7 +88,7 @@ public class Movement {
 	}
 
 	public void stop() {
-	    
+		stickDrive.stop();
 		noise.setServo(0, 50, 1);
 		noise.setServo(2, 50, 1);
 	    noise.pause();
@@ -107,9 +109,30 @@ public class Movement {
 	public void setSpeed(int s) {
 		speed = s;
 	}
+
+	public int getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Drives with an analog stick; the wheels follow it smoothly through
+	 * StickDrive rather than jumping on each event.
+	 */
+	public void processStickEvent(ControllerState.StickEvent ev) {
+		if (ev.getStickType() == ControllerState.StickEvent.StickType.ANALOG
+				&& ev.getStickNumber() == 0) {
+			stickDrive.setStick(ev.getX(), ev.getY());
+		}
+	}
 	
 	public String processControllerStateEvent(ControllerState cs)
 	{
+	  // Sticks first: the key loop returns on the first key down.
+	  for (ControllerState.StickEvent ev : cs.getStickEventList())
+	  {
+	    processStickEvent(ev);
+	  }
+
 	  for (ControllerState.KeyEvent ev: cs.getKeyEventList())
       {
          if (ev.getKeyDown())
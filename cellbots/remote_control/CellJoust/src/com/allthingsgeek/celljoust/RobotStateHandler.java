@@ -4,10 +4,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.net.URLEncoder;
 import java.util.Random;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ByteArrayEntity;
@@ -17,6 +19,7 @@ import com.cellbots.CellbotProtos;
 import com.cellbots.CellbotProtos.ControllerState;
 import com.cellbots.CellbotProtos.PhoneState;
 import com.cellbots.CellbotProtos.PhoneState.Builder;
+import com.cellbots.PhoneStateDelta;
 import com.cellbots.sensors.SensorListenerImpl;
 import com.google.protobuf.ByteString;
 
@@ -60,6 +63,12 @@ public class RobotStateHandler extends Thread
 
   public Handler                                handler;
 
+  // Upload only the fields that changed since the last state the server
+  // took, instead of the whole PhoneState.
+  public static boolean                         USE_DELTA_TELEMETRY     = true;
+
+  private final PhoneStateDelta.Encoder         telemetryEncoder        = new PhoneStateDelta.Encoder();
+
 
   public RobotStateHandler(Handler h)
   {
@@ -145,14 +154,45 @@ public class RobotStateHandler extends Thread
             try
             {
               
-              httpclient = new DefaultHttpClient();
+              if (httpclient == null)
+              {
+                // One client for the life of the thread, so the connection to
+                // the server is kept alive between states.
+                httpclient = new DefaultHttpClient();
+              }
               
-              HttpPost post = new HttpPost("http://"+MainActivity.putUrl + "/robotState");
+              HttpPost post;
+              if (USE_DELTA_TELEMETRY)
+              {
+                post = new HttpPost("http://" + MainActivity.putUrl + "/robotState?"
+                    + PhoneStateDelta.BOTID_PARAM + "=" + URLEncoder.encode(ROBOT_ID, "UTF-8"));
+                ByteArrayEntity body = new ByteArrayEntity(telemetryEncoder.encode(state));
+                body.setContentType(PhoneStateDelta.CONTENT_TYPE);
+                post.setEntity(body);
+              }
+              else
+              {
+                post = new HttpPost("http://"+MainActivity.putUrl + "/robotState");
               
-              post.setEntity(new ByteArrayEntity(state.toByteArray()));
+                post.setEntity(new ByteArrayEntity(state.toByteArray()));
+              }
 
               HttpResponse resp = httpclient.execute(post);
 
+              if (USE_DELTA_TELEMETRY)
+              {
+                int status = resp.getStatusLine().getStatusCode();
+                if ((status == HttpStatus.SC_OK || status == HttpStatus.SC_NOT_MODIFIED)
+                    && !resp.containsHeader(PhoneStateDelta.KEYFRAME_HEADER))
+                {
+                  telemetryEncoder.acknowledge();
+                }
+                else
+                {
+                  telemetryEncoder.requestKeyframe();
+                }
+              }
+
               HttpEntity ent = resp.getEntity();
               
               if(ent==null)
@@ -161,6 +201,7 @@ public class RobotStateHandler extends Thread
               InputStream resStream = ent.getContent();
 
               ControllerState cs = ControllerState.parseFrom(resStream);
+              ent.consumeContent();
 
               String txt = mover.processControllerStateEvent(cs);
 
@@ -191,6 +232,7 @@ public class RobotStateHandler extends Thread
             }
             catch (IllegalStateException e)
             {
+              telemetryEncoder.requestKeyframe();
               e.printStackTrace();
             }
             catch (com.google.protobuf.InvalidProtocolBufferException e)
@@ -200,6 +242,8 @@ public class RobotStateHandler extends Thread
             }
             catch (IOException e)
             {
+              // The server may or may not have the state; start over.
+              telemetryEncoder.requestKeyframe();
               e.printStackTrace();
             }
             catch (NullPointerException e)
@@ -0,0 +1,267 @@
+package com.allthingsgeek.celljoust;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the wheel servos from an analog stick. Stick events only set a
+ * target; a fixed-rate loop moves the servo outputs toward it by a bounded
+ * step each iteration, so the servos change smoothly at the loop rate however
+ * bursty the events are, and only write a servo when its pulse percent
+ * actually changes.
+ *
+ * The stick is mixed to the wheels as left = y + x, right = y - x. If no
+ * event arrives for EVENT_TIMEOUT_MS the target drops to center, so a lost
+ * connection stops the bot; the remote resends a held stick well within that.
+ * Once the outputs are back at center the servos are stopped and the loop
+ * thread exits until the next event.
+ */
+public class StickDrive implements Runnable
+{
+  /** Iterations per second. */
+  public static final int       RATE_HZ          = 50;
+
+  /** Fraction of full speed the outputs may move per second. */
+  public static final float     SLEW_PER_SECOND  = 4f;
+
+  /** A target older than this drops to center. */
+  public static final int       EVENT_TIMEOUT_MS = 1000;
+
+  private static final int      LEFT_SERVO       = 0;
+
+  private static final int      RIGHT_SERVO      = 2;
+
+  private final PulseGenerator  noise;
+
+  private final Movement        mover;
+
+  private final long            periodNanos;
+
+  private volatile boolean      running          = false;
+
+  private Thread                thread;
+
+  // Written by setStick(), guarded by this.
+  private float                 targetLeft       = 0;
+
+  private float                 targetRight      = 0;
+
+  private long                  lastEventNanos   = 0;
+
+  // Owned by the loop.
+  private float                 left             = 0;
+
+  private float                 right            = 0;
+
+  private int                   leftPercent      = 50;
+
+  private int                   rightPercent     = 50;
+
+  private long                  lastStepNanos    = 0;
+
+  private int                   servoWrites      = 0;
+
+  public StickDrive(PulseGenerator noise, Movement mover)
+  {
+    this.noise = noise;
+    this.mover = mover;
+    this.periodNanos = 1000000000L / RATE_HZ;
+  }
+
+  /**
+   * Sets the stick position, each axis from -1 to 1, x to the right and y
+   * forward, and starts the loop if it is idle.
+   */
+  public void setStick(float x, float y)
+  {
+    setStick(x, y, System.nanoTime());
+    start();
+  }
+
+  synchronized void setStick(float x, float y, long now)
+  {
+    float l = y + x, r = y - x;
+    float max = Math.max(Math.abs(l), Math.abs(r));
+    if (max > 1)
+    {
+      l /= max;
+      r /= max;
+    }
+    targetLeft = l;
+    targetRight = r;
+    lastEventNanos = now;
+  }
+
+  private synchronized void start()
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    lastStepNanos = 0;
+    thread = new Thread(this, "StickDrive");
+    thread.start();
+  }
+
+  /**
+   * Stops the loop, waits for it to finish and centers the servos.
+   */
+  public void stop()
+  {
+    Thread t;
+    synchronized (this)
+    {
+      running = false;
+      targetLeft = 0;
+      targetRight = 0;
+      t = thread;
+      thread = null;
+    }
+    if (t != null && t != Thread.currentThread())
+    {
+      LockSupport.unpark(t);
+      try
+      {
+        t.join();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    left = 0;
+    right = 0;
+    center();
+  }
+
+  public boolean isRunning()
+  {
+    return running;
+  }
+
+  /** Returns the number of servo writes made. */
+  public int getServoWriteCount()
+  {
+    return servoWrites;
+  }
+
+  public void run()
+  {
+    long deadline = System.nanoTime();
+    while (running)
+    {
+      deadline += periodNanos;
+      long now;
+      while ((now = System.nanoTime()) < deadline && running)
+      {
+        LockSupport.parkNanos(deadline - now);
+      }
+      if (!running)
+      {
+        break;
+      }
+      if (now - deadline > periodNanos)
+      {
+        // Too far behind to catch up: start a fresh schedule.
+        deadline = now;
+      }
+      if (!step(now))
+      {
+        synchronized (this)
+        {
+          // Go idle unless an event arrived since the step.
+          if (targetLeft == 0 && targetRight == 0)
+          {
+            running = false;
+            thread = null;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs one iteration at the given time. Returns false once the target and
+   * the outputs are at center and the servos are stopped.
+   */
+  boolean step(long now)
+  {
+    float dt = 1f / RATE_HZ;
+    if (lastStepNanos != 0)
+    {
+      dt = (now - lastStepNanos) * 1e-9f;
+    }
+    lastStepNanos = now;
+
+    float tl, tr;
+    synchronized (this)
+    {
+      if (now - lastEventNanos > EVENT_TIMEOUT_MS * 1000000L)
+      {
+        targetLeft = 0;
+        targetRight = 0;
+      }
+      tl = targetLeft;
+      tr = targetRight;
+    }
+
+    float maxStep = SLEW_PER_SECOND * dt;
+    left = slew(left, tl, maxStep);
+    right = slew(right, tr, maxStep);
+    if (left == 0 && right == 0 && tl == 0 && tr == 0)
+    {
+      center();
+      return false;
+    }
+
+    // Trim the faster wheel by the offset, as Movement does for keys.
+    int speed = mover.getSpeed(), offset = mover.getOffset();
+    int leftSpeed = offset > 0 ? speed - offset : speed;
+    int rightSpeed = offset < 0 ? speed + offset : speed;
+    int lp = 50 + Math.round(left * leftSpeed);
+    int rp = 50 + Math.round(right * rightSpeed);
+    if (lp != leftPercent)
+    {
+      leftPercent = lp;
+      noise.setServo(LEFT_SERVO, lp, 1);
+      servoWrites++;
+    }
+    if (rp != rightPercent)
+    {
+      rightPercent = rp;
+      noise.setServo(RIGHT_SERVO, rp, 1);
+      servoWrites++;
+    }
+    if (noise.isPaused())
+    {
+      noise.unpause();
+    }
+    return true;
+  }
+
+  private void center()
+  {
+    if (leftPercent != 50 || rightPercent != 50)
+    {
+      leftPercent = 50;
+      rightPercent = 50;
+      noise.setServo(LEFT_SERVO, 50, 1);
+      noise.setServo(RIGHT_SERVO, 50, 1);
+      noise.pause();
+      servoWrites += 2;
+    }
+  }
+
+  private static float slew(float from, float to, float maxStep)
+  {
+    if (to > from + maxStep)
+    {
+      return from + maxStep;
+    }
+    if (to < from - maxStep)
+    {
+      return from - maxStep;
+    }
+    return to;
+  }
+}
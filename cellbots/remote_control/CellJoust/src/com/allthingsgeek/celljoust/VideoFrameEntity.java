@@ -0,0 +1,173 @@
+package com.allthingsgeek.celljoust;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.cellbots.CellbotProtos.AudioVideoFrame;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * A reusable HTTP entity that serializes an AudioVideoFrame message straight
+ * into the request stream. The JPEG data is written from the caller's buffer
+ * as is, and the other fields are encoded into a scratch buffer the entity
+ * keeps, so writeTo() allocates nothing per frame. The bytes on the wire are
+ * identical to AudioVideoFrame.toByteArray() for the same fields.
+ */
+public class VideoFrameEntity extends AbstractHttpEntity
+{
+  // Wire types of varint fields and of length delimited fields (bytes,
+  // strings).
+  private static final int WIRETYPE_VARINT           = 0;
+
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+  // Fits the tags and varints written on either side of the data.
+  private final byte[]     scratch                   = new byte[48];
+
+  private byte[]           data;
+
+  private int              dataLength;
+
+  private long             timestamp;
+
+  private long             frameNumber;
+
+  private int              compressionLevel;
+
+  private String           botID;
+
+  // botID in UTF-8, encoded when it changes.
+  private byte[]           botIDBytes;
+
+  private int              contentLength;
+
+  /**
+   * A ByteArrayOutputStream whose buffer can be used without copying it.
+   */
+  public static class FrameBuffer extends ByteArrayOutputStream
+  {
+    public FrameBuffer(int size)
+    {
+      super(size);
+    }
+
+    public byte[] getBuffer()
+    {
+      return buf;
+    }
+  }
+
+  public VideoFrameEntity()
+  {
+    setContentType("application/octet-stream");
+  }
+
+  /**
+   * Sets the frame to send. The data buffer is not copied and must not be
+   * changed until the entity has been written.
+   */
+  public void setFrame(byte[] data, int dataLength, long timestamp, long frameNumber, int compressionLevel, String botID)
+  {
+    this.data = data;
+    this.dataLength = dataLength;
+    this.timestamp = timestamp;
+    this.frameNumber = frameNumber;
+    this.compressionLevel = compressionLevel;
+    if (botID == null)
+    {
+      botIDBytes = null;
+    }
+    else if (!botID.equals(this.botID))
+    {
+      try
+      {
+        botIDBytes = botID.getBytes("UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    this.botID = botID;
+    contentLength = CodedOutputStream.computeInt64Size(AudioVideoFrame.TIMESTAMP_FIELD_NUMBER, timestamp)
+        + CodedOutputStream.computeTagSize(AudioVideoFrame.DATA_FIELD_NUMBER) + CodedOutputStream.computeRawVarint32Size(dataLength) + dataLength
+        + CodedOutputStream.computeInt64Size(AudioVideoFrame.FRAMENUMBER_FIELD_NUMBER, frameNumber)
+        + CodedOutputStream.computeInt32Size(AudioVideoFrame.COMPRESSIONLEVEL_FIELD_NUMBER, compressionLevel)
+        + (botIDBytes != null ? CodedOutputStream.computeTagSize(AudioVideoFrame.BOTID_FIELD_NUMBER)
+            + CodedOutputStream.computeRawVarint32Size(botIDBytes.length) + botIDBytes.length : 0);
+  }
+
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  public boolean isStreaming()
+  {
+    return false;
+  }
+
+  public long getContentLength()
+  {
+    return contentLength;
+  }
+
+  /**
+   * Returns the serialized frame from a copy, for clients that read the
+   * entity rather than write it.
+   */
+  public InputStream getContent() throws IOException
+  {
+    FrameBuffer out = new FrameBuffer(contentLength);
+    writeTo(out);
+    return new ByteArrayInputStream(out.getBuffer(), 0, out.size());
+  }
+
+  public void writeTo(OutputStream outstream) throws IOException
+  {
+    // Fields are written in field number order, as the generated code does.
+    int n = putTag(scratch, 0, AudioVideoFrame.TIMESTAMP_FIELD_NUMBER, WIRETYPE_VARINT);
+    n = putVarint(scratch, n, timestamp);
+    n = putTag(scratch, n, AudioVideoFrame.DATA_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    n = putVarint(scratch, n, dataLength);
+    outstream.write(scratch, 0, n);
+    outstream.write(data, 0, dataLength);
+    n = putTag(scratch, 0, AudioVideoFrame.FRAMENUMBER_FIELD_NUMBER, WIRETYPE_VARINT);
+    n = putVarint(scratch, n, frameNumber);
+    // A negative int32 is sign extended to ten bytes, as in writeInt32().
+    n = putTag(scratch, n, AudioVideoFrame.COMPRESSIONLEVEL_FIELD_NUMBER, WIRETYPE_VARINT);
+    n = putVarint(scratch, n, compressionLevel);
+    if (botIDBytes != null)
+    {
+      n = putTag(scratch, n, AudioVideoFrame.BOTID_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+      n = putVarint(scratch, n, botIDBytes.length);
+    }
+    outstream.write(scratch, 0, n);
+    if (botIDBytes != null)
+    {
+      outstream.write(botIDBytes);
+    }
+  }
+
+  private static int putTag(byte[] buf, int pos, int fieldNumber, int wireType)
+  {
+    return putVarint(buf, pos, (fieldNumber << 3) | wireType);
+  }
+
+  private static int putVarint(byte[] buf, int pos, long value)
+  {
+    while ((value & ~0x7FL) != 0)
+    {
+      buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) value;
+    return pos;
+  }
+}
@@ -0,0 +1,459 @@
+package com.cellbots;
+
+import java.io.IOException;
+
+/**
+ * A compact delta encoding of the PhoneState fields the phone reports, for
+ * telemetry uploads that would otherwise repeat the whole message.
+ *
+ * Each field is quantized to a fixed step (STEPS) and kept as an int. A
+ * message is:
+ *
+ * <pre>
+ * flags       1 byte, KEYFRAME if the message replaces the whole state
+ * seq         varint, one more than the last message the receiver applied
+ * timestamp   varint; a keyframe carries the time, a delta the change in it
+ * mask        varint, one bit per field present in the message
+ * values      zigzag varint per field in the mask, in field order; a
+ *             keyframe carries the value, a delta the change in it
+ * </pre>
+ *
+ * The Encoder sends deltas against the last state the server acknowledged
+ * and a keyframe every KEYFRAME_INTERVAL messages or when asked. The Decoder
+ * applies messages in place and turns down a delta that does not follow the
+ * last message it applied; the server then sets KEYFRAME_HEADER on its
+ * response and the phone sends a keyframe next.
+ *
+ * This class is kept identical in CellJoust and CellServ.
+ */
+public class PhoneStateDelta
+{
+  /** Content type of a POST carrying a delta message. */
+  public static final String CONTENT_TYPE     = "application/x-cellbots-delta";
+
+  /** Set on the response when the server needs a keyframe. */
+  public static final String KEYFRAME_HEADER  = "X-Keyframe";
+
+  /** Query parameter carrying the bot ID, which deltas do not. */
+  public static final String BOTID_PARAM      = "BOTID";
+
+  public static final int    KEYFRAME         = 1;
+
+  public static final int    KEYFRAME_INTERVAL = 100;
+
+  public static final int    ACCEL_X          = 0;
+
+  public static final int    ACCEL_Y          = 1;
+
+  public static final int    ACCEL_Z          = 2;
+
+  public static final int    COMPASS_X        = 3;
+
+  public static final int    COMPASS_Y        = 4;
+
+  public static final int    COMPASS_Z        = 5;
+
+  public static final int    AZIMUTH          = 6;
+
+  public static final int    PITCH            = 7;
+
+  public static final int    ROLL             = 8;
+
+  public static final int    BATTERY_LEVEL    = 9;
+
+  public static final int    BATTERY_TEMP     = 10;
+
+  public static final int    LIGHT_LEVEL      = 11;
+
+  public static final int    WIFI_STRENGTH    = 12;
+
+  public static final int    WIFI_KBPS        = 13;
+
+  public static final int    WIFI_IP          = 14;
+
+  public static final int    FIELDS           = 15;
+
+  /**
+   * Quantization step of each field: 0.01 m/s2, 0.1 uT, 0.1 degree, 0.1 lux.
+   * 0 marks an int field, sent as is.
+   */
+  public static final float[] STEPS           = { 0.01f, 0.01f, 0.01f, 0.1f, 0.1f, 0.1f, 0.1f,
+      0.1f, 0.1f, 1, 0, 0.1f, 0, 0, 0 };
+
+  /** The longest message: flags, seq, timestamp, mask and every field. */
+  public static final int    MAX_SIZE         = 1 + 10 + 10 + 5 + FIELDS * 5;
+
+  /**
+   * The quantized fields of one phone state.
+   */
+  public static class Values
+  {
+    public final int[] values    = new int[FIELDS];
+
+    public int         present   = 0;
+
+    public long        timestamp = 0;
+
+    public void set(Values other)
+    {
+      System.arraycopy(other.values, 0, values, 0, FIELDS);
+      present = other.present;
+      timestamp = other.timestamp;
+    }
+
+    public void clear()
+    {
+      present = 0;
+      timestamp = 0;
+    }
+
+    public boolean has(int field)
+    {
+      return (present & (1 << field)) != 0;
+    }
+
+    public float get(int field)
+    {
+      float step = STEPS[field];
+      return step == 0 ? values[field] : values[field] * step;
+    }
+
+    private void put(int field, float value)
+    {
+      values[field] = Math.round(value / STEPS[field]);
+      present |= 1 << field;
+    }
+
+    private void putInt(int field, int value)
+    {
+      values[field] = value;
+      present |= 1 << field;
+    }
+
+    /** Quantizes the fields of ps. */
+    public void read(CellbotProtos.PhoneState ps)
+    {
+      present = 0;
+      timestamp = ps.getTimestamp();
+      if (ps.hasAccelerometer())
+      {
+        put(ACCEL_X, ps.getAccelerometer().getX());
+        put(ACCEL_Y, ps.getAccelerometer().getY());
+        put(ACCEL_Z, ps.getAccelerometer().getZ());
+      }
+      if (ps.hasCompass())
+      {
+        put(COMPASS_X, ps.getCompass().getX());
+        put(COMPASS_Y, ps.getCompass().getY());
+        put(COMPASS_Z, ps.getCompass().getZ());
+      }
+      if (ps.hasOrientation())
+      {
+        put(AZIMUTH, ps.getOrientation().getAzimuth());
+        put(PITCH, ps.getOrientation().getPitch());
+        put(ROLL, ps.getOrientation().getRoll());
+      }
+      if (ps.hasPhoneBatteryLevel())
+      {
+        put(BATTERY_LEVEL, ps.getPhoneBatteryLevel());
+      }
+      if (ps.hasPhoneBatteryTemp())
+      {
+        putInt(BATTERY_TEMP, ps.getPhoneBatteryTemp());
+      }
+      if (ps.hasLightLevel())
+      {
+        put(LIGHT_LEVEL, ps.getLightLevel());
+      }
+      if (ps.hasWifi())
+      {
+        CellbotProtos.PhoneState.WIFI wifi = ps.getWifi();
+        if (wifi.hasStrength())
+        {
+          putInt(WIFI_STRENGTH, wifi.getStrength());
+        }
+        if (wifi.hasKbps())
+        {
+          putInt(WIFI_KBPS, wifi.getKbps());
+        }
+        if (wifi.hasIp())
+        {
+          putInt(WIFI_IP, wifi.getIp());
+        }
+      }
+    }
+
+    /** Builds a PhoneState from the fields. */
+    public CellbotProtos.PhoneState toPhoneState(String botID)
+    {
+      CellbotProtos.PhoneState.Builder b = CellbotProtos.PhoneState.newBuilder();
+      b.setTimestamp(timestamp);
+      if (botID != null)
+      {
+        b.setBotID(botID);
+      }
+      if (has(ACCEL_X))
+      {
+        b.setAccelerometer(CellbotProtos.PhoneState.Accelerometer.newBuilder().setX(get(ACCEL_X))
+            .setY(get(ACCEL_Y)).setZ(get(ACCEL_Z)));
+      }
+      if (has(COMPASS_X))
+      {
+        b.setCompass(CellbotProtos.PhoneState.Compass.newBuilder().setX(get(COMPASS_X))
+            .setY(get(COMPASS_Y)).setZ(get(COMPASS_Z)));
+      }
+      if (has(AZIMUTH))
+      {
+        b.setOrientation(CellbotProtos.PhoneState.Orientation.newBuilder().setAzimuth(get(AZIMUTH))
+            .setPitch(get(PITCH)).setRoll(get(ROLL)));
+      }
+      if (has(BATTERY_LEVEL))
+      {
+        b.setPhoneBatteryLevel(get(BATTERY_LEVEL));
+      }
+      if (has(BATTERY_TEMP))
+      {
+        b.setPhoneBatteryTemp(values[BATTERY_TEMP]);
+      }
+      if (has(LIGHT_LEVEL))
+      {
+        b.setLightLevel(get(LIGHT_LEVEL));
+      }
+      if (has(WIFI_STRENGTH) || has(WIFI_KBPS) || has(WIFI_IP))
+      {
+        CellbotProtos.PhoneState.WIFI.Builder wifi = CellbotProtos.PhoneState.WIFI.newBuilder();
+        if (has(WIFI_STRENGTH))
+        {
+          wifi.setStrength(values[WIFI_STRENGTH]);
+        }
+        if (has(WIFI_KBPS))
+        {
+          wifi.setKbps(values[WIFI_KBPS]);
+        }
+        if (has(WIFI_IP))
+        {
+          wifi.setIp(values[WIFI_IP]);
+        }
+        b.setWifi(wifi);
+      }
+      return b.build();
+    }
+  }
+
+  /**
+   * Encodes the phone's states. Not thread safe; used by the uploading
+   * thread.
+   */
+  public static class Encoder
+  {
+    private final Values acked      = new Values();
+
+    private final Values current    = new Values();
+
+    private final byte[] buffer     = new byte[MAX_SIZE];
+
+    private long         ackedSeq   = 0;
+
+    private int          sinceKeyframe = 0;
+
+    private boolean      needKeyframe = true;
+
+    private boolean      lastWasKeyframe = false;
+
+    /**
+     * Encodes ps against the last acknowledged state and returns the
+     * message. Call acknowledge() once the server has taken it, or
+     * requestKeyframe() if the upload failed.
+     */
+    public byte[] encode(CellbotProtos.PhoneState ps)
+    {
+      current.read(ps);
+      boolean keyframe = needKeyframe || sinceKeyframe >= KEYFRAME_INTERVAL;
+      int mask = current.present;
+      if (!keyframe)
+      {
+        for (int f = 0; f < FIELDS; f++)
+        {
+          if (acked.has(f) && current.values[f] == acked.values[f])
+          {
+            mask &= ~(1 << f);
+          }
+        }
+        if ((acked.present & ~current.present) != 0)
+        {
+          // A field went away, which only a keyframe can say.
+          keyframe = true;
+          mask = current.present;
+        }
+      }
+
+      int pos = 0;
+      buffer[pos++] = (byte) (keyframe ? KEYFRAME : 0);
+      pos = writeVarint(buffer, pos, ackedSeq + 1);
+      pos = writeVarint(buffer, pos, keyframe ? current.timestamp
+          : zigzag(current.timestamp - acked.timestamp));
+      pos = writeVarint(buffer, pos, mask);
+      for (int f = 0; f < FIELDS; f++)
+      {
+        if ((mask & (1 << f)) != 0)
+        {
+          long v = current.values[f];
+          if (!keyframe && acked.has(f))
+          {
+            v -= acked.values[f];
+          }
+          pos = writeVarint(buffer, pos, zigzag(v));
+        }
+      }
+      lastWasKeyframe = keyframe;
+      byte[] message = new byte[pos];
+      System.arraycopy(buffer, 0, message, 0, pos);
+      return message;
+    }
+
+    /** Marks the last encoded message as applied by the server. */
+    public void acknowledge()
+    {
+      acked.set(current);
+      ackedSeq++;
+      if (lastWasKeyframe)
+      {
+        sinceKeyframe = 0;
+        needKeyframe = false;
+      }
+      else
+      {
+        sinceKeyframe++;
+      }
+    }
+
+    /** Makes the next message a keyframe. */
+    public void requestKeyframe()
+    {
+      needKeyframe = true;
+    }
+  }
+
+  /**
+   * Applies messages to a mutable state. Not thread safe; the caller locks.
+   */
+  public static class Decoder
+  {
+    private final Values values   = new Values();
+
+    private final int[]  scratch  = new int[FIELDS];
+
+    private boolean      hasKeyframe = false;
+
+    private long         seq      = 0;
+
+    private int          pos;
+
+    /**
+     * Applies one message. Returns false, leaving the state alone, if it is a
+     * delta that does not follow the last message applied.
+     *
+     * @throws IOException if the message is malformed
+     */
+    public boolean apply(byte[] data, int off, int len) throws IOException
+    {
+      int end = off + len;
+      if (len < 1)
+      {
+        throw new IOException("Empty delta");
+      }
+      pos = off;
+      boolean keyframe = (data[pos++] & KEYFRAME) != 0;
+      long messageSeq = readVarint(data, end);
+      if (!keyframe && (!hasKeyframe || messageSeq != seq + 1))
+      {
+        return false;
+      }
+      long time = readVarint(data, end);
+      long mask = readVarint(data, end);
+      if ((mask & ~((1 << FIELDS) - 1)) != 0)
+      {
+        throw new IOException("Unknown fields in delta");
+      }
+      for (int f = 0; f < FIELDS; f++)
+      {
+        if ((mask & (1 << f)) != 0)
+        {
+          scratch[f] = (int) unzigzag(readVarint(data, end));
+        }
+      }
+
+      // Parsed; now apply.
+      if (keyframe)
+      {
+        values.clear();
+        values.timestamp = time;
+      }
+      else
+      {
+        values.timestamp += unzigzag(time);
+      }
+      for (int f = 0; f < FIELDS; f++)
+      {
+        if ((mask & (1 << f)) != 0)
+        {
+          values.values[f] = keyframe || !values.has(f) ? scratch[f] : values.values[f] + scratch[f];
+          values.present |= 1 << f;
+        }
+      }
+      hasKeyframe = true;
+      seq = messageSeq;
+      return true;
+    }
+
+    private long readVarint(byte[] data, int end) throws IOException
+    {
+      long v = 0;
+      for (int shift = 0; shift < 64; shift += 7)
+      {
+        if (pos >= end)
+        {
+          throw new IOException("Truncated delta");
+        }
+        byte b = data[pos++];
+        v |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0)
+        {
+          return v;
+        }
+      }
+      throw new IOException("Malformed varint in delta");
+    }
+
+    public Values getValues()
+    {
+      return values;
+    }
+
+    public boolean hasKeyframe()
+    {
+      return hasKeyframe;
+    }
+  }
+
+  private static long zigzag(long v)
+  {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  private static long unzigzag(long v)
+  {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  private static int writeVarint(byte[] out, int pos, long v)
+  {
+    while ((v & ~0x7fL) != 0)
+    {
+      out[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out[pos++] = (byte) v;
+    return pos;
+  }
+}
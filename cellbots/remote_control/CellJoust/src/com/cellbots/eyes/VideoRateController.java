@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.eyes;
+
+/**
+ * Adapts JPEG quality, crop and frame rate of the video uplink to the link.
+ * The caller reports the size and upload time of every frame. The upload time
+ * is split into a fixed per-request latency and a transfer time that grows
+ * with the frame size, estimated by fitting a line through the recent
+ * (size, upload time) samples. Until the frame sizes vary enough for a fit
+ * the whole upload time is treated as transfer time.
+ * When uploads take longer than the frame interval the link is falling
+ * behind and the controller steps down. If most of the time goes into the
+ * transfer it lowers quality and then crops; if the latency dominates,
+ * smaller frames would not help and it lowers the frame rate instead. When
+ * uploads leave enough room it steps back up, frame rate first, as long as
+ * the predicted upload time still fits. After every step the controller holds
+ * for a few frames so the averages can settle before the next decision.
+ *
+ * This class has no Android dependencies so it can be exercised against a
+ * simulated link.
+ */
+public class VideoRateController {
+
+    // Weight of the newest sample in the moving averages.
+    private static final double ALPHA = 0.25;
+
+    // Step down when the average upload takes longer than this fraction of
+    // the frame interval.
+    private static final double CONGESTED_RATIO = 1.0;
+
+    // Step up only if the upload time predicted for the next step stays
+    // below this fraction of the frame interval.
+    private static final double HEADROOM_RATIO = 0.8;
+
+    // Number of recent uploads used to estimate the latency.
+    private static final int LATENCY_WINDOW = 32;
+
+    // The latency is only re-estimated when the frame sizes in the window
+    // spread by at least this fraction of their mean.
+    private static final double MIN_SIZE_SPREAD = 0.05;
+
+    // Consecutive frames with headroom before stepping up.
+    private static final int FRAMES_BEFORE_INCREASE = 10;
+
+    // Frames to wait after a step before making another decision.
+    private static final int FRAMES_AFTER_STEP = 4;
+
+    private static final int QUALITY_STEP = 10;
+
+    private static final int SCALE_STEP = 15;
+
+    private static final int FPS_STEP = 2;
+
+    /**
+     * A snapshot of the controller state after the last frame.
+     */
+    public static class Stats {
+        public final int quality;
+
+        public final int scalePercent;
+
+        public final int targetFps;
+
+        public final int lastFrameBytes;
+
+        public final long lastUploadMs;
+
+        public final double averageUploadMs;
+
+        /** Estimated fixed cost of one upload, independent of its size. */
+        public final long latencyMs;
+
+        /** Estimated link throughput in bytes per second. */
+        public final double throughput;
+
+        public final long framesSent;
+
+        public final long framesFailed;
+
+        public final long framesSkipped;
+
+        Stats(VideoRateController c) {
+            quality = c.quality;
+            scalePercent = c.scalePercent;
+            targetFps = c.targetFps;
+            lastFrameBytes = c.lastFrameBytes;
+            lastUploadMs = c.lastUploadMs;
+            averageUploadMs = c.averageUploadMs;
+            latencyMs = c.latencyMs;
+            throughput = c.throughput;
+            framesSent = c.framesSent;
+            framesFailed = c.framesFailed;
+            framesSkipped = c.framesSkipped;
+        }
+
+        @Override
+        public String toString() {
+            return "q=" + quality + " scale=" + scalePercent + "% fps=" + targetFps + " bytes="
+                    + lastFrameBytes + " upload=" + lastUploadMs + "ms avg=" + (int) averageUploadMs
+                    + "ms latency=" + latencyMs + "ms rate=" + (int) (throughput / 1024) + "KB/s sent=" + framesSent
+                    + " failed=" + framesFailed + " skipped=" + framesSkipped;
+        }
+    }
+
+    private final int minQuality;
+
+    private final int maxQuality;
+
+    private final int minScalePercent;
+
+    private final int minFps;
+
+    private final int maxFps;
+
+    private int quality;
+
+    private int scalePercent = 100;
+
+    private int targetFps;
+
+    private int lastFrameBytes;
+
+    private long lastUploadMs;
+
+    private double averageUploadMs = -1;
+
+    private double throughput = -1;
+
+    private long framesSent;
+
+    private long framesFailed;
+
+    private long framesSkipped;
+
+    private final int[] recentBytes = new int[LATENCY_WINDOW];
+
+    private final long[] recentUploads = new long[LATENCY_WINDOW];
+
+    private int recentUploadCount;
+
+    private long latencyMs;
+
+    private long lastFrameStart = Long.MIN_VALUE;
+
+    private int framesWithHeadroom;
+
+    private int framesToHold;
+
+    /**
+     * Creates a controller that starts at the highest quality, the full frame
+     * and the highest frame rate.
+     *
+     * @param minQuality lowest JPEG quality, 1-100
+     * @param maxQuality highest JPEG quality, 1-100
+     * @param minScalePercent smallest crop, as a percentage of the frame size
+     * @param minFps lowest frame rate
+     * @param maxFps highest frame rate
+     */
+    public VideoRateController(int minQuality, int maxQuality, int minScalePercent, int minFps,
+            int maxFps) {
+        if (minQuality < 1 || maxQuality > 100 || minQuality > maxQuality) {
+            throw new IllegalArgumentException("Invalid quality range");
+        }
+        if (minScalePercent < 1 || minScalePercent > 100) {
+            throw new IllegalArgumentException("Invalid scale");
+        }
+        if (minFps < 1 || minFps > maxFps) {
+            throw new IllegalArgumentException("Invalid frame rate range");
+        }
+        this.minQuality = minQuality;
+        this.maxQuality = maxQuality;
+        this.minScalePercent = minScalePercent;
+        this.minFps = minFps;
+        this.maxFps = maxFps;
+        quality = maxQuality;
+        targetFps = maxFps;
+    }
+
+    /**
+     * Returns true if a frame captured at nowMs should be sent, given the
+     * current target frame rate. If it returns true the frame is counted as
+     * started at nowMs; otherwise it is counted as skipped.
+     */
+    public synchronized boolean shouldSendFrame(long nowMs) {
+        if (lastFrameStart != Long.MIN_VALUE && nowMs - lastFrameStart < getFrameIntervalMs()) {
+            framesSkipped++;
+            return false;
+        }
+        lastFrameStart = nowMs;
+        return true;
+    }
+
+    /**
+     * Records a frame that was uploaded successfully.
+     *
+     * @param bytes size of the encoded frame
+     * @param uploadMs time from the start of the upload to the response
+     */
+    public synchronized void onFrameSent(int bytes, long uploadMs) {
+        framesSent++;
+        lastFrameBytes = bytes;
+        lastUploadMs = uploadMs;
+        averageUploadMs = average(averageUploadMs, uploadMs);
+        throughput = average(throughput, bytes * 1000.0 / Math.max(1, uploadMs));
+        updateLatency(bytes, uploadMs);
+
+        if (framesToHold > 0) {
+            framesToHold--;
+            return;
+        }
+        if (averageUploadMs > getFrameIntervalMs() * CONGESTED_RATIO) {
+            stepDown();
+        } else if (++framesWithHeadroom >= FRAMES_BEFORE_INCREASE) {
+            stepUp();
+        }
+    }
+
+    /**
+     * Records a frame whose upload failed. This is treated as congestion.
+     */
+    public synchronized void onFrameFailed() {
+        framesFailed++;
+        if (framesToHold == 0) {
+            stepDown();
+        }
+    }
+
+    public synchronized int getQuality() {
+        return quality;
+    }
+
+    public synchronized int getScalePercent() {
+        return scalePercent;
+    }
+
+    public synchronized int getTargetFps() {
+        return targetFps;
+    }
+
+    public synchronized long getFrameIntervalMs() {
+        return 1000 / targetFps;
+    }
+
+    /**
+     * Returns how many pixels to trim from each side of a dimension of the
+     * given size so that the current crop is kept. The result is even, as the
+     * YUV encoders require.
+     */
+    public synchronized int getCropInset(int size) {
+        int inset = size * (100 - scalePercent) / 200;
+        return inset & ~1;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(this);
+    }
+
+    private void updateLatency(int bytes, long uploadMs) {
+        int slot = (int) ((framesSent - 1) % LATENCY_WINDOW);
+        recentBytes[slot] = bytes;
+        recentUploads[slot] = uploadMs;
+        recentUploadCount = Math.min(recentUploadCount + 1, LATENCY_WINDOW);
+        if (recentUploadCount < FRAMES_BEFORE_INCREASE) {
+            return;
+        }
+
+        double meanBytes = 0;
+        double meanMs = 0;
+        long minMs = Long.MAX_VALUE;
+        for (int i = 0; i < recentUploadCount; i++) {
+            meanBytes += recentBytes[i];
+            meanMs += recentUploads[i];
+            minMs = Math.min(minMs, recentUploads[i]);
+        }
+        meanBytes /= recentUploadCount;
+        meanMs /= recentUploadCount;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < recentUploadCount; i++) {
+            double dx = recentBytes[i] - meanBytes;
+            covariance += dx * (recentUploads[i] - meanMs);
+            variance += dx * dx;
+        }
+        double spread = Math.sqrt(variance / recentUploadCount);
+        if (spread < meanBytes * MIN_SIZE_SPREAD || covariance <= 0) {
+            // Not enough signal for a fit; keep the last estimate.
+            latencyMs = Math.min(latencyMs, minMs);
+            return;
+        }
+        double intercept = meanMs - covariance / variance * meanBytes;
+        latencyMs = Math.max(0, Math.min(minMs, Math.round(intercept)));
+    }
+
+    /**
+     * Returns the expected upload time if frames grow by the given factor.
+     */
+    private double predictUploadMs(double sizeFactor) {
+        double transfer = Math.max(0, averageUploadMs - latencyMs);
+        return latencyMs + transfer * sizeFactor;
+    }
+
+    private void stepDown() {
+        double transfer = averageUploadMs - latencyMs;
+        boolean latencyBound = transfer < latencyMs;
+        boolean canShrink = quality > minQuality || scalePercent > minScalePercent;
+        if (targetFps > minFps && (latencyBound || !canShrink)) {
+            targetFps = Math.max(minFps, targetFps - FPS_STEP);
+        } else if (quality > minQuality) {
+            quality = Math.max(minQuality, quality - QUALITY_STEP);
+        } else if (scalePercent > minScalePercent) {
+            scalePercent = Math.max(minScalePercent, scalePercent - SCALE_STEP);
+        } else {
+            return;
+        }
+        afterStep();
+    }
+
+    private void stepUp() {
+        framesWithHeadroom = 0;
+        long interval = getFrameIntervalMs();
+        if (targetFps < maxFps
+                && averageUploadMs < 1000 / Math.min(maxFps, targetFps + FPS_STEP) * HEADROOM_RATIO) {
+            targetFps = Math.min(maxFps, targetFps + FPS_STEP);
+        } else if (scalePercent < 100) {
+            int next = Math.min(100, scalePercent + SCALE_STEP);
+            double growth = (double) next * next / (scalePercent * scalePercent);
+            if (predictUploadMs(growth) >= interval * HEADROOM_RATIO) {
+                return;
+            }
+            scalePercent = next;
+        } else if (quality < maxQuality) {
+            int next = Math.min(maxQuality, quality + QUALITY_STEP);
+            if (predictUploadMs((double) next / quality) >= interval * HEADROOM_RATIO) {
+                return;
+            }
+            quality = next;
+        } else {
+            return;
+        }
+        afterStep();
+    }
+
+    private void afterStep() {
+        framesWithHeadroom = 0;
+        framesToHold = FRAMES_AFTER_STEP;
+    }
+
+    private static double average(double current, double sample) {
+        return current < 0 ? sample : current + ALPHA * (sample - current);
+    }
+}
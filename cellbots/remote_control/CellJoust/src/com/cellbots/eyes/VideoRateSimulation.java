@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.cellbots.eyes;
+
+import java.util.Random;
+
+/**
+ * Runs the VideoRateController against a simulated link on a desktop JVM, the
+ * way MainActivity's upload loop drives it, for checking changes to the
+ * controller off the phone.
+ *
+ * <pre>
+ * java com.cellbots.eyes.VideoRateSimulation [secondsPerPhase] [--check]
+ * </pre>
+ *
+ * The camera delivers a frame every 1000 / CAMERA_FPS ms; the loop takes the
+ * newest one when the previous upload is done and the controller lets it
+ * through. A frame's JPEG size grows with the quality and the cropped area,
+ * with random variation, and its upload takes the link latency plus the size
+ * over the link throughput, both with jitter. The link goes through PHASES,
+ * each secondsPerPhase (default 60) of simulated time. For the second half of
+ * each phase the simulation prints the frames delivered per second, the
+ * average quality, crop and target frame rate, and how many uploads took
+ * longer than the frame interval. With --check it exits with status 1 if a
+ * phase ends congested or the last phase does not recover full quality and
+ * the full frame.
+ */
+public class VideoRateSimulation {
+
+    // The bounds MainActivity uses.
+    private static final int MIN_QUALITY = 10;
+
+    private static final int MAX_QUALITY = 40;
+
+    private static final int MIN_CROP_PERCENT = 60;
+
+    private static final int MIN_FPS = 2;
+
+    private static final int MAX_FPS = 15;
+
+    private static final int CAMERA_FPS = 15;
+
+    // JPEG size of a frame is FRAME_BASE_BYTES + FRAME_BYTES_PER_QUALITY *
+    // quality * (crop / 100)^2, varied by +-FRAME_SIZE_JITTER.
+    private static final int FRAME_BASE_BYTES = 2000;
+
+    private static final int FRAME_BYTES_PER_QUALITY = 600;
+
+    private static final double FRAME_SIZE_JITTER = 0.2;
+
+    private static final double LINK_JITTER = 0.1;
+
+    /** Throughput in KB/s and latency in ms of each link phase. */
+    private static final int[][] PHASES = {
+            { 400, 20 },    // good Wi-Fi
+            { 60, 20 },     // congested uplink
+            { 400, 150 },   // fast but distant
+            { 1000, 20 },   // recovered
+    };
+
+    private final Random random = new Random(1);
+
+    private final VideoRateController controller = new VideoRateController(MIN_QUALITY,
+            MAX_QUALITY, MIN_CROP_PERCENT, MIN_FPS, MAX_FPS);
+
+    private long now = 0;
+
+    public static void main(String[] args) {
+        int seconds = 60;
+        boolean check = false;
+        for (String arg : args) {
+            if (arg.equals("--check")) {
+                check = true;
+            } else {
+                seconds = Integer.parseInt(arg);
+            }
+        }
+        VideoRateSimulation simulation = new VideoRateSimulation();
+        boolean ok = true;
+        for (int i = 0; i < PHASES.length; i++) {
+            ok &= simulation.runPhase(PHASES[i][0], PHASES[i][1], seconds * 1000L,
+                    i == PHASES.length - 1);
+        }
+        if (check && !ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the upload loop for durationMs over a link with the given
+     * throughput and latency. Returns false if it was still congested at the
+     * end, or if mustRecover is set and it did not get back to the best
+     * picture.
+     */
+    private boolean runPhase(int kbPerSecond, int latencyMs, long durationMs,
+            boolean mustRecover) {
+        long cameraInterval = 1000 / CAMERA_FPS;
+        long end = now + durationMs;
+        long measureFrom = now + durationMs / 2;
+        int frames = 0;
+        int late = 0;
+        long qualitySum = 0;
+        long scaleSum = 0;
+        long fpsSum = 0;
+        long uploadSum = 0;
+        while (now < end) {
+            // Wait for the next camera frame.
+            now = (now / cameraInterval + 1) * cameraInterval;
+            if (!controller.shouldSendFrame(now)) {
+                continue;
+            }
+            int quality = controller.getQuality();
+            int scale = controller.getScalePercent();
+            long interval = controller.getFrameIntervalMs();
+            int bytes = (int) ((FRAME_BASE_BYTES + FRAME_BYTES_PER_QUALITY * quality * scale
+                    * scale / 10000.0) * jitter(FRAME_SIZE_JITTER));
+            long uploadMs = Math.round((latencyMs + bytes * 1000.0 / (kbPerSecond * 1024))
+                    * jitter(LINK_JITTER));
+            now += uploadMs;
+            controller.onFrameSent(bytes, uploadMs);
+            if (now >= measureFrom) {
+                frames++;
+                qualitySum += quality;
+                scaleSum += scale;
+                fpsSum += 1000 / interval;
+                uploadSum += uploadMs;
+                if (uploadMs > interval) {
+                    late++;
+                }
+            }
+        }
+        double seconds = (durationMs - durationMs / 2) / 1000.0;
+        System.out.println(String.format("link %4d KB/s %3d ms: %4.1f frames/s, quality %4.1f,"
+                + " crop %5.1f%%, target %4.1f fps, upload %5.1f ms, %d of %d late",
+                kbPerSecond, latencyMs, frames / seconds, (double) qualitySum / frames,
+                (double) scaleSum / frames, (double) fpsSum / frames,
+                (double) uploadSum / frames, late, frames));
+        System.out.println("  " + controller.getStats());
+
+        VideoRateController.Stats stats = controller.getStats();
+        boolean ok = stats.averageUploadMs <= 1000 / stats.targetFps;
+        if (mustRecover) {
+            ok &= stats.quality == MAX_QUALITY && stats.scalePercent == 100;
+        }
+        return ok;
+    }
+
+    private double jitter(double amount) {
+        return 1 - amount + 2 * amount * random.nextDouble();
+    }
+}
@@ -1,109 +1,88 @@
 package com.cellbots.sensors;
 
-import java.util.List;
-
 import com.allthingsgeek.celljoust.MainActivity;
- 
+
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
- 
+
 /**
  * Android Orientation Sensor Manager Archetype
  * @author antoine vianey
  * under GPL v3 : http://www.gnu.org/licenses/gpl-3.0.html
  */
 public class CompassManager {
- 
-    private static Sensor sensor;
-    private static SensorManager sensorManager;
+
+    /** how often the magnetic field is forwarded, in ms */
+    private static final int UPDATE_INTERVAL_MS = 200;
+
+    private static volatile SensorFusion fusion;
     // you could use an OrientationListener array instead
     // if you plans to use more than one listener
     private static SensorListener listener;
- 
-    /** indicates whether or not Orientation Sensor is supported */
-    private static Boolean supported;
+
     /** indicates whether or not Orientation Sensor is running */
     private static boolean running = false;
- 
+
     /**
      * Returns true if the manager is listening to orientation changes
      */
     public static boolean isListening() {
         return running;
     }
- 
+
     /**
      * Unregisters listeners
      */
-    public static void stopListening() {
+    public static synchronized void stopListening() {
         running = false;
-        try {
-            if (sensorManager != null && sensorEventListener != null) {
-                sensorManager.unregisterListener(sensorEventListener);
-            }
-        } catch (Exception e) {}
+        if (fusion != null) {
+            fusion.removeListener(fusionListener);
+            fusion.release();
+            fusion = null;
+        }
     }
- 
+
     /**
-     * Returns true if at least one Orientation sensor is available
+     * Returns true if the magnetic field sensor is available
      */
     public static boolean isSupported() {
-        if (supported == null) {
-          sensorManager = (SensorManager) MainActivity.sensorManager;
-          if (sensorManager != null) {
-                List<Sensor> sensors = sensorManager.getSensorList(
-                        Sensor.TYPE_MAGNETIC_FIELD);
-                supported = new Boolean(sensors.size() > 0);
-            } else {
-                supported = Boolean.FALSE;
-            }
-        }
-        return supported;
+        SensorManager sensorManager = (SensorManager) MainActivity.sensorManager;
+        return SensorFusion.isSupported(sensorManager)
+                && !sensorManager.getSensorList(Sensor.TYPE_MAGNETIC_FIELD).isEmpty();
     }
- 
+
     /**
-     * Registers a listener and start listening
+     * Registers a listener and start listening. The magnetic field is read
+     * from the shared sensor fusion, which already listens to the sensor.
      */
-    public static void startListening(
+    public static synchronized void startListening(
         SensorListener orientationListener) {
-      sensorManager = (SensorManager) MainActivity.sensorManager;
-      if (sensorManager != null) {
-        List<Sensor> sensors = sensorManager.getSensorList(
-                Sensor.TYPE_MAGNETIC_FIELD);
-        if (sensors.size() > 0) {
-            sensor = sensors.get(0);
-            running = sensorManager.registerListener(
-                    sensorEventListener, sensor, 
-                    SensorManager.SENSOR_DELAY_NORMAL);
-            listener = orientationListener;
-        }
+      SensorManager sensorManager = (SensorManager) MainActivity.sensorManager;
+      if (sensorManager != null && fusion == null) {
+          listener = orientationListener;
+          fusion = SensorFusion.acquire(sensorManager);
+          fusion.addListener(fusionListener, UPDATE_INTERVAL_MS);
+          running = true;
       }
     }
-    
+
     /**
-     * The listener that listen to events from the orientation listener
+     * Forwards the latest magnetic field to the listener
      */
-    private static SensorEventListener sensorEventListener = 
-        new SensorEventListener() {
- 
-        /** The side that is currently up */
-        private float x;
-        private float y;
-        private float z;
- 
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
- 
-        public void onSensorChanged(SensorEvent event) {
- 
-            x = event.values[0];     // azimuth
-            y = event.values[1];     // pitch
-            z = event.values[2];        // roll
+    private static SensorFusion.Listener fusionListener =
+        new SensorFusion.Listener() {
+
+        private final float[] field = new float[3];
 
-            // forwards orientation to the OrientationListener
-            listener.onCompassChanged(x,y,z);
+        public void onAttitudeChanged(float azimuth, float pitch, float roll,
+                float pitchRate) {
+            SensorFusion f = fusion;
+            if (f == null) {
+                return;
+            }
+            f.getMagneticField(field);
+            listener.onCompassChanged(field[0], field[1], field[2]);
         }
- 
+
     };
 }
@@ -1,32 +1,27 @@
 package com.cellbots.sensors;
 
-import java.util.List;
-
 import com.allthingsgeek.celljoust.MainActivity;
- 
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+
 import android.hardware.SensorManager;
- 
+
 /**
  * Android Orientation Sensor Manager Archetype
  * @author antoine vianey
  * under GPL v3 : http://www.gnu.org/licenses/gpl-3.0.html
  */
 public class OrientationManager {
- 
-    private static Sensor sensor;
-    private static SensorManager sensorManager;
+
+    /** how often the fused orientation is forwarded, in ms */
+    private static final int UPDATE_INTERVAL_MS = 50;
+
+    private static SensorFusion fusion;
     // you could use an OrientationListener array instead
     // if you plans to use more than one listener
     private static SensorListener listener;
- 
-    /** indicates whether or not Orientation Sensor is supported */
-    private static Boolean supported;
+
     /** indicates whether or not Orientation Sensor is running */
     private static boolean running = false;
- 
+
     /** Sides of the phone */
     enum Side {
         TOP,
@@ -34,119 +29,57 @@ public class OrientationManager {
         LEFT,
         RIGHT;
     }
- 
+
     /**
      * Returns true if the manager is listening to orientation changes
      */
     public static boolean isListening() {
         return running;
     }
- 
+
     /**
      * Unregisters listeners
      */
-    public static void stopListening() {
+    public static synchronized void stopListening() {
         running = false;
-        try {
-            if (sensorManager != null && sensorEventListener != null) {
-                sensorManager.unregisterListener(sensorEventListener);
-            }
-        } catch (Exception e) {}
+        if (fusion != null) {
+            fusion.removeListener(fusionListener);
+            fusion.release();
+            fusion = null;
+        }
     }
- 
+
     /**
-     * Returns true if at least one Orientation sensor is available
+     * Returns true if the sensors the orientation is fused from are available
      */
     public static boolean isSupported() {
-        if (supported == null) {
-          sensorManager = (SensorManager) MainActivity.sensorManager;
-          if (sensorManager != null) {
-                List<Sensor> sensors = sensorManager.getSensorList(
-                        Sensor.TYPE_ORIENTATION);
-                supported = new Boolean(sensors.size() > 0);
-            } else {
-                supported = Boolean.FALSE;
-            }
-        }
-        return supported;
+        return SensorFusion.isSupported((SensorManager) MainActivity.sensorManager);
     }
- 
+
     /**
      * Registers a listener and start listening
      */
-    public static void startListening(
+    public static synchronized void startListening(
         SensorListener orientationListener) {
-      sensorManager = (SensorManager) MainActivity.sensorManager;
-      if (sensorManager != null) {
-        List<Sensor> sensors = sensorManager.getSensorList(
-                Sensor.TYPE_ORIENTATION);
-        if (sensors.size() > 0) {
-            sensor = sensors.get(0);
-            running = sensorManager.registerListener(
-                    sensorEventListener, sensor, 
-                    SensorManager.SENSOR_DELAY_NORMAL);
-            listener = orientationListener;
-        }
+      SensorManager sensorManager = (SensorManager) MainActivity.sensorManager;
+      if (sensorManager != null && fusion == null) {
+          listener = orientationListener;
+          fusion = SensorFusion.acquire(sensorManager);
+          fusion.addListener(fusionListener, UPDATE_INTERVAL_MS);
+          running = true;
       }
     }
-    
+
     /**
-     * The listener that listen to events from the orientation listener
+     * Forwards the fused orientation to the OrientationListener
      */
-    private static SensorEventListener sensorEventListener = 
-        new SensorEventListener() {
- 
-        /** The side that is currently up */
-        private Side currentSide = null;
-        private Side oldSide = null;
-        private float azimuth;
-        private float pitch;
-        private float roll;
- 
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
- 
-        public void onSensorChanged(SensorEvent event) {
- 
-            azimuth = event.values[0];     // azimuth
-            pitch = event.values[1];     // pitch
-            roll = event.values[2];        // roll
- 
-            if (pitch < -45 && pitch > -135) {
-                // top side up
-                currentSide = Side.TOP;
-            } else if (pitch > 45 && pitch < 135) {
-                // bottom side up
-                currentSide = Side.BOTTOM;
-            } else if (roll > 45) {
-                // right side up
-                currentSide = Side.RIGHT;
-            } else if (roll < -45) {
-                // left side up
-                currentSide = Side.LEFT;
-            }
- 
-            /*
-            if (currentSide != null && !currentSide.equals(oldSide)) {
-                switch (currentSide) {
-                    case TOP : 
-                        listener.onTopUp();
-                        break;
-                    case BOTTOM : 
-                        listener.onBottomUp();
-                        break;
-                    case LEFT: 
-                        listener.onLeftUp();
-                        break;
-                    case RIGHT: 
-                        listener.onRightUp();
-                        break;
-                }
-                oldSide = currentSide;
-            }*/
- 
-            // forwards orientation to the OrientationListener
+    private static SensorFusion.Listener fusionListener =
+        new SensorFusion.Listener() {
+
+        public void onAttitudeChanged(float azimuth, float pitch, float roll,
+                float pitchRate) {
             listener.onOrientationChanged(azimuth, pitch, roll);
         }
- 
+
     };
 }
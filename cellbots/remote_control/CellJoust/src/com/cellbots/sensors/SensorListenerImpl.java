@@ -5,11 +5,6 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.Enumeration;
 
-import com.allthingsgeek.celljoust.RobotStateHandler;
-import com.cellbots.CellbotProtos;
-import com.cellbots.CellbotProtos.PhoneState;
-import com.cellbots.CellbotProtos.PhoneState.WIFI.Builder;
-
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -17,27 +12,39 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
 
+/**
+ * Passes sensor, battery and Wi-Fi readings to a TelemetryPublisher, which
+ * sends them to the robot state handler at its own pace.
+ */
 public class SensorListenerImpl implements SensorListener
 {
-  private CellbotProtos.PhoneState.Builder state;
-
   private WifiManager                      wifi;
 
-  private long                             lastTimetamp  = 0;
-
-  private int                              maxUpdateRate = 100;
-
-  private Handler                          stateReciver;
+  private TelemetryPublisher               publisher;
 
   // public SensorManager getSensorManager();
 
   public SensorListenerImpl(Handler h, WifiManager w)
   {
-    stateReciver = h;
-    state = CellbotProtos.PhoneState.newBuilder();
+    publisher = new TelemetryPublisher(h);
     wifi =w;
   }
 
+  public TelemetryPublisher getPublisher()
+  {
+    return publisher;
+  }
+
+  public void start()
+  {
+    publisher.start();
+  }
+
+  public void stop()
+  {
+    publisher.stop();
+  }
+
   public void onBottomUp()
   {
     // Toast.makeText(this, "Bottom UP", 1000).show();
@@ -71,15 +78,7 @@ public class SensorListenerImpl implements SensorListener
    */
   public void onAccelerationChanged(float x, float y, float z)
   {
-
-    CellbotProtos.PhoneState.Accelerometer.Builder b = CellbotProtos.PhoneState.Accelerometer.newBuilder();
-
-    b.setX(x);
-    b.setY(y);
-    b.setZ(z);
-    state.setAccelerometer(b);
-
-    sendPhoneState();
+    publisher.setAccelerometer(x, y, z);
   }
 
   /**
@@ -87,35 +86,20 @@ public class SensorListenerImpl implements SensorListener
    */
   public void onCompassChanged(float x, float y, float z)
   {
-    CellbotProtos.PhoneState.Compass.Builder b = CellbotProtos.PhoneState.Compass.newBuilder();
-
-    b.setX(x);
-    b.setY(y);
-    b.setZ(z);
-    state.setCompass(b);
-    sendPhoneState();
+    publisher.setCompass(x, y, z);
   }
 
   public void onOrientationChanged(float azimuth, float pitch, float roll)
   {
-    CellbotProtos.PhoneState.Orientation.Builder b = CellbotProtos.PhoneState.Orientation.newBuilder();
-
-    b.setAzimuth(azimuth);
-    b.setPitch(pitch);
-    b.setRoll(roll);
-
-    state.setOrientation(b);
-    sendPhoneState();
-
+    publisher.setOrientation(azimuth, pitch, roll);
   }
 
   public BroadcastReceiver mBatInfoReceiver  = new BroadcastReceiver()
                                              {
                                                public void onReceive(Context arg0, Intent intent)
                                                {
-                                                 state.setPhoneBatteryLevel(intent.getIntExtra("level", 0));
-                                                 state.setPhoneBatteryTemp(intent.getIntExtra("temperature", 0));
-                                                 sendPhoneState();
+                                                 publisher.setBattery(intent.getIntExtra("level", 0),
+                                                     intent.getIntExtra("temperature", 0));
                                                }
                                              };
 
@@ -126,44 +110,15 @@ public class SensorListenerImpl implements SensorListener
                                                public void onReceive(Context context, Intent intent)
                                                {
                                                  WifiInfo info = wifi.getConnectionInfo();
-                                                 Builder ws = CellbotProtos.PhoneState.WIFI.newBuilder();
-
-                                                 ws.setStrength(info.getRssi());
-                                                 ws.setKbps(info.getLinkSpeed());
-
-                                                 ws.setIp(info.getIpAddress());
-                                                 // ws.setSsid(info.getBSSID());
-
-                                                 // state.setWifiStrength();
-
-                                                 // state.setWifiSpeed(info.getLinkSpeed());
-
-                                                 sendPhoneState();
+                                                 publisher.setWifi(info.getRssi(), info.getLinkSpeed(),
+                                                     info.getIpAddress());
                                                }
 
                                              };
 
   public void onLightLevelChanged(float level)
   {
-    state.setLightLevel(level);
-    sendPhoneState();
-  }
-
-  private synchronized void sendPhoneState()
-  {
-
-    long now = System.currentTimeMillis();
-    if (now - lastTimetamp > maxUpdateRate)
-    {
-      lastTimetamp = now;
-    }
-    state.setTimestamp(now);
-    state.setBotID(RobotStateHandler.ROBOT_ID);
-    PhoneState ps = state.build();
-
-    stateReciver.obtainMessage(0, ps).sendToTarget();
-    state = CellbotProtos.PhoneState.newBuilder(ps);
-
+    publisher.setLightLevel(level);
   }
 
 }
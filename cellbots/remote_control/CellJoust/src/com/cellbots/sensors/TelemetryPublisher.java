@@ -0,0 +1,288 @@
+package com.cellbots.sensors;
+
+import com.allthingsgeek.celljoust.RobotStateHandler;
+import com.cellbots.CellbotProtos;
+import com.cellbots.CellbotProtos.PhoneState;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Collects sensor readings into one PhoneState and hands it to the robot
+ * state handler at a fixed rate, instead of once per sensor callback.
+ *
+ * Each field keeps only its latest value, in plain fields, so a sensor
+ * callback does not allocate; a value overwritten by a newer reading of the
+ * same field before it was sent is counted as coalesced. The protocol buffer
+ * is only built when a state is sent. Fields are grouped by how fast they
+ * change: the FAST group (accelerometer, compass, orientation) and the SLOW
+ * group (battery, light, Wi-Fi) each have their own period, and a state is
+ * sent only when a group is both changed and due. The ticks run on the
+ * handler's own thread, so a slow upload delays the next state rather than
+ * queueing more of them.
+ */
+public class TelemetryPublisher implements Runnable
+{
+  public static final int           FAST             = 0;
+
+  public static final int           SLOW             = 1;
+
+  private static final int          GROUPS           = 2;
+
+  private static final int          ACCELEROMETER    = 0;
+
+  private static final int          COMPASS          = 1;
+
+  private static final int          ORIENTATION      = 2;
+
+  private static final int          BATTERY          = 3;
+
+  private static final int          LIGHT            = 4;
+
+  private static final int          WIFI             = 5;
+
+  private static final int          FIELDS           = 6;
+
+  /** The group of each field. */
+  private static final int[]        GROUP_OF         = { FAST, FAST, FAST, SLOW, SLOW, SLOW };
+
+  private final Handler             handler;
+
+  private final long[]              periodMs         = { 100, 2000 };
+
+  private final long[]              lastSentMs       = new long[GROUPS];
+
+  private final boolean[]           changed          = new boolean[GROUPS];
+
+  /** Fields with a value not yet sent. */
+  private final boolean[]           dirty            = new boolean[FIELDS];
+
+  /** Fields that have had a value, sent or not. */
+  private final boolean[]           present          = new boolean[FIELDS];
+
+  /** The latest value of every field, up to three per field. */
+  private final float[]             latest           = new float[FIELDS * 3];
+
+  private int                       batteryTemp;
+
+  private int                       wifiStrength;
+
+  private int                       wifiKbps;
+
+  private int                       wifiIp;
+
+  /** What the server has been sent, plus the groups due this tick. */
+  private PhoneState.Builder        published        = CellbotProtos.PhoneState.newBuilder();
+
+  private long                      tickMs;
+
+  private boolean                   running          = false;
+
+  private int                       updates          = 0;
+
+  private int                       coalesced        = 0;
+
+  private int                       sent             = 0;
+
+  public TelemetryPublisher(Handler h)
+  {
+    handler = h;
+    tickMs = periodMs[FAST];
+  }
+
+  /**
+   * Sets how often the given group may be sent, in milliseconds.
+   */
+  public synchronized void setPeriod(int group, long ms)
+  {
+    periodMs[group] = ms;
+    tickMs = Math.min(periodMs[FAST], periodMs[SLOW]);
+  }
+
+  public synchronized long getPeriod(int group)
+  {
+    return periodMs[group];
+  }
+
+  public synchronized void start()
+  {
+    if (running)
+    {
+      return;
+    }
+    running = true;
+    handler.postDelayed(this, tickMs);
+  }
+
+  public synchronized void stop()
+  {
+    running = false;
+    handler.removeCallbacks(this);
+  }
+
+  public synchronized void setAccelerometer(float x, float y, float z)
+  {
+    changed(ACCELEROMETER);
+    set(ACCELEROMETER, x, y, z);
+  }
+
+  public synchronized void setCompass(float x, float y, float z)
+  {
+    changed(COMPASS);
+    set(COMPASS, x, y, z);
+  }
+
+  public synchronized void setOrientation(float azimuth, float pitch, float roll)
+  {
+    changed(ORIENTATION);
+    set(ORIENTATION, azimuth, pitch, roll);
+  }
+
+  public synchronized void setBattery(float level, int temperature)
+  {
+    changed(BATTERY);
+    set(BATTERY, level, 0, 0);
+    batteryTemp = temperature;
+  }
+
+  public synchronized void setLightLevel(float level)
+  {
+    changed(LIGHT);
+    set(LIGHT, level, 0, 0);
+  }
+
+  public synchronized void setWifi(int strength, int kbps, int ip)
+  {
+    changed(WIFI);
+    present[WIFI] = true;
+    wifiStrength = strength;
+    wifiKbps = kbps;
+    wifiIp = ip;
+  }
+
+  private void set(int field, float a, float b, float c)
+  {
+    present[field] = true;
+    latest[field * 3] = a;
+    latest[field * 3 + 1] = b;
+    latest[field * 3 + 2] = c;
+  }
+
+  private void changed(int field)
+  {
+    updates++;
+    if (dirty[field])
+    {
+      coalesced++;
+    }
+    dirty[field] = true;
+    changed[GROUP_OF[field]] = true;
+  }
+
+  /** Returns the number of readings received. */
+  public synchronized int getUpdateCount()
+  {
+    return updates;
+  }
+
+  /**
+   * Returns the number of readings replaced by a newer reading of the same
+   * field before being sent.
+   */
+  public synchronized int getCoalescedCount()
+  {
+    return coalesced;
+  }
+
+  /** Returns the number of states sent. */
+  public synchronized int getSentCount()
+  {
+    return sent;
+  }
+
+  public void run()
+  {
+    PhoneState ps = null;
+    synchronized (this)
+    {
+      if (!running)
+      {
+        return;
+      }
+      long now = SystemClock.uptimeMillis();
+      boolean due = false;
+      for (int g = 0; g < GROUPS; g++)
+      {
+        if (changed[g] && now - lastSentMs[g] >= periodMs[g])
+        {
+          copyGroup(g);
+          changed[g] = false;
+          for (int f = 0; f < FIELDS; f++)
+          {
+            if (GROUP_OF[f] == g)
+            {
+              dirty[f] = false;
+            }
+          }
+          lastSentMs[g] = now;
+          due = true;
+        }
+      }
+      if (due)
+      {
+        published.setTimestamp(System.currentTimeMillis());
+        published.setBotID(RobotStateHandler.ROBOT_ID);
+        ps = published.build();
+        published = CellbotProtos.PhoneState.newBuilder(ps);
+        sent++;
+      }
+      handler.postDelayed(this, tickMs);
+    }
+    if (ps != null)
+    {
+      handler.obtainMessage(0, ps).sendToTarget();
+    }
+  }
+
+  private void copyGroup(int group)
+  {
+    if (group == FAST)
+    {
+      if (present[ACCELEROMETER])
+      {
+        published.setAccelerometer(CellbotProtos.PhoneState.Accelerometer.newBuilder()
+            .setX(latest[ACCELEROMETER * 3]).setY(latest[ACCELEROMETER * 3 + 1])
+            .setZ(latest[ACCELEROMETER * 3 + 2]));
+      }
+      if (present[COMPASS])
+      {
+        published.setCompass(CellbotProtos.PhoneState.Compass.newBuilder()
+            .setX(latest[COMPASS * 3]).setY(latest[COMPASS * 3 + 1])
+            .setZ(latest[COMPASS * 3 + 2]));
+      }
+      if (present[ORIENTATION])
+      {
+        published.setOrientation(CellbotProtos.PhoneState.Orientation.newBuilder()
+            .setAzimuth(latest[ORIENTATION * 3]).setPitch(latest[ORIENTATION * 3 + 1])
+            .setRoll(latest[ORIENTATION * 3 + 2]));
+      }
+    }
+    else
+    {
+      if (present[BATTERY])
+      {
+        published.setPhoneBatteryLevel(latest[BATTERY * 3]);
+        published.setPhoneBatteryTemp(batteryTemp);
+      }
+      if (present[LIGHT])
+      {
+        published.setLightLevel(latest[LIGHT * 3]);
+      }
+      if (present[WIFI])
+      {
+        published.setWifi(CellbotProtos.PhoneState.WIFI.newBuilder().setStrength(wifiStrength)
+            .setKbps(wifiKbps).setIp(wifiIp));
+      }
+    }
+  }
+}
@@ -19,6 +19,9 @@ public class AndroidClickHandler implements ChangeHandler, MouseUpHandler, Mouse
 
   WiimoteServiceAsync wiiService;
 
+  // Used instead of wiiService when set.
+  ControlChannel      channel;
+
   private int         keyCode;
 
   public AndroidClickHandler(WiimoteServiceAsync service, int code)
@@ -32,8 +35,24 @@ public class AndroidClickHandler implements ChangeHandler, MouseUpHandler, Mouse
     wiiService = service;
   }
 
+  public AndroidClickHandler(ControlChannel channel, int code)
+  {
+    this.channel = channel;
+    keyCode = code;
+  }
+
+  public AndroidClickHandler(ControlChannel channel)
+  {
+    this.channel = channel;
+  }
+
   public void onClick(ClickEvent event)
   {
+    if (channel != null)
+    {
+      channel.sendKeyDown(keyCode);
+      return;
+    }
     wiiService.handleButtonDown(keyCode, WiimoteEntry.BOT_ID, new AsyncCallback<Integer>()
     {
       public void onFailure(Throwable caught)
@@ -51,6 +70,11 @@ public class AndroidClickHandler implements ChangeHandler, MouseUpHandler, Mouse
 
   public void onMouseUp(MouseUpEvent event)
   {
+    if (channel != null)
+    {
+      channel.sendKeyUp(keyCode);
+      return;
+    }
     wiiService.handleButtonDown(keyCode, WiimoteEntry.BOT_ID, new AsyncCallback<Integer>()
     {
       public void onFailure(Throwable caught)
@@ -68,6 +92,11 @@ public class AndroidClickHandler implements ChangeHandler, MouseUpHandler, Mouse
 
   public void onMouseDown(MouseDownEvent event)
   {
+    if (channel != null)
+    {
+      channel.sendKeyDown(keyCode);
+      return;
+    }
     wiiService.handleButtonDown(keyCode, WiimoteEntry.BOT_ID, new AsyncCallback<Integer>()
     {
       public void onFailure(Throwable caught)
@@ -92,7 +121,12 @@ public class AndroidClickHandler implements ChangeHandler, MouseUpHandler, Mouse
   {
     final TextBox t = (TextBox) event.getSource();
     event.stopPropagation();
-    if (event.getCharCode() == '\n' || event.getCharCode() == '\r')
+    if ((event.getCharCode() == '\n' || event.getCharCode() == '\r') && channel != null)
+    {
+      channel.sendText(t.getValue());
+      t.setText("");
+    }
+    else if (event.getCharCode() == '\n' || event.getCharCode() == '\r')
       wiiService.handleTextCommand(t.getValue(), WiimoteEntry.BOT_ID, new AsyncCallback<Integer>()
       {
         public void onFailure(Throwable caught)
@@ -0,0 +1,336 @@
+package com.cellbots.cellserv.client;
+
+import com.cellbots.cellserv.shared.ChannelCodec;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.user.client.Timer;
+
+/**
+ * The remote's end of the control channel served by ChannelServlet.
+ *
+ * Key and stick events and text commands are sent as soon as they happen,
+ * except while a send is in flight: then they are batched and go out together
+ * when it completes, so a burst of input costs one request, and a stick
+ * position that is replaced before it goes out is not sent. If a send fails,
+ * its key-ups and stick centerings are sent again until they get through.
+ * A long-poll for the phone state and video frame is kept running, started
+ * at most every POLL_INTERVAL so that a state and a frame published close
+ * together come back in one response; the listener is told of each new
+ * state, decoded from the compact STATE frame, and of each new frame, which
+ * it can then load.
+ */
+public class ControlChannel
+{
+  /**
+   * Receives what the server sends down the channel.
+   */
+  public interface Listener
+  {
+    void onState(State state);
+
+    void onFrame(long seq);
+
+    void onError(String message);
+  }
+
+  /**
+   * A phone state as sent in a STATE frame, numbered as in ChannelCodec.
+   */
+  public static class State
+  {
+    final int[] values = new int[ChannelCodec.FIELDS];
+
+    int         present;
+
+    public long seq;
+
+    public boolean has(int field)
+    {
+      return (present & (1 << field)) != 0;
+    }
+
+    public float get(int field)
+    {
+      float step = ChannelCodec.STEPS[field];
+      return step == 0 ? values[field] : values[field] * step;
+    }
+  }
+
+  // Delay before polling again after a failed poll.
+  static final int             RETRY_INTERVAL = 2000;
+
+  // Delay before resending stops after a failed send.
+  static final int             SEND_RETRY_INTERVAL = 250;
+
+  // Shortest time between the starts of two polls, in ms.
+  static final int             POLL_INTERVAL  = 100;
+
+  private final String         url;
+
+  private final Listener       listener;
+
+  private final ChannelCodec.Writer pending   = new ChannelCodec.Writer();
+
+  // The latest stick position not yet written to pending, as type, number,
+  // x and y.
+  private int[]                pendingStick;
+
+  // The key-ups and stick centerings written to pending. They stop the bot,
+  // so they are sent again if the batch carrying them is lost.
+  private final ChannelCodec.Writer pendingStops = new ChannelCodec.Writer();
+
+  // The stops of the batch in flight, and those of a lost batch waiting to
+  // go out again ahead of pending.
+  private String               inFlightStops  = "";
+
+  private String               resend         = "";
+
+  private boolean              sending        = false;
+
+  private boolean              polling        = false;
+
+  private long                 stateSeq       = -1;
+
+  private long                 frameSeq       = -1;
+
+  private int                  requests       = 0;
+
+  private long                 lastPollMs     = 0;
+
+  // Starts the next poll after a failure or to keep to POLL_INTERVAL.
+  private final Timer          pollTimer;
+
+  // Ends the wait after a failed send, so stops are resent.
+  private final Timer          sendRetryTimer;
+
+  public ControlChannel(String channelUrl, String botID, Listener listener)
+  {
+    this.url = channelUrl + "?BOTID=" + URL.encodeComponent(botID == null ? "" : botID);
+    this.listener = listener;
+    pollTimer = new Timer()
+    {
+      public void run()
+      {
+        poll();
+      }
+    };
+    sendRetryTimer = new Timer()
+    {
+      public void run()
+      {
+        sending = false;
+        flush();
+      }
+    };
+  }
+
+  /** Starts polling for phone states and video frames. */
+  public void start()
+  {
+    if (!polling)
+    {
+      polling = true;
+      poll();
+    }
+  }
+
+  public void sendKeyDown(int keyCode)
+  {
+    pending.frame(ChannelCodec.KEY_DOWN, 1).putVarint(keyCode);
+    flush();
+  }
+
+  public void sendKeyUp(int keyCode)
+  {
+    pending.frame(ChannelCodec.KEY_UP, 1).putVarint(keyCode);
+    pendingStops.frame(ChannelCodec.KEY_UP, 1).putVarint(keyCode);
+    flush();
+  }
+
+  /**
+   * Sends a stick position, quantized as by StickFilter. A position not yet
+   * sent is replaced rather than sent as well.
+   */
+  public void sendStick(int stickType, int stickNumber, int x, int y)
+  {
+    if (pendingStick != null && (pendingStick[0] != stickType || pendingStick[1] != stickNumber))
+    {
+      writePendingStick();
+    }
+    pendingStick = new int[] { stickType, stickNumber, x, y };
+    flush();
+  }
+
+  public void sendText(String command)
+  {
+    pending.text(ChannelCodec.TEXT, command);
+    flush();
+  }
+
+  /** Returns the number of requests made so far, for comparing transports. */
+  public int getRequestCount()
+  {
+    return requests;
+  }
+
+  private void writePendingStick()
+  {
+    pending.frame(ChannelCodec.STICK, 4).putVarint(pendingStick[0]).putVarint(pendingStick[1])
+        .putSigned(pendingStick[2]).putSigned(pendingStick[3]);
+    if (pendingStick[2] == 0 && pendingStick[3] == 0)
+    {
+      pendingStops.frame(ChannelCodec.STICK, 4).putVarint(pendingStick[0]).putVarint(pendingStick[1])
+          .putSigned(0).putSigned(0);
+    }
+    pendingStick = null;
+  }
+
+  private void flush()
+  {
+    if (sending || (pending.isEmpty() && pendingStick == null && resend.length() == 0))
+    {
+      return;
+    }
+    if (pendingStick != null)
+    {
+      writePendingStick();
+    }
+    // Messages are frames end to end, so the resent stops go first as they
+    // happened first.
+    String message = resend + pending.toString();
+    inFlightStops = resend + pendingStops.toString();
+    resend = "";
+    pending.clear();
+    pendingStops.clear();
+    RequestBuilder builder = new RequestBuilder(RequestBuilder.POST, url);
+    builder.setHeader("Content-Type", ChannelCodec.CONTENT_TYPE);
+    try
+    {
+      sending = true;
+      requests++;
+      builder.sendRequest(message, new RequestCallback()
+      {
+        public void onError(Request request, Throwable exception)
+        {
+          sent("Couldn't send controls");
+        }
+
+        public void onResponseReceived(Request request, Response response)
+        {
+          sent(response.getStatusCode() == 200 ? null : "Couldn't send controls");
+        }
+      });
+    }
+    catch (RequestException e)
+    {
+      sent("Couldn't send controls");
+    }
+  }
+
+  private void sent(String error)
+  {
+    if (error != null)
+    {
+      // Only the stops of what was lost are resent; a late drive command is
+      // worse than a missed one, but a missed stop leaves the bot driving.
+      listener.onError(error);
+      resend = inFlightStops;
+    }
+    inFlightStops = "";
+    if (resend.length() > 0)
+    {
+      sendRetryTimer.schedule(SEND_RETRY_INTERVAL);
+      return;
+    }
+    sending = false;
+    flush();
+  }
+
+  void poll()
+  {
+    RequestBuilder builder = new RequestBuilder(RequestBuilder.GET, url + "&seq=" + stateSeq + "&"
+        + ChannelCodec.FRAME_PARAM + "=" + frameSeq);
+    try
+    {
+      requests++;
+      lastPollMs = System.currentTimeMillis();
+      builder.sendRequest(null, new RequestCallback()
+      {
+        public void onError(Request request, Throwable exception)
+        {
+          pollFailed();
+        }
+
+        public void onResponseReceived(Request request, Response response)
+        {
+          if (response.getStatusCode() != 200)
+          {
+            pollFailed();
+            return;
+          }
+          try
+          {
+            receive(response.getText());
+          }
+          catch (IllegalArgumentException e)
+          {
+            pollFailed();
+            return;
+          }
+          long wait = lastPollMs + POLL_INTERVAL - System.currentTimeMillis();
+          if (wait > 0)
+          {
+            pollTimer.schedule((int) wait);
+          }
+          else
+          {
+            poll();
+          }
+        }
+      });
+    }
+    catch (RequestException e)
+    {
+      pollFailed();
+    }
+  }
+
+  private void pollFailed()
+  {
+    listener.onError("Couldn't retrieve phone state");
+    pollTimer.schedule(RETRY_INTERVAL);
+  }
+
+  private void receive(String message)
+  {
+    ChannelCodec.Reader in = new ChannelCodec.Reader(message);
+    int type;
+    while ((type = in.nextFrame()) >= 0)
+    {
+      if (type == ChannelCodec.STATE)
+      {
+        State state = new State();
+        state.seq = in.readVarint();
+        state.present = in.readInt();
+        for (int f = 0; f < ChannelCodec.FIELDS; f++)
+        {
+          if (state.has(f))
+          {
+            state.values[f] = (int) in.readSigned();
+          }
+        }
+        stateSeq = state.seq;
+        listener.onState(state);
+      }
+      else if (type == ChannelCodec.FRAME)
+      {
+        frameSeq = in.readVarint();
+        listener.onFrame(frameSeq);
+      }
+    }
+  }
+}
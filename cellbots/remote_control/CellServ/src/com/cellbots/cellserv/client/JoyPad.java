@@ -1,12 +1,158 @@
 package com.cellbots.cellserv.client;
 
+import com.cellbots.cellserv.shared.StickFilter;
+import com.google.gwt.event.dom.client.MouseDownEvent;
+import com.google.gwt.event.dom.client.MouseDownHandler;
+import com.google.gwt.event.dom.client.MouseMoveEvent;
+import com.google.gwt.event.dom.client.MouseMoveHandler;
+import com.google.gwt.event.dom.client.MouseOutEvent;
+import com.google.gwt.event.dom.client.MouseOutHandler;
+import com.google.gwt.event.dom.client.MouseUpEvent;
+import com.google.gwt.event.dom.client.MouseUpHandler;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.Composite;
+import com.google.gwt.user.client.ui.FocusPanel;
+import com.google.gwt.widgetideas.graphics.client.Color;
+import com.google.gwt.widgetideas.graphics.client.GWTCanvas;
 
-public class JoyPad extends Composite
+/**
+ * An analog stick driven with the mouse: press on the pad and drag, and the
+ * knob's offset from the center is the stick position. Releasing the button
+ * or leaving the pad returns it to center.
+ *
+ * Positions go through a StickFilter, so a drag sends a bounded stream of
+ * quantized positions instead of one per mouse move. A timer checks the
+ * filter while the stick is active, to send a position held back by the rate
+ * limit and to keep sending one while the stick is held off center.
+ */
+public class JoyPad extends Composite implements MouseDownHandler, MouseMoveHandler, MouseUpHandler, MouseOutHandler
 {
+  /**
+   * Sends stick positions, quantized as by StickFilter.
+   */
+  public interface StickSender
+  {
+    void sendStick(int x, int y);
+  }
+
+  private static final int  SIZE      = 96;
+
+  private static final int  KNOB      = 10;
+
+  private final GWTCanvas   canvas    = new GWTCanvas(SIZE, SIZE);
+
+  private final StickFilter filter    = new StickFilter();
+
+  private final StickSender sender;
+
+  private final Timer       timer;
+
+  private boolean           dragging  = false;
+
+  private boolean           ticking   = false;
+
+  public JoyPad(StickSender sender)
+  {
+    this.sender = sender;
+    FocusPanel panel = new FocusPanel(canvas);
+    panel.addMouseDownHandler(this);
+    panel.addMouseMoveHandler(this);
+    panel.addMouseUpHandler(this);
+    panel.addMouseOutHandler(this);
+    initWidget(panel);
+    timer = new Timer()
+    {
+      public void run()
+      {
+        send();
+        if (!filter.isActive())
+        {
+          cancel();
+          ticking = false;
+        }
+      }
+    };
+    draw();
+  }
+
+  public StickFilter getFilter()
+  {
+    return filter;
+  }
+
+  public void onMouseDown(MouseDownEvent event)
+  {
+    event.preventDefault();
+    dragging = true;
+    move(event.getRelativeX(canvas.getElement()), event.getRelativeY(canvas.getElement()));
+  }
+
+  public void onMouseMove(MouseMoveEvent event)
+  {
+    if (dragging)
+    {
+      move(event.getRelativeX(canvas.getElement()), event.getRelativeY(canvas.getElement()));
+    }
+  }
+
+  public void onMouseUp(MouseUpEvent event)
+  {
+    release();
+  }
+
+  public void onMouseOut(MouseOutEvent event)
+  {
+    release();
+  }
 
-  public JoyPad()
+  private void release()
   {
+    dragging = false;
+    if (filter.set(0, 0))
+    {
+      draw();
+    }
+    send();
   }
 
+  private void move(int px, int py)
+  {
+    float half = SIZE / 2f;
+    // Up the screen is forward.
+    if (filter.set((px - half) / half, (half - py) / half))
+    {
+      draw();
+    }
+    send();
+    if (!ticking && filter.isActive())
+    {
+      ticking = true;
+      timer.scheduleRepeating(StickFilter.DEFAULT_MIN_INTERVAL_MS);
+    }
+  }
+
+  private void send()
+  {
+    if (filter.due(System.currentTimeMillis()))
+    {
+      sender.sendStick(filter.getX(), filter.getY());
+    }
+  }
+
+  private void draw()
+  {
+    float half = SIZE / 2f;
+    canvas.setFillStyle(Color.WHITE);
+    canvas.fillRect(0, 0, SIZE, SIZE);
+    canvas.setLineWidth(2);
+    canvas.setStrokeStyle(Color.BLACK);
+    canvas.strokeRect(1, 1, SIZE - 2, SIZE - 2);
+    canvas.setFillStyle(Color.BLACK);
+    double kx = half + StickFilter.toFloat(filter.getX()) * (half - KNOB);
+    double ky = half - StickFilter.toFloat(filter.getY()) * (half - KNOB);
+    canvas.beginPath();
+    canvas.arc(kx, ky, KNOB, 0, Math.PI * 2, false);
+    canvas.closePath();
+    canvas.fill();
+  }
 }
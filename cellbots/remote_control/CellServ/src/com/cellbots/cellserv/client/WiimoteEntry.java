@@ -4,14 +4,15 @@ import com.google.gwt.core.client.EntryPoint;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.event.dom.client.ErrorEvent;
 import com.google.gwt.event.dom.client.ErrorHandler;
-import com.google.gwt.gen2.event.dom.client.LoadEvent;
-import com.google.gwt.gen2.event.dom.client.LoadHandler;
+import com.google.gwt.event.dom.client.LoadEvent;
+import com.google.gwt.event.dom.client.LoadHandler;
 import com.google.gwt.http.client.Request;
 import com.google.gwt.http.client.Response;
 import com.google.gwt.http.client.RequestBuilder;
 import com.google.gwt.http.client.RequestCallback;
 import com.google.gwt.http.client.RequestException;
 import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.HasHorizontalAlignment;
@@ -27,6 +28,8 @@ import com.google.gwt.user.client.ui.Widget;
 import com.google.gwt.widgetideas.client.ProgressBar;
 import com.google.gwt.widgetideas.graphics.client.Color;
 import com.google.gwt.widgetideas.graphics.client.GWTCanvas;
+import com.cellbots.cellserv.shared.ChannelCodec;
+import com.cellbots.cellserv.shared.StickFilter;
 
 public class WiimoteEntry implements EntryPoint
 {
@@ -35,6 +38,10 @@ public class WiimoteEntry implements EntryPoint
 
   static String        VIDEO_URL         = "/video";
 
+  static String        MJPEG_URL         = "mjpeg";
+
+  static String        CHANNEL_URL       = "/channel";
+
   public static String BOT_ID            = "";
 
   final static Label   messageLabel      = new Label("Did you forget ?BOTID=yourbotname");
@@ -49,6 +56,25 @@ public class WiimoteEntry implements EntryPoint
 
   boolean              loadingImg        = false;
 
+  // Sequence number of the last phone state received; sent back so the
+  // server only answers once something newer is available.
+  String               phoneStateSeq     = "-1";
+
+  // Delay before polling again after a failed phone state request.
+  int                  sensorRetryInterval = 2000;
+
+  Timer                sensorTimer;
+
+  // Carries the controls, phone state and frame notifications, unless the
+  // page is opened with ?RPC to use GWT RPC and polling instead.
+  ControlChannel       channel;
+
+  // Sequence number of the newest frame announced on the channel, and of
+  // the one being loaded into the image.
+  long                 latestFrameSeq    = -1;
+
+  long                 loadingFrameSeq   = -1;
+
   public void dbg(String msg)
   {
     debugConsole.setText(debugConsole.getText() + "\n" + msg);
@@ -62,11 +88,34 @@ public class WiimoteEntry implements EntryPoint
     if (path.endsWith("/"))
       path = path.substring(0, path.length() - 1);
     SENSORSTATE_URL = path + SENSORSTATE_URL;
+    CHANNEL_URL = path + CHANNEL_URL;
 
     BOT_ID = Window.Location.getParameter("BOTID");
 
     Window.setTitle(BOT_ID + " Cellserv");
     final WiimoteServiceAsync wiiService = GWT.create(WiimoteService.class);
+    final Image videoImage = new Image(VIDEO_URL);
+    if (Window.Location.getParameter("RPC") == null)
+    {
+      channel = new ControlChannel(CHANNEL_URL, BOT_ID, new ControlChannel.Listener()
+      {
+        public void onState(ControlChannel.State state)
+        {
+          showPhoneState(state);
+        }
+
+        public void onFrame(long seq)
+        {
+          latestFrameSeq = seq;
+          loadFrame(videoImage);
+        }
+
+        public void onError(String message)
+        {
+          dbg(message);
+        }
+      });
+    }
     final VerticalPanel mainPanel = new VerticalPanel();
     final VerticalPanel controlPanel = new VerticalPanel();
     final HorizontalPanel horizontalPanel = new HorizontalPanel();
@@ -79,29 +128,35 @@ public class WiimoteEntry implements EntryPoint
     debugConsole.setWidth("95%");
     debugConsole.setHeight("95%");
 
-    txtCommand.addKeyPressHandler(new AndroidClickHandler(wiiService));
+    txtCommand.addKeyPressHandler(clickHandler(wiiService, 0));
 
     final Timer elapsedTimer;
-    final Timer sensorTimer;
 
     final Button fwdButton = new Button("FWD");
-    fwdButton.addClickHandler(new AndroidClickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_UP));
+    fwdButton.addClickHandler(clickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_UP));
     final Button bkwdButton = new Button("BKWD");
-    bkwdButton.addClickHandler(new AndroidClickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_DOWN));
+    bkwdButton.addClickHandler(clickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_DOWN));
     final Button leftButton = new Button("LEFT");
-    leftButton.addClickHandler(new AndroidClickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_LEFT));
+    leftButton.addClickHandler(clickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_LEFT));
     final Button rightButton = new Button("RIGHT");
-    rightButton.addClickHandler(new AndroidClickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_RIGHT));
+    rightButton.addClickHandler(clickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_RIGHT));
     final Button stopButton = new Button("STOP");
-    stopButton.addClickHandler(new AndroidClickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_CENTER));
-
-    final Image videoImage = new Image(VIDEO_URL);
+    stopButton.addClickHandler(clickHandler(wiiService, AndroidKeyCode.KEYCODE_DPAD_CENTER));
 
     videoImage.addErrorHandler(new ErrorHandler()
     {
       public void onError(ErrorEvent event)
       {
         dbg("could not load video frame");
+        frameLoaded(videoImage);
+      }
+    });
+
+    videoImage.addLoadHandler(new LoadHandler()
+    {
+      public void onLoad(LoadEvent event)
+      {
+        frameLoaded(videoImage);
       }
     });
 
@@ -123,6 +178,7 @@ public class WiimoteEntry implements EntryPoint
     hudPanel.setHorizontalAlignment(HasHorizontalAlignment.ALIGN_LEFT);
     hudPanel.setWidth("100%");
     hudPanel.add(controlPanel);
+    hudPanel.add(new JoyPad(stickSender(wiiService)));
 
     hudPanel.add(canvas);
     hudPanel.add(debugConsole);
@@ -181,46 +237,155 @@ public class WiimoteEntry implements EntryPoint
     });*/
 
 
-    // Create a new timer
+    // Retries the phone state long-poll after an error.
     sensorTimer = new Timer()
     {
       public void run()
       {
-        RequestBuilder builder = new RequestBuilder(RequestBuilder.GET, SENSORSTATE_URL + "?BOTID=" + BOT_ID);
-        try
+        pollPhoneState();
+      }
+    };
+    if (Window.Location.getParameter("MJPEG") != null)
+    {
+      // The server pushes every frame over one streaming response, so the
+      // image does not have to be reloaded on a timer.
+      videoImage.setUrl(MJPEG_URL + "?BOTID=" + BOT_ID);
+    }
+    else if (channel == null)
+    {
+      elapsedTimer.scheduleRepeating(framePoleInterval);
+    }
+    if (channel != null)
+    {
+      // Frames are loaded as the channel announces them.
+      channel.start();
+    }
+    else
+    {
+      pollPhoneState();
+    }
+
+
+    drawCompass(0);
+    drawBattery(50);
+  }
+   
+  /**
+   * Requests the phone state as a long-poll. The server holds the request
+   * until a state newer than phoneStateSeq arrives or its wait time runs out,
+   * and the next request is issued as soon as this one completes.
+   */
+  void pollPhoneState()
+  {
+    RequestBuilder builder = new RequestBuilder(RequestBuilder.GET, SENSORSTATE_URL + "?BOTID=" + BOT_ID + "&seq="
+        + phoneStateSeq);
+    try
+    {
+      builder.setHeader("Content-Type", "application/json");
+
+      builder.sendRequest(null, new RequestCallback()
+      {
+        public void onError(Request request, Throwable exception)
         {
-          builder.setHeader("Content-Type", "application/json");
+          dbg("Couldn't retrieve JSON");
+          sensorTimer.schedule(sensorRetryInterval);
+        }
 
-          builder.sendRequest(null, new RequestCallback()
+        public void onResponseReceived(Request request, Response response)
+        {
+          if (response.getStatusCode() == 200)
           {
-            public void onError(Request request, Throwable exception)
-            {
-              dbg("Couldn't retrieve JSON");
-            }
-
-            public void onResponseReceived(Request request, Response response)
-            {
-              if (response.getStatusCode() == 200)
-                showPhoneState(PhoneState.parse(response.getText()));
-              else
-                dbg("Couldn't retrieve JSON");
-            }
-          });
+            String seq = response.getHeader("X-Seq");
+            if (seq != null)
+              phoneStateSeq = seq;
+            showPhoneState(PhoneState.parse(response.getText()));
+            pollPhoneState();
+          }
+          else if (response.getStatusCode() == 304)
+          {
+            pollPhoneState();
+          }
+          else
+          {
+            dbg("Couldn't retrieve JSON");
+            sensorTimer.schedule(sensorRetryInterval);
+          }
         }
-        catch (RequestException e)
+      });
+    }
+    catch (RequestException e)
+    {
+      dbg("Couldn't retrieve JSON");
+      sensorTimer.schedule(sensorRetryInterval);
+    }
+  }
+
+  /**
+   * Sends the joypad's positions as analog stick 0.
+   */
+  JoyPad.StickSender stickSender(final WiimoteServiceAsync wiiService)
+  {
+    return new JoyPad.StickSender()
+    {
+      public void sendStick(int x, int y)
+      {
+        if (channel != null)
         {
-          dbg("Couldn't retrieve JSON");
+          channel.sendStick(ChannelCodec.STICK_ANALOG, 0, x, y);
+          return;
         }
+        wiiService.handleStick(ChannelCodec.STICK_ANALOG, 0, StickFilter.toFloat(x), StickFilter.toFloat(y), BOT_ID,
+            new AsyncCallback<Integer>()
+            {
+              public void onFailure(Throwable caught)
+              {
+                GWT.log(caught.getMessage());
+              }
+
+              public void onSuccess(Integer result)
+              {
+              }
+            });
       }
     };
-    elapsedTimer.scheduleRepeating(framePoleInterval);
-    sensorTimer.scheduleRepeating(framePoleInterval*2);
+  }
 
+  AndroidClickHandler clickHandler(WiimoteServiceAsync wiiService, int keyCode)
+  {
+    if (channel != null)
+    {
+      return new AndroidClickHandler(channel, keyCode);
+    }
+    return new AndroidClickHandler(wiiService, keyCode);
+  }
 
-    drawCompass(0);
-    drawBattery(50);
+  /**
+   * Loads the newest announced frame, unless one is loading already; then it
+   * is loaded when that one is done, so frames are skipped rather than
+   * queued on a slow link.
+   */
+  void loadFrame(Image videoImage)
+  {
+    if (loadingImg || latestFrameSeq == loadingFrameSeq || Window.Location.getParameter("MJPEG") != null)
+    {
+      return;
+    }
+    loadingImg = true;
+    loadingFrameSeq = latestFrameSeq;
+    // A long-poll that does not wait, for the frame after the one before
+    // this: the URL is new for every frame, so nothing is cached.
+    videoImage.setUrl("video?BOTID=" + BOT_ID + "&seq=" + (loadingFrameSeq - 1) + "&wait=0");
   }
-   
+
+  void frameLoaded(Image videoImage)
+  {
+    loadingImg = false;
+    if (channel != null)
+    {
+      loadFrame(videoImage);
+    }
+  }
+
   void drawCompass(double angle)
   {
     double rad = ( Math.PI * 2 * ( ( angle + 180 ) / 360.0 ) );
@@ -278,6 +443,18 @@ public class WiimoteEntry implements EntryPoint
     }
   }
 
+  void showPhoneState(ControlChannel.State state)
+  {
+    if (state.has(ChannelCodec.AZIMUTH))
+    {
+      drawCompass(state.get(ChannelCodec.AZIMUTH));
+    }
+    if (state.has(ChannelCodec.BATTERY_LEVEL))
+    {
+      drawBattery(state.get(ChannelCodec.BATTERY_LEVEL));
+    }
+  }
+
   static void displayError(String error)
   {
     messageLabel.setText(error);
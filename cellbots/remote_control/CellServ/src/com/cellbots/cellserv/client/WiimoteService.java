@@ -15,6 +15,7 @@ public interface WiimoteService extends RemoteService
   public int handleButtonDown(int buttonid, String botid);
   public int handleButtonUp(int buttonid, String botid);
   public int handleTextCommand(String command, String botid);
+  public int handleStick(int stickType, int stickNumber, float x, float y, String botid);
   //public String getPhoneState();
   
 }
@@ -14,6 +14,8 @@ public interface WiimoteServiceAsync
   public void handleButtonUp(int buttonid, String botid, AsyncCallback<Integer> callback);
   
   public void handleTextCommand(String command, String botid, AsyncCallback<Integer> callback);
+
+  public void handleStick(int stickType, int stickNumber, float x, float y, String botid, AsyncCallback<Integer> callback);
   
  // public void getPhoneState(AsyncCallback<String> callback);
 }
@@ -0,0 +1,220 @@
+package com.cellbots.cellserv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.cellbots.CellbotProtos;
+import com.cellbots.CellbotProtos.ControllerState.KeyEvent;
+import com.cellbots.CellbotProtos.ControllerState.StickEvent;
+import com.cellbots.PhoneStateDelta;
+import com.cellbots.cellserv.shared.ChannelCodec;
+import com.cellbots.cellserv.shared.StickFilter;
+
+/**
+ * The control channel of a remote, in the format of ChannelCodec. App Engine
+ * has no WebSocket, so the channel is two kinds of request: a POST carries
+ * the key and stick events and text commands the remote has batched up and
+ * is answered at once; a GET is a long-poll, parked until the phone state or
+ * the video frame is newer than the client's "seq" and "frame" parameters,
+ * and answered with both in one message. A remote keeps one of each in flight
+ * at most.
+ */
+public class ChannelServlet extends HttpServlet
+{
+
+  private static final long serialVersionUID = 2748906542215760318L;
+
+  // Longer upstream messages are turned down.
+  private static final int  MAX_MESSAGE      = 4096;
+
+  public String getServletInfo()
+  {
+    return "Servlet for the control channel of a remote";
+  }
+
+  public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
+  {
+    String botID = "";
+    if(req.getParameter("BOTID") != null)
+    {
+      botID = req.getParameter("BOTID");
+    }
+
+    long stateSeq = LongPoll.getLastSeenSeq(req);
+    long frameSeq = -1;
+    try
+    {
+      String frame = req.getParameter(ChannelCodec.FRAME_PARAM);
+      if (frame != null)
+      {
+        frameSeq = Long.parseLong(frame);
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      // Treated as no frame seen.
+    }
+    String message;
+    try
+    {
+      message = poll(StateHolder.getInstance(botID), stateSeq, frameSeq, LongPoll.getWaitMs(req));
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      message = "";
+    }
+    write(res, message);
+  }
+
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
+  {
+    String botID = "";
+    if(req.getParameter("BOTID") != null)
+    {
+      botID = req.getParameter("BOTID");
+    }
+
+    String reply;
+    try
+    {
+      reply = receive(StateHolder.getInstance(botID), readBody(req));
+    }
+    catch (IllegalArgumentException e)
+    {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+    write(res, reply);
+  }
+
+  /**
+   * Queues the events in an upstream message for the bot and returns the
+   * reply.
+   *
+   * @throws IllegalArgumentException if the message is malformed
+   */
+  static String receive(StateHolder holder, String message)
+  {
+    ChannelCodec.Reader in = new ChannelCodec.Reader(message);
+    int pending = 0;
+    int type;
+    while ((type = in.nextFrame()) >= 0)
+    {
+      switch (type)
+      {
+        case ChannelCodec.KEY_DOWN:
+        case ChannelCodec.KEY_UP:
+          KeyEvent.Builder key = KeyEvent.newBuilder();
+          if (type == ChannelCodec.KEY_DOWN)
+          {
+            key.setKeyDown(true);
+          }
+          else
+          {
+            key.setKeyUp(true);
+          }
+          key.setKeyCode(Integer.toString(in.readInt()));
+          pending = holder.addKeyEvent(key);
+          break;
+        case ChannelCodec.TEXT:
+          holder.addKeyTxtCommand(in.readText());
+          break;
+        case ChannelCodec.STICK:
+          StickEvent.StickType stickType = StickEvent.StickType.valueOf(in.readInt());
+          int number = in.readInt();
+          int x = (int) in.readSigned();
+          int y = (int) in.readSigned();
+          if (stickType != null)
+          {
+            // Clamped, in case the remote did not.
+            holder.addStickEvent(StickEvent.newBuilder().setStickType(stickType).setStickNumber(number)
+                .setX(StickFilter.toFloat(Math.max(-StickFilter.RESOLUTION, Math.min(StickFilter.RESOLUTION, x))))
+                .setY(StickFilter.toFloat(Math.max(-StickFilter.RESOLUTION, Math.min(StickFilter.RESOLUTION, y)))));
+          }
+          break;
+        default:
+          // Skipped by the next nextFrame.
+          break;
+      }
+    }
+    return new ChannelCodec.Writer().frame(ChannelCodec.ACK, 1).putVarint(pending).toString();
+  }
+
+  /**
+   * Waits up to waitMs for a phone state newer than stateSeq or a video frame
+   * newer than frameSeq, and returns a downstream message with what the
+   * client has not seen. The message is empty if it has seen both.
+   */
+  static String poll(StateHolder holder, long stateSeq, long frameSeq, long waitMs) throws InterruptedException
+  {
+    holder.awaitPhoneStateOrVideoFrame(stateSeq, frameSeq, waitMs);
+    ChannelCodec.Writer out = new ChannelCodec.Writer();
+    StateHolder.Versioned<CellbotProtos.PhoneState> state = holder.getVersionedPhoneState();
+    if (state != null && state.isUnseen(stateSeq))
+    {
+      writeState(out, state);
+    }
+    StateHolder.Versioned<CellbotProtos.AudioVideoFrame> frame = holder.getVersionedVideoFrame();
+    if (frame != null && frame.isUnseen(frameSeq))
+    {
+      out.frame(ChannelCodec.FRAME, 1).putVarint(frame.seq);
+    }
+    return out.toString();
+  }
+
+  private static void writeState(ChannelCodec.Writer out, StateHolder.Versioned<CellbotProtos.PhoneState> state)
+  {
+    // The same fields and quantization as the phone's delta telemetry.
+    PhoneStateDelta.Values values = new PhoneStateDelta.Values();
+    values.read(state.value);
+    int count = 2;
+    for (int f = 0; f < PhoneStateDelta.FIELDS; f++)
+    {
+      if (values.has(f))
+      {
+        count++;
+      }
+    }
+    out.frame(ChannelCodec.STATE, count).putVarint(state.seq).putVarint(values.present);
+    for (int f = 0; f < PhoneStateDelta.FIELDS; f++)
+    {
+      if (values.has(f))
+      {
+        out.putSigned(values.values[f]);
+      }
+    }
+  }
+
+  private static void write(HttpServletResponse res, String message) throws IOException
+  {
+    byte[] body = message.getBytes("US-ASCII");
+    res.setHeader("Cache-Control", "no-cache");
+    res.setContentType(ChannelCodec.CONTENT_TYPE);
+    res.setContentLength(body.length);
+    res.getOutputStream().write(body);
+  }
+
+  private static String readBody(HttpServletRequest req) throws IOException
+  {
+    ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+    InputStream in = req.getInputStream();
+    byte[] buf = new byte[256];
+    int n;
+    while ((n = in.read(buf)) > 0)
+    {
+      body.write(buf, 0, n);
+      if (body.size() > MAX_MESSAGE)
+      {
+        throw new IllegalArgumentException("message too long");
+      }
+    }
+    return body.toString("US-ASCII");
+  }
+}
@@ -0,0 +1,404 @@
+package com.cellbots.cellserv.server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.cellbots.CellbotProtos;
+import com.cellbots.cellserv.shared.ChannelCodec;
+import com.google.protobuf.ByteString;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the server and a bot, for running the remote against the
+ * control channel on a desktop JVM without App Engine or a phone.
+ *
+ * <pre>
+ * java com.cellbots.cellserv.server.LocalChannelServer [port [warDir [stateHz [frameHz]]]]
+ * </pre>
+ *
+ * serves the compiled remote from warDir (default "war") and the channel and
+ * video endpoints on port (default 8888); open
+ * http://localhost:8888/CellServ.html?BOTID=local. A simulated bot publishes
+ * a turning compass at stateHz (default 10) and video frames at frameHz
+ * (default 5), and takes controller events the way the phone's long-poll
+ * does. Every 10 s the stand-in prints the requests and bytes per endpoint
+ * and the delay from a control message arriving to the bot taking its
+ * events.
+ */
+public class LocalChannelServer
+{
+  static final String                  BOT_ID       = "local";
+
+  private final StateHolder            holder       = StateHolder.getInstance(BOT_ID);
+
+  private final File                   warDir;
+
+  private final Map<String, AtomicLong[]> counters  = new HashMap<String, AtomicLong[]>();
+
+  // Arrival times of control messages the bot has not taken yet, in ns.
+  private final ConcurrentLinkedQueue<Long> arrivals = new ConcurrentLinkedQueue<Long>();
+
+  private final AtomicLong             inputs       = new AtomicLong();
+
+  private final AtomicLong             inputNanos   = new AtomicLong();
+
+  private final AtomicLong             maxInputNanos = new AtomicLong();
+
+  // Rates of the simulated bot's phone states and video frames; 0 for none.
+  double                               stateHz      = 10;
+
+  double                               frameHz      = 5;
+
+  LocalChannelServer(File warDir)
+  {
+    this.warDir = warDir;
+    for (String path : new String[] { "/channel", "/video", "static" })
+    {
+      counters.put(path, new AtomicLong[] { new AtomicLong(), new AtomicLong(), new AtomicLong() });
+    }
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8888;
+    final LocalChannelServer server = new LocalChannelServer(new File(args.length > 1 ? args[1] : "war"));
+    if (args.length > 2)
+    {
+      server.stateHz = Double.parseDouble(args[2]);
+    }
+    if (args.length > 3)
+    {
+      server.frameHz = Double.parseDouble(args[3]);
+    }
+    // Otherwise a response's headers and body go out in two packets and
+    // delayed ACKs add 40 ms to every request.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+    // Long-polls hold a thread each.
+    http.setExecutor(Executors.newCachedThreadPool());
+    http.createContext("/", new HttpHandler()
+    {
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        try
+        {
+          server.handle(exchange);
+        }
+        finally
+        {
+          exchange.close();
+        }
+      }
+    });
+    http.start();
+    server.startBot();
+    System.out.println("Open http://localhost:" + port + "/CellServ.html?BOTID=" + BOT_ID);
+  }
+
+  void handle(HttpExchange exchange) throws IOException
+  {
+    String path = exchange.getRequestURI().getPath();
+    Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+    if (path.endsWith("/channel"))
+    {
+      count("/channel", 0);
+      if (exchange.getRequestMethod().equals("POST"))
+      {
+        byte[] body = readFully(exchange.getRequestBody());
+        count("/channel", 1, body.length);
+        arrivals.add(System.nanoTime());
+        String reply;
+        try
+        {
+          reply = ChannelServlet.receive(holder, new String(body, "US-ASCII"));
+        }
+        catch (IllegalArgumentException e)
+        {
+          send(exchange, "/channel", 400, "text/plain", e.getMessage().getBytes("US-ASCII"));
+          return;
+        }
+        send(exchange, "/channel", 200, ChannelCodec.CONTENT_TYPE, reply.getBytes("US-ASCII"));
+      }
+      else
+      {
+        String message;
+        try
+        {
+          message = ChannelServlet.poll(holder, getLong(params, LongPoll.SEQ_PARAM, -1),
+              getLong(params, ChannelCodec.FRAME_PARAM, -1),
+              Math.min(getLong(params, LongPoll.WAIT_PARAM, LongPoll.DEFAULT_WAIT_MS), LongPoll.MAX_WAIT_MS));
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+        send(exchange, "/channel", 200, ChannelCodec.CONTENT_TYPE, message.getBytes("US-ASCII"));
+      }
+    }
+    else if (path.endsWith("/video"))
+    {
+      count("/video", 0);
+      StateHolder.Versioned<CellbotProtos.AudioVideoFrame> frame = holder.getVersionedVideoFrame();
+      if (frame == null || !frame.isUnseen(getLong(params, LongPoll.SEQ_PARAM, -1)))
+      {
+        send(exchange, "/video", 304, null, null);
+        return;
+      }
+      send(exchange, "/video", 200, "image/jpeg", frame.value.getData().toByteArray());
+    }
+    else
+    {
+      count("static", 0);
+      serveFile(exchange, path);
+    }
+  }
+
+  private void serveFile(HttpExchange exchange, String path) throws IOException
+  {
+    File file = new File(warDir, path.equals("/") ? "CellServ.html" : path.substring(1));
+    if (!file.getCanonicalPath().startsWith(warDir.getCanonicalPath()) || !file.isFile())
+    {
+      send(exchange, "static", 404, null, null);
+      return;
+    }
+    String name = file.getName();
+    String type = name.endsWith(".html") ? "text/html" : name.endsWith(".js") ? "text/javascript"
+        : name.endsWith(".css") ? "text/css" : name.endsWith(".png") ? "image/png" : name.endsWith(".gif") ? "image/gif"
+            : "application/octet-stream";
+    InputStream in = new FileInputStream(file);
+    try
+    {
+      send(exchange, "static", 200, type, readFully(in));
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private void send(HttpExchange exchange, String counter, int status, String contentType, byte[] body) throws IOException
+  {
+    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+    if (contentType != null)
+    {
+      exchange.getResponseHeaders().set("Content-Type", contentType);
+    }
+    if (body == null)
+    {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    count(counter, 2, body.length);
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private void count(String counter, int index)
+  {
+    count(counter, index, 1);
+  }
+
+  private void count(String counter, int index, long n)
+  {
+    counters.get(counter)[index].addAndGet(n);
+  }
+
+  /**
+   * Starts the simulated bot and the statistics printer.
+   */
+  void startBot()
+  {
+    Thread telemetry = new Thread("telemetry")
+    {
+      public void run()
+      {
+        long start = System.currentTimeMillis();
+        long nextState = start, nextFrame = start, nextStats = start;
+        while (true)
+        {
+          long now = System.currentTimeMillis();
+          float azimuth = ((now - start) / 50) % 360;
+          if (stateHz > 0 && now >= nextState)
+          {
+            holder.setPhoneState(CellbotProtos.PhoneState.newBuilder().setBotID(BOT_ID).setTimestamp(now)
+                .setOrientation(CellbotProtos.PhoneState.Orientation.newBuilder().setAzimuth(azimuth).setPitch(0)
+                    .setRoll(0)).setPhoneBatteryLevel(100 - ((now - start) / 60000) % 100).build());
+            nextState += (long) (1000 / stateHz);
+          }
+          if (frameHz > 0 && now >= nextFrame)
+          {
+            holder.setVideoFrame(CellbotProtos.AudioVideoFrame.newBuilder().setBotID(BOT_ID).setTimestamp(now)
+                .setData(ByteString.copyFrom(renderFrame(azimuth))).build());
+            nextFrame += (long) (1000 / frameHz);
+          }
+          if (now >= nextStats)
+          {
+            printStats();
+            nextStats += 10000;
+          }
+          pause(5);
+        }
+      }
+    };
+    Thread controls = new Thread("controls")
+    {
+      public void run()
+      {
+        while (true)
+        {
+          try
+          {
+            if (!holder.awaitControllerState(LongPoll.DEFAULT_WAIT_MS))
+            {
+              continue;
+            }
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+          CellbotProtos.ControllerState cs = holder.getControllerState();
+          long now = System.nanoTime();
+          Long arrived;
+          while ((arrived = arrivals.poll()) != null)
+          {
+            long delay = now - arrived;
+            inputs.incrementAndGet();
+            inputNanos.addAndGet(delay);
+            // Only this thread writes it.
+            maxInputNanos.set(Math.max(maxInputNanos.get(), delay));
+          }
+          for (CellbotProtos.ControllerState.KeyEvent key : cs.getKeyEventList())
+          {
+            System.out.println("bot: key " + key.getKeyCode() + (key.getKeyDown() ? " down" : " up"));
+          }
+          for (CellbotProtos.ControllerState.StickEvent stick : cs.getStickEventList())
+          {
+            System.out.println("bot: stick " + stick.getStickNumber() + " " + stick.getX() + ", " + stick.getY());
+          }
+          if (cs.hasTxtCommand())
+          {
+            System.out.println("bot: command " + cs.getTxtCommand());
+          }
+        }
+      }
+    };
+    telemetry.setDaemon(true);
+    controls.setDaemon(true);
+    telemetry.start();
+    controls.start();
+  }
+
+  void printStats()
+  {
+    StringBuilder line = new StringBuilder();
+    for (Map.Entry<String, AtomicLong[]> e : counters.entrySet())
+    {
+      AtomicLong[] c = e.getValue();
+      line.append(e.getKey()).append(": ").append(c[0]).append(" requests, ").append(c[1]).append(" B up, ")
+          .append(c[2]).append(" B down; ");
+    }
+    long n = inputs.get();
+    if (n > 0)
+    {
+      line.append(String.format("control to bot: %d messages, mean %.2f ms, max %.2f ms", n,
+          inputNanos.get() / 1e6 / n, maxInputNanos.get() / 1e6));
+    }
+    System.out.println(line);
+  }
+
+  static byte[] renderFrame(float azimuth)
+  {
+    BufferedImage image = new BufferedImage(160, 120, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setColor(Color.DARK_GRAY);
+    g.fillRect(0, 0, 160, 120);
+    g.setColor(Color.WHITE);
+    double rad = Math.toRadians(azimuth);
+    g.fillOval(80 + (int) (40 * Math.sin(rad)) - 6, 60 - (int) (40 * Math.cos(rad)) - 6, 12, 12);
+    g.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try
+    {
+      ImageIO.write(image, "jpeg", out);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    return out.toByteArray();
+  }
+
+  static Map<String, String> parseQuery(String query) throws IOException
+  {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query != null)
+    {
+      for (String pair : query.split("&"))
+      {
+        int eq = pair.indexOf('=');
+        if (eq > 0)
+        {
+          params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+      }
+    }
+    return params;
+  }
+
+  static long getLong(Map<String, String> params, String name, long defaultValue)
+  {
+    try
+    {
+      return params.containsKey(name) ? Long.parseLong(params.get(name)) : defaultValue;
+    }
+    catch (NumberFormatException e)
+    {
+      return defaultValue;
+    }
+  }
+
+  static byte[] readFully(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) > 0)
+    {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  static void pause(long ms)
+  {
+    try
+    {
+      Thread.sleep(ms);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
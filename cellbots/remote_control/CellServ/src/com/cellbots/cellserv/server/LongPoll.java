@@ -0,0 +1,71 @@
+package com.cellbots.cellserv.server;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Request parameters shared by the long-poll endpoints. A client passes the
+ * sequence number of the last update it has seen as "seq" and, optionally,
+ * how long it is willing to wait for a newer one as "wait" (in ms). The
+ * sequence number of the returned update is sent back in the X-Seq header.
+ */
+public class LongPoll
+{
+
+  public static final String SEQ_PARAM    = "seq";
+
+  public static final String WAIT_PARAM   = "wait";
+
+  public static final String SEQ_HEADER   = "X-Seq";
+
+  // Requests are parked for at most this long, well within the App Engine
+  // request deadline.
+  public static final long   MAX_WAIT_MS  = 25000;
+
+  public static final long   DEFAULT_WAIT_MS = 20000;
+
+  private LongPoll()
+  {
+  }
+
+  /**
+   * Returns true if the request asks for a long-poll response.
+   */
+  public static boolean isLongPoll(HttpServletRequest req)
+  {
+    return req.getParameter(SEQ_PARAM) != null || req.getParameter(WAIT_PARAM) != null;
+  }
+
+  /**
+   * Returns the last sequence number seen by the client, or -1 if none.
+   */
+  public static long getLastSeenSeq(HttpServletRequest req)
+  {
+    return getLongParameter(req, SEQ_PARAM, -1);
+  }
+
+  /**
+   * Returns how long the request may be parked, capped at MAX_WAIT_MS.
+   */
+  public static long getWaitMs(HttpServletRequest req)
+  {
+    long wait = getLongParameter(req, WAIT_PARAM, DEFAULT_WAIT_MS);
+    return Math.max(0, Math.min(wait, MAX_WAIT_MS));
+  }
+
+  private static long getLongParameter(HttpServletRequest req, String name, long defaultValue)
+  {
+    String value = req.getParameter(name);
+    if (value == null)
+    {
+      return defaultValue;
+    }
+    try
+    {
+      return Long.parseLong(value);
+    }
+    catch (NumberFormatException e)
+    {
+      return defaultValue;
+    }
+  }
+}
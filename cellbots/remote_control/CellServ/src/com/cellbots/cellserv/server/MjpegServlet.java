@@ -0,0 +1,76 @@
+package com.cellbots.cellserv.server;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Streams the video of a bot as multipart/x-mixed-replace MJPEG, which
+ * browsers can show directly in an img tag. Every frame posted to
+ * VideoServlet is pushed to all viewers as soon as it arrives.
+ */
+public class MjpegServlet extends HttpServlet
+{
+
+  private static final long serialVersionUID = 4017293410523689221L;
+
+  // A stream is closed after this long; the viewer reconnects.
+  private static final long MAX_STREAM_MS    = 10 * 60 * 1000;
+
+  // A stream with no new frame for this long is closed.
+  private static final long IDLE_TIMEOUT_MS  = 30 * 1000;
+
+  public String getServletInfo()
+  {
+    return "Servlet for streaming video from phone as MJPEG";
+  }
+
+  public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
+  {
+    String botID = "";
+    if(req.getParameter("BOTID") != null)
+    {
+      botID = req.getParameter("BOTID");
+    }
+
+    VideoBroadcaster broadcaster = StateHolder.getInstance(botID).getVideoBroadcaster();
+
+    res.setStatus(HttpServletResponse.SC_OK);
+    res.setContentType(VideoBroadcaster.CONTENT_TYPE);
+    res.setHeader("Cache-Control", "no-cache, no-store");
+    res.setHeader("Pragma", "no-cache");
+
+    ServletOutputStream out = res.getOutputStream();
+    VideoBroadcaster.Viewer viewer = broadcaster.subscribe();
+    long end = System.currentTimeMillis() + MAX_STREAM_MS;
+    try
+    {
+      while (System.currentTimeMillis() < end)
+      {
+        byte[] part = viewer.take(IDLE_TIMEOUT_MS);
+        if (part == null)
+        {
+          break;
+        }
+        out.write(part);
+        out.flush();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (IOException e)
+    {
+      // The viewer went away.
+    }
+    finally
+    {
+      broadcaster.unsubscribe(viewer);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.cellbots.cellserv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.cellbots.CellbotProtos.PhoneState;
+import com.cellbots.SchemaCellbotProtos;
+import com.dyuproject.protostuff.JsonIOUtil;
+import com.dyuproject.protostuff.Schema;
+
+/**
+ * The JSON rendering of one version of a bot's phone state. StateHolder keeps
+ * the latest one, so a version is encoded once however many remotes poll it,
+ * and the gzipped body is made once, by the first request that accepts it.
+ * The ETag names the version, so a remote that already has it gets a 304.
+ */
+public class RenderedPhoneState
+{
+  private static final Schema<PhoneState> SCHEMA          = new SchemaCellbotProtos.PhoneState.MessageSchema();
+
+  private static final boolean            NUMERIC_FORMAT  = false;
+
+  // Below this the gzip header and trailer outweigh the savings.
+  private static final int                MIN_GZIP_SIZE   = 256;
+
+  public final long                       seq;
+
+  public final String                     etag;
+
+  private final byte[]                    json;
+
+  private volatile byte[]                 gzipped;
+
+  private RenderedPhoneState(long seq, String etag, byte[] json)
+  {
+    this.seq = seq;
+    this.etag = etag;
+    this.json = json;
+  }
+
+  /**
+   * Renders a phone state. The epoch tells apart the sequence numbers of
+   * successive holders for the same bot.
+   */
+  static RenderedPhoneState render(long epoch, StateHolder.Versioned<PhoneState> state) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+    JsonIOUtil.writeTo(out, state.value, SCHEMA, NUMERIC_FORMAT);
+    // Weak, as the same tag covers the plain and the gzipped body.
+    String etag = "W/\"" + Long.toString(epoch, 36) + "-" + state.seq + "\"";
+    return new RenderedPhoneState(state.seq, etag, out.toByteArray());
+  }
+
+  /**
+   * Writes the response: 304 if the request already has this version,
+   * otherwise the JSON, gzipped if the client accepts it.
+   */
+  public void writeTo(HttpServletRequest req, HttpServletResponse res) throws IOException
+  {
+    res.setHeader("ETag", etag);
+    res.setHeader("Vary", "Accept-Encoding");
+    res.setHeader("Cache-Control", "no-cache");
+    if (matches(req.getHeader("If-None-Match")))
+    {
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    byte[] body = json;
+    if (json.length >= MIN_GZIP_SIZE && acceptsGzip(req.getHeader("Accept-Encoding")))
+    {
+      body = getGzipped();
+      res.setHeader("Content-Encoding", "gzip");
+    }
+    res.setContentType("application/json; charset=UTF-8");
+    res.setContentLength(body.length);
+    res.getOutputStream().write(body);
+  }
+
+  public int getJsonLength()
+  {
+    return json.length;
+  }
+
+  private byte[] getGzipped() throws IOException
+  {
+    byte[] g = gzipped;
+    if (g == null)
+    {
+      // Two requests may race to make it; both get the same bytes.
+      ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+      GZIPOutputStream gzip = new GZIPOutputStream(out);
+      gzip.write(json);
+      gzip.close();
+      g = out.toByteArray();
+      gzipped = g;
+    }
+    return g;
+  }
+
+  private boolean matches(String ifNoneMatch)
+  {
+    if (ifNoneMatch == null)
+    {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(","))
+    {
+      tag = tag.trim();
+      if (!tag.startsWith("W/"))
+      {
+        tag = "W/" + tag;
+      }
+      if (tag.equals("W/*") || tag.equals(etag))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static boolean acceptsGzip(String acceptEncoding)
+  {
+    if (acceptEncoding == null)
+    {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(","))
+    {
+      String[] parts = coding.trim().split(";");
+      if (parts[0].trim().equalsIgnoreCase("gzip"))
+      {
+        // gzip;q=0 means not acceptable.
+        for (int i = 1; i < parts.length; i++)
+        {
+          String p = parts[i].trim();
+          if (p.startsWith("q=") && p.substring(2).matches("0(\\.0*)?"))
+          {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+}
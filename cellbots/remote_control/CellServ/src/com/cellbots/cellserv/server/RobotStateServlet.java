@@ -1,6 +1,7 @@
 package com.cellbots.cellserv.server;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -10,9 +11,7 @@ import javax.servlet.http.HttpServletResponse;
 import com.cellbots.CellbotProtos;
 import com.cellbots.CellbotProtos.ControllerState;
 import com.cellbots.CellbotProtos.PhoneState;
-import com.cellbots.SchemaCellbotProtos;
-import com.dyuproject.protostuff.JsonIOUtil;
-import com.dyuproject.protostuff.Schema;
+import com.cellbots.PhoneStateDelta;
 
 public class RobotStateServlet extends HttpServlet
 {
@@ -22,8 +21,6 @@ public class RobotStateServlet extends HttpServlet
    */
   private static final long serialVersionUID = 6703781028562576421L;
   
-  private static boolean useNumericFormat = false;
-
   public String getServletInfo()
   {
     return "Servlet for handeling communication with phone and sensor data";
@@ -37,15 +34,42 @@ public class RobotStateServlet extends HttpServlet
       botID = req.getParameter("BOTID");
     }
     
-    Schema<com.cellbots.CellbotProtos.PhoneState> schema = new SchemaCellbotProtos.PhoneState.MessageSchema();
-
-    PhoneState ps = StateHolder.getInstance(botID).getPhoneState();
+    StateHolder holder = StateHolder.getInstance(botID);
+    StateHolder.Versioned<PhoneState> state = null;
+    boolean longPoll = LongPoll.isLongPoll(req);
+    if (longPoll)
+    {
+      // Park the request until the phone publishes a state newer than the
+      // one the client last saw.
+      long lastSeen = LongPoll.getLastSeenSeq(req);
+      try
+      {
+        state = holder.awaitPhoneState(lastSeen, LongPoll.getWaitMs(req));
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      if (state == null || !state.isUnseen(lastSeen))
+      {
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+    }
+    else
+    {
+      state = holder.getVersionedPhoneState();
+    }
 
-    byte[] bytes;
-    if (ps != null)
+    if (state != null)
     {
-      bytes =   JsonIOUtil.toByteArray(ps, schema, useNumericFormat);
-      res.getOutputStream().write(bytes);
+      // Rendered once per version and shared by every remote polling it.
+      RenderedPhoneState rendered = holder.getRenderedPhoneState(state);
+      if (longPoll)
+      {
+        res.setHeader(LongPoll.SEQ_HEADER, Long.toString(rendered.seq));
+      }
+      rendered.writeTo(req, res);
     }
 
   }
@@ -61,22 +85,66 @@ public class RobotStateServlet extends HttpServlet
 
     try
     {
-      CellbotProtos.PhoneState state = CellbotProtos.PhoneState.parseFrom(req.getInputStream());
+      StateHolder holder;
+      String contentType = req.getContentType();
+      if (contentType != null && contentType.startsWith(PhoneStateDelta.CONTENT_TYPE))
+      {
+        // Delta telemetry: the bot ID comes in the URL.
+        String botID = req.getParameter(PhoneStateDelta.BOTID_PARAM);
+        holder = StateHolder.getInstance(botID != null ? botID : "");
+        boolean applied;
+        try
+        {
+          byte[] body = readBody(req);
+          applied = holder.applyPhoneStateDelta(body, 0, body.length);
+        }
+        catch (IOException e)
+        {
+          // The decoder state is unchanged, so the phone must not move its
+          // base on: reject the message and ask for a keyframe.
+          System.out.println("bad delta from " + botID + ": " + e.getMessage());
+          res.setHeader(PhoneStateDelta.KEYFRAME_HEADER, "1");
+          res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+          return;
+        }
+        if (!applied)
+        {
+          res.setHeader(PhoneStateDelta.KEYFRAME_HEADER, "1");
+        }
+      }
+      else
+      {
+        CellbotProtos.PhoneState state = CellbotProtos.PhoneState.parseFrom(req.getInputStream());
       
+        String botID = "";
+        if(state.hasBotID())
+        {
+          botID = state.getBotID();
+        }
       
-      String botID = "";
-      if(state.hasBotID())
+        holder = StateHolder.getInstance(botID);
+        holder.setPhoneState(state);
+      }
+
+      if (LongPoll.isLongPoll(req) && !holder.newControllerStateAvailble())
       {
-        botID = state.getBotID();
+        // Hold the response until a remote sends a controller event.
+        try
+        {
+          holder.awaitControllerState(LongPoll.getWaitMs(req));
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
       }
-      
-      StateHolder.getInstance(botID).setPhoneState(state);
 
-      if (StateHolder.getInstance(botID).newControllerStateAvailble())
+      if (holder.newControllerStateAvailble())
       {
         System.out.println("writing new controller msg");
-        ControllerState cs = StateHolder.getInstance(botID).getControllerState();
-       
+        ControllerState cs = holder.getControllerState();
+        res.setHeader(LongPoll.SEQ_HEADER, Long.toString(holder.getControllerSeq()));
+
         res.setStatus(HttpServletResponse.SC_OK);
         res.getOutputStream().write(cs.toByteArray());
       }
@@ -95,4 +163,26 @@ public class RobotStateServlet extends HttpServlet
 
   }
 
+  private static byte[] readBody(HttpServletRequest req) throws IOException
+  {
+    int length = req.getContentLength();
+    if (length < 0 || length > PhoneStateDelta.MAX_SIZE)
+    {
+      throw new IOException("Bad delta length " + length);
+    }
+    byte[] body = new byte[length];
+    InputStream in = req.getInputStream();
+    int read = 0;
+    while (read < length)
+    {
+      int n = in.read(body, read, length - read);
+      if (n < 0)
+      {
+        throw new IOException("Truncated delta");
+      }
+      read += n;
+    }
+    return body;
+  }
+
 }
@@ -1,69 +1,437 @@
 package com.cellbots.cellserv.server;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.cellbots.CellbotProtos;
+import com.cellbots.PhoneStateDelta;
 
+/**
+ * Holds the latest state of one bot. Instances live in a concurrent registry
+ * keyed by bot ID, so remotes and bots can hit the servlets concurrently.
+ * Phone state and video frames are immutable protobuf snapshots that are
+ * swapped atomically; key events from any number of remotes go into a
+ * lock-free queue that the bot drains. Stick events are coalesced instead:
+ * only the latest position of each stick waits for the bot, so however fast
+ * a remote sends them the bot gets at most one per stick per poll.
+ * Every update bumps a sequence number. Readers can block in one of the await
+ * methods until something newer than the sequence number they last saw is
+ * published, which lets the servlets answer long-poll requests.
+ * A phone that uploads delta telemetry has its fields updated in place; the
+ * PhoneState snapshot is only rebuilt when a reader asks for it after a
+ * change, so a burst of deltas costs one build.
+ */
 public class StateHolder
 {
 
-  private CellbotProtos.PhoneState              phoneState;
+  // Bots that have not been touched for this long are dropped from the
+  // registry.
+  private static final long IDLE_TIMEOUT_MS = 10 * 60 * 1000;
 
-  private CellbotProtos.ControllerState         controllerState;
+  private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+
+  /**
+   * An immutable value together with the sequence number it was published
+   * under.
+   */
+  public static class Versioned<T>
+  {
+    public final T    value;
+
+    public final long seq;
+
+    Versioned(T value, long seq)
+    {
+      this.value = value;
+      this.seq = seq;
+    }
+
+    /**
+     * Returns true if a client that last saw lastSeenSeq has not seen this
+     * version. Sequence numbers restart when a holder is recreated, after
+     * eviction or on another instance, so a lastSeenSeq above this one is
+     * stale rather than ahead.
+     */
+    public boolean isUnseen(long lastSeenSeq)
+    {
+      return seq != lastSeenSeq;
+    }
+  }
+
+  private final AtomicReference<Versioned<CellbotProtos.PhoneState>> phoneState = new AtomicReference<Versioned<CellbotProtos.PhoneState>>();
+
+  private volatile Versioned<CellbotProtos.AudioVideoFrame> avFrame;
+
+  private final AtomicLong videoSeq = new AtomicLong();
+
+  private final AtomicLong controllerSeq = new AtomicLong();
+
+  private final VideoBroadcaster videoBroadcaster = new VideoBroadcaster();
+
+  // Long-poll readers wait on this monitor; publishers notify it.
+  private final Object updateMonitor = new Object();
 
-  private CellbotProtos.AudioVideoFrame         avFrame;
-  
   private static boolean MERGE_PHONE_STATE     = true;
 
-  private CellbotProtos.ControllerState.Builder csBuilder = CellbotProtos.ControllerState.newBuilder();
-  
-  private static HashMap<String, StateHolder> instances = new HashMap<String, StateHolder>();
+  private final ConcurrentLinkedQueue<CellbotProtos.ControllerState.KeyEvent> keyEvents = new ConcurrentLinkedQueue<CellbotProtos.ControllerState.KeyEvent>();
+
+  private final AtomicInteger pendingKeyEvents = new AtomicInteger();
+
+  // The latest event of each stick the bot has not taken, keyed by stick
+  // type and number.
+  private final ConcurrentHashMap<Integer, CellbotProtos.ControllerState.StickEvent> stickEvents = new ConcurrentHashMap<Integer, CellbotProtos.ControllerState.StickEvent>();
+
+  private final AtomicLong coalescedStickEvents = new AtomicLong();
+
+  private final AtomicReference<String> txtCommand = new AtomicReference<String>();
+
+  private final String botID;
+
+  // Delta telemetry, guarded by deltaLock. deltaDirty is set when the decoded
+  // fields are newer than phoneState.
+  private final Object deltaLock = new Object();
+
+  private final PhoneStateDelta.Decoder delta = new PhoneStateDelta.Decoder();
+
+  private volatile boolean deltaDirty = false;
+
+  // The latest phone state rendered for remotes, and the lock that keeps two
+  // requests from rendering the same version. The epoch keeps ETags from a
+  // holder that was evicted and recreated apart.
+  private final AtomicReference<RenderedPhoneState> renderedPhoneState = new AtomicReference<RenderedPhoneState>();
+
+  private final Object renderLock = new Object();
+
+  private final long epoch = System.currentTimeMillis();
+
+  private volatile long lastAccess = System.currentTimeMillis();
+
+  private static final ConcurrentHashMap<String, StateHolder> instances = new ConcurrentHashMap<String, StateHolder>();
+
+  private static final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
 
   // private MemcacheService phoneStates =
   // MemcacheServiceFactory.getMemcacheService();
 
-  private StateHolder()
+  private StateHolder(String botID)
   {
+    this.botID = botID;
   }
 
   public static StateHolder getInstance(String botID)
   {
+    evictIdleInstances();
+    StateHolder holder = instances.get(botID);
+    if (holder == null)
+    {
+      StateHolder created = new StateHolder(botID);
+      holder = instances.putIfAbsent(botID, created);
+      if (holder == null)
+      {
+        holder = created;
+      }
+    }
+    holder.lastAccess = System.currentTimeMillis();
+    return holder;
+  }
 
-    if (! instances.containsKey(botID))
+  /**
+   * Drops bots that have been idle for longer than IDLE_TIMEOUT_MS. Only one
+   * caller per SWEEP_INTERVAL_MS does the work.
+   */
+  private static void evictIdleInstances()
+  {
+    long now = System.currentTimeMillis();
+    long last = lastSweep.get();
+    if (now - last < SWEEP_INTERVAL_MS || !lastSweep.compareAndSet(last, now))
     {
-      instances.put(botID, new StateHolder());
+      return;
+    }
+    for (Iterator<Map.Entry<String, StateHolder>> it = instances.entrySet().iterator(); it.hasNext();)
+    {
+      Map.Entry<String, StateHolder> entry = it.next();
+      if (now - entry.getValue().lastAccess > IDLE_TIMEOUT_MS)
+      {
+        instances.remove(entry.getKey(), entry.getValue());
+      }
     }
-    return instances.get(botID);
   }
 
   public void setPhoneState(CellbotProtos.PhoneState ps)
   {
-    
-    if(phoneState != null && MERGE_PHONE_STATE )
+    publishPhoneState(ps, MERGE_PHONE_STATE);
+    notifyUpdate();
+  }
+
+  private void publishPhoneState(CellbotProtos.PhoneState ps, boolean merge)
+  {
+    while (true)
     {
-      //we merge sensor data because it may not come in that often.
-      phoneState = CellbotProtos.PhoneState.newBuilder(phoneState).mergeFrom(ps).build();
+      Versioned<CellbotProtos.PhoneState> current = phoneState.get();
+      CellbotProtos.PhoneState merged = ps;
+      if (current != null && merge)
+      {
+        //we merge sensor data because it may not come in that often.
+        merged = CellbotProtos.PhoneState.newBuilder(current.value).mergeFrom(ps).build();
+      }
+      long seq = current != null ? current.seq + 1 : 1;
+      if (phoneState.compareAndSet(current, new Versioned<CellbotProtos.PhoneState>(merged, seq)))
+      {
+        break;
+      }
     }
-    else {
-      phoneState = ps;
+  }
+
+  /**
+   * Applies a delta telemetry message from the phone. Returns false if the
+   * message was a delta against a state this holder does not have, in which
+   * case the phone should send a keyframe.
+   *
+   * @throws IOException if the message is malformed
+   */
+  public boolean applyPhoneStateDelta(byte[] data, int off, int len) throws IOException
+  {
+    synchronized (deltaLock)
+    {
+      if (!delta.apply(data, off, len))
+      {
+        return false;
+      }
+      deltaDirty = true;
+    }
+    notifyUpdate();
+    return true;
+  }
+
+  /**
+   * Returns the latest phone state, first rebuilding it from the delta
+   * telemetry if that has changed.
+   */
+  private Versioned<CellbotProtos.PhoneState> currentPhoneState()
+  {
+    if (deltaDirty)
+    {
+      synchronized (deltaLock)
+      {
+        if (deltaDirty)
+        {
+          // The decoded fields are the whole state, so replace rather than
+          // merge.
+          publishPhoneState(delta.getValues().toPhoneState(botID), false);
+          deltaDirty = false;
+        }
+      }
     }
+    return phoneState.get();
   }
 
   public void setVideoFrame(CellbotProtos.AudioVideoFrame av)
   {
-    avFrame = av;
+    Versioned<CellbotProtos.AudioVideoFrame> frame = new Versioned<CellbotProtos.AudioVideoFrame>(av, videoSeq.incrementAndGet());
+    avFrame = frame;
+    videoBroadcaster.publish(frame.value, frame.seq);
+    notifyUpdate();
+  }
+
+  /**
+   * Returns the broadcaster that pushes this bot's frames to MJPEG viewers.
+   */
+  public VideoBroadcaster getVideoBroadcaster()
+  {
+    return videoBroadcaster;
   }
 
   public CellbotProtos.PhoneState getPhoneState()
   {
-    return phoneState;
+    Versioned<CellbotProtos.PhoneState> current = currentPhoneState();
+    return current != null ? current.value : null;
+  }
+
+  /**
+   * Returns the latest phone state with its sequence number, or null.
+   */
+  public Versioned<CellbotProtos.PhoneState> getVersionedPhoneState()
+  {
+    return currentPhoneState();
   }
 
+  /**
+   * Returns the rendering of the given phone state, or of a newer one if that
+   * has been rendered already. Each version is rendered once.
+   */
+  public RenderedPhoneState getRenderedPhoneState(Versioned<CellbotProtos.PhoneState> state) throws IOException
+  {
+    RenderedPhoneState rendered = renderedPhoneState.get();
+    if (rendered != null && rendered.seq >= state.seq)
+    {
+      return rendered;
+    }
+    synchronized (renderLock)
+    {
+      rendered = renderedPhoneState.get();
+      if (rendered == null || rendered.seq < state.seq)
+      {
+        rendered = RenderedPhoneState.render(epoch, state);
+        renderedPhoneState.set(rendered);
+      }
+      return rendered;
+    }
+  }
+
+  /**
+   * Returns the latest video frame with its sequence number, or null.
+   */
+  public Versioned<CellbotProtos.AudioVideoFrame> getVersionedVideoFrame()
+  {
+    return avFrame;
+  }
+
+  /**
+   * Blocks until a phone state newer than lastSeenSeq is published or the
+   * timeout expires, or returns at once if lastSeenSeq is stale. Returns the
+   * latest phone state, which may be null or already seen on timeout.
+   */
+  public Versioned<CellbotProtos.PhoneState> awaitPhoneState(long lastSeenSeq, long timeoutMs) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (updateMonitor)
+    {
+      while (true)
+      {
+        Versioned<CellbotProtos.PhoneState> current = currentPhoneState();
+        long remaining = deadline - System.currentTimeMillis();
+        if ((current != null && current.isUnseen(lastSeenSeq)) || remaining <= 0)
+        {
+          return current;
+        }
+        updateMonitor.wait(remaining);
+      }
+    }
+  }
+
+  /**
+   * Blocks until a video frame newer than lastSeenSeq is published or the
+   * timeout expires, or returns at once if lastSeenSeq is stale. Returns the
+   * latest frame, which may be null or already seen on timeout.
+   */
+  public Versioned<CellbotProtos.AudioVideoFrame> awaitVideoFrame(long lastSeenSeq, long timeoutMs) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (updateMonitor)
+    {
+      while (true)
+      {
+        Versioned<CellbotProtos.AudioVideoFrame> current = avFrame;
+        long remaining = deadline - System.currentTimeMillis();
+        if ((current != null && current.isUnseen(lastSeenSeq)) || remaining <= 0)
+        {
+          return current;
+        }
+        updateMonitor.wait(remaining);
+      }
+    }
+  }
+
+  /**
+   * Blocks until a phone state newer than lastStateSeq or a video frame newer
+   * than lastFrameSeq is published, or the timeout expires, or returns at once
+   * if either is stale. Returns true if either has not been seen.
+   */
+  public boolean awaitPhoneStateOrVideoFrame(long lastStateSeq, long lastFrameSeq, long timeoutMs) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (updateMonitor)
+    {
+      while (true)
+      {
+        Versioned<CellbotProtos.PhoneState> state = currentPhoneState();
+        Versioned<CellbotProtos.AudioVideoFrame> frame = avFrame;
+        if ((state != null && state.isUnseen(lastStateSeq)) || (frame != null && frame.isUnseen(lastFrameSeq)))
+        {
+          return true;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+          return false;
+        }
+        updateMonitor.wait(remaining);
+      }
+    }
+  }
+
+  /**
+   * Blocks until a controller event is pending or the timeout expires.
+   * Returns true if an event is pending.
+   */
+  public boolean awaitControllerState(long timeoutMs) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (updateMonitor)
+    {
+      while (!newControllerStateAvailble())
+      {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+          return false;
+        }
+        updateMonitor.wait(remaining);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Returns the sequence number of the latest controller event.
+   */
+  public long getControllerSeq()
+  {
+    return controllerSeq.get();
+  }
+
+  private void notifyUpdate()
+  {
+    synchronized (updateMonitor)
+    {
+      updateMonitor.notifyAll();
+    }
+  }
+
+  /**
+   * Drains all pending key events, the latest event of each stick and the
+   * pending text command into a new controller state.
+   */
   public CellbotProtos.ControllerState getControllerState()
   {
-    controllerState = csBuilder.build();
-    csBuilder = null;
-    return controllerState;
+    CellbotProtos.ControllerState.Builder csBuilder = CellbotProtos.ControllerState.newBuilder();
+    csBuilder.setTimestamp(System.currentTimeMillis());
+    CellbotProtos.ControllerState.KeyEvent key;
+    while ((key = keyEvents.poll()) != null)
+    {
+      pendingKeyEvents.decrementAndGet();
+      csBuilder.addKeyEvent(key);
+    }
+    for (Integer stick : stickEvents.keySet())
+    {
+      CellbotProtos.ControllerState.StickEvent event = stickEvents.remove(stick);
+      if (event != null)
+      {
+        csBuilder.addStickEvent(event);
+      }
+    }
+    String command = txtCommand.getAndSet(null);
+    if (command != null)
+    {
+      csBuilder.setTxtCommand(command);
+    }
+    return csBuilder.build();
   }
 
   public boolean newVideoFrameAvilble()
@@ -73,35 +441,60 @@ public class StateHolder
 
   public boolean newPhoneStateAvilble()
   {
-    return phoneState != null;// && instance.phoneState.getTimestamp()
+    return currentPhoneState() != null;// && instance.phoneState.getTimestamp()
   }
 
   public byte[] getVideoFrame()
   {
-    if (avFrame != null && avFrame.hasData())
-      return avFrame.getData().toByteArray();
+    Versioned<CellbotProtos.AudioVideoFrame> frame = avFrame;
+    if (frame != null && frame.value.hasData())
+      return frame.value.getData().toByteArray();
     else
       return null;
   }
 
   public boolean newControllerStateAvailble()
   {
-    return csBuilder != null && csBuilder.getKeyEventCount() > 0;
+    return !keyEvents.isEmpty() || !stickEvents.isEmpty() || txtCommand.get() != null;
   }
 
   public int addKeyEvent(com.cellbots.CellbotProtos.ControllerState.KeyEvent.Builder key)
   {
-    if (csBuilder == null)
-      csBuilder = CellbotProtos.ControllerState.newBuilder();
+    keyEvents.add(key.build());
+    int pending = pendingKeyEvents.incrementAndGet();
+    controllerSeq.incrementAndGet();
+    notifyUpdate();
+    return pending;
+  }
 
-    csBuilder.setTimestamp(System.currentTimeMillis());
-    csBuilder.addKeyEvent(key);
-    return csBuilder.getKeyEventCount();
+  /**
+   * Sets the latest position of a stick, replacing one the bot has not taken
+   * yet.
+   */
+  public void addStickEvent(CellbotProtos.ControllerState.StickEvent.Builder stick)
+  {
+    CellbotProtos.ControllerState.StickEvent event = stick.build();
+    if (stickEvents.put(event.getStickType().getNumber() << 16 | event.getStickNumber() & 0xffff, event) != null)
+    {
+      coalescedStickEvents.incrementAndGet();
+    }
+    controllerSeq.incrementAndGet();
+    notifyUpdate();
+  }
+
+  /**
+   * Returns the number of stick events replaced before the bot took them.
+   */
+  public long getCoalescedStickEventCount()
+  {
+    return coalescedStickEvents.get();
   }
-  
+
   public int addKeyTxtCommand(String command)
   {
-    csBuilder.setTxtCommand(command);
+    txtCommand.set(command);
+    controllerSeq.incrementAndGet();
+    notifyUpdate();
     return 1;
   }
 }
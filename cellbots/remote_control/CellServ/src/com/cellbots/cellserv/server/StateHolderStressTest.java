@@ -0,0 +1,223 @@
+package com.cellbots.cellserv.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cellbots.CellbotProtos;
+
+/**
+ * A stress test for the StateHolder registry on a desktop JVM: many bots and
+ * their remotes hammer it from several threads, and every key event is
+ * accounted for.
+ *
+ * <pre>
+ * java com.cellbots.cellserv.server.StateHolderStressTest [bots [seconds [maxThreads]]]
+ * </pre>
+ *
+ * runs with 1, 2, 4, ... up to maxThreads (default twice the number of
+ * processors) remote threads and as many bot threads. Remote threads send key
+ * events to every bot in turn, each numbered per sender and bot, and read the
+ * bots' phone states. Bot threads each own a share of the bots (default 500),
+ * take their controller states and publish phone states with increasing
+ * timestamps. Each run lasts seconds (default 5) and prints operations per
+ * second. It fails, and exits with status 1, if a key event is lost,
+ * duplicated or reordered, or a reader sees a bot's phone state go back in
+ * time.
+ */
+public class StateHolderStressTest
+{
+  private final int             bots;
+
+  private final int             threads;
+
+  private final String[]        botIDs;
+
+  // Next sequence number each remote thread sends to each bot, [remote][bot].
+  private final long[][]        sent;
+
+  // Next sequence number each bot expects from each remote, [bot][remote].
+  // Only the bot thread that owns the bot touches its row.
+  private final long[][]        expected;
+
+  private final AtomicLong      operations = new AtomicLong();
+
+  private final AtomicLong      received   = new AtomicLong();
+
+  private final AtomicLong      failures   = new AtomicLong();
+
+  private volatile boolean      running    = true;
+
+  StateHolderStressTest(int bots, int threads, int run)
+  {
+    this.bots = bots;
+    this.threads = threads;
+    botIDs = new String[bots];
+    for (int i = 0; i < bots; i++)
+    {
+      botIDs[i] = "stress-" + run + "-" + i;
+    }
+    sent = new long[threads][bots];
+    expected = new long[bots][threads];
+  }
+
+  public static void main(String[] args) throws InterruptedException
+  {
+    int bots = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+    System.out.println(bots + " bots, " + seconds + " s per run, " + Runtime.getRuntime().availableProcessors()
+        + " processors");
+    boolean ok = true;
+    int run = 0;
+    for (int threads = 1; threads <= Math.max(1, maxThreads); threads *= 2)
+    {
+      ok &= new StateHolderStressTest(bots, threads, run++).run(seconds);
+    }
+    System.exit(ok ? 0 : 1);
+  }
+
+  private boolean run(int seconds) throws InterruptedException
+  {
+    final CountDownLatch done = new CountDownLatch(2 * threads);
+    for (int t = 0; t < threads; t++)
+    {
+      final int remote = t;
+      start(done, "remote-" + t, new Runnable()
+      {
+        public void run()
+        {
+          runRemote(remote);
+        }
+      });
+      final int owner = t;
+      start(done, "bot-" + t, new Runnable()
+      {
+        public void run()
+        {
+          runBots(owner);
+        }
+      });
+    }
+    long start = System.nanoTime();
+    Thread.sleep(seconds * 1000L);
+    running = false;
+    done.await();
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    // The bot threads have stopped; take what is still queued.
+    for (int bot = 0; bot < bots; bot++)
+    {
+      drain(bot);
+    }
+    long total = 0;
+    for (int remote = 0; remote < threads; remote++)
+    {
+      for (int bot = 0; bot < bots; bot++)
+      {
+        total += sent[remote][bot];
+        if (expected[bot][remote] != sent[remote][bot])
+        {
+          fail("bot " + bot + " got " + expected[bot][remote] + " of " + sent[remote][bot] + " events from remote "
+              + remote);
+        }
+      }
+    }
+    System.out.println(String.format("%2d remote + %2d bot threads: %9.0f ops/s, %d of %d key events received, %d failures",
+        threads, threads, operations.get() / elapsed, received.get(), total, failures.get()));
+    return failures.get() == 0 && received.get() == total;
+  }
+
+  private void start(final CountDownLatch done, String name, final Runnable body)
+  {
+    Thread thread = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          body.run();
+        }
+        finally
+        {
+          done.countDown();
+        }
+      }
+    }, "StateHolderStressTest-" + name);
+    thread.start();
+  }
+
+  /**
+   * Sends numbered key events to every bot in turn and checks that each
+   * bot's phone state never goes back in time.
+   */
+  private void runRemote(int remote)
+  {
+    long[] lastSeen = new long[bots];
+    for (int i = 0; running; i = (i + 1) % bots)
+    {
+      StateHolder holder = StateHolder.getInstance(botIDs[i]);
+      // addKeyEvent() builds the event, and a built builder cannot be reused.
+      holder.addKeyEvent(CellbotProtos.ControllerState.KeyEvent.newBuilder().setKeyCode(remote + ":" + sent[remote][i]++)
+          .setKeyDown(true));
+      CellbotProtos.PhoneState state = holder.getPhoneState();
+      if (state != null)
+      {
+        if (state.getTimestamp() < lastSeen[i])
+        {
+          fail("bot " + i + " phone state went from " + lastSeen[i] + " to " + state.getTimestamp());
+        }
+        lastSeen[i] = state.getTimestamp();
+      }
+      operations.addAndGet(2);
+    }
+  }
+
+  /**
+   * Takes the controller states of the bots this thread owns and publishes
+   * their phone states.
+   */
+  private void runBots(int owner)
+  {
+    long timestamp = 0;
+    while (running)
+    {
+      for (int bot = owner; bot < bots && running; bot += threads)
+      {
+        drain(bot);
+        StateHolder.getInstance(botIDs[bot]).setPhoneState(CellbotProtos.PhoneState.newBuilder()
+            .setTimestamp(++timestamp).setBotID(botIDs[bot]).build());
+        operations.addAndGet(2);
+      }
+    }
+  }
+
+  /**
+   * Takes the bot's controller state and checks the sequence numbers of its
+   * key events.
+   */
+  private void drain(int bot)
+  {
+    CellbotProtos.ControllerState state = StateHolder.getInstance(botIDs[bot]).getControllerState();
+    for (CellbotProtos.ControllerState.KeyEvent event : state.getKeyEventList())
+    {
+      String code = event.getKeyCode();
+      int colon = code.indexOf(':');
+      int remote = Integer.parseInt(code.substring(0, colon));
+      long seq = Long.parseLong(code.substring(colon + 1));
+      if (seq != expected[bot][remote])
+      {
+        fail("bot " + bot + " expected event " + expected[bot][remote] + " from remote " + remote + ", got " + seq);
+      }
+      expected[bot][remote] = seq + 1;
+      received.incrementAndGet();
+    }
+  }
+
+  private void fail(String message)
+  {
+    if (failures.incrementAndGet() <= 10)
+    {
+      System.out.println("FAIL: " + message);
+    }
+  }
+}
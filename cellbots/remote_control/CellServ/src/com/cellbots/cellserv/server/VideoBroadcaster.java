@@ -0,0 +1,132 @@
+package com.cellbots.cellserv.server;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.cellbots.CellbotProtos;
+
+/**
+ * Fans video frames of one bot out to any number of MJPEG viewers. Each frame
+ * is encoded once into a complete multipart part (boundary, headers, JPEG
+ * data) and the same byte array is handed to every viewer. Every viewer has
+ * a small queue of its own that drops the oldest part when full, so a slow
+ * viewer only loses frames itself and never holds up the publisher or the
+ * other viewers.
+ */
+public class VideoBroadcaster
+{
+
+  public static final String BOUNDARY     = "cellservframe";
+
+  public static final String CONTENT_TYPE = "multipart/x-mixed-replace; boundary=" + BOUNDARY;
+
+  // Number of parts a viewer may fall behind before frames are dropped.
+  private static final int   VIEWER_QUEUE_SIZE = 2;
+
+  private final CopyOnWriteArrayList<Viewer> viewers = new CopyOnWriteArrayList<Viewer>();
+
+  /**
+   * A subscription of one viewer to the stream.
+   */
+  public static class Viewer
+  {
+    private final ArrayDeque<byte[]> parts   = new ArrayDeque<byte[]>(VIEWER_QUEUE_SIZE);
+
+    private long                     dropped = 0;
+
+    private synchronized void offer(byte[] part)
+    {
+      if (parts.size() >= VIEWER_QUEUE_SIZE)
+      {
+        parts.pollFirst();
+        dropped++;
+      }
+      parts.addLast(part);
+      notifyAll();
+    }
+
+    /**
+     * Returns the next encoded part, waiting up to timeoutMs. Returns null on
+     * timeout.
+     */
+    public synchronized byte[] take(long timeoutMs) throws InterruptedException
+    {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (parts.isEmpty())
+      {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+          return null;
+        }
+        wait(remaining);
+      }
+      return parts.pollFirst();
+    }
+
+    /**
+     * Returns the number of parts dropped because this viewer fell behind.
+     */
+    public synchronized long getDroppedCount()
+    {
+      return dropped;
+    }
+  }
+
+  public Viewer subscribe()
+  {
+    Viewer viewer = new Viewer();
+    viewers.add(viewer);
+    return viewer;
+  }
+
+  public void unsubscribe(Viewer viewer)
+  {
+    viewers.remove(viewer);
+  }
+
+  public int getViewerCount()
+  {
+    return viewers.size();
+  }
+
+  /**
+   * Encodes the frame once and queues it for every viewer. Does nothing if
+   * nobody is watching or the frame carries no image.
+   */
+  public void publish(CellbotProtos.AudioVideoFrame frame, long seq)
+  {
+    if (viewers.isEmpty() || frame == null || !frame.hasData())
+    {
+      return;
+    }
+    byte[] part = encodePart(frame, seq);
+    for (Viewer viewer : viewers)
+    {
+      viewer.offer(part);
+    }
+  }
+
+  private static byte[] encodePart(CellbotProtos.AudioVideoFrame frame, long seq)
+  {
+    int size = frame.getData().size();
+    String header = "--" + BOUNDARY + "\r\n" + "Content-Type: image/jpeg\r\n" + "Content-Length: " + size + "\r\n"
+        + LongPoll.SEQ_HEADER + ": " + seq + "\r\n\r\n";
+    byte[] headerBytes;
+    try
+    {
+      headerBytes = header.getBytes("US-ASCII");
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException(e);
+    }
+    byte[] part = new byte[headerBytes.length + size + 2];
+    System.arraycopy(headerBytes, 0, part, 0, headerBytes.length);
+    frame.getData().copyTo(part, 0, headerBytes.length, size);
+    part[part.length - 2] = '\r';
+    part[part.length - 1] = '\n';
+    return part;
+  }
+}
@@ -29,9 +29,36 @@ public class VideoServlet extends HttpServlet
       botID = req.getParameter("BOTID");
     }
     
-    if (StateHolder.getInstance(botID).newVideoFrameAvilble())
+    StateHolder holder = StateHolder.getInstance(botID);
+
+    if (LongPoll.isLongPoll(req))
+    {
+      // Park the request until a frame newer than the one the client last
+      // saw arrives, instead of answering 304 right away.
+      long lastSeen = LongPoll.getLastSeenSeq(req);
+      StateHolder.Versioned<CellbotProtos.AudioVideoFrame> frame = null;
+      try
+      {
+        frame = holder.awaitVideoFrame(lastSeen, LongPoll.getWaitMs(req));
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      if (frame == null || !frame.isUnseen(lastSeen) || !frame.value.hasData())
+      {
+        res.setStatus(HttpStatus.SC_NOT_MODIFIED);
+        return;
+      }
+      res.setHeader(LongPoll.SEQ_HEADER, Long.toString(frame.seq));
+      res.setContentType("image/jpeg");
+      res.getOutputStream().write(frame.value.getData().toByteArray());
+      return;
+    }
+
+    if (holder.newVideoFrameAvilble())
     {
-      res.getOutputStream().write(StateHolder.getInstance(botID).getVideoFrame());
+      res.getOutputStream().write(holder.getVideoFrame());
     }
     else
     {
@@ -1,7 +1,9 @@
 package com.cellbots.cellserv.server;
 
 import com.cellbots.CellbotProtos.ControllerState.KeyEvent;
+import com.cellbots.CellbotProtos.ControllerState.StickEvent;
 import com.cellbots.cellserv.client.WiimoteService;
+import com.cellbots.cellserv.shared.StickFilter;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
 
@@ -43,6 +45,24 @@ public class WiimoteServiceImpl extends RemoteServiceServlet implements WiimoteS
   {
     return StateHolder.getInstance(botid).addKeyTxtCommand(command);
   }
+
+  public int handleStick(int stickType, int stickNumber, float x, float y, String botid)
+  {
+    StickEvent.StickType type = StickEvent.StickType.valueOf(stickType);
+    if (type == null)
+    {
+      return 0;
+    }
+    // Quantized like the channel's, so both transports give the bot the
+    // same values.
+    StickEvent.Builder stick = StickEvent.newBuilder();
+    stick.setStickType(type);
+    stick.setStickNumber(stickNumber);
+    stick.setX(StickFilter.toFloat(StickFilter.quantize(x)));
+    stick.setY(StickFilter.toFloat(StickFilter.quantize(y)));
+    StateHolder.getInstance(botid).addStickEvent(stick);
+    return 1;
+  }
   
  
 
@@ -0,0 +1,260 @@
+package com.cellbots.cellserv.shared;
+
+/**
+ * The wire format of the control channel between a remote and the server.
+ * Used by both the client and the server, so it must stay translatable.
+ * <p>
+ * A message is a sequence of frames. A frame is its type, the number of
+ * values that follow and the values, all as varints. A reader skips frames
+ * of a type it does not know. Signed values are zigzag encoded.
+ * <p>
+ * The varints are written as text, one character per 5 bits: the character's
+ * index in ALPHABET holds the bits, plus 32 when more characters follow.
+ * Binary XHR bodies are not available to the GWT client, and this keeps the
+ * body plain ASCII that survives any charset while staying close to the size
+ * of the binary form. A key event takes 3 or 4 characters.
+ * <p>
+ * Upstream, from the remote: KEY_DOWN and KEY_UP carry an Android key code,
+ * TEXT carries a text command as one value per character, STICK carries a
+ * stick's type (the StickType number, STICK_ANALOG for a joystick), its
+ * number and its x and y quantized by StickFilter. The reply is an ACK with
+ * the number of key events waiting for the bot.
+ * <p>
+ * Downstream, in reply to a poll: STATE carries the phone state's sequence
+ * number, a mask of the fields present and their values in field order,
+ * quantized by STEPS; FRAME carries the sequence number of the latest video
+ * frame. The fields are numbered and quantized as in the phone's delta
+ * telemetry, com.cellbots.PhoneStateDelta.
+ */
+public class ChannelCodec
+{
+  public static final String CONTENT_TYPE   = "text/plain; charset=US-ASCII";
+
+  /** Poll parameter carrying the last video frame sequence number seen. */
+  public static final String FRAME_PARAM    = "frame";
+
+  public static final int    KEY_DOWN       = 1;
+
+  public static final int    KEY_UP         = 2;
+
+  public static final int    TEXT           = 3;
+
+  public static final int    ACK            = 4;
+
+  public static final int    STATE          = 5;
+
+  public static final int    FRAME          = 6;
+
+  public static final int    STICK          = 7;
+
+  public static final int    STICK_ANALOG   = 1;
+
+  public static final int    ACCEL_X        = 0;
+
+  public static final int    ACCEL_Y        = 1;
+
+  public static final int    ACCEL_Z        = 2;
+
+  public static final int    COMPASS_X      = 3;
+
+  public static final int    COMPASS_Y      = 4;
+
+  public static final int    COMPASS_Z      = 5;
+
+  public static final int    AZIMUTH        = 6;
+
+  public static final int    PITCH          = 7;
+
+  public static final int    ROLL           = 8;
+
+  public static final int    BATTERY_LEVEL  = 9;
+
+  public static final int    BATTERY_TEMP   = 10;
+
+  public static final int    LIGHT_LEVEL    = 11;
+
+  public static final int    WIFI_STRENGTH  = 12;
+
+  public static final int    WIFI_KBPS      = 13;
+
+  public static final int    WIFI_IP        = 14;
+
+  public static final int    FIELDS         = 15;
+
+  /** Quantization step of each STATE field; 0 marks an int field. */
+  public static final float[] STEPS         = { 0.01f, 0.01f, 0.01f, 0.1f, 0.1f, 0.1f, 0.1f,
+      0.1f, 0.1f, 1, 0, 0.1f, 0, 0, 0 };
+
+  private static final String ALPHABET      = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+  private static final int    MORE          = 32;
+
+  private ChannelCodec()
+  {
+  }
+
+  /**
+   * Builds a message.
+   */
+  public static class Writer
+  {
+    private final StringBuilder out = new StringBuilder();
+
+    /** Starts a frame; count values must follow. */
+    public Writer frame(int type, int count)
+    {
+      putVarint(type);
+      putVarint(count);
+      return this;
+    }
+
+    /** Writes a whole frame holding text, one value per character. */
+    public Writer text(int type, String text)
+    {
+      frame(type, text.length());
+      for (int i = 0; i < text.length(); i++)
+      {
+        putVarint(text.charAt(i));
+      }
+      return this;
+    }
+
+    public Writer putVarint(long value)
+    {
+      while ((value & ~(MORE - 1)) != 0)
+      {
+        out.append(ALPHABET.charAt((int) (value & (MORE - 1)) | MORE));
+        value >>>= 5;
+      }
+      out.append(ALPHABET.charAt((int) value));
+      return this;
+    }
+
+    public Writer putSigned(long value)
+    {
+      return putVarint((value << 1) ^ (value >> 63));
+    }
+
+    public boolean isEmpty()
+    {
+      return out.length() == 0;
+    }
+
+    public int length()
+    {
+      return out.length();
+    }
+
+    public void clear()
+    {
+      out.setLength(0);
+    }
+
+    public String toString()
+    {
+      return out.toString();
+    }
+  }
+
+  /**
+   * Reads the frames of a message. Call nextFrame, then read exactly
+   * getRemaining values, or let the next call to nextFrame skip them.
+   */
+  public static class Reader
+  {
+    private final String in;
+
+    private int          pos       = 0;
+
+    private int          remaining = 0;
+
+    public Reader(String message)
+    {
+      in = message == null ? "" : message;
+    }
+
+    /**
+     * Moves to the next frame, skipping what is left of the current one.
+     * Returns its type, or -1 at the end of the message.
+     */
+    public int nextFrame()
+    {
+      while (remaining > 0)
+      {
+        readVarint();
+      }
+      if (pos >= in.length())
+      {
+        return -1;
+      }
+      int type = (int) next();
+      remaining = (int) next();
+      if (remaining < 0)
+      {
+        throw new IllegalArgumentException("bad frame length");
+      }
+      return type;
+    }
+
+    /** Returns the number of values left in the current frame. */
+    public int getRemaining()
+    {
+      return remaining;
+    }
+
+    public long readVarint()
+    {
+      if (remaining <= 0)
+      {
+        throw new IllegalArgumentException("read past end of frame");
+      }
+      remaining--;
+      return next();
+    }
+
+    public int readInt()
+    {
+      return (int) readVarint();
+    }
+
+    public long readSigned()
+    {
+      long v = readVarint();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Reads the rest of the frame as text. */
+    public String readText()
+    {
+      StringBuilder text = new StringBuilder(remaining);
+      while (remaining > 0)
+      {
+        text.append((char) readVarint());
+      }
+      return text.toString();
+    }
+
+    private long next()
+    {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 5)
+      {
+        if (pos >= in.length())
+        {
+          throw new IllegalArgumentException("truncated message");
+        }
+        int digit = ALPHABET.indexOf(in.charAt(pos++));
+        if (digit < 0)
+        {
+          throw new IllegalArgumentException("bad character in message");
+        }
+        value |= (long) (digit & (MORE - 1)) << shift;
+        if ((digit & MORE) == 0)
+        {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("varint too long");
+    }
+  }
+}
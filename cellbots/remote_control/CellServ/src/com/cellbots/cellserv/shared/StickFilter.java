@@ -0,0 +1,147 @@
+package com.cellbots.cellserv.shared;
+
+/**
+ * Turns the continuous position of an analog stick into a bounded stream of
+ * stick events. Used by the remote, and quantize() by the server for events
+ * that arrive as floats, so it must stay translatable.
+ * <p>
+ * Positions run from -1 to 1 on each axis, x to the right and y forward.
+ * A position within the dead band of center reads as center, and the rest of
+ * the range is stretched so the output still starts at 0 and reaches 1. The
+ * result is quantized to steps of 1 / RESOLUTION and kept as an int.
+ * <p>
+ * due() decides when to send: when either axis has moved by at least the
+ * change threshold since the last value sent, but not more often than the
+ * minimum interval; when the stick returns to center, however small the
+ * move; and, while off center, every keep-alive interval even if it has not
+ * moved, so the bot can stop when events stop coming.
+ */
+public class StickFilter
+{
+  /** Quantization steps per unit of stick travel. */
+  public static final int RESOLUTION          = 100;
+
+  public static final float DEFAULT_DEAD_BAND = 0.08f;
+
+  public static final int DEFAULT_THRESHOLD   = 3;
+
+  public static final int DEFAULT_MIN_INTERVAL_MS = 50;
+
+  public static final int DEFAULT_KEEP_ALIVE_MS = 400;
+
+  private final float     deadBand;
+
+  private final int       threshold;
+
+  private final int       minIntervalMs;
+
+  private final int       keepAliveMs;
+
+  private int             x, y;
+
+  private int             sentX, sentY;
+
+  private long            lastSentMs          = Long.MIN_VALUE / 2;
+
+  private int             sent                = 0;
+
+  private int             suppressed          = 0;
+
+  public StickFilter()
+  {
+    this(DEFAULT_DEAD_BAND, DEFAULT_THRESHOLD, DEFAULT_MIN_INTERVAL_MS, DEFAULT_KEEP_ALIVE_MS);
+  }
+
+  public StickFilter(float deadBand, int threshold, int minIntervalMs, int keepAliveMs)
+  {
+    this.deadBand = deadBand;
+    this.threshold = threshold;
+    this.minIntervalMs = minIntervalMs;
+    this.keepAliveMs = keepAliveMs;
+  }
+
+  /**
+   * Sets the stick position. Returns true if it changed the quantized value.
+   */
+  public boolean set(float rawX, float rawY)
+  {
+    float r = (float) Math.sqrt(rawX * rawX + rawY * rawY);
+    int qx = 0, qy = 0;
+    if (r > deadBand)
+    {
+      // Stretch the range outside the dead band back to 0..1, keeping the
+      // direction.
+      float scale = (Math.min(r, 1) - deadBand) / (1 - deadBand) / r;
+      qx = quantize(rawX * scale);
+      qy = quantize(rawY * scale);
+    }
+    boolean changed = qx != x || qy != y;
+    x = qx;
+    y = qy;
+    return changed;
+  }
+
+  /**
+   * Returns true if the current value should be sent at nowMs, and if so
+   * takes it as sent.
+   */
+  public boolean due(long nowMs)
+  {
+    long since = nowMs - lastSentMs;
+    boolean moved = Math.abs(x - sentX) >= threshold || Math.abs(y - sentY) >= threshold;
+    boolean centered = x == 0 && y == 0 && (sentX != 0 || sentY != 0);
+    boolean keepAlive = (x != 0 || y != 0) && since >= keepAliveMs;
+    if (((moved || centered) && since >= minIntervalMs) || keepAlive)
+    {
+      sentX = x;
+      sentY = y;
+      lastSentMs = nowMs;
+      sent++;
+      return true;
+    }
+    if (x != sentX || y != sentY)
+    {
+      suppressed++;
+    }
+    return false;
+  }
+
+  /** Returns true if the stick is off center or its return has not been sent. */
+  public boolean isActive()
+  {
+    return x != 0 || y != 0 || sentX != 0 || sentY != 0;
+  }
+
+  public int getX()
+  {
+    return x;
+  }
+
+  public int getY()
+  {
+    return y;
+  }
+
+  /** Returns the number of values sent. */
+  public int getSentCount()
+  {
+    return sent;
+  }
+
+  /** Returns the number of calls to due() that held back a changed value. */
+  public int getSuppressedCount()
+  {
+    return suppressed;
+  }
+
+  /** Quantizes a position, clamped to -1..1. */
+  public static int quantize(float v)
+  {
+    return Math.round(Math.max(-1, Math.min(1, v)) * RESOLUTION);
+  }
+
+  public static float toFloat(int q)
+  {
+    return (float) q / RESOLUTION;
+  }
+}